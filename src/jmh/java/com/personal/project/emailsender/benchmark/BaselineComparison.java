@@ -0,0 +1,129 @@
+package com.personal.project.emailsender.benchmark;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import lombok.Value;
+
+/**
+ * Compares the JSON results of a JMH run with the committed baseline and exits with an error if any benchmark got
+ * slower or allocates more than the allowed margins:
+ * <pre>
+ * BaselineComparison &lt;baseline.json&gt; &lt;results.json&gt; [max time regression] [max allocation regression]
+ * </pre>
+ * The average time depends on the machine, so its margin is wide; the allocated bytes per operation
+ * ({@code gc.alloc.rate.norm}, from {@code -prof gc}) do not, so they are held to a tighter margin. The benchmarks
+ * missing from the baseline are only reported, while the baseline benchmarks missing from the results fail the
+ * comparison, since a benchmark that stopped running (renamed, removed, failed with {@code -foe}) would otherwise hide
+ * its regressions.
+ */
+public class BaselineComparison {
+
+    private static final String BENCHMARK_PACKAGE = "com.personal.project.emailsender.";
+
+    private static final String ALLOCATION_METRIC = "\u00b7gc.alloc.rate.norm";
+
+    /**
+     * Allocation differences below this many bytes per operation are noise, whatever their ratio.
+     */
+    private static final double ALLOCATION_TOLERANCE_BYTES = 256;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: BaselineComparison <baseline.json> <results.json> [max time regression] "
+                + "[max allocation regression]");
+            System.exit(2);
+        }
+        double maxTimeRegression = args.length > 2 ? Double.parseDouble(args[2]) : 0.25;
+        double maxAllocationRegression = args.length > 3 ? Double.parseDouble(args[3]) : 0.10;
+
+        Map<String, Result> baseline = readResults(Paths.get(args[0]));
+        Map<String, Result> results = readResults(Paths.get(args[1]));
+
+        int regressions = 0;
+        System.out.printf("%-80s %14s %14s %14s %14s%n", "Benchmark", "Time", "Baseline", "Alloc B/op", "Baseline");
+        for (Map.Entry<String, Result> entry : results.entrySet()) {
+            Result result = entry.getValue();
+            Result expected = baseline.get(entry.getKey());
+            if (expected == null) {
+                System.out.printf("%-80s %14.3f %14s %14.0f %14s  NEW%n", entry.getKey(), result.getTime(), "-",
+                    result.getAllocatedBytes(), "-");
+                continue;
+            }
+            double allocatedBytes = result.getAllocatedBytes();
+            double expectedAllocatedBytes = expected.getAllocatedBytes();
+            boolean slower = result.getTime() > expected.getTime() * (1 + maxTimeRegression);
+            boolean allocatesMore = allocatedBytes - expectedAllocatedBytes > ALLOCATION_TOLERANCE_BYTES
+                && allocatedBytes > expectedAllocatedBytes * (1 + maxAllocationRegression);
+            if (slower || allocatesMore) {
+                regressions++;
+            }
+            System.out.printf("%-80s %14.3f %14.3f %14.0f %14.0f  %s%n", entry.getKey(), result.getTime(),
+                expected.getTime(), allocatedBytes, expectedAllocatedBytes, status(slower, allocatesMore));
+        }
+
+        int missing = 0;
+        for (Map.Entry<String, Result> entry : baseline.entrySet()) {
+            if (!results.containsKey(entry.getKey())) {
+                missing++;
+                System.out.printf("%-80s %14s %14.3f %14s %14.0f  MISSING%n", entry.getKey(), "-",
+                    entry.getValue().getTime(), "-", entry.getValue().getAllocatedBytes());
+            }
+        }
+
+        if (regressions > 0) {
+            System.err.printf("%d benchmarks regressed (max time regression %.0f%%, "
+                + "max allocation regression %.0f%%)%n", regressions, maxTimeRegression * 100,
+                maxAllocationRegression * 100);
+        }
+        if (missing > 0) {
+            System.err.printf("%d baseline benchmarks missing from the results%n", missing);
+        }
+        if (regressions > 0 || missing > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static String status(boolean slower, boolean allocatesMore) {
+        if (slower && allocatesMore) {
+            return "SLOWER, ALLOCATES MORE";
+        }
+        return slower ? "SLOWER" : allocatesMore ? "ALLOCATES MORE" : "OK";
+    }
+
+    /**
+     * @return the results by benchmark name and parameters
+     */
+    private static Map<String, Result> readResults(Path file) throws IOException {
+        Map<String, Result> results = new LinkedHashMap<>();
+        for (JsonNode benchmark : new ObjectMapper().readTree(Files.readAllBytes(file))) {
+            Map<String, String> params = new TreeMap<>();
+            JsonNode paramsNode = benchmark.path("params");
+            for (Iterator<Map.Entry<String, JsonNode>> it = paramsNode.fields(); it.hasNext(); ) {
+                Map.Entry<String, JsonNode> param = it.next();
+                params.put(param.getKey(), param.getValue().asText());
+            }
+            String name = benchmark.get("benchmark").asText().replace(BENCHMARK_PACKAGE, "");
+            String key = name + (params.isEmpty() ? "" : " " + params);
+            double time = benchmark.path("primaryMetric").path("score").asDouble();
+            double allocatedBytes = benchmark.path("secondaryMetrics").path(ALLOCATION_METRIC).path("score").asDouble();
+            results.put(key, new Result(time, allocatedBytes));
+        }
+        return results;
+    }
+
+    @Value
+    private static class Result {
+
+        double time;
+
+        double allocatedBytes;
+    }
+}
@@ -0,0 +1,69 @@
+package com.personal.project.emailsender.kafka.serialization;
+
+import com.personal.project.emailsender.dto.AttachmentDTO;
+import com.personal.project.emailsender.dto.EmailDTO;
+import com.personal.project.emailsender.kafka.serialization.EmailEventSerializer.Format;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the cost of the JSON and Avro formats of the email events. The record size of each format is printed
+ * when the benchmark starts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EmailEventSerializationBenchmark {
+
+    private static final String TOPIC = "email-sender.emails";
+
+    @Param({"JSON", "AVRO"})
+    private Format format;
+
+    @Param({"200", "2000"})
+    private int bodySize;
+
+    private EmailEventSerializer serializer;
+
+    private EmailEventDeserializer deserializer;
+
+    private EmailDTO emailDTO;
+
+    private byte[] serialized;
+
+    @Setup
+    public void setUp() {
+        serializer = new EmailEventSerializer();
+        serializer.configure(Map.of(EmailEventSerializer.FORMAT_CONFIG, format.name()), false);
+        deserializer = new EmailEventDeserializer();
+        emailDTO = new EmailDTO("newsletter@company.com", "first.last@customer.com", "Your monthly newsletter",
+            "Lorem ipsum dolor sit amet ".repeat(bodySize / 27 + 1).substring(0, bodySize),
+            new AttachmentDTO("newsletter.pdf", "https://cdn.company.com/newsletters/2021-03.pdf"));
+        serialized = serializer.serialize(TOPIC, emailDTO);
+        System.out.printf("%n%s record size with a body of %d chars: %d bytes%n", format, bodySize, serialized.length);
+    }
+
+    @Benchmark
+    public byte[] serialize() {
+        return serializer.serialize(TOPIC, emailDTO);
+    }
+
+    @Benchmark
+    public EmailDTO deserialize() {
+        return deserializer.deserialize(TOPIC, serialized);
+    }
+}
@@ -0,0 +1,108 @@
+package com.personal.project.emailsender.service;
+
+import com.personal.project.emailsender.dto.AttachmentDTO;
+import com.personal.project.emailsender.dto.EmailDTO;
+import com.personal.project.emailsender.execution.DeliveryExecutorFactory;
+import com.personal.project.emailsender.service.EmailSenderService.PreparedEmail;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+
+/**
+ * Cost of the send hot path without the SMTP server: building the MIME message of an email (downloading its
+ * attachment from a local server) and encoding it as it is written to the SMTP connection. An attachment size of 0
+ * means no attachment.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EmailSenderServiceBenchmark {
+
+    @Param({"0", "10240", "1048576"})
+    private int attachmentSize;
+
+    private StubAttachmentServer attachmentServer;
+
+    private EmailSenderService emailSenderService;
+
+    private EmailDTO emailDTO;
+
+    private PreparedEmail preparedEmail;
+
+    @Setup
+    public void setUp() throws Exception {
+        attachmentServer = new StubAttachmentServer(attachmentSize);
+        MeterRegistry meterRegistry = new SimpleMeterRegistry();
+        UrlDownloader urlDownloader = new UrlDownloaderImpl(2 * 1024 * 1024, System.getProperty("java.io.tmpdir"),
+            1000, 5000, 5000, 8, 32 * 1024 * 1024, meterRegistry);
+        //the encoded attachments are not cached, so that every message is encoded again
+        EncodedAttachmentCache encodedAttachmentCache = new EncodedAttachmentCache(0, 0, meterRegistry);
+        DeliveryRateLimiter deliveryRateLimiter = new DeliveryRateLimiter(new DeliveryRateLimiter.Settings(0, 1, 0,
+            Map.of(), Map.of(), 0, 1, Duration.ZERO), meterRegistry);
+        emailSenderService = new EmailSenderService(new JavaMailSenderImpl(), urlDownloader, encodedAttachmentCache,
+            deliveryRateLimiter, new DeliveryExecutorFactory(DeliveryExecutorFactory.Mode.PLATFORM), 0, false,
+            new SentEmailIndex(0, Duration.ZERO, Paths.get("sent-emails.idx"), meterRegistry),
+            new PrioritySendScheduler(0, 1, 1, 1, meterRegistry), meterRegistry);
+
+        AttachmentDTO attachmentDTO = attachmentSize > 0
+            ? new AttachmentDTO("attachment.bin", attachmentServer.getAttachmentUrl())
+            : null;
+        emailDTO = new EmailDTO("newsletter@company.com", "first.last@customer.com", "Your monthly newsletter",
+            "Lorem ipsum dolor sit amet ".repeat(40), attachmentDTO);
+    }
+
+    @Setup(Level.Iteration)
+    public void prepareEmail() throws Exception {
+        preparedEmail = emailSenderService.toMailMessage(emailDTO);
+        preparedEmail.getMimeMessage().saveChanges();
+    }
+
+    @TearDown(Level.Iteration)
+    public void releaseEmail() {
+        preparedEmail.close();
+    }
+
+    @TearDown
+    public void tearDown() {
+        emailSenderService.shutdown();
+        attachmentServer.close();
+    }
+
+    @Benchmark
+    public MimeMessage toMailMessage() throws MessagingException, IOException {
+        try (PreparedEmail preparedEmail = emailSenderService.toMailMessage(emailDTO)) {
+            return preparedEmail.getMimeMessage();
+        }
+    }
+
+    @Benchmark
+    public MimeMessage writeTo() throws MessagingException, IOException {
+        MimeMessage mimeMessage = preparedEmail.getMimeMessage();
+        mimeMessage.writeTo(OutputStream.nullOutputStream());
+        return mimeMessage;
+    }
+}
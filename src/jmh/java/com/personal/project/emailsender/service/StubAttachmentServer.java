@@ -0,0 +1,54 @@
+package com.personal.project.emailsender.service;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Local http server serving an attachment of a fixed size, so that the benchmarks measure the client side of the
+ * download without any network latency.
+ */
+class StubAttachmentServer implements Closeable {
+
+    private static final String ATTACHMENT_PATH = "/attachment.bin";
+
+    private final HttpServer httpServer;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    static {
+        //otherwise the small responses wait for the delayed ack of the client (~40 ms) before being sent
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    StubAttachmentServer(int attachmentSize) throws IOException {
+        byte[] attachment = new byte[attachmentSize];
+        new Random(attachmentSize).nextBytes(attachment);
+        httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        httpServer.setExecutor(executor);
+        httpServer.createContext(ATTACHMENT_PATH, exchange -> {
+            exchange.getResponseHeaders().add("Content-Type", "application/octet-stream");
+            exchange.sendResponseHeaders(200, attachment.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(attachment);
+            }
+        });
+        httpServer.start();
+    }
+
+    String getAttachmentUrl() {
+        return "http://localhost:" + httpServer.getAddress().getPort() + ATTACHMENT_PATH;
+    }
+
+    @Override
+    public void close() {
+        httpServer.stop(0);
+        executor.shutdownNow();
+    }
+}
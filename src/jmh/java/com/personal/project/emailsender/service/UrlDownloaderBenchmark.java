@@ -0,0 +1,61 @@
+package com.personal.project.emailsender.service;
+
+import com.personal.project.emailsender.service.UrlDownloader.DownloadedContent;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of downloading an attachment from a local http server, below and above the spill threshold.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UrlDownloaderBenchmark {
+
+    private static final int SPILL_THRESHOLD_BYTES = 1024 * 1024;
+
+    @Param({"10240", "1048576", "4194304"})
+    private int attachmentSize;
+
+    private StubAttachmentServer attachmentServer;
+
+    private UrlDownloader urlDownloader;
+
+    private String attachmentUrl;
+
+    @Setup
+    public void setUp() throws IOException {
+        attachmentServer = new StubAttachmentServer(attachmentSize);
+        attachmentUrl = attachmentServer.getAttachmentUrl();
+        urlDownloader = new UrlDownloaderImpl(SPILL_THRESHOLD_BYTES, System.getProperty("java.io.tmpdir"), 1000, 5000,
+            5000, 8, 32 * 1024 * 1024, new SimpleMeterRegistry());
+    }
+
+    @TearDown
+    public void tearDown() {
+        attachmentServer.close();
+    }
+
+    @Benchmark
+    public long downloadContent() throws IOException {
+        try (DownloadedContent downloadedContent = urlDownloader.downloadContent(attachmentUrl)) {
+            return downloadedContent.getSize();
+        }
+    }
+}
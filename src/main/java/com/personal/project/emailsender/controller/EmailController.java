@@ -1,28 +1,90 @@
 package com.personal.project.emailsender.controller;
 
+import com.personal.project.emailsender.dto.EmailBatchResult;
 import com.personal.project.emailsender.dto.EmailDTO;
+import com.personal.project.emailsender.dto.TemplateEmailDTO;
 import com.personal.project.emailsender.kafka.producer.EmailProducer;
+import com.personal.project.emailsender.service.EmailBatchIngestService;
 import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.Parameter;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import javax.servlet.http.HttpServletRequest;
 import javax.validation.Valid;
-import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
+@Slf4j
 @RestController
 @RequestMapping("/email")
-@RequiredArgsConstructor
 public class EmailController {
 
+    private static final String APPLICATION_NDJSON_VALUE = "application/x-ndjson";
+
     private final EmailProducer emailProducer;
 
+    private final EmailBatchIngestService emailBatchIngestService;
+
+    private final boolean waitForAckByDefault;
+
+    private final long ackTimeoutMs;
+
+    public EmailController(EmailProducer emailProducer, EmailBatchIngestService emailBatchIngestService,
+        @Value("${email-sender.api.wait-for-ack}") boolean waitForAckByDefault,
+        @Value("${email-sender.api.ack-timeout.ms}") long ackTimeoutMs) {
+
+        this.emailProducer = emailProducer;
+        this.emailBatchIngestService = emailBatchIngestService;
+        this.waitForAckByDefault = waitForAckByDefault;
+        this.ackTimeoutMs = ackTimeoutMs;
+    }
+
     @Operation(description = "Asynchronously send email")
     @PostMapping
-    public ResponseEntity<?> sendEmail(@RequestBody @Valid EmailDTO emailDTO) {
-        emailProducer.queueEmail(emailDTO);
+    public ResponseEntity<?> sendEmail(@RequestBody @Valid EmailDTO emailDTO,
+        @Parameter(description = "Wait until the email has been queued, instead of fire-and-forget")
+        @RequestParam(required = false) Boolean waitForAck) {
+
+        Future<?> queued = emailProducer.queueEmail(emailDTO);
+        if (waitForAck == null ? waitForAckByDefault : waitForAck) {
+            try {
+                queued.get(ackTimeoutMs, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException | TimeoutException e) {
+                log.warn("Email event not acknowledged: {}", emailDTO, e);
+                return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+            }
+        }
+        return ResponseEntity.accepted().build();
+    }
+
+    @Operation(description = "Asynchronously send a templated email to many recipients")
+    @PostMapping("/template")
+    public ResponseEntity<?> sendTemplateEmail(@RequestBody @Valid TemplateEmailDTO templateEmailDTO) {
+        emailProducer.queueTemplateEmail(templateEmailDTO);
         return ResponseEntity.accepted().build();
     }
 
+    @Operation(description = "Asynchronously send the emails of a JSON array or of newline delimited JSON")
+    @PostMapping(value = "/batch", consumes = {MediaType.APPLICATION_JSON_VALUE, APPLICATION_NDJSON_VALUE})
+    public ResponseEntity<EmailBatchResult> sendEmails(HttpServletRequest request) throws IOException {
+        EmailBatchResult result = emailBatchIngestService.ingest(request.getInputStream());
+        return result.getParseError() == null
+            ? ResponseEntity.ok(result)
+            : ResponseEntity.badRequest().body(result);
+    }
+
 }
@@ -0,0 +1,39 @@
+package com.personal.project.emailsender.dto;
+
+import java.util.ArrayList;
+import java.util.List;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.lang.Nullable;
+
+/**
+ * Summary of a bulk email request: the number of emails received and queued, and the errors of the other ones.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class EmailBatchResult {
+
+    private int received;
+
+    private int queued;
+
+    private List<ItemError> errors = new ArrayList<>();
+
+    /**
+     * The error that stopped the parsing of the request body, if any: the emails after it have not been read.
+     */
+    @Nullable
+    private String parseError;
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class ItemError {
+
+        private int index;
+
+        private List<String> errors;
+    }
+}
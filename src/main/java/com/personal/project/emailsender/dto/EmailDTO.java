@@ -3,6 +3,7 @@ package com.personal.project.emailsender.dto;
 import javax.validation.Valid;
 import javax.validation.constraints.Email;
 import javax.validation.constraints.NotBlank;
+import javax.validation.constraints.Size;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
@@ -27,4 +28,27 @@ public class EmailDTO {
 
     @Nullable @Valid
     private AttachmentDTO attachment;
+
+    /**
+     * Identifies the email across redeliveries, so that it is sent only once: assigned when the email is queued if
+     * the caller did not provide one.
+     */
+    @Nullable @Size(max = 128)
+    private String idempotencyKey;
+
+    /**
+     * {@link Priority#NORMAL} if not set.
+     */
+    @Nullable
+    private Priority priority;
+
+    public EmailDTO(String from, String to, String subject, String body, @Nullable AttachmentDTO attachment) {
+        this(from, to, subject, body, attachment, null, null);
+    }
+
+    public EmailDTO(String from, String to, String subject, String body, @Nullable AttachmentDTO attachment,
+        @Nullable String idempotencyKey) {
+
+        this(from, to, subject, body, attachment, idempotencyKey, null);
+    }
 }
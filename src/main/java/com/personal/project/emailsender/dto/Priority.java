@@ -0,0 +1,19 @@
+package com.personal.project.emailsender.dto;
+
+/**
+ * Delivery lane of an email: each priority has its own topic and a weighted share of the concurrent SMTP sends.
+ */
+public enum Priority {
+
+    /**
+     * Transactional emails, such as password resets and one-time codes.
+     */
+    HIGH,
+
+    NORMAL,
+
+    /**
+     * Campaigns and newsletters, sent with the capacity left over by the other priorities.
+     */
+    BULK
+}
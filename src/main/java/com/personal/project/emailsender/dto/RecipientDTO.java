@@ -0,0 +1,21 @@
+package com.personal.project.emailsender.dto;
+
+import java.util.Map;
+import javax.validation.constraints.Email;
+import javax.validation.constraints.NotBlank;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.lang.Nullable;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class RecipientDTO {
+
+    @NotBlank @Email
+    private String to;
+
+    @Nullable
+    private Map<String, String> variables;
+}
@@ -0,0 +1,56 @@
+package com.personal.project.emailsender.dto;
+
+import java.util.List;
+import javax.validation.Valid;
+import javax.validation.constraints.Email;
+import javax.validation.constraints.NotBlank;
+import javax.validation.constraints.NotEmpty;
+import javax.validation.constraints.Size;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.lang.Nullable;
+
+/**
+ * An email sent to many recipients: the subject and the body are templates where {@code {{name}}} is replaced by the
+ * value of the variable {@code name} of each recipient.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class TemplateEmailDTO {
+
+    @NotBlank @Email
+    private String from;
+
+    @NotBlank
+    private String subject;
+
+    @NotBlank
+    private String body;
+
+    @Nullable @Valid
+    private AttachmentDTO attachment;
+
+    @NotEmpty
+    private List<@Valid RecipientDTO> recipients;
+
+    /**
+     * Identifies the template email across redeliveries, the email of each recipient is identified by a hash of this
+     * key and its recipient. Assigned when the event is queued if the caller did not provide one.
+     */
+    @Nullable @Size(max = 128)
+    private String idempotencyKey;
+
+    /**
+     * {@link Priority#BULK} if not set.
+     */
+    @Nullable
+    private Priority priority;
+
+    public TemplateEmailDTO(String from, String subject, String body, @Nullable AttachmentDTO attachment,
+        List<RecipientDTO> recipients) {
+
+        this(from, subject, body, attachment, recipients, null, null);
+    }
+}
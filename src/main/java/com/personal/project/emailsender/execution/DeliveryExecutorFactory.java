@@ -0,0 +1,140 @@
+package com.personal.project.emailsender.execution;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.lang.Nullable;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Creates the executors running the downloads and sends of the emails.
+ * <p>
+ * In {@link Mode#VIRTUAL} mode every task runs on its own virtual thread, so that thousands of deliveries blocked on
+ * I/O can be in flight without as many OS threads. Virtual threads need a Java 21+ runtime: the project is still built
+ * for Java 11, so on older runtimes the factory falls back to {@link Mode#PLATFORM} threads.
+ */
+@Slf4j
+@Component
+public class DeliveryExecutorFactory {
+
+    private final Mode mode;
+
+    public DeliveryExecutorFactory(@Value("${email-sender.execution.mode}") Mode mode) {
+        if (mode == Mode.VIRTUAL && !isVirtualThreadSupported()) {
+            log.warn("Virtual threads are not supported by Java {}, using platform threads",
+                System.getProperty("java.version"));
+            this.mode = Mode.PLATFORM;
+        } else {
+            this.mode = mode;
+        }
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Creates an executor running at most {@code maxConcurrency} tasks at the same time.
+     */
+    public ExecutorService newExecutor(String threadNamePrefix, int maxConcurrency) {
+        if (mode == Mode.VIRTUAL) {
+            return new ConcurrencyLimitedExecutorService(newVirtualThreadPerTaskExecutor(), maxConcurrency);
+        }
+        return Executors.newFixedThreadPool(maxConcurrency, new CustomizableThreadFactory(threadNamePrefix));
+    }
+
+    private static boolean isVirtualThreadSupported() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    @Nullable
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method factoryMethod = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factoryMethod.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    public enum Mode {
+        PLATFORM,
+        VIRTUAL
+    }
+
+    /**
+     * Limits the number of tasks running at the same time on an unbounded executor. The tasks waiting for a permit
+     * block their own (virtual) thread only. A task interrupted while waiting, on {@link #shutdownNow()}, still runs
+     * with its thread interrupted, so that the callers waiting for its result are not left blocked.
+     * <p>
+     * Package-private for the tests, which run on runtimes without virtual threads.
+     */
+    static class ConcurrencyLimitedExecutorService extends AbstractExecutorService {
+
+        private final ExecutorService delegate;
+
+        private final Semaphore permits;
+
+        ConcurrencyLimitedExecutorService(ExecutorService delegate, int maxConcurrency) {
+            this.delegate = delegate;
+            this.permits = new Semaphore(maxConcurrency);
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            delegate.execute(() -> {
+                boolean acquired = false;
+                try {
+                    permits.acquire();
+                    acquired = true;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                try {
+                    command.run();
+                } finally {
+                    if (acquired) {
+                        permits.release();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void shutdown() {
+            delegate.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return delegate.shutdownNow();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return delegate.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return delegate.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return delegate.awaitTermination(timeout, unit);
+        }
+    }
+}
@@ -1,14 +1,24 @@
 package com.personal.project.emailsender.kafka.config;
 
 import com.personal.project.emailsender.dto.EmailDTO;
+import com.personal.project.emailsender.dto.TemplateEmailDTO;
+import com.personal.project.emailsender.kafka.retry.RetryTopicRecoverer;
+import com.personal.project.emailsender.kafka.retry.RetryTopics;
+import com.personal.project.emailsender.kafka.serialization.EmailEventDeserializer;
+import com.personal.project.emailsender.queue.EmailQueue;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.kafka.common.serialization.Deserializer;
 import org.apache.kafka.common.serialization.StringDeserializer;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.kafka.DefaultKafkaProducerFactoryCustomizer;
 import org.springframework.boot.autoconfigure.kafka.KafkaProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.kafka.config.ConcurrentKafkaListenerContainerFactory;
 import org.springframework.kafka.core.ConsumerFactory;
 import org.springframework.kafka.core.DefaultKafkaConsumerFactory;
+import org.springframework.kafka.core.MicrometerConsumerListener;
+import org.springframework.kafka.core.MicrometerProducerListener;
 import org.springframework.kafka.listener.ContainerProperties.AckMode;
 import org.springframework.kafka.listener.SeekToCurrentErrorHandler;
 import org.springframework.kafka.support.serializer.ErrorHandlingDeserializer;
@@ -18,23 +28,113 @@ import org.springframework.util.backoff.FixedBackOff;
 @Configuration
 public class KafkaConfig {
 
+    private final boolean startListeners;
+
+    /**
+     * With the embedded queue the listener containers are created but never started, so nothing connects to kafka.
+     */
+    public KafkaConfig(@Value("${email-sender.queue.type}") EmailQueue.Type queueType) {
+        this.startListeners = queueType == EmailQueue.Type.KAFKA;
+    }
+
+    /**
+     * A failed email event is not retried in place, which would block its partition for the whole backoff: it is
+     * moved to the first retry topic straight away, see {@link RetryTopics}.
+     */
     @Bean
     ConcurrentKafkaListenerContainerFactory<String, EmailDTO> kafkaListenerContainerFactory(
-        @Value("${email-sender.kafka.listener.backoff.interval.ms}") long listenerBackoffIntervalMs,
-        @Value("${email-sender.kafka.listener.retry.attempts}") long listenerRetryAttempts,
+        ConsumerFactory<String, EmailDTO> consumerFactory, RetryTopicRecoverer retryTopicRecoverer) {
+
+        ConcurrentKafkaListenerContainerFactory<String, EmailDTO> factory = new ConcurrentKafkaListenerContainerFactory<>();
+        factory.setConsumerFactory(consumerFactory);
+        factory.setAutoStartup(startListeners);
+        factory.getContainerProperties().setAckMode(AckMode.RECORD);
+        factory.setErrorHandler(new SeekToCurrentErrorHandler(retryTopicRecoverer, new FixedBackOff(0, 0)));
+        return factory;
+    }
+
+    /**
+     * Container factory used by the retry topic listeners, which acknowledge the events themselves once their delay
+     * has elapsed and they have been sent.
+     */
+    @Bean
+    ConcurrentKafkaListenerContainerFactory<String, EmailDTO> retryKafkaListenerContainerFactory(
+        ConsumerFactory<String, EmailDTO> consumerFactory, RetryTopicRecoverer retryTopicRecoverer) {
+
+        ConcurrentKafkaListenerContainerFactory<String, EmailDTO> factory = new ConcurrentKafkaListenerContainerFactory<>();
+        factory.setConsumerFactory(consumerFactory);
+        factory.setAutoStartup(startListeners);
+        factory.getContainerProperties().setAckMode(AckMode.MANUAL_IMMEDIATE);
+        SeekToCurrentErrorHandler errorHandler =
+            new SeekToCurrentErrorHandler(retryTopicRecoverer, new FixedBackOff(0, 0));
+        errorHandler.setCommitRecovered(true);
+        factory.setErrorHandler(errorHandler);
+        return factory;
+    }
+
+    /**
+     * Container factory used by the batch listener: the whole poll is handed to the listener, which acknowledges it
+     * once all its records have been processed. Failures are handled per record by the listener itself, so no error
+     * handler is needed to replay the batch.
+     */
+    @Bean
+    ConcurrentKafkaListenerContainerFactory<String, EmailDTO> batchKafkaListenerContainerFactory(
         ConsumerFactory<String, EmailDTO> consumerFactory) {
 
         ConcurrentKafkaListenerContainerFactory<String, EmailDTO> factory = new ConcurrentKafkaListenerContainerFactory<>();
         factory.setConsumerFactory(consumerFactory);
+        factory.setAutoStartup(startListeners);
+        factory.setBatchListener(true);
+        factory.getContainerProperties().setAckMode(AckMode.MANUAL);
+        return factory;
+    }
+
+    /**
+     * Container factory used by the template email listener. The emails that cannot be sent are moved to the retry
+     * topics by the listener itself, the events that cannot be processed go to the dead letter topic.
+     */
+    @Bean
+    ConcurrentKafkaListenerContainerFactory<String, TemplateEmailDTO> templateKafkaListenerContainerFactory(
+        KafkaProperties kafkaProperties, MeterRegistry meterRegistry, RetryTopicRecoverer retryTopicRecoverer) {
+
+        ConcurrentKafkaListenerContainerFactory<String, TemplateEmailDTO> factory =
+            new ConcurrentKafkaListenerContainerFactory<>();
+        factory.setConsumerFactory(consumerFactory(kafkaProperties,
+            new JsonDeserializer<>(TemplateEmailDTO.class, false), meterRegistry));
+        factory.setAutoStartup(startListeners);
         factory.getContainerProperties().setAckMode(AckMode.RECORD);
-        factory.setErrorHandler(
-            new SeekToCurrentErrorHandler(new FixedBackOff(listenerBackoffIntervalMs, listenerRetryAttempts)));
+        factory.setErrorHandler(new SeekToCurrentErrorHandler(retryTopicRecoverer, new FixedBackOff(0, 0)));
         return factory;
     }
 
+    /**
+     * The email events can be either JSON or Avro encoded, see {@link EmailEventDeserializer}.
+     */
     @Bean
-    public ConsumerFactory<String, EmailDTO> consumerFactory(KafkaProperties kafkaProperties) {
-        return new DefaultKafkaConsumerFactory<>(kafkaProperties.buildConsumerProperties(), new StringDeserializer(),
-            new ErrorHandlingDeserializer<>(new JsonDeserializer<>(EmailDTO.class, false)));
+    public ConsumerFactory<String, EmailDTO> consumerFactory(KafkaProperties kafkaProperties,
+        MeterRegistry meterRegistry) {
+
+        return consumerFactory(kafkaProperties, new EmailEventDeserializer(), meterRegistry);
+    }
+
+    /**
+     * Binds the metrics of the kafka producers (e.g. the request latency and the batch size) to the registry.
+     */
+    @Bean
+    DefaultKafkaProducerFactoryCustomizer producerMetricsCustomizer(MeterRegistry meterRegistry) {
+        return producerFactory -> producerFactory.addListener(new MicrometerProducerListener<>(meterRegistry));
+    }
+
+    /**
+     * The kafka consumer metrics, such as the records lag, are bound to the registry.
+     */
+    private static <T> ConsumerFactory<String, T> consumerFactory(KafkaProperties kafkaProperties,
+        Deserializer<T> valueDeserializer, MeterRegistry meterRegistry) {
+
+        DefaultKafkaConsumerFactory<String, T> consumerFactory = new DefaultKafkaConsumerFactory<>(
+            kafkaProperties.buildConsumerProperties(), new StringDeserializer(),
+            new ErrorHandlingDeserializer<>(valueDeserializer));
+        consumerFactory.addListener(new MicrometerConsumerListener<>(meterRegistry));
+        return consumerFactory;
     }
 }
@@ -0,0 +1,224 @@
+package com.personal.project.emailsender.kafka.consumer;
+
+import com.personal.project.emailsender.dto.EmailDTO;
+import com.personal.project.emailsender.execution.DeliveryExecutorFactory;
+import com.personal.project.emailsender.kafka.retry.RetryTopicRecoverer;
+import com.personal.project.emailsender.service.DeliveryRateLimiter;
+import com.personal.project.emailsender.service.EmailSenderService;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Function;
+import javax.annotation.PreDestroy;
+import javax.validation.ConstraintViolation;
+import javax.validation.ConstraintViolationException;
+import javax.validation.Validator;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+/**
+ * Consumes a whole poll at once. Failures are tracked per record: only the failing records are moved to the retry
+ * topics, the rest of the batch is not sent again.
+ * <p>
+ * By default all the emails of the batch are sent over a single SMTP connection. In parallel mode the records are
+ * instead fanned out to a bounded worker pool, keeping the order only among records with the same ordering key, and
+ * the offsets are committed only up to the highest contiguous completed record of the batch.
+ * <p>
+ * Each priority topic has its own listener container, a batch holds the emails of a single priority. The worker pool
+ * and the ordering key are shared by the containers of all the priorities: {@code parallel.concurrency} bounds the
+ * parallel sends of the three topics together.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "email-sender.kafka.listener.batch.enabled", havingValue = "true")
+public class EmailBatchConsumer {
+
+    private static final int PENDING = 0;
+    private static final int COMPLETED = 1;
+
+    private final EmailSenderService emailSenderService;
+
+    private final Validator validator;
+
+    private final RetryTopicRecoverer retryTopicRecoverer;
+
+    private final OrderingKey orderingKey;
+
+    @Nullable
+    private final ExecutorService parallelExecutor;
+
+    public EmailBatchConsumer(EmailSenderService emailSenderService, Validator validator,
+        @Value("${email-sender.kafka.listener.parallel.concurrency}") int parallelConcurrency,
+        @Value("${email-sender.kafka.listener.parallel.ordering-key}") OrderingKey orderingKey,
+        DeliveryExecutorFactory deliveryExecutorFactory, RetryTopicRecoverer retryTopicRecoverer) {
+
+        this.emailSenderService = emailSenderService;
+        this.validator = validator;
+        this.retryTopicRecoverer = retryTopicRecoverer;
+        this.orderingKey = orderingKey;
+        this.parallelExecutor = parallelConcurrency > 1
+            ? deliveryExecutorFactory.newExecutor("email-worker-", parallelConcurrency)
+            : null;
+    }
+
+    @KafkaListener(topics = "${email-sender.kafka.topic.high-priority-emails}",
+        containerFactory = "batchKafkaListenerContainerFactory")
+    @KafkaListener(topics = "${email-sender.kafka.topic.emails}",
+        containerFactory = "batchKafkaListenerContainerFactory")
+    @KafkaListener(topics = "${email-sender.kafka.topic.bulk-emails}",
+        containerFactory = "batchKafkaListenerContainerFactory")
+    public void onMessages(List<ConsumerRecord<String, EmailDTO>> records, Acknowledgment acknowledgment)
+        throws InterruptedException {
+
+        log.debug("Processing batch of {} email events", records.size());
+        if (parallelExecutor == null) {
+            sendInBatch(records);
+            acknowledgment.acknowledge();
+        } else {
+            sendInParallel(records, acknowledgment);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (parallelExecutor != null) {
+            parallelExecutor.shutdownNow();
+        }
+    }
+
+    private void sendInBatch(List<ConsumerRecord<String, EmailDTO>> records) {
+        List<ConsumerRecord<String, EmailDTO>> validRecords = new ArrayList<>(records.size());
+        List<EmailDTO> emailDTOs = new ArrayList<>(records.size());
+        for (ConsumerRecord<String, EmailDTO> record : records) {
+            if (isValid(record)) {
+                validRecords.add(record);
+                emailDTOs.add(record.value());
+            }
+        }
+
+        Map<Integer, Exception> failures = emailSenderService.sendEmails(emailDTOs);
+        for (Map.Entry<Integer, Exception> failure : failures.entrySet()) {
+            retryTopicRecoverer.accept(validRecords.get(failure.getKey()), failure.getValue());
+        }
+    }
+
+    private void sendInParallel(List<ConsumerRecord<String, EmailDTO>> records, Acknowledgment acknowledgment)
+        throws InterruptedException {
+
+        //records with the same ordering key are processed sequentially by the same task, the key is computed only for
+        //the valid records since the invalid ones may miss the fields it is made of
+        AtomicIntegerArray recordStates = new AtomicIntegerArray(records.size());
+        Map<Object, List<Integer>> recordIndexesByKey = new LinkedHashMap<>();
+        for (int i = 0; i < records.size(); i++) {
+            if (isValid(records.get(i))) {
+                recordIndexesByKey.computeIfAbsent(orderingKey.of(records.get(i), i), key -> new ArrayList<>()).add(i);
+            } else {
+                recordStates.set(i, COMPLETED);
+            }
+        }
+
+        //the executor futures, unlike the completable ones, interrupt the workers when they are cancelled
+        List<Future<?>> tasks = new ArrayList<>(recordIndexesByKey.size());
+        for (List<Integer> recordIndexes : recordIndexesByKey.values()) {
+            tasks.add(parallelExecutor.submit(() -> {
+                for (int recordIndex : recordIndexes) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        return;
+                    }
+                    send(records.get(recordIndex));
+                    recordStates.set(recordIndex, COMPLETED);
+                }
+            }));
+        }
+
+        try {
+            for (Future<?> task : tasks) {
+                try {
+                    task.get();
+                } catch (ExecutionException e) {
+                    log.error("Unexpected error processing email events", e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            //the tasks not started yet never run, the running ones stop before their next record
+            tasks.forEach(task -> task.cancel(true));
+            commitCompleted(recordStates, acknowledgment);
+            throw e;
+        }
+        commitCompleted(recordStates, acknowledgment);
+    }
+
+    /**
+     * Commits the offsets up to the first record not completed, which is delivered again with the following ones.
+     */
+    private static void commitCompleted(AtomicIntegerArray recordStates, Acknowledgment acknowledgment) {
+        for (int i = 0; i < recordStates.length(); i++) {
+            if (recordStates.get(i) == PENDING) {
+                log.warn("Email event {} of the batch not completed, it will be delivered again", i);
+                acknowledgment.nack(i, 0);
+                return;
+            }
+        }
+        acknowledgment.acknowledge();
+    }
+
+    private void send(ConsumerRecord<String, EmailDTO> record) {
+        try {
+            emailSenderService.sendEmail(record.value());
+        } catch (Exception e) {
+            retryTopicRecoverer.accept(record, e);
+        }
+    }
+
+    /**
+     * The records that cannot be processed are moved to the dead letter topic.
+     */
+    private boolean isValid(ConsumerRecord<String, EmailDTO> record) {
+        if (record.value() == null) {
+            retryTopicRecoverer.accept(record, new IllegalArgumentException("The email event cannot be deserialized"));
+            return false;
+        }
+        Set<ConstraintViolation<EmailDTO>> violations = validator.validate(record.value());
+        if (!violations.isEmpty()) {
+            retryTopicRecoverer.accept(record, new ConstraintViolationException(violations));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Key of the records whose relative order is kept in parallel mode.
+     */
+    public enum OrderingKey {
+        RECIPIENT(record -> record.value() != null ? record.value().getTo().toLowerCase() : null),
+        RECIPIENT_DOMAIN(record -> record.value() != null
+            ? DeliveryRateLimiter.domainOf(record.value().getTo())
+            : null),
+        RECORD_KEY(ConsumerRecord::key),
+        NONE(record -> null);
+
+        private final Function<ConsumerRecord<String, EmailDTO>, Object> keyExtractor;
+
+        OrderingKey(Function<ConsumerRecord<String, EmailDTO>, Object> keyExtractor) {
+            this.keyExtractor = keyExtractor;
+        }
+
+        Object of(ConsumerRecord<String, EmailDTO> record, int recordIndex) {
+            Object key = keyExtractor.apply(record);
+            //records without a key are not ordered
+            return key != null ? key : recordIndex;
+        }
+    }
+}
@@ -7,20 +7,28 @@ import javax.mail.MessagingException;
 import javax.validation.Valid;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.kafka.annotation.KafkaListener;
 import org.springframework.messaging.handler.annotation.Payload;
 import org.springframework.stereotype.Component;
 import org.springframework.validation.annotation.Validated;
 
+/**
+ * Consumes the email events one at a time. Each priority topic has its own listener container, so that a backlog of
+ * bulk emails does not delay the consumption of the transactional ones.
+ */
 @Slf4j
 @Component
 @Validated
+@ConditionalOnProperty(name = "email-sender.kafka.listener.batch.enabled", havingValue = "false", matchIfMissing = true)
 @RequiredArgsConstructor
 public class EmailConsumer {
 
     private final EmailSenderService emailSenderService;
 
+    @KafkaListener(topics = "${email-sender.kafka.topic.high-priority-emails}")
     @KafkaListener(topics = "${email-sender.kafka.topic.emails}")
+    @KafkaListener(topics = "${email-sender.kafka.topic.bulk-emails}")
     public void onMessage(@Valid @Payload EmailDTO emailDTO) throws MessagingException, IOException {
         log.debug("Processing email event: {}", emailDTO);
         emailSenderService.sendEmail(emailDTO);
@@ -0,0 +1,60 @@
+package com.personal.project.emailsender.kafka.consumer;
+
+import com.personal.project.emailsender.dto.EmailDTO;
+import com.personal.project.emailsender.dto.TemplateEmailDTO;
+import com.personal.project.emailsender.kafka.retry.RetryTopicRecoverer;
+import com.personal.project.emailsender.service.EmailSenderService;
+import com.personal.project.emailsender.service.TemplateEmailRenderer;
+import java.util.List;
+import java.util.Map;
+import javax.validation.Valid;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.lang.Nullable;
+import org.springframework.messaging.handler.annotation.Header;
+import org.springframework.messaging.handler.annotation.Payload;
+import org.springframework.stereotype.Component;
+import org.springframework.validation.annotation.Validated;
+
+/**
+ * Sends the emails of a template email event to all its recipients. The emails that cannot be sent are moved on their
+ * own to the retry topics of the email events, instead of replaying the whole event or retrying in place.
+ */
+@Slf4j
+@Component
+@Validated
+public class TemplateEmailConsumer {
+
+    private final EmailSenderService emailSenderService;
+
+    private final TemplateEmailRenderer templateEmailRenderer;
+
+    private final RetryTopicRecoverer retryTopicRecoverer;
+
+    public TemplateEmailConsumer(EmailSenderService emailSenderService, TemplateEmailRenderer templateEmailRenderer,
+        RetryTopicRecoverer retryTopicRecoverer) {
+
+        this.emailSenderService = emailSenderService;
+        this.templateEmailRenderer = templateEmailRenderer;
+        this.retryTopicRecoverer = retryTopicRecoverer;
+    }
+
+    @KafkaListener(topics = "${email-sender.kafka.topic.template-emails}",
+        containerFactory = "templateKafkaListenerContainerFactory")
+    public void onMessage(@Valid @Payload TemplateEmailDTO templateEmailDTO,
+        @Header(KafkaHeaders.RECEIVED_TOPIC) String topic,
+        @Header(KafkaHeaders.RECEIVED_PARTITION_ID) int partition,
+        @Header(KafkaHeaders.OFFSET) long offset,
+        @Header(name = KafkaHeaders.RECEIVED_MESSAGE_KEY, required = false) @Nullable String key) {
+
+        log.debug("Processing template email event for {} recipients", templateEmailDTO.getRecipients().size());
+        List<EmailDTO> emailDTOs = templateEmailRenderer.expand(templateEmailDTO);
+        Map<Integer, Exception> failures = emailSenderService.sendEmails(emailDTOs);
+        for (Map.Entry<Integer, Exception> failure : failures.entrySet()) {
+            retryTopicRecoverer.accept(new ConsumerRecord<>(topic, partition, offset, key,
+                emailDTOs.get(failure.getKey())), failure.getValue());
+        }
+    }
+}
@@ -2,28 +2,99 @@ package com.personal.project.emailsender.kafka.producer;
 
 
 import com.personal.project.emailsender.dto.EmailDTO;
+import com.personal.project.emailsender.dto.Priority;
+import com.personal.project.emailsender.dto.TemplateEmailDTO;
+import com.personal.project.emailsender.queue.EmailQueue;
+import com.personal.project.emailsender.service.DeliveryRateLimiter;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Function;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Component;
+import org.springframework.util.concurrent.ListenableFuture;
 
 @Slf4j
 @Component
 public class EmailProducer {
 
-    private final String emailTopic;
+    private final Map<Priority, String> emailTopics = new EnumMap<>(Priority.class);
 
-    private final KafkaTemplate<String, EmailDTO> kafkaTemplate;
+    private final String templateEmailTopic;
+
+    private final PartitionKey partitionKey;
+
+    private final EmailQueue emailQueue;
 
     public EmailProducer(@Value("${email-sender.kafka.topic.emails}") String emailTopic,
-        KafkaTemplate<String, EmailDTO> kafkaTemplate) {
+        @Value("${email-sender.kafka.topic.high-priority-emails}") String highPriorityEmailTopic,
+        @Value("${email-sender.kafka.topic.bulk-emails}") String bulkEmailTopic,
+        @Value("${email-sender.kafka.topic.template-emails}") String templateEmailTopic,
+        @Value("${email-sender.kafka.producer.partition-key}") PartitionKey partitionKey,
+        EmailQueue emailQueue) {
+
+        this.emailTopics.put(Priority.HIGH, highPriorityEmailTopic);
+        this.emailTopics.put(Priority.NORMAL, emailTopic);
+        this.emailTopics.put(Priority.BULK, bulkEmailTopic);
+        this.templateEmailTopic = templateEmailTopic;
+        this.partitionKey = partitionKey;
+        this.emailQueue = emailQueue;
+    }
+
+    /**
+     * Queues the email event without waiting for it to be stored: the returned future completes when the event has
+     * been acknowledged by the {@link EmailQueue}. An idempotency key is assigned to the email if it has none. The
+     * event goes to the topic of the priority of the email, keyed by {@code email-sender.kafka.producer.partition-key}.
+     */
+    public ListenableFuture<Void> queueEmail(EmailDTO emailDTO) {
+        if (emailDTO.getIdempotencyKey() == null) {
+            emailDTO.setIdempotencyKey(UUID.randomUUID().toString());
+        }
+        log.debug("Queueing email event: {}", emailDTO);
+        Priority priority = emailDTO.getPriority() == null ? Priority.NORMAL : emailDTO.getPriority();
+        return emailQueue.enqueue(emailTopics.get(priority), partitionKey.of(emailDTO), emailDTO);
+    }
 
-        this.emailTopic = emailTopic;
-        this.kafkaTemplate = kafkaTemplate;
+    public ListenableFuture<Void> queueTemplateEmail(TemplateEmailDTO templateEmailDTO) {
+        if (templateEmailDTO.getIdempotencyKey() == null) {
+            templateEmailDTO.setIdempotencyKey(UUID.randomUUID().toString());
+        }
+        log.debug("Queueing template email event for {} recipients", templateEmailDTO.getRecipients().size());
+        return emailQueue.enqueue(templateEmailTopic, partitionKey.of(templateEmailDTO), templateEmailDTO);
     }
 
-    public void queueEmail(EmailDTO emailDTO) {
-        log.debug("Sending email event to kafka: {}", emailDTO);
-        kafkaTemplate.send(emailTopic, emailDTO);
+    /**
+     * Key of the email events, which decides their partition: the events with the same key are consumed in order by
+     * the same consumer, which then sends the emails to a domain over fewer SMTP connections. The template emails,
+     * with many recipients, are keyed only by sender domain.
+     */
+    public enum PartitionKey {
+        RECIPIENT_DOMAIN(emailDTO -> DeliveryRateLimiter.domainOf(emailDTO.getTo()), templateEmailDTO -> null),
+        SENDER_DOMAIN(emailDTO -> DeliveryRateLimiter.domainOf(emailDTO.getFrom()),
+            templateEmailDTO -> DeliveryRateLimiter.domainOf(templateEmailDTO.getFrom())),
+        NONE(emailDTO -> null, templateEmailDTO -> null);
+
+        private final Function<EmailDTO, String> emailKeyExtractor;
+
+        private final Function<TemplateEmailDTO, String> templateEmailKeyExtractor;
+
+        PartitionKey(Function<EmailDTO, String> emailKeyExtractor,
+            Function<TemplateEmailDTO, String> templateEmailKeyExtractor) {
+
+            this.emailKeyExtractor = emailKeyExtractor;
+            this.templateEmailKeyExtractor = templateEmailKeyExtractor;
+        }
+
+        @Nullable
+        String of(EmailDTO emailDTO) {
+            return emailKeyExtractor.apply(emailDTO);
+        }
+
+        @Nullable
+        String of(TemplateEmailDTO templateEmailDTO) {
+            return templateEmailKeyExtractor.apply(templateEmailDTO);
+        }
     }
 }
@@ -0,0 +1,59 @@
+package com.personal.project.emailsender.kafka.producer;
+
+import com.personal.project.emailsender.outbox.EmailOutbox;
+import com.personal.project.emailsender.queue.EmailQueue;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.support.SendResult;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+import org.springframework.util.concurrent.CompletableToListenableFutureAdapter;
+import org.springframework.util.concurrent.ListenableFuture;
+
+/**
+ * Sends the email events to the kafka topics, or to the {@link EmailOutbox} when it is enabled. The returned future
+ * completes once the event has been acknowledged by kafka, after the send latency and outcome have been recorded,
+ * or once it is on the local disk with the outbox.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "email-sender.queue.type", havingValue = "KAFKA", matchIfMissing = true)
+public class KafkaEmailQueue implements EmailQueue {
+
+    private final KafkaTemplate<String, Object> kafkaTemplate;
+
+    private final MeterRegistry meterRegistry;
+
+    @Nullable
+    private final EmailOutbox outbox;
+
+    public KafkaEmailQueue(KafkaTemplate<String, Object> kafkaTemplate, MeterRegistry meterRegistry,
+        ObjectProvider<EmailOutbox> outbox) {
+
+        this.kafkaTemplate = kafkaTemplate;
+        this.meterRegistry = meterRegistry;
+        this.outbox = outbox.getIfAvailable();
+    }
+
+    @Override
+    public ListenableFuture<Void> enqueue(String topic, @Nullable String key, Object event) {
+        ListenableFuture<SendResult<String, Object>> future;
+        if (outbox != null) {
+            future = outbox.append(topic, key, event);
+        } else {
+            Timer.Sample sample = Timer.start(meterRegistry);
+            future = kafkaTemplate.send(topic, key, event);
+            future.addCallback(
+                result -> sample.stop(meterRegistry.timer("email.sender.producer.send", "result", "success")),
+                e -> {
+                    sample.stop(meterRegistry.timer("email.sender.producer.send", "result", "failure"));
+                    log.error("Cannot send event to kafka topic {}: {}", topic, event, e);
+                });
+        }
+        return new CompletableToListenableFutureAdapter<>(future.completable().thenApply(result -> null));
+    }
+}
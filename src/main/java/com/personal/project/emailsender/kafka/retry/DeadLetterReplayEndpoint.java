@@ -0,0 +1,185 @@
+package com.personal.project.emailsender.kafka.retry;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.personal.project.emailsender.dto.Priority;
+import com.personal.project.emailsender.kafka.serialization.EmailAvroCodec;
+import com.personal.project.emailsender.queue.EmbeddedEmailQueue;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.boot.autoconfigure.kafka.KafkaProperties;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+/**
+ * Pushes the events of the dead letter topic back into the topics they were sent to, e.g. once the SMTP server is
+ * reachable again: {@code POST /actuator/dltreplay} (optionally with a {@code maxRecords} limit).
+ * <p>
+ * The events are copied byte by byte, without the headers added when they were dead lettered. The destination is
+ * given by the payload, since the events dead lettered by a retry tier no longer carry their lane in the original
+ * topic header: the template email events go back to the template email topic, the emails to the topic of their
+ * priority. The events that cannot be decoded go back to the topic they failed on, when it is one of the email
+ * topics, or to the main email topic otherwise. Only the events
+ * already in the dead letter topic when the replay starts are replayed, and the progress is committed under its own
+ * consumer group, so a following replay starts where the previous one stopped. With the embedded queue, the dead
+ * letters are replayed by {@link EmbeddedEmailQueue#replayDeadLetters(int)}.
+ */
+@Slf4j
+@Component
+@Endpoint(id = "dltreplay")
+public class DeadLetterReplayEndpoint {
+
+    private static final Duration POLL_TIMEOUT = Duration.ofSeconds(1);
+
+    private static final String REPLAY_GROUP_ID_SUFFIX = "-dlt-replay";
+
+    private final RetryTopics retryTopics;
+
+    private final KafkaProperties kafkaProperties;
+
+    private final ObjectMapper objectMapper;
+
+    private final EmailAvroCodec avroCodec = EmailAvroCodec.fromClasspath();
+
+    @Nullable
+    private final EmbeddedEmailQueue embeddedEmailQueue;
+
+    public DeadLetterReplayEndpoint(RetryTopics retryTopics, KafkaProperties kafkaProperties, ObjectMapper objectMapper,
+        ObjectProvider<EmbeddedEmailQueue> embeddedEmailQueue) {
+
+        this.retryTopics = retryTopics;
+        this.kafkaProperties = kafkaProperties;
+        this.objectMapper = objectMapper;
+        this.embeddedEmailQueue = embeddedEmailQueue.getIfAvailable();
+    }
+
+    @WriteOperation
+    public ReplayResult replay(@Nullable Integer maxRecords)
+        throws ExecutionException, InterruptedException, IOException {
+
+        int limit = maxRecords != null ? maxRecords : Integer.MAX_VALUE;
+        if (embeddedEmailQueue != null) {
+            return new ReplayResult(embeddedEmailQueue.replayDeadLetters(limit));
+        }
+        try (KafkaConsumer<byte[], byte[]> consumer = createConsumer();
+            KafkaProducer<byte[], byte[]> producer = createProducer()) {
+
+            List<TopicPartition> partitions = consumer.partitionsFor(retryTopics.getDeadLetterTopic()).stream()
+                .map(partition -> new TopicPartition(partition.topic(), partition.partition()))
+                .collect(Collectors.toList());
+            consumer.assign(partitions);
+            Map<TopicPartition, Long> endOffsets = consumer.endOffsets(partitions);
+
+            int replayed = 0;
+            while (replayed < limit && !isAtEnd(consumer, endOffsets)) {
+                ConsumerRecords<byte[], byte[]> records = consumer.poll(POLL_TIMEOUT);
+                List<Future<RecordMetadata>> sends = new ArrayList<>(records.count());
+                Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+                for (ConsumerRecord<byte[], byte[]> record : records) {
+                    TopicPartition partition = new TopicPartition(record.topic(), record.partition());
+                    if (replayed >= limit || record.offset() >= endOffsets.get(partition)) {
+                        continue;
+                    }
+                    sends.add(producer.send(new ProducerRecord<>(replayTopic(record), null, record.key(),
+                        record.value(), withoutDeadLetterHeaders(record))));
+                    offsets.put(partition, new OffsetAndMetadata(record.offset() + 1));
+                    replayed++;
+                }
+                for (Future<RecordMetadata> send : sends) {
+                    send.get();
+                }
+                consumer.commitSync(offsets);
+                if (replayed >= limit) {
+                    break;
+                }
+            }
+            log.info("Replayed {} email events from {}", replayed, retryTopics.getDeadLetterTopic());
+            return new ReplayResult(replayed);
+        }
+    }
+
+    String replayTopic(ConsumerRecord<byte[], byte[]> record) {
+        try {
+            if (EmailAvroCodec.isAvro(record.value())) {
+                return retryTopics.priorityTopic(avroCodec.decode(record.value()).getPriority());
+            }
+            JsonNode event = objectMapper.readTree(record.value());
+            if (event.has("recipients")) {
+                return retryTopics.getTemplateTopic();
+            }
+            if (event.isObject()) {
+                JsonNode priority = event.path("priority");
+                return retryTopics.priorityTopic(priority.isTextual() ? Priority.valueOf(priority.asText()) : null);
+            }
+        } catch (IOException | RuntimeException e) {
+            log.debug("Cannot decode dead letter {}-{}@{}", record.topic(), record.partition(), record.offset(), e);
+        }
+        Header originalTopic = record.headers().lastHeader(KafkaHeaders.DLT_ORIGINAL_TOPIC);
+        String topic = originalTopic != null ? new String(originalTopic.value(), StandardCharsets.UTF_8) : null;
+        return retryTopics.isPriorityTopic(topic) ? topic : retryTopics.getMainTopic();
+    }
+
+    private static boolean isAtEnd(KafkaConsumer<byte[], byte[]> consumer, Map<TopicPartition, Long> endOffsets) {
+        return endOffsets.entrySet().stream()
+            .allMatch(endOffset -> consumer.position(endOffset.getKey()) >= endOffset.getValue());
+    }
+
+    private static RecordHeaders withoutDeadLetterHeaders(ConsumerRecord<byte[], byte[]> record) {
+        RecordHeaders headers = new RecordHeaders();
+        for (Header header : record.headers()) {
+            if (!header.key().startsWith(KafkaHeaders.PREFIX + "dlt-")) {
+                headers.add(header);
+            }
+        }
+        return headers;
+    }
+
+    private KafkaConsumer<byte[], byte[]> createConsumer() {
+        Map<String, Object> properties = kafkaProperties.buildConsumerProperties();
+        properties.put(ConsumerConfig.GROUP_ID_CONFIG, kafkaProperties.getConsumer().getGroupId()
+            + REPLAY_GROUP_ID_SUFFIX);
+        properties.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
+        properties.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
+        return new KafkaConsumer<>(properties, new ByteArrayDeserializer(), new ByteArrayDeserializer());
+    }
+
+    private KafkaProducer<byte[], byte[]> createProducer() {
+        Map<String, Object> properties = kafkaProperties.buildProducerProperties();
+        properties.remove(ProducerConfig.TRANSACTIONAL_ID_CONFIG);
+        return new KafkaProducer<>(properties, new ByteArraySerializer(), new ByteArraySerializer());
+    }
+
+    @Value
+    public static class ReplayResult {
+
+        int replayed;
+    }
+}
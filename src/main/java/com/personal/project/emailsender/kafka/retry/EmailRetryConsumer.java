@@ -0,0 +1,85 @@
+package com.personal.project.emailsender.kafka.retry;
+
+import com.personal.project.emailsender.dto.EmailDTO;
+import com.personal.project.emailsender.service.EmailSenderService;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import javax.mail.MessagingException;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.kafka.annotation.KafkaListenerConfigurer;
+import org.springframework.kafka.config.KafkaListenerContainerFactory;
+import org.springframework.kafka.config.KafkaListenerEndpointRegistrar;
+import org.springframework.kafka.config.MethodKafkaListenerEndpoint;
+import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.messaging.handler.annotation.support.DefaultMessageHandlerMethodFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.util.ReflectionUtils;
+
+/**
+ * Sends again the email events of the retry topics once their delay has elapsed. A failure moves the event to the
+ * next retry topic through the {@link RetryTopicRecoverer} of the container.
+ * <p>
+ * Every retry topic is consumed by its own listener container: an event that is not due yet pauses the consumption
+ * of its tier only, and since the delay of a tier is the same for all its events, the following ones are not due
+ * either.
+ */
+@Slf4j
+@Component
+public class EmailRetryConsumer implements KafkaListenerConfigurer {
+
+    /**
+     * Longest wait before polling again, well below the {@code max.poll.interval.ms} of the consumers.
+     */
+    static final long MAX_PAUSE_MS = 10_000;
+
+    private final RetryTopics retryTopics;
+
+    private final EmailSenderService emailSenderService;
+
+    private final KafkaListenerContainerFactory<?> retryKafkaListenerContainerFactory;
+
+    public EmailRetryConsumer(RetryTopics retryTopics, EmailSenderService emailSenderService,
+        @Qualifier("retryKafkaListenerContainerFactory")
+            KafkaListenerContainerFactory<?> retryKafkaListenerContainerFactory) {
+
+        this.retryTopics = retryTopics;
+        this.emailSenderService = emailSenderService;
+        this.retryKafkaListenerContainerFactory = retryKafkaListenerContainerFactory;
+    }
+
+    @Override
+    public void configureKafkaListeners(KafkaListenerEndpointRegistrar registrar) {
+        DefaultMessageHandlerMethodFactory messageHandlerMethodFactory = new DefaultMessageHandlerMethodFactory();
+        messageHandlerMethodFactory.afterPropertiesSet();
+        Method onMessage = ReflectionUtils.findMethod(EmailRetryConsumer.class, "onMessage", ConsumerRecord.class,
+            Acknowledgment.class);
+
+        for (String retryTopic : retryTopics.getRetryTopics()) {
+            MethodKafkaListenerEndpoint<String, EmailDTO> endpoint = new MethodKafkaListenerEndpoint<>();
+            endpoint.setId(retryTopic);
+            endpoint.setTopics(retryTopic);
+            endpoint.setBean(this);
+            endpoint.setMethod(onMessage);
+            endpoint.setMessageHandlerMethodFactory(messageHandlerMethodFactory);
+            registrar.registerEndpoint(endpoint, retryKafkaListenerContainerFactory);
+        }
+    }
+
+    public void onMessage(ConsumerRecord<String, EmailDTO> record, Acknowledgment acknowledgment)
+        throws MessagingException, IOException {
+
+        long dueTimeMs = record.timestamp() + retryTopics.getDelayMs(record.topic());
+        long remainingDelayMs = dueTimeMs - System.currentTimeMillis();
+        if (remainingDelayMs > 0) {
+            //the record is delivered again after the pause
+            acknowledgment.nack(Math.min(remainingDelayMs, MAX_PAUSE_MS));
+            return;
+        }
+
+        log.debug("Retrying email event {}-{}@{}", record.topic(), record.partition(), record.offset());
+        emailSenderService.sendEmail(record.value());
+        acknowledgment.acknowledge();
+    }
+}
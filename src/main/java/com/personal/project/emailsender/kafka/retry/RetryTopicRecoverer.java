@@ -0,0 +1,137 @@
+package com.personal.project.emailsender.kafka.retry;
+
+import com.personal.project.emailsender.dto.TemplateEmailDTO;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import javax.validation.ConstraintViolationException;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.kafka.KafkaProperties;
+import org.springframework.kafka.KafkaException;
+import org.springframework.kafka.core.DefaultKafkaProducerFactory;
+import org.springframework.kafka.core.KafkaOperations;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.listener.DeadLetterPublishingRecoverer;
+import org.springframework.kafka.listener.ListenerExecutionFailedException;
+import org.springframework.kafka.support.serializer.DeserializationException;
+import org.springframework.messaging.handler.annotation.support.MethodArgumentNotValidException;
+import org.springframework.stereotype.Component;
+
+/**
+ * Moves a failed email event to the next retry topic, or to the dead letter topic once the retries are exhausted.
+ * The events that cannot be deserialized or are invalid would fail the same way on every attempt, so they go to the
+ * dead letter topic straight away, as do the template email events that cannot be processed: the template email
+ * listener moves their emails that cannot be sent to the retry topics on their own.
+ * <p>
+ * The republished events keep their key and headers, and carry the failure reason in the
+ * {@code kafka_dlt-exception-*} headers along with the original topic, partition and offset. The republishing waits
+ * for the acknowledgment of kafka and fails when the event cannot be moved, so that its offset is not committed and
+ * it is consumed again instead of being lost.
+ */
+@Slf4j
+@Component
+public class RetryTopicRecoverer extends DeadLetterPublishingRecoverer implements DisposableBean {
+
+    private final DefaultKafkaProducerFactory<Object, Object> eventProducerFactory;
+
+    private final DefaultKafkaProducerFactory<String, byte[]> rawEventProducerFactory;
+
+    private final long publishTimeoutMs;
+
+    @Autowired
+    public RetryTopicRecoverer(RetryTopics retryTopics, KafkaProperties kafkaProperties,
+        @Value("${email-sender.kafka.listener.retry.publish-timeout.ms}") long publishTimeoutMs) {
+
+        this(retryTopics, new DefaultKafkaProducerFactory<>(kafkaProperties.buildProducerProperties()),
+            new DefaultKafkaProducerFactory<>(kafkaProperties.buildProducerProperties(), new StringSerializer(),
+                new ByteArraySerializer()), publishTimeoutMs);
+    }
+
+    private RetryTopicRecoverer(RetryTopics retryTopics,
+        DefaultKafkaProducerFactory<Object, Object> eventProducerFactory,
+        DefaultKafkaProducerFactory<String, byte[]> rawEventProducerFactory, long publishTimeoutMs) {
+
+        super(templates(eventProducerFactory, rawEventProducerFactory),
+            (record, exception) -> new TopicPartition(destination(retryTopics, record, exception), -1));
+        this.eventProducerFactory = eventProducerFactory;
+        this.rawEventProducerFactory = rawEventProducerFactory;
+        this.publishTimeoutMs = publishTimeoutMs;
+    }
+
+    @Override
+    public void accept(ConsumerRecord<?, ?> record, Exception exception) {
+        //the failure reason is the exception thrown by the listener, not the wrapper added by the container
+        Exception failure = exception;
+        if (exception instanceof ListenerExecutionFailedException && exception.getCause() instanceof Exception) {
+            failure = (Exception) exception.getCause();
+        }
+        log.warn("Email event {}-{}@{} failed, moving it to the next retry topic: {}", record.topic(),
+            record.partition(), record.offset(), failure.toString());
+        super.accept(record, failure);
+    }
+
+    /**
+     * Unlike the inherited fire-and-forget publishing, waits for the event to be on its topic.
+     */
+    @Override
+    protected void publish(ProducerRecord<Object, Object> outRecord, KafkaOperations<Object, Object> kafkaTemplate) {
+        try {
+            kafkaTemplate.send(outRecord).get(publishTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KafkaException("Interrupted while moving the email event to " + outRecord.topic(), e);
+        } catch (ExecutionException e) {
+            throw new KafkaException("Cannot move the email event to " + outRecord.topic(), e.getCause());
+        } catch (TimeoutException e) {
+            throw new KafkaException("Timed out moving the email event to " + outRecord.topic(), e);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        eventProducerFactory.destroy();
+        rawEventProducerFactory.destroy();
+    }
+
+    static String destination(RetryTopics retryTopics, ConsumerRecord<?, ?> record, Exception exception) {
+        return isRetryable(record, exception)
+            ? retryTopics.nextTopic(record.topic())
+            : retryTopics.getDeadLetterTopic();
+    }
+
+    static boolean isRetryable(ConsumerRecord<?, ?> record, Exception exception) {
+        if (record.value() == null || record.value() instanceof TemplateEmailDTO) {
+            return false;
+        }
+        for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+            if (cause instanceof DeserializationException || cause instanceof MethodArgumentNotValidException
+                || cause instanceof ConstraintViolationException) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The events that cannot be deserialized are republished as they were received.
+     */
+    private static Map<Class<?>, KafkaOperations<?, ?>> templates(
+        DefaultKafkaProducerFactory<Object, Object> eventProducerFactory,
+        DefaultKafkaProducerFactory<String, byte[]> rawEventProducerFactory) {
+
+        Map<Class<?>, KafkaOperations<?, ?>> templates = new LinkedHashMap<>();
+        templates.put(byte[].class, new KafkaTemplate<>(rawEventProducerFactory));
+        templates.put(Object.class, new KafkaTemplate<>(eventProducerFactory));
+        return templates;
+    }
+}
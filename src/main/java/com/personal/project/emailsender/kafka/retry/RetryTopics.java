@@ -0,0 +1,188 @@
+package com.personal.project.emailsender.kafka.retry;
+
+import com.personal.project.emailsender.dto.Priority;
+import com.personal.project.emailsender.queue.EmailQueue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+import javax.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.admin.AdminClient;
+import org.apache.kafka.clients.admin.NewTopic;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.kafka.core.KafkaAdmin;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+/**
+ * Names and delays of the retry tiers of the email topics. A failed email event is moved to the first retry topic,
+ * then to the following ones with exponentially growing delays, and finally to the dead letter topic:
+ * <pre>
+ * emails -> emails-retry-0 -> emails-retry-1 -> ... -> emails-dlt
+ * </pre>
+ * The topics of the other priorities share the retry tiers of the main topic, the events keep their priority. The
+ * emails of a template email event that cannot be sent go to the same tiers, on their own.
+ * Each retry topic has its own consumer, so an event waiting for its delay never blocks the events of the main topic
+ * or of the other tiers. The embedded queue has the same tiers, see
+ * {@link com.personal.project.emailsender.queue.EmbeddedEmailQueue}.
+ */
+@Slf4j
+@Component
+public class RetryTopics {
+
+    static final String RETRY_TOPIC_SUFFIX = "-retry-";
+
+    static final String DEAD_LETTER_TOPIC_SUFFIX = "-dlt";
+
+    private static final long CREATE_TOPICS_TIMEOUT_MS = 10_000;
+
+    private final String mainTopic;
+
+    private final String highPriorityTopic;
+
+    private final String bulkTopic;
+
+    private final String templateTopic;
+
+    private final Set<String> priorityTopics;
+
+    private final List<String> retryTopics;
+
+    private final long[] retryDelaysMs;
+
+    private final String deadLetterTopic;
+
+    private final ObjectProvider<KafkaAdmin> kafkaAdmin;
+
+    private final EmailQueue.Type queueType;
+
+    @Autowired
+    public RetryTopics(@Value("${email-sender.kafka.topic.emails}") String mainTopic,
+        @Value("${email-sender.kafka.topic.high-priority-emails}") String highPriorityTopic,
+        @Value("${email-sender.kafka.topic.bulk-emails}") String bulkTopic,
+        @Value("${email-sender.kafka.topic.template-emails}") String templateTopic,
+        @Value("${email-sender.kafka.listener.retry.attempts}") int retryAttempts,
+        @Value("${email-sender.kafka.listener.backoff.interval.ms}") long initialDelayMs,
+        @Value("${email-sender.kafka.listener.backoff.multiplier}") double multiplier,
+        ObjectProvider<KafkaAdmin> kafkaAdmin, @Value("${email-sender.queue.type}") EmailQueue.Type queueType) {
+
+        this.kafkaAdmin = kafkaAdmin;
+        this.queueType = queueType;
+        this.mainTopic = mainTopic;
+        this.highPriorityTopic = highPriorityTopic;
+        this.bulkTopic = bulkTopic;
+        this.templateTopic = templateTopic;
+        this.priorityTopics = Set.of(mainTopic, highPriorityTopic, bulkTopic, templateTopic);
+        this.deadLetterTopic = mainTopic + DEAD_LETTER_TOPIC_SUFFIX;
+        List<String> topics = new ArrayList<>(retryAttempts);
+        this.retryDelaysMs = new long[retryAttempts];
+        double delayMs = initialDelayMs;
+        for (int i = 0; i < retryAttempts; i++) {
+            topics.add(mainTopic + RETRY_TOPIC_SUFFIX + i);
+            retryDelaysMs[i] = (long) delayMs;
+            delayMs *= multiplier;
+        }
+        this.retryTopics = Collections.unmodifiableList(topics);
+    }
+
+    public String getMainTopic() {
+        return mainTopic;
+    }
+
+    public String getTemplateTopic() {
+        return templateTopic;
+    }
+
+    /**
+     * @return the topic of the emails of the given priority, where their dead letters are replayed
+     */
+    public String priorityTopic(@Nullable Priority priority) {
+        if (priority == Priority.HIGH) {
+            return highPriorityTopic;
+        }
+        return priority == Priority.BULK ? bulkTopic : mainTopic;
+    }
+
+    /**
+     * @return whether the given topic is one of the topics the events are sent to, as opposed to the retry tiers
+     */
+    public boolean isPriorityTopic(@Nullable String topic) {
+        return topic != null && priorityTopics.contains(topic);
+    }
+
+    public List<String> getRetryTopics() {
+        return retryTopics;
+    }
+
+    public String getDeadLetterTopic() {
+        return deadLetterTopic;
+    }
+
+    /**
+     * @return how long the events of the given retry topic wait before being sent again
+     */
+    public long getDelayMs(String retryTopic) {
+        int tier = retryTopics.indexOf(retryTopic);
+        if (tier < 0) {
+            throw new IllegalArgumentException("Not a retry topic: " + retryTopic);
+        }
+        return retryDelaysMs[tier];
+    }
+
+    /**
+     * @return the topic where an event of the given topic goes when it fails again
+     */
+    public String nextTopic(String topic) {
+        int nextTier;
+        if (priorityTopics.contains(topic)) {
+            nextTier = 0;
+        } else {
+            int tier = retryTopics.indexOf(topic);
+            if (tier < 0) {
+                return deadLetterTopic;
+            }
+            nextTier = tier + 1;
+        }
+        return nextTier < retryTopics.size() ? retryTopics.get(nextTier) : deadLetterTopic;
+    }
+
+    /**
+     * Creates the retry and dead letter topics that do not exist yet, with the broker default partitions and
+     * replication factor. The startup fails when they cannot be created: the failed events could not be moved to
+     * them and would block their partition. Nothing is created for the embedded queue.
+     */
+    @PostConstruct
+    void createTopics() {
+        KafkaAdmin admin = kafkaAdmin.getIfAvailable();
+        if (admin == null || queueType != EmailQueue.Type.KAFKA) {
+            return;
+        }
+        List<String> topics = new ArrayList<>(retryTopics);
+        topics.add(deadLetterTopic);
+        try (AdminClient adminClient = AdminClient.create(admin.getConfigurationProperties())) {
+            Set<String> existingTopics = adminClient.listTopics().names()
+                .get(CREATE_TOPICS_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            List<NewTopic> missingTopics = topics.stream()
+                .filter(topic -> !existingTopics.contains(topic))
+                .map(topic -> new NewTopic(topic, Optional.empty(), Optional.empty()))
+                .collect(Collectors.toList());
+            if (!missingTopics.isEmpty()) {
+                adminClient.createTopics(missingTopics).all().get(CREATE_TOPICS_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                log.info("Created retry topics {}", missingTopics);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while creating the retry topics " + topics, e);
+        } catch (ExecutionException | TimeoutException | RuntimeException e) {
+            throw new IllegalStateException("Cannot create the retry topics " + topics, e);
+        }
+    }
+}
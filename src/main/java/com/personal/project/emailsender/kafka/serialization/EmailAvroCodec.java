@@ -0,0 +1,164 @@
+package com.personal.project.emailsender.kafka.serialization;
+
+import com.personal.project.emailsender.dto.AttachmentDTO;
+import com.personal.project.emailsender.dto.EmailDTO;
+import com.personal.project.emailsender.dto.Priority;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DatumReader;
+import org.apache.avro.io.DatumWriter;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.kafka.common.errors.SerializationException;
+import org.springframework.lang.Nullable;
+
+/**
+ * Binary Avro encoding of the email events.
+ * <p>
+ * Each record starts with a magic byte and the id of the schema it has been written with, followed by the Avro
+ * binary data. The schemas are read from the classpath ({@code avro/email-<id>.avsc}) and act as a local schema
+ * registry: a record written with any known schema version is resolved to the latest one. A new version must only add
+ * fields with a default, and be deployed to the consumers before the producers write it.
+ */
+public class EmailAvroCodec {
+
+    static final byte MAGIC_BYTE = 0;
+
+    private static final int HEADER_SIZE = 1 + Integer.BYTES;
+
+    private static final String SCHEMA_LOCATION = "avro/email-%d.avsc";
+
+    private static final String IDEMPOTENCY_KEY = "idempotencyKey";
+
+    private static final String PRIORITY = "priority";
+
+    private final Map<Integer, Schema> schemas;
+
+    private final int currentSchemaId;
+
+    private final Schema currentSchema;
+
+    private final Schema attachmentSchema;
+
+    @Nullable
+    private final Schema prioritySchema;
+
+    private final DatumWriter<GenericRecord> writer;
+
+    private final Map<Integer, DatumReader<GenericRecord>> readers = new ConcurrentHashMap<>();
+
+    EmailAvroCodec(Map<Integer, Schema> schemas) {
+        this.schemas = new TreeMap<>(schemas);
+        this.currentSchemaId = ((TreeMap<Integer, Schema>) this.schemas).lastKey();
+        this.currentSchema = schemas.get(currentSchemaId);
+        this.attachmentSchema = currentSchema.getField("attachment").schema().getTypes().get(1);
+        this.prioritySchema = currentSchema.getField(PRIORITY) == null
+            ? null
+            : currentSchema.getField(PRIORITY).schema().getTypes().get(1);
+        this.writer = new GenericDatumWriter<>(currentSchema);
+    }
+
+    /**
+     * Creates the codec with all the schema versions in the classpath, writing with the latest one.
+     */
+    public static EmailAvroCodec fromClasspath() {
+        Map<Integer, Schema> schemas = new TreeMap<>();
+        ClassLoader classLoader = EmailAvroCodec.class.getClassLoader();
+        for (int id = 1; ; id++) {
+            try (InputStream schema = classLoader.getResourceAsStream(String.format(SCHEMA_LOCATION, id))) {
+                if (schema == null) {
+                    break;
+                }
+                schemas.put(id, new Schema.Parser().parse(schema));
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot read email schema " + id, e);
+            }
+        }
+        if (schemas.isEmpty()) {
+            throw new IllegalStateException("No email schema found in the classpath");
+        }
+        return new EmailAvroCodec(schemas);
+    }
+
+    public static boolean isAvro(@Nullable byte[] data) {
+        return data != null && data.length >= HEADER_SIZE && data[0] == MAGIC_BYTE;
+    }
+
+    public byte[] encode(EmailDTO emailDTO) {
+        GenericRecord record = new GenericData.Record(currentSchema);
+        record.put("from", emailDTO.getFrom());
+        record.put("to", emailDTO.getTo());
+        record.put("subject", emailDTO.getSubject());
+        record.put("body", emailDTO.getBody());
+        if (emailDTO.getAttachment() != null) {
+            GenericRecord attachment = new GenericData.Record(attachmentSchema);
+            attachment.put("name", emailDTO.getAttachment().getName());
+            attachment.put("url", emailDTO.getAttachment().getUrl());
+            record.put("attachment", attachment);
+        }
+        if (currentSchema.getField(IDEMPOTENCY_KEY) != null) {
+            record.put(IDEMPOTENCY_KEY, emailDTO.getIdempotencyKey());
+        }
+        if (prioritySchema != null && emailDTO.getPriority() != null) {
+            record.put(PRIORITY, new GenericData.EnumSymbol(prioritySchema, emailDTO.getPriority().name()));
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        out.write(MAGIC_BYTE);
+        out.writeBytes(ByteBuffer.allocate(Integer.BYTES).putInt(currentSchemaId).array());
+        BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(out, null);
+        try {
+            writer.write(record, encoder);
+            encoder.flush();
+        } catch (IOException | RuntimeException e) {
+            throw new SerializationException("Cannot serialize email event", e);
+        }
+        return out.toByteArray();
+    }
+
+    public EmailDTO decode(byte[] data) {
+        int schemaId = ByteBuffer.wrap(data, 1, Integer.BYTES).getInt();
+        DatumReader<GenericRecord> reader = readers.computeIfAbsent(schemaId, this::newReader);
+        BinaryDecoder decoder = DecoderFactory.get().binaryDecoder(data, HEADER_SIZE, data.length - HEADER_SIZE, null);
+        GenericRecord record;
+        try {
+            record = reader.read(null, decoder);
+        } catch (IOException | RuntimeException e) {
+            throw new SerializationException("Cannot deserialize email event with schema " + schemaId, e);
+        }
+
+        GenericRecord attachment = (GenericRecord) record.get("attachment");
+        Object priority = prioritySchema == null ? null : record.get(PRIORITY);
+        return new EmailDTO(asString(record.get("from")), asString(record.get("to")), asString(record.get("subject")),
+            asString(record.get("body")), attachment == null
+                ? null
+                : new AttachmentDTO(asString(attachment.get("name")), asString(attachment.get("url"))),
+            currentSchema.getField(IDEMPOTENCY_KEY) == null ? null : asString(record.get(IDEMPOTENCY_KEY)),
+            priority == null ? null : Priority.valueOf(priority.toString()));
+    }
+
+    private DatumReader<GenericRecord> newReader(int schemaId) {
+        Schema writerSchema = schemas.get(schemaId);
+        if (writerSchema == null) {
+            throw new SerializationException("Unknown email schema " + schemaId);
+        }
+        return new GenericDatumReader<>(writerSchema, currentSchema);
+    }
+
+    @Nullable
+    private static String asString(@Nullable Object value) {
+        return value == null ? null : value.toString();
+    }
+}
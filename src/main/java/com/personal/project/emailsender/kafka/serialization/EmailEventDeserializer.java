@@ -0,0 +1,38 @@
+package com.personal.project.emailsender.kafka.serialization;
+
+import com.personal.project.emailsender.dto.EmailDTO;
+import java.util.Map;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.springframework.kafka.support.serializer.JsonDeserializer;
+
+/**
+ * Deserializes the email events written in any of the formats of {@link EmailEventSerializer}, so that the producers
+ * can switch format while the events already queued are still consumed.
+ */
+public class EmailEventDeserializer implements Deserializer<EmailDTO> {
+
+    private final EmailAvroCodec avroCodec = EmailAvroCodec.fromClasspath();
+
+    private final JsonDeserializer<EmailDTO> jsonDeserializer = new JsonDeserializer<>(EmailDTO.class, false);
+
+    @Override
+    public void configure(Map<String, ?> configs, boolean isKey) {
+        jsonDeserializer.configure(configs, isKey);
+    }
+
+    @Override
+    public EmailDTO deserialize(String topic, byte[] data) {
+        return EmailAvroCodec.isAvro(data) ? avroCodec.decode(data) : jsonDeserializer.deserialize(topic, data);
+    }
+
+    @Override
+    public EmailDTO deserialize(String topic, Headers headers, byte[] data) {
+        return EmailAvroCodec.isAvro(data) ? avroCodec.decode(data) : jsonDeserializer.deserialize(topic, headers, data);
+    }
+
+    @Override
+    public void close() {
+        jsonDeserializer.close();
+    }
+}
@@ -0,0 +1,67 @@
+package com.personal.project.emailsender.kafka.serialization;
+
+import com.personal.project.emailsender.dto.EmailDTO;
+import java.util.Map;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.serialization.Serializer;
+import org.springframework.kafka.support.serializer.JsonSerializer;
+import org.springframework.lang.Nullable;
+
+/**
+ * Serializes the email events in the format set by {@value #FORMAT_CONFIG}: {@code JSON} (the default) or the binary
+ * {@code AVRO} format of {@link EmailAvroCodec}. The other events are always serialized as JSON, as are the invalid
+ * email events the Avro schema cannot represent, e.g. the ones without recipient moved to the dead letter topic.
+ */
+public class EmailEventSerializer implements Serializer<Object> {
+
+    public static final String FORMAT_CONFIG = "email-sender.serialization.format";
+
+    private final JsonSerializer<Object> jsonSerializer = new JsonSerializer<>();
+
+    private EmailAvroCodec avroCodec;
+
+    @Override
+    public void configure(Map<String, ?> configs, boolean isKey) {
+        jsonSerializer.configure(configs, isKey);
+        Object format = configs.get(FORMAT_CONFIG);
+        avroCodec = format != null && Format.valueOf(format.toString()) == Format.AVRO
+            ? EmailAvroCodec.fromClasspath()
+            : null;
+    }
+
+    @Override
+    public byte[] serialize(String topic, Object data) {
+        byte[] avroData = encodeAvro(data);
+        return avroData != null ? avroData : jsonSerializer.serialize(topic, data);
+    }
+
+    @Override
+    public byte[] serialize(String topic, Headers headers, Object data) {
+        byte[] avroData = encodeAvro(data);
+        return avroData != null ? avroData : jsonSerializer.serialize(topic, headers, data);
+    }
+
+    @Nullable
+    private byte[] encodeAvro(Object data) {
+        if (avroCodec == null || !(data instanceof EmailDTO)) {
+            return null;
+        }
+        try {
+            return avroCodec.encode((EmailDTO) data);
+        } catch (SerializationException e) {
+            //the deserializer reads both formats
+            return null;
+        }
+    }
+
+    @Override
+    public void close() {
+        jsonSerializer.close();
+    }
+
+    public enum Format {
+        JSON,
+        AVRO
+    }
+}
@@ -0,0 +1,278 @@
+package com.personal.project.emailsender.mail;
+
+import com.personal.project.emailsender.mail.SmtpTransportPool.PooledTransport;
+import com.personal.project.emailsender.mail.dns.MxResolver;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ScheduledExecutorService;
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.lang.Nullable;
+import org.springframework.mail.MailException;
+import org.springframework.mail.MailSendException;
+import org.springframework.mail.javamail.JavaMailSender;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+
+/**
+ * {@link JavaMailSenderImpl} that delivers the messages straight to the mail servers of the recipient domains instead
+ * of handing them over to a relay.
+ * <p>
+ * The mail servers are found by the {@link MxResolver} and tried by preference: a server that cannot be reached or
+ * answers with a transient (4xx) error is skipped for the next one, a permanent (5xx) error fails the message. Each
+ * mail server has its own {@link SmtpTransportPool}, up to {@code maxHosts} pools of the most recently used servers.
+ * <p>
+ * The messages that no mail server accepted for a transient reason, including the lookup failures, are handed over to
+ * the relay if there is one. A message to several domains is relayed only if none of its domains has been delivered,
+ * otherwise it fails not to be sent twice to the same recipients.
+ */
+@Slf4j
+public class DirectMxJavaMailSender extends JavaMailSenderImpl implements DisposableBean {
+
+    private final MxResolver mxResolver;
+
+    @Nullable
+    private final JavaMailSender relay;
+
+    private final Settings settings;
+
+    private final MeterRegistry meterRegistry;
+
+    private final Timer transferTimer;
+
+    private final ScheduledExecutorService evictionExecutor = SmtpTransportPool.newEvictionExecutor();
+
+    private final Map<String, SmtpTransportPool> pools;
+
+    public DirectMxJavaMailSender(MxResolver mxResolver, @Nullable JavaMailSender relay, Settings settings,
+        MeterRegistry meterRegistry) {
+
+        this.mxResolver = mxResolver;
+        this.relay = relay;
+        this.settings = settings;
+        this.meterRegistry = meterRegistry;
+        this.transferTimer = PooledJavaMailSender.transferTimer(meterRegistry);
+        this.pools = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SmtpTransportPool> eldest) {
+                if (size() <= settings.getMaxHosts()) {
+                    return false;
+                }
+                eldest.getValue().close();
+                return true;
+            }
+        };
+
+        Properties properties = new Properties();
+        properties.setProperty("mail.smtp.connectiontimeout", String.valueOf(settings.getTimeout().toMillis()));
+        properties.setProperty("mail.smtp.timeout", String.valueOf(settings.getTimeout().toMillis()));
+        properties.setProperty("mail.smtp.writetimeout", String.valueOf(settings.getTimeout().toMillis()));
+        //STARTTLS when the server offers it, the mail servers do not all support it
+        properties.setProperty("mail.smtp.starttls.enable", "true");
+        if (!settings.getHeloName().isEmpty()) {
+            properties.setProperty("mail.smtp.localhost", settings.getHeloName());
+        }
+        setJavaMailProperties(properties);
+    }
+
+    @Override
+    protected void doSend(MimeMessage[] mimeMessages, @Nullable Object[] originalMessages) throws MailException {
+        Map<Object, Exception> failedMessages = new LinkedHashMap<>();
+        Map<MimeMessage, Object> relayedMessages = new IdentityHashMap<>();
+        for (int i = 0; i < mimeMessages.length; i++) {
+            Object originalMessage = PooledJavaMailSender.originalMessage(mimeMessages, originalMessages, i);
+            try {
+                deliver(mimeMessages[i]);
+                countDelivery("direct");
+            } catch (TransientDeliveryException e) {
+                if (relay != null && !e.isPartiallyDelivered()) {
+                    log.debug("Relaying the message no mail server accepted: {}", e.getMessage());
+                    relayedMessages.put(mimeMessages[i], originalMessage);
+                } else {
+                    failedMessages.put(originalMessage, e);
+                    countDelivery("failed");
+                }
+            } catch (MessagingException e) {
+                failedMessages.put(originalMessage, e);
+                countDelivery("failed");
+            }
+        }
+
+        if (!relayedMessages.isEmpty()) {
+            relay(relayedMessages, failedMessages);
+        }
+        if (!failedMessages.isEmpty()) {
+            throw new MailSendException(failedMessages);
+        }
+    }
+
+    /**
+     * There is no single mail server to test, the relay is tested on its own.
+     */
+    @Override
+    public void testConnection() {
+    }
+
+    @Override
+    public void destroy() {
+        synchronized (pools) {
+            pools.values().forEach(SmtpTransportPool::close);
+            pools.clear();
+        }
+        evictionExecutor.shutdownNow();
+    }
+
+    private void relay(Map<MimeMessage, Object> relayedMessages, Map<Object, Exception> failedMessages) {
+        try {
+            relay.send(relayedMessages.keySet().toArray(new MimeMessage[0]));
+            relayedMessages.forEach((mimeMessage, originalMessage) -> countDelivery("relay"));
+        } catch (MailSendException e) {
+            relayedMessages.forEach((mimeMessage, originalMessage) -> {
+                Exception failure = e.getFailedMessages().isEmpty() ? e : e.getFailedMessages().get(mimeMessage);
+                if (failure != null) {
+                    failedMessages.put(originalMessage, failure);
+                }
+                countDelivery(failure != null ? "failed" : "relay");
+            });
+        } catch (MailException e) {
+            relayedMessages.forEach((mimeMessage, originalMessage) -> {
+                failedMessages.put(originalMessage, e);
+                countDelivery("failed");
+            });
+        }
+    }
+
+    /**
+     * Delivers the message to the mail servers of each of its recipient domains.
+     */
+    private void deliver(MimeMessage mimeMessage) throws MessagingException {
+        PooledJavaMailSender.prepareMessage(mimeMessage);
+        Address[] recipients = mimeMessage.getAllRecipients();
+        if (recipients == null || recipients.length == 0) {
+            throw new SendFailedException("No recipient addresses");
+        }
+        Map<String, List<Address>> recipientsByDomain = new LinkedHashMap<>();
+        for (Address recipient : recipients) {
+            String address = ((InternetAddress) recipient).getAddress();
+            String domain = address.substring(address.lastIndexOf('@') + 1).toLowerCase(Locale.ROOT);
+            recipientsByDomain.computeIfAbsent(domain, key -> new ArrayList<>()).add(recipient);
+        }
+
+        boolean delivered = false;
+        for (Map.Entry<String, List<Address>> domainRecipients : recipientsByDomain.entrySet()) {
+            try {
+                deliver(mimeMessage, domainRecipients.getKey(), domainRecipients.getValue().toArray(new Address[0]));
+            } catch (TransientDeliveryException e) {
+                throw delivered ? new TransientDeliveryException(e.getMessage(), e, true) : e;
+            }
+            delivered = true;
+        }
+    }
+
+    private void deliver(MimeMessage mimeMessage, String domain, Address[] recipients) throws MessagingException {
+        List<String> hosts;
+        try {
+            hosts = mxResolver.resolve(domain);
+        } catch (IOException e) {
+            throw new TransientDeliveryException("Cannot resolve the mail servers of " + domain, e, false);
+        }
+        if (hosts.isEmpty()) {
+            throw new SendFailedException("The domain " + domain + " does not accept mail", null, recipients, null,
+                recipients);
+        }
+
+        MessagingException lastFailure = null;
+        for (String host : hosts) {
+            SmtpTransportPool pool = poolOf(host);
+            PooledTransport pooledTransport;
+            try {
+                pooledTransport = pool.lease();
+            } catch (MessagingException e) {
+                log.debug("Cannot connect to the mail server {} of {}", host, domain, e);
+                lastFailure = e;
+                continue;
+            }
+            try {
+                PooledJavaMailSender.transferMessage(pooledTransport, mimeMessage, recipients, transferTimer,
+                    meterRegistry);
+                return;
+            } catch (SendFailedException e) {
+                //the server rejected the message, the connection can still be used
+                if (PooledJavaMailSender.replyCode(e).startsWith("5")) {
+                    throw e;
+                }
+                lastFailure = e;
+            } catch (MessagingException e) {
+                pooledTransport.markBroken();
+                lastFailure = e;
+            } finally {
+                pool.release(pooledTransport);
+            }
+        }
+        throw new TransientDeliveryException("No mail server of " + domain + " accepted the message", lastFailure,
+            false);
+    }
+
+    private SmtpTransportPool poolOf(String host) {
+        synchronized (pools) {
+            return pools.computeIfAbsent(host.toLowerCase(Locale.ROOT), key -> new SmtpTransportPool(
+                () -> connect(key), settings.getPoolSettings(), Tags.of("pool", "direct", "name", key),
+                evictionExecutor, meterRegistry));
+        }
+    }
+
+    private Transport connect(String host) throws MessagingException {
+        Transport transport = getSession().getTransport("smtp");
+        transport.connect(host, settings.getPort(), null, null);
+        return transport;
+    }
+
+    private void countDelivery(String route) {
+        meterRegistry.counter("email.sender.mx.deliveries", "route", route).increment();
+    }
+
+    @Value
+    public static class Settings {
+        int port;
+        String heloName;
+        Duration timeout;
+        int maxHosts;
+        SmtpTransportPool.Settings poolSettings;
+    }
+
+    /**
+     * No mail server of a domain accepted the message for a reason that may go away.
+     */
+    private static class TransientDeliveryException extends MessagingException {
+
+        private final boolean partiallyDelivered;
+
+        TransientDeliveryException(String message, @Nullable Exception cause, boolean partiallyDelivered) {
+            super(message, cause);
+            this.partiallyDelivered = partiallyDelivered;
+        }
+
+        /**
+         * @return whether the message has been delivered to the recipients of other domains
+         */
+        boolean isPartiallyDelivered() {
+            return partiallyDelivered;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.personal.project.emailsender.mail;
+
+import com.personal.project.emailsender.mail.SmtpTransportPool.PooledTransport;
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPTransport;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.mail.Address;
+import javax.mail.AuthenticationFailedException;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.lang.Nullable;
+import org.springframework.mail.MailAuthenticationException;
+import org.springframework.mail.MailException;
+import org.springframework.mail.MailSendException;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+
+/**
+ * {@link JavaMailSenderImpl} that sends the messages over connections leased from a {@link SmtpTransportPool} instead
+ * of opening, authenticating and closing a new connection for each send.
+ * <p>
+ * The time spent transferring each message is measured apart from the connection setup, along with the SMTP reply
+ * code of each message ({@code none} when the failure happened before any reply). The pool meters are tagged with the
+ * name of the relay.
+ */
+public class PooledJavaMailSender extends JavaMailSenderImpl implements DisposableBean {
+
+    private static final String HEADER_MESSAGE_ID = "Message-ID";
+
+    private static final String NO_REPLY_CODE = "none";
+
+    private final SmtpTransportPool transportPool;
+
+    private final MeterRegistry meterRegistry;
+
+    private final Timer transferTimer;
+
+    public PooledJavaMailSender(SmtpTransportPool.Settings poolSettings, MeterRegistry meterRegistry) {
+        this(poolSettings, "primary", meterRegistry);
+    }
+
+    public PooledJavaMailSender(SmtpTransportPool.Settings poolSettings, String name, MeterRegistry meterRegistry) {
+        this.transportPool = new SmtpTransportPool(this::connectTransport, poolSettings,
+            Tags.of("pool", "relay", "name", name), meterRegistry);
+        this.meterRegistry = meterRegistry;
+        this.transferTimer = transferTimer(meterRegistry);
+    }
+
+    @Override
+    protected void doSend(MimeMessage[] mimeMessages, @Nullable Object[] originalMessages) throws MailException {
+        Map<Object, Exception> failedMessages = new LinkedHashMap<>();
+        PooledTransport pooledTransport = null;
+        try {
+            for (int i = 0; i < mimeMessages.length; i++) {
+                if (pooledTransport == null) {
+                    try {
+                        pooledTransport = transportPool.lease();
+                    } catch (AuthenticationFailedException ex) {
+                        throw new MailAuthenticationException(ex);
+                    } catch (MessagingException ex) {
+                        //all the remaining messages failed
+                        for (int j = i; j < mimeMessages.length; j++) {
+                            failedMessages.put(originalMessage(mimeMessages, originalMessages, j), ex);
+                        }
+                        throw new MailSendException("Mail server connection failed", ex, failedMessages);
+                    }
+                }
+
+                try {
+                    sendMessage(pooledTransport, mimeMessages[i]);
+                } catch (SendFailedException ex) {
+                    //the server rejected the message, the connection can still be used
+                    failedMessages.put(originalMessage(mimeMessages, originalMessages, i), ex);
+                } catch (MessagingException ex) {
+                    failedMessages.put(originalMessage(mimeMessages, originalMessages, i), ex);
+                    pooledTransport.markBroken();
+                }
+
+                if (pooledTransport.isBroken()
+                    || pooledTransport.getSentMessages() >= transportPool.getMaxMessagesPerConnection()) {
+                    transportPool.release(pooledTransport);
+                    pooledTransport = null;
+                }
+            }
+        } finally {
+            if (pooledTransport != null) {
+                transportPool.release(pooledTransport);
+            }
+        }
+
+        if (!failedMessages.isEmpty()) {
+            throw new MailSendException(failedMessages);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        transportPool.close();
+    }
+
+    private void sendMessage(PooledTransport pooledTransport, MimeMessage mimeMessage) throws MessagingException {
+        prepareMessage(mimeMessage);
+        Address[] addresses = mimeMessage.getAllRecipients();
+        transferMessage(pooledTransport, mimeMessage, addresses != null ? addresses : new Address[0], transferTimer,
+            meterRegistry);
+    }
+
+    /**
+     * Sets the headers of the message that are set when sending, as {@link JavaMailSenderImpl} does.
+     */
+    static void prepareMessage(MimeMessage mimeMessage) throws MessagingException {
+        if (mimeMessage.getSentDate() == null) {
+            mimeMessage.setSentDate(new Date());
+        }
+        String messageId = mimeMessage.getMessageID();
+        mimeMessage.saveChanges();
+        if (messageId != null) {
+            //preserve explicitly specified message id
+            mimeMessage.setHeader(HEADER_MESSAGE_ID, messageId);
+        }
+    }
+
+    /**
+     * Sends the prepared message to the given envelope recipients, measuring the transfer and counting the reply.
+     */
+    static void transferMessage(PooledTransport pooledTransport, MimeMessage mimeMessage, Address[] addresses,
+        Timer transferTimer, MeterRegistry meterRegistry) throws MessagingException {
+
+        Transport transport = pooledTransport.getTransport();
+        long transferStart = System.nanoTime();
+        try {
+            transport.sendMessage(mimeMessage, addresses);
+            countReply(meterRegistry, replyCode(transport));
+        } catch (MessagingException e) {
+            countReply(meterRegistry, replyCode(e));
+            throw e;
+        } finally {
+            transferTimer.record(System.nanoTime() - transferStart, TimeUnit.NANOSECONDS);
+        }
+        pooledTransport.messageSent();
+    }
+
+    private static void countReply(MeterRegistry meterRegistry, String code) {
+        meterRegistry.counter("email.sender.smtp.replies", "code", code).increment();
+    }
+
+    static Timer transferTimer(MeterRegistry meterRegistry) {
+        return Timer.builder("email.sender.smtp.transfer")
+            .description("Time spent transferring a message over an open SMTP connection")
+            .register(meterRegistry);
+    }
+
+    private static String replyCode(Transport transport) {
+        return transport instanceof SMTPTransport
+            ? String.valueOf(((SMTPTransport) transport).getLastReturnCode())
+            : NO_REPLY_CODE;
+    }
+
+    /**
+     * @return the reply code of the first rejection found in the chain of the failure
+     */
+    static String replyCode(MessagingException failure) {
+        for (Exception e = failure; e != null; e = e instanceof MessagingException
+            ? ((MessagingException) e).getNextException()
+            : null) {
+            if (e instanceof SMTPSendFailedException) {
+                return String.valueOf(((SMTPSendFailedException) e).getReturnCode());
+            }
+            if (e instanceof SMTPAddressFailedException) {
+                return String.valueOf(((SMTPAddressFailedException) e).getReturnCode());
+            }
+        }
+        return NO_REPLY_CODE;
+    }
+
+    static Object originalMessage(MimeMessage[] mimeMessages, @Nullable Object[] originalMessages, int index) {
+        return originalMessages != null ? originalMessages[index] : mimeMessages[index];
+    }
+}
@@ -0,0 +1,368 @@
+package com.personal.project.emailsender.mail;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.MimeMessage;
+import lombok.Getter;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.lang.Nullable;
+import org.springframework.mail.MailException;
+import org.springframework.mail.MailSendException;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+
+/**
+ * {@link JavaMailSenderImpl} that spreads the sends across several relays, sending each chunk of messages through one
+ * of them.
+ * <p>
+ * The relay is picked by the power of two choices: two relays are drawn at random in proportion to their weight and
+ * the one with the lowest cost, its outstanding messages times its peak EWMA latency per message, is used. The
+ * weights spread the sends when the relays are idle, while the cost steers them away from a relay that slows down.
+ * <p>
+ * The health of the relays is checked passively: a connection failure, a timeout or a transient (4xx) reply is a
+ * failure of the relay, and its messages are sent again through another relay. After {@code failureThreshold}
+ * consecutive failures the circuit of the relay opens and no message goes through it for {@code openDuration}, then a
+ * single send probes it again. A permanent (5xx) reply is the failure of the message, not of the relay.
+ */
+@Slf4j
+public class RoutingJavaMailSender extends JavaMailSenderImpl implements DisposableBean {
+
+    private final List<Relay> relays;
+
+    private final Settings settings;
+
+    private final MeterRegistry meterRegistry;
+
+    public RoutingJavaMailSender(List<Relay> relays, Settings settings, MeterRegistry meterRegistry) {
+        if (relays.isEmpty()) {
+            throw new IllegalArgumentException("No relay to route the messages to");
+        }
+        this.relays = List.copyOf(relays);
+        this.settings = settings;
+        this.meterRegistry = meterRegistry;
+
+        for (Relay relay : this.relays) {
+            Gauge.builder("email.sender.relay.outstanding", relay, Relay::getOutstanding)
+                .description("Messages being sent through the relay")
+                .tag("relay", relay.getName())
+                .register(meterRegistry);
+            Gauge.builder("email.sender.relay.latency", relay, r -> r.getLatencyNanos() / 1_000_000)
+                .description("Peak EWMA of the time spent sending a message through the relay")
+                .tag("relay", relay.getName())
+                .baseUnit("milliseconds")
+                .register(meterRegistry);
+            Gauge.builder("email.sender.relay.circuit", relay, r -> r.getCircuitState().ordinal())
+                .description("State of the circuit of the relay: 0 closed, 1 open, 2 half open")
+                .tag("relay", relay.getName())
+                .register(meterRegistry);
+        }
+    }
+
+    @Override
+    protected void doSend(MimeMessage[] mimeMessages, @Nullable Object[] originalMessages) throws MailException {
+        Map<Object, Exception> failedMessages = new LinkedHashMap<>();
+        Map<Integer, Exception> lastFailures = new LinkedHashMap<>();
+        List<Integer> pendingIndexes = new ArrayList<>(mimeMessages.length);
+        for (int i = 0; i < mimeMessages.length; i++) {
+            pendingIndexes.add(i);
+        }
+
+        Set<Relay> triedRelays = new HashSet<>();
+        while (!pendingIndexes.isEmpty()) {
+            Relay relay = select(triedRelays);
+            if (relay == null) {
+                break;
+            }
+            triedRelays.add(relay);
+            pendingIndexes = sendThrough(relay, mimeMessages, pendingIndexes, lastFailures);
+        }
+
+        lastFailures.forEach((index, failure) -> failedMessages.put(
+            PooledJavaMailSender.originalMessage(mimeMessages, originalMessages, index), failure));
+        for (int index : pendingIndexes) {
+            if (!lastFailures.containsKey(index)) {
+                failedMessages.put(PooledJavaMailSender.originalMessage(mimeMessages, originalMessages, index),
+                    new MessagingException("No relay available, all the circuits are open"));
+            }
+        }
+        if (!failedMessages.isEmpty()) {
+            throw new MailSendException(failedMessages);
+        }
+    }
+
+    /**
+     * The service is up as long as one of the relays is.
+     */
+    @Override
+    public void testConnection() throws MessagingException {
+        MessagingException lastFailure = null;
+        for (Relay relay : relays) {
+            try {
+                relay.getSender().testConnection();
+                return;
+            } catch (MessagingException e) {
+                lastFailure = e;
+            }
+        }
+        throw lastFailure;
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        for (Relay relay : relays) {
+            if (relay.getSender() instanceof DisposableBean) {
+                ((DisposableBean) relay.getSender()).destroy();
+            }
+        }
+    }
+
+    /**
+     * Sends the messages through the relay, replacing the last failures of the messages with the new ones.
+     *
+     * @return the indexes of the messages that failed because of the relay
+     */
+    private List<Integer> sendThrough(Relay relay, MimeMessage[] mimeMessages, List<Integer> indexes,
+        Map<Integer, Exception> lastFailures) {
+
+        indexes.forEach(lastFailures::remove);
+        MimeMessage[] messages = new MimeMessage[indexes.size()];
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = mimeMessages[indexes.get(i)];
+        }
+        List<Integer> failedIndexes = new ArrayList<>();
+        int rejectedMessages = 0;
+        boolean relayFailed = true;
+        relay.sendStarted(messages.length);
+        long sendStart = System.nanoTime();
+        try {
+            relay.getSender().send(messages);
+            relayFailed = false;
+        } catch (MailSendException e) {
+            relayFailed = false;
+            for (int i = 0; i < messages.length; i++) {
+                Exception failure = e.getFailedMessages().isEmpty() ? e : e.getFailedMessages().get(messages[i]);
+                if (failure == null) {
+                    continue;
+                }
+                lastFailures.put(indexes.get(i), failure);
+                if (isRelayFailure(failure)) {
+                    relayFailed = true;
+                    failedIndexes.add(indexes.get(i));
+                } else {
+                    rejectedMessages++;
+                }
+            }
+        } catch (MailException e) {
+            indexes.forEach(index -> lastFailures.put(index, e));
+            failedIndexes.addAll(indexes);
+        } finally {
+            long sendEnd = System.nanoTime();
+            relay.sendEnded(messages.length, relayFailed, sendEnd - sendStart, sendEnd, settings);
+        }
+        if (!failedIndexes.isEmpty()) {
+            log.debug("Sending {} messages again through another relay than {}", failedIndexes.size(),
+                relay.getName());
+        }
+        countSends(relay, "failure", failedIndexes.size());
+        countSends(relay, "rejected", rejectedMessages);
+        countSends(relay, "success", messages.length - failedIndexes.size() - rejectedMessages);
+        return failedIndexes;
+    }
+
+    /**
+     * @return the relay to send the next messages through, {@code null} if none is available
+     */
+    @Nullable
+    private Relay select(Set<Relay> excludedRelays) {
+        Set<Relay> unavailableRelays = new HashSet<>(excludedRelays);
+        while (true) {
+            long now = System.nanoTime();
+            List<Relay> candidates = new ArrayList<>(relays.size());
+            int totalWeight = 0;
+            for (Relay relay : relays) {
+                if (!unavailableRelays.contains(relay) && relay.isAvailable(now)) {
+                    candidates.add(relay);
+                    totalWeight += relay.getWeight();
+                }
+            }
+            if (candidates.isEmpty()) {
+                return null;
+            }
+
+            Relay first = drawByWeight(candidates, totalWeight, null);
+            Relay second = candidates.size() > 1 ? drawByWeight(candidates, totalWeight - first.getWeight(), first)
+                : first;
+            Relay selected = second.getCost() < first.getCost() ? second : first;
+            //the circuit may have been half opened by another send in between
+            if (selected.tryAcquire(now)) {
+                return selected;
+            }
+            unavailableRelays.add(selected);
+        }
+    }
+
+    private static Relay drawByWeight(List<Relay> candidates, int totalWeight, @Nullable Relay excluded) {
+        int draw = ThreadLocalRandom.current().nextInt(totalWeight);
+        Relay drawn = null;
+        for (Relay candidate : candidates) {
+            if (candidate == excluded) {
+                continue;
+            }
+            drawn = candidate;
+            draw -= candidate.getWeight();
+            if (draw < 0) {
+                break;
+            }
+        }
+        return drawn;
+    }
+
+    /**
+     * @return whether the message failed because of the relay rather than because of its content or recipients
+     */
+    static boolean isRelayFailure(Exception failure) {
+        if (!(failure instanceof MessagingException)) {
+            return true;
+        }
+        String replyCode = PooledJavaMailSender.replyCode((MessagingException) failure);
+        if (replyCode.startsWith("5")) {
+            return false;
+        }
+        //the addresses rejected before reaching the relay have no reply code
+        return !(failure instanceof SendFailedException) || replyCode.startsWith("4");
+    }
+
+    private void countSends(Relay relay, String result, int count) {
+        if (count > 0) {
+            meterRegistry.counter("email.sender.relay.sends", "relay", relay.getName(), "result", result)
+                .increment(count);
+        }
+    }
+
+    public enum CircuitState {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    @Value
+    public static class Settings {
+        int failureThreshold;
+        Duration openDuration;
+        Duration latencyDecay;
+    }
+
+    /**
+     * A relay along with the state of its circuit and its latency.
+     */
+    public static class Relay {
+
+        @Getter
+        private final String name;
+
+        @Getter
+        private final int weight;
+
+        @Getter
+        private final JavaMailSenderImpl sender;
+
+        private int outstanding;
+
+        private double latencyNanos;
+
+        private long latencyUpdatedAt;
+
+        private CircuitState circuitState = CircuitState.CLOSED;
+
+        private int consecutiveFailures;
+
+        private long openUntil;
+
+        public Relay(String name, int weight, JavaMailSenderImpl sender) {
+            if (weight <= 0) {
+                throw new IllegalArgumentException("Invalid weight of the relay " + name + ": " + weight);
+            }
+            this.name = name;
+            this.weight = weight;
+            this.sender = sender;
+        }
+
+        synchronized int getOutstanding() {
+            return outstanding;
+        }
+
+        synchronized CircuitState getCircuitState() {
+            return circuitState;
+        }
+
+        synchronized double getLatencyNanos() {
+            return latencyNanos;
+        }
+
+        /**
+         * @return the cost of sending one more message, a relay that has not sent anything yet being the cheapest
+         */
+        synchronized double getCost() {
+            return (outstanding + 1) * Math.max(latencyNanos, 1);
+        }
+
+        synchronized boolean isAvailable(long now) {
+            return circuitState == CircuitState.CLOSED
+                || circuitState == CircuitState.OPEN && now - openUntil >= 0;
+        }
+
+        /**
+         * Half opens the circuit if it is open for long enough, letting a single send probe the relay.
+         */
+        synchronized boolean tryAcquire(long now) {
+            if (circuitState == CircuitState.OPEN && now - openUntil >= 0) {
+                circuitState = CircuitState.HALF_OPEN;
+                return true;
+            }
+            return circuitState == CircuitState.CLOSED;
+        }
+
+        synchronized void sendStarted(int messages) {
+            outstanding += messages;
+        }
+
+        synchronized void sendEnded(int messages, boolean failed, long elapsedNanos, long now, Settings settings) {
+            outstanding -= messages;
+            if (failed) {
+                consecutiveFailures++;
+                if (circuitState == CircuitState.HALF_OPEN
+                    || circuitState == CircuitState.CLOSED && consecutiveFailures >= settings.getFailureThreshold()) {
+                    circuitState = CircuitState.OPEN;
+                    openUntil = now + settings.getOpenDuration().toNanos();
+                    log.warn("Opened the circuit of the relay {} after {} consecutive failures", name,
+                        consecutiveFailures);
+                }
+                return;
+            }
+
+            if (circuitState != CircuitState.CLOSED) {
+                log.info("Closed the circuit of the relay {}", name);
+            }
+            circuitState = CircuitState.CLOSED;
+            consecutiveFailures = 0;
+            double sample = (double) elapsedNanos / messages;
+            if (latencyUpdatedAt == 0 || sample > latencyNanos) {
+                //the peak is taken at once, the decay smooths it back down
+                latencyNanos = sample;
+            } else {
+                double decay = Math.exp(-(double) (now - latencyUpdatedAt) / settings.getLatencyDecay().toNanos());
+                latencyNanos = latencyNanos * decay + sample * (1 - decay);
+            }
+            latencyUpdatedAt = now;
+        }
+    }
+}
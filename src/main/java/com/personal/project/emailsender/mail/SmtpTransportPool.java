@@ -0,0 +1,293 @@
+package com.personal.project.emailsender.mail;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import javax.mail.MessagingException;
+import javax.mail.Transport;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.lang.Nullable;
+
+/**
+ * Pool of connected and authenticated SMTP {@link Transport}s.
+ * <p>
+ * Idle connections are validated with a NOOP before being leased again, evicted after {@code maxIdle} and closed after
+ * {@code maxMessagesPerConnection} messages. Connections closed by the server are detected on lease or on failure and
+ * replaced with new ones.
+ */
+@Slf4j
+public class SmtpTransportPool implements Closeable {
+
+    private final TransportFactory transportFactory;
+
+    private final Settings settings;
+
+    private final BlockingDeque<PooledTransport> idleTransports = new LinkedBlockingDeque<>();
+
+    private final Semaphore leasePermits;
+
+    private final Timer leaseWaitTimer;
+
+    private final Timer connectTimer;
+
+    @Nullable
+    private final ScheduledExecutorService ownEvictionExecutor;
+
+    private final ScheduledFuture<?> eviction;
+
+    private final MeterRegistry meterRegistry;
+
+    private final List<Meter> gauges = new ArrayList<>();
+
+    private volatile boolean closed;
+
+    /**
+     * @param tags the tags of the metrics of the pool, telling it apart from the other pools
+     */
+    public SmtpTransportPool(TransportFactory transportFactory, Settings settings, Tags tags,
+        MeterRegistry meterRegistry) {
+
+        this(transportFactory, settings, tags, null, meterRegistry);
+    }
+
+    /**
+     * @param evictionExecutor the executor evicting the idle connections, shared by many pools; if {@code null} the
+     * pool has its own thread
+     */
+    public SmtpTransportPool(TransportFactory transportFactory, Settings settings, Tags tags,
+        @Nullable ScheduledExecutorService evictionExecutor, MeterRegistry meterRegistry) {
+
+        this.transportFactory = transportFactory;
+        this.settings = settings;
+        this.meterRegistry = meterRegistry;
+        this.leasePermits = new Semaphore(settings.getMaxSize(), true);
+        this.leaseWaitTimer = Timer.builder("email.sender.smtp.pool.lease.wait")
+            .description("Time spent waiting for an SMTP connection")
+            .tags(tags)
+            .register(meterRegistry);
+        this.connectTimer = Timer.builder("email.sender.smtp.connect")
+            .description("Time spent opening and authenticating new SMTP connections")
+            .tags(tags)
+            .register(meterRegistry);
+        gauges.add(Gauge.builder("email.sender.smtp.pool.connections", idleTransports, BlockingDeque::size)
+            .description("SMTP connections in the pool")
+            .tags(tags)
+            .tag("state", "idle")
+            .register(meterRegistry));
+        gauges.add(Gauge.builder("email.sender.smtp.pool.connections", this, SmtpTransportPool::getLeasedCount)
+            .description("SMTP connections in the pool")
+            .tags(tags)
+            .tag("state", "leased")
+            .register(meterRegistry));
+        gauges.add(Gauge.builder("email.sender.smtp.pool.max", settings, Settings::getMaxSize)
+            .description("Maximum number of SMTP connections in the pool")
+            .tags(tags)
+            .register(meterRegistry));
+
+        this.ownEvictionExecutor = evictionExecutor == null ? newEvictionExecutor() : null;
+        long evictionIntervalMs = Math.max(settings.getMaxIdle().toMillis() / 2, 1);
+        this.eviction = (evictionExecutor == null ? ownEvictionExecutor : evictionExecutor).scheduleWithFixedDelay(
+            this::evictIdleTransports, evictionIntervalMs, evictionIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return a single thread executor to evict the idle connections of pools
+     */
+    public static ScheduledExecutorService newEvictionExecutor() {
+        return Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "smtp-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Leases a connected transport, waiting up to the lease timeout if all the connections are in use. The transport
+     * must be given back with {@link #release(PooledTransport)}.
+     */
+    public PooledTransport lease() throws MessagingException {
+        long waitStart = System.nanoTime();
+        try {
+            if (!leasePermits.tryAcquire(settings.getLeaseTimeout().toMillis(), TimeUnit.MILLISECONDS)) {
+                throw new MessagingException("Timed out waiting for an SMTP connection after " + settings.getLeaseTimeout());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted while waiting for an SMTP connection", e);
+        } finally {
+            leaseWaitTimer.record(System.nanoTime() - waitStart, TimeUnit.NANOSECONDS);
+        }
+
+        try {
+            PooledTransport pooledTransport;
+            while ((pooledTransport = idleTransports.pollFirst()) != null) {
+                if (isReusable(pooledTransport)) {
+                    return pooledTransport;
+                }
+                pooledTransport.close();
+            }
+            log.debug("Opening new SMTP connection");
+            long connectStart = System.nanoTime();
+            try {
+                return new PooledTransport(transportFactory.connect());
+            } finally {
+                connectTimer.record(System.nanoTime() - connectStart, TimeUnit.NANOSECONDS);
+            }
+        } catch (MessagingException | RuntimeException e) {
+            leasePermits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Gives back a leased transport: it is kept for reuse unless it is broken or has sent too many messages.
+     */
+    public void release(PooledTransport pooledTransport) {
+        try {
+            if (closed || pooledTransport.isBroken()
+                || pooledTransport.getSentMessages() >= settings.getMaxMessagesPerConnection()) {
+                pooledTransport.close();
+            } else {
+                pooledTransport.markIdle();
+                idleTransports.offerFirst(pooledTransport);
+            }
+        } finally {
+            leasePermits.release();
+        }
+    }
+
+    public int getMaxMessagesPerConnection() {
+        return settings.getMaxMessagesPerConnection();
+    }
+
+    /**
+     * Closes the idle connections and removes the gauges of the pool. The connections leased at that time are closed
+     * when released.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        gauges.forEach(meterRegistry::remove);
+        eviction.cancel(false);
+        if (ownEvictionExecutor != null) {
+            ownEvictionExecutor.shutdownNow();
+        }
+        PooledTransport pooledTransport;
+        while ((pooledTransport = idleTransports.pollFirst()) != null) {
+            pooledTransport.close();
+        }
+    }
+
+    private int getLeasedCount() {
+        return settings.getMaxSize() - leasePermits.availablePermits();
+    }
+
+    private boolean isReusable(PooledTransport pooledTransport) {
+        long idleMs = pooledTransport.getIdleMillis();
+        if (idleMs >= settings.getMaxIdle().toMillis()) {
+            return false;
+        }
+        //isConnected() sends a NOOP to the server
+        return idleMs < settings.getValidationInterval().toMillis() || pooledTransport.getTransport().isConnected();
+    }
+
+    private void evictIdleTransports() {
+        //the least recently used connections are at the end of the deque
+        Iterator<PooledTransport> iterator = idleTransports.descendingIterator();
+        while (iterator.hasNext()) {
+            PooledTransport pooledTransport = iterator.next();
+            if (pooledTransport.getIdleMillis() >= settings.getMaxIdle().toMillis()
+                && idleTransports.removeFirstOccurrence(pooledTransport)) {
+                log.debug("Evicting idle SMTP connection");
+                pooledTransport.close();
+            }
+        }
+    }
+
+    @FunctionalInterface
+    public interface TransportFactory {
+
+        Transport connect() throws MessagingException;
+    }
+
+    @Value
+    public static class Settings {
+        int maxSize;
+        Duration maxIdle;
+        int maxMessagesPerConnection;
+        Duration leaseTimeout;
+        Duration validationInterval;
+    }
+
+    /**
+     * A transport leased from the pool.
+     */
+    public static class PooledTransport {
+
+        private final Transport transport;
+
+        private int sentMessages;
+
+        private boolean broken;
+
+        private volatile long idleSinceNanos = System.nanoTime();
+
+        PooledTransport(Transport transport) {
+            this.transport = transport;
+        }
+
+        public Transport getTransport() {
+            return transport;
+        }
+
+        public int getSentMessages() {
+            return sentMessages;
+        }
+
+        public void messageSent() {
+            sentMessages++;
+        }
+
+        public boolean isBroken() {
+            return broken;
+        }
+
+        /**
+         * Marks the connection as not reusable, it will be closed when released.
+         */
+        public void markBroken() {
+            broken = true;
+        }
+
+        void markIdle() {
+            idleSinceNanos = System.nanoTime();
+        }
+
+        long getIdleMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - idleSinceNanos);
+        }
+
+        void close() {
+            try {
+                transport.close();
+            } catch (MessagingException e) {
+                log.debug("Error closing SMTP connection", e);
+            }
+        }
+    }
+}
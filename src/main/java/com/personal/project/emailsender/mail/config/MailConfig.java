@@ -0,0 +1,164 @@
+package com.personal.project.emailsender.mail.config;
+
+import com.personal.project.emailsender.mail.DirectMxJavaMailSender;
+import com.personal.project.emailsender.mail.PooledJavaMailSender;
+import com.personal.project.emailsender.mail.RoutingJavaMailSender;
+import com.personal.project.emailsender.mail.SmtpTransportPool;
+import com.personal.project.emailsender.mail.dns.DnsClient;
+import com.personal.project.emailsender.mail.dns.MxResolver;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.mail.MailProperties;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.mail.javamail.JavaMailSender;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+import org.springframework.util.StringUtils;
+
+@Configuration
+@EnableConfigurationProperties({MailProperties.class, RoutingMailProperties.class})
+@ConditionalOnProperty(name = "email-sender.mail.pool.enabled", havingValue = "true")
+public class MailConfig {
+
+    private static final String RESOLV_CONF = "/etc/resolv.conf";
+
+    private static final int DNS_PORT = 53;
+
+    private static final String PRIMARY_RELAY = "primary";
+
+    /**
+     * The {@code spring.mail} relay, routed along with the {@code email-sender.mail.routing.relays} if there are any.
+     */
+    @Bean
+    public JavaMailSenderImpl javaMailSender(MailProperties mailProperties, RoutingMailProperties routingProperties,
+        @Value("${email-sender.mail.pool.max-size}") int maxSize,
+        @Value("${email-sender.mail.pool.max-idle.ms}") long maxIdleMs,
+        @Value("${email-sender.mail.pool.max-messages-per-connection}") int maxMessagesPerConnection,
+        @Value("${email-sender.mail.pool.lease-timeout.ms}") long leaseTimeoutMs,
+        @Value("${email-sender.mail.pool.validation-interval.ms}") long validationIntervalMs,
+        @Value("${email-sender.mail.routing.primary-weight}") int primaryWeight,
+        @Value("${email-sender.mail.routing.circuit-breaker.failure-threshold}") int failureThreshold,
+        @Value("${email-sender.mail.routing.circuit-breaker.open.ms}") long openMs,
+        @Value("${email-sender.mail.routing.latency-decay.ms}") long latencyDecayMs,
+        MeterRegistry meterRegistry) {
+
+        SmtpTransportPool.Settings poolSettings = new SmtpTransportPool.Settings(maxSize, Duration.ofMillis(maxIdleMs),
+            maxMessagesPerConnection, Duration.ofMillis(leaseTimeoutMs), Duration.ofMillis(validationIntervalMs));
+        PooledJavaMailSender primarySender = new PooledJavaMailSender(poolSettings, PRIMARY_RELAY, meterRegistry);
+        applyProperties(mailProperties, primarySender);
+        if (routingProperties.getRelays().isEmpty()) {
+            return primarySender;
+        }
+
+        List<RoutingJavaMailSender.Relay> relays = new ArrayList<>();
+        relays.add(new RoutingJavaMailSender.Relay(PRIMARY_RELAY, primaryWeight, primarySender));
+        Set<String> names = new HashSet<>(Set.of(PRIMARY_RELAY));
+        for (RoutingMailProperties.Relay relay : routingProperties.getRelays()) {
+            if (!StringUtils.hasText(relay.getName()) || !StringUtils.hasText(relay.getHost())
+                || !names.add(relay.getName())) {
+                throw new IllegalArgumentException("Invalid relay: " + relay.getName() + " " + relay.getHost());
+            }
+            PooledJavaMailSender sender = new PooledJavaMailSender(poolSettings, relay.getName(), meterRegistry);
+            applyProperties(mailProperties, sender);
+            sender.setHost(relay.getHost());
+            if (relay.getPort() != null) {
+                sender.setPort(relay.getPort());
+            }
+            sender.setUsername(relay.getUsername());
+            sender.setPassword(relay.getPassword());
+            relays.add(new RoutingJavaMailSender.Relay(relay.getName(), relay.getWeight(), sender));
+        }
+        RoutingJavaMailSender.Settings settings = new RoutingJavaMailSender.Settings(failureThreshold,
+            Duration.ofMillis(openMs), Duration.ofMillis(latencyDecayMs));
+        RoutingJavaMailSender routingSender = new RoutingJavaMailSender(relays, settings, meterRegistry);
+        applyProperties(mailProperties, routingSender);
+        return routingSender;
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "email-sender.mail.direct.enabled", havingValue = "true")
+    public MxResolver mxResolver(@Value("${email-sender.mail.direct.dns.servers}") List<String> servers,
+        @Value("${email-sender.mail.direct.dns.timeout.ms}") long timeoutMs,
+        @Value("${email-sender.mail.direct.dns.attempts}") int attempts,
+        @Value("${email-sender.mail.direct.dns.negative-ttl.ms}") long negativeTtlMs,
+        @Value("${email-sender.mail.direct.dns.max-ttl.ms}") long maxTtlMs,
+        @Value("${email-sender.mail.direct.dns.cache.max-entries}") int cacheMaxEntries,
+        MeterRegistry meterRegistry) throws IOException {
+
+        List<InetSocketAddress> serverAddresses = new ArrayList<>();
+        for (String server : servers) {
+            server = server.trim();
+            int portSeparator = server.lastIndexOf(':');
+            serverAddresses.add(portSeparator < 0
+                ? new InetSocketAddress(server, DNS_PORT)
+                : new InetSocketAddress(server.substring(0, portSeparator),
+                    Integer.parseInt(server.substring(portSeparator + 1))));
+        }
+        if (serverAddresses.isEmpty()) {
+            serverAddresses = DnsClient.readResolvConf(Paths.get(RESOLV_CONF));
+        }
+        DnsClient dnsClient = new DnsClient(serverAddresses, Duration.ofMillis(timeoutMs), attempts);
+        return new MxResolver(dnsClient, Duration.ofMillis(negativeTtlMs), Duration.ofMillis(maxTtlMs),
+            cacheMaxEntries, meterRegistry);
+    }
+
+    /**
+     * Takes the place of the relay sender, which it falls back to, as the {@link JavaMailSender} of the application.
+     */
+    @Bean
+    @Primary
+    @ConditionalOnProperty(name = "email-sender.mail.direct.enabled", havingValue = "true")
+    public DirectMxJavaMailSender directMxJavaMailSender(MxResolver mxResolver,
+        @Qualifier("javaMailSender") JavaMailSender relayMailSender,
+        @Value("${email-sender.mail.direct.relay-fallback}") boolean relayFallback,
+        @Value("${email-sender.mail.direct.port}") int port,
+        @Value("${email-sender.mail.direct.helo-name}") String heloName,
+        @Value("${email-sender.mail.direct.timeout.ms}") long timeoutMs,
+        @Value("${email-sender.mail.direct.max-hosts}") int maxHosts,
+        @Value("${email-sender.mail.direct.pool.max-size-per-host}") int maxSizePerHost,
+        @Value("${email-sender.mail.pool.max-idle.ms}") long maxIdleMs,
+        @Value("${email-sender.mail.pool.max-messages-per-connection}") int maxMessagesPerConnection,
+        @Value("${email-sender.mail.pool.lease-timeout.ms}") long leaseTimeoutMs,
+        @Value("${email-sender.mail.pool.validation-interval.ms}") long validationIntervalMs,
+        MeterRegistry meterRegistry) {
+
+        SmtpTransportPool.Settings poolSettings = new SmtpTransportPool.Settings(maxSizePerHost,
+            Duration.ofMillis(maxIdleMs), maxMessagesPerConnection, Duration.ofMillis(leaseTimeoutMs),
+            Duration.ofMillis(validationIntervalMs));
+        DirectMxJavaMailSender.Settings settings = new DirectMxJavaMailSender.Settings(port, heloName,
+            Duration.ofMillis(timeoutMs), maxHosts, poolSettings);
+        return new DirectMxJavaMailSender(mxResolver, relayFallback ? relayMailSender : null, settings,
+            meterRegistry);
+    }
+
+    private static void applyProperties(MailProperties mailProperties, JavaMailSenderImpl sender) {
+        sender.setHost(mailProperties.getHost());
+        if (mailProperties.getPort() != null) {
+            sender.setPort(mailProperties.getPort());
+        }
+        sender.setUsername(mailProperties.getUsername());
+        sender.setPassword(mailProperties.getPassword());
+        sender.setProtocol(mailProperties.getProtocol());
+        if (mailProperties.getDefaultEncoding() != null) {
+            sender.setDefaultEncoding(mailProperties.getDefaultEncoding().name());
+        }
+        if (!mailProperties.getProperties().isEmpty()) {
+            Properties javaMailProperties = new Properties();
+            javaMailProperties.putAll(mailProperties.getProperties());
+            sender.setJavaMailProperties(javaMailProperties);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.personal.project.emailsender.mail.config;
+
+import java.util.ArrayList;
+import java.util.List;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * The relays the sends are spread across along with the {@code spring.mail} relay, e.g.
+ * {@code email-sender.mail.routing.relays[0].host}. They use the protocol, encoding and JavaMail properties of the
+ * {@code spring.mail} relay.
+ */
+@Data
+@ConfigurationProperties(prefix = "email-sender.mail.routing")
+public class RoutingMailProperties {
+
+    private List<Relay> relays = new ArrayList<>();
+
+    @Data
+    public static class Relay {
+
+        private String name;
+
+        private String host;
+
+        private Integer port;
+
+        private String username;
+
+        private String password;
+
+        private int weight = 1;
+    }
+}
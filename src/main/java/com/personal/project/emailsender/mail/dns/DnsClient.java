@@ -0,0 +1,249 @@
+package com.personal.project.emailsender.mail.dns;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import lombok.Value;
+
+/**
+ * Minimal DNS client asking recursive resolvers for the MX records of a domain over UDP (RFC 1035).
+ * <p>
+ * Each query is sent to the servers in turn until one answers, and a server that does not answer within the timeout
+ * is asked again up to {@code attempts} times. Only the answer section is read: a truncated response is used as it is
+ * rather than asked again over TCP, the first MX records are enough to deliver.
+ */
+public class DnsClient {
+
+    public static final int RCODE_NO_ERROR = 0;
+
+    public static final int RCODE_SERVER_FAILURE = 2;
+
+    public static final int RCODE_NAME_ERROR = 3;
+
+    static final int TYPE_MX = 15;
+
+    private static final int CLASS_IN = 1;
+
+    private static final int FLAG_RESPONSE = 0x8000;
+
+    private static final int FLAG_RECURSION_DESIRED = 0x0100;
+
+    private static final int HEADER_SIZE = 12;
+
+    private static final int MAX_UDP_RESPONSE_SIZE = 4096;
+
+    private static final int MAX_NAME_POINTERS = 16;
+
+    private final List<InetSocketAddress> servers;
+
+    private final Duration timeout;
+
+    private final int attempts;
+
+    public DnsClient(List<InetSocketAddress> servers, Duration timeout, int attempts) {
+        if (servers.isEmpty()) {
+            throw new IllegalArgumentException("No DNS server configured");
+        }
+        this.servers = List.copyOf(servers);
+        this.timeout = timeout;
+        this.attempts = Math.max(1, attempts);
+    }
+
+    /**
+     * @return the name servers of a {@code resolv.conf} file, on port 53
+     */
+    public static List<InetSocketAddress> readResolvConf(Path resolvConf) throws IOException {
+        List<InetSocketAddress> servers = new ArrayList<>();
+        for (String line : Files.readAllLines(resolvConf)) {
+            String[] fields = line.trim().split("\\s+");
+            if (fields.length >= 2 && fields[0].equals("nameserver")) {
+                servers.add(new InetSocketAddress(fields[1], 53));
+            }
+        }
+        return servers;
+    }
+
+    /**
+     * @throws IOException if no server answered
+     */
+    public Response queryMx(String domain) throws IOException {
+        int id = ThreadLocalRandom.current().nextInt(1 << 16);
+        byte[] query = encodeQuery(id, domain, TYPE_MX);
+        IOException lastFailure = null;
+        try (DatagramSocket socket = new DatagramSocket()) {
+            for (int attempt = 0; attempt < attempts; attempt++) {
+                for (InetSocketAddress server : servers) {
+                    try {
+                        return exchange(socket, server, query, id);
+                    } catch (IOException e) {
+                        lastFailure = e;
+                    }
+                }
+            }
+        }
+        throw new IOException("No DNS server answered the MX query of " + domain, lastFailure);
+    }
+
+    private Response exchange(DatagramSocket socket, InetSocketAddress server, byte[] query, int id)
+        throws IOException {
+
+        socket.send(new DatagramPacket(query, query.length, server));
+        byte[] buffer = new byte[MAX_UDP_RESPONSE_SIZE];
+        long deadline = System.nanoTime() + timeout.toNanos();
+        while (true) {
+            long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remainingMs <= 0) {
+                throw new SocketTimeoutException("No answer from " + server + " within " + timeout);
+            }
+            socket.setSoTimeout((int) remainingMs);
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            socket.receive(packet);
+            //ignores the late answers to the previous attempts and anything not coming from the server
+            if (packet.getSocketAddress().equals(server) && packet.getLength() >= HEADER_SIZE
+                && (ByteBuffer.wrap(buffer).getShort(0) & 0xffff) == id) {
+                return decodeResponse(ByteBuffer.wrap(buffer, 0, packet.getLength()));
+            }
+        }
+    }
+
+    static byte[] encodeQuery(int id, String domain, int type) {
+        ByteArrayOutputStream query = new ByteArrayOutputStream(HEADER_SIZE + domain.length() + 6);
+        writeShort(query, id);
+        writeShort(query, FLAG_RECURSION_DESIRED);
+        //one question, no answer, authority or additional records
+        writeShort(query, 1);
+        writeShort(query, 0);
+        writeShort(query, 0);
+        writeShort(query, 0);
+        encodeName(query, domain);
+        writeShort(query, type);
+        writeShort(query, CLASS_IN);
+        return query.toByteArray();
+    }
+
+    static void encodeName(ByteArrayOutputStream out, String name) {
+        for (String label : name.split("\\.")) {
+            if (label.isEmpty()) {
+                continue;
+            }
+            byte[] bytes = label.getBytes(StandardCharsets.US_ASCII);
+            if (bytes.length > 63) {
+                throw new IllegalArgumentException("Invalid domain name: " + name);
+            }
+            out.write(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+        out.write(0);
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    static Response decodeResponse(ByteBuffer response) throws IOException {
+        try {
+            int flags = response.getShort(2) & 0xffff;
+            if ((flags & FLAG_RESPONSE) == 0) {
+                throw new IOException("Not a DNS response");
+            }
+            int questions = response.getShort(4) & 0xffff;
+            int answers = response.getShort(6) & 0xffff;
+            response.position(HEADER_SIZE);
+            for (int i = 0; i < questions; i++) {
+                readName(response);
+                //type and class
+                response.position(response.position() + 4);
+            }
+            List<MxRecord> mxRecords = new ArrayList<>(answers);
+            for (int i = 0; i < answers && response.hasRemaining(); i++) {
+                readName(response);
+                int type = response.getShort() & 0xffff;
+                response.getShort();
+                long ttl = response.getInt() & 0xffffffffL;
+                int length = response.getShort() & 0xffff;
+                int next = response.position() + length;
+                if (type == TYPE_MX) {
+                    int preference = response.getShort() & 0xffff;
+                    mxRecords.add(new MxRecord(preference, readName(response), ttl));
+                }
+                response.position(next);
+            }
+            return new Response(flags & 0xf, Collections.unmodifiableList(mxRecords));
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException("Malformed DNS response", e);
+        }
+    }
+
+    /**
+     * Reads a possibly compressed name, leaving the buffer after it.
+     */
+    private static String readName(ByteBuffer buffer) {
+        StringBuilder name = new StringBuilder();
+        int position = buffer.position();
+        int end = -1;
+        for (int pointers = 0; ; ) {
+            int length = buffer.get(position) & 0xff;
+            if ((length & 0xc0) == 0xc0) {
+                if (++pointers > MAX_NAME_POINTERS) {
+                    throw new IllegalArgumentException("Too many compression pointers");
+                }
+                if (end < 0) {
+                    end = position + 2;
+                }
+                position = ((length & 0x3f) << 8) | (buffer.get(position + 1) & 0xff);
+                continue;
+            }
+            if (length == 0) {
+                buffer.position(end < 0 ? position + 1 : end);
+                return name.toString().toLowerCase(Locale.ROOT);
+            }
+            if (name.length() > 0) {
+                name.append('.');
+            }
+            for (int i = 1; i <= length; i++) {
+                name.append((char) (buffer.get(position + i) & 0xff));
+            }
+            position += length + 1;
+        }
+    }
+
+    @Value
+    public static class Response {
+
+        /**
+         * The response code, {@link #RCODE_NAME_ERROR} when the domain does not exist.
+         */
+        int rcode;
+
+        List<MxRecord> mxRecords;
+    }
+
+    @Value
+    public static class MxRecord {
+
+        int preference;
+
+        /**
+         * The host name of the mail server, empty for a null MX (RFC 7505).
+         */
+        String exchange;
+
+        long ttlSeconds;
+    }
+}
@@ -0,0 +1,143 @@
+package com.personal.project.emailsender.mail.dns;
+
+import com.personal.project.emailsender.mail.dns.DnsClient.MxRecord;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Resolves the mail servers of the recipient domains, caching the answers for their TTL.
+ * <p>
+ * The hosts are returned by preference, the ones with the same preference in random order to spread the load. A
+ * domain without MX records is its own mail server (RFC 5321, section 5.1), while a domain that does not exist or has a
+ * null MX (RFC 7505) has none: these negative answers are cached for {@code negativeTtl}. The TTLs are bounded by
+ * {@code maxTtl}, and the cache holds up to {@code maxEntries} domains, the least recently used are dropped first.
+ * Failed lookups are not cached.
+ */
+@Slf4j
+public class MxResolver {
+
+    private final DnsClient dnsClient;
+
+    private final Duration negativeTtl;
+
+    private final Duration maxTtl;
+
+    private final int maxEntries;
+
+    private final MeterRegistry meterRegistry;
+
+    private final Map<String, CachedAnswer> cache;
+
+    public MxResolver(DnsClient dnsClient, Duration negativeTtl, Duration maxTtl, int maxEntries,
+        MeterRegistry meterRegistry) {
+
+        this.dnsClient = dnsClient;
+        this.negativeTtl = negativeTtl;
+        this.maxTtl = maxTtl;
+        this.maxEntries = maxEntries;
+        this.meterRegistry = meterRegistry;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedAnswer> eldest) {
+                return size() > MxResolver.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return the mail servers of the domain by preference, empty if the domain does not accept mail
+     * @throws IOException if the domain cannot be resolved at the moment
+     */
+    public List<String> resolve(String domain) throws IOException {
+        String normalizedDomain = domain.toLowerCase(Locale.ROOT);
+        long now = System.nanoTime();
+        CachedAnswer cachedAnswer;
+        synchronized (cache) {
+            cachedAnswer = cache.get(normalizedDomain);
+        }
+        if (cachedAnswer != null && cachedAnswer.getExpiresAt() - now > 0) {
+            count("hit");
+            return shuffleSamePreference(cachedAnswer.getRecords());
+        }
+
+        DnsClient.Response response;
+        try {
+            response = dnsClient.queryMx(normalizedDomain);
+        } catch (IOException e) {
+            count("failure");
+            throw e;
+        }
+        List<MxRecord> records;
+        Duration ttl;
+        if (response.getRcode() == DnsClient.RCODE_NAME_ERROR) {
+            records = List.of();
+            ttl = negativeTtl;
+        } else if (response.getRcode() != DnsClient.RCODE_NO_ERROR) {
+            count("failure");
+            throw new IOException("MX lookup of " + normalizedDomain + " failed with response code "
+                + response.getRcode());
+        } else if (response.getMxRecords().isEmpty()) {
+            //implicit MX
+            records = List.of(new MxRecord(0, normalizedDomain, negativeTtl.getSeconds()));
+            ttl = negativeTtl;
+        } else if (isNullMx(response.getMxRecords())) {
+            records = List.of();
+            ttl = negativeTtl;
+        } else {
+            records = new ArrayList<>(response.getMxRecords());
+            records.sort(Comparator.comparingInt(MxRecord::getPreference));
+            ttl = Duration.ofSeconds(records.stream().mapToLong(MxRecord::getTtlSeconds).min().getAsLong());
+        }
+        if (ttl.compareTo(maxTtl) > 0) {
+            ttl = maxTtl;
+        }
+        count(records.isEmpty() ? "negative" : "miss");
+        log.debug("Resolved the mail servers of {}: {}", normalizedDomain, records);
+        synchronized (cache) {
+            cache.put(normalizedDomain, new CachedAnswer(Collections.unmodifiableList(records), now + ttl.toNanos()));
+        }
+        return shuffleSamePreference(records);
+    }
+
+    private static boolean isNullMx(List<MxRecord> records) {
+        return records.size() == 1 && records.get(0).getExchange().isEmpty();
+    }
+
+    private static List<String> shuffleSamePreference(List<MxRecord> records) {
+        List<String> hosts = new ArrayList<>(records.size());
+        int groupStart = 0;
+        for (int i = 1; i <= records.size(); i++) {
+            if (i == records.size() || records.get(i).getPreference() != records.get(groupStart).getPreference()) {
+                List<String> group = new ArrayList<>(i - groupStart);
+                records.subList(groupStart, i).forEach(record -> group.add(record.getExchange()));
+                Collections.shuffle(group, ThreadLocalRandom.current());
+                hosts.addAll(group);
+                groupStart = i;
+            }
+        }
+        return hosts;
+    }
+
+    private void count(String result) {
+        meterRegistry.counter("email.sender.mx.lookups", "result", result).increment();
+    }
+
+    @Value
+    private static class CachedAnswer {
+
+        List<MxRecord> records;
+
+        long expiresAt;
+    }
+}
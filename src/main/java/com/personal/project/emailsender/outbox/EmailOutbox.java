@@ -0,0 +1,272 @@
+package com.personal.project.emailsender.outbox;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.personal.project.emailsender.outbox.SegmentLog.Record;
+import com.personal.project.emailsender.queue.DeadLetter;
+import com.personal.project.emailsender.queue.QueuedEvent;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.errors.InvalidTopicException;
+import org.apache.kafka.common.errors.RecordBatchTooLargeException;
+import org.apache.kafka.common.errors.RecordTooLargeException;
+import org.apache.kafka.common.errors.SerializationException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.support.SendResult;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+import org.springframework.util.concurrent.CompletableToListenableFutureAdapter;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+/**
+ * Local outbox of the email events: the events are appended to a {@link SegmentLog} instead of being sent to kafka by
+ * the request threads, and a relay thread sends them to kafka in batches, in the order they were appended.
+ * <p>
+ * An event is accepted once it is in the page cache, which takes microseconds and survives a crash of the process;
+ * the returned future completes once the group fsync has written it to the disk. The relay commits the events
+ * acknowledged by kafka and goes back to the first failed one after {@code email-sender.outbox.relay.backoff.ms}, so
+ * the events are delivered at least once: the idempotency keys of the emails keep them from being sent twice. The
+ * events following a failed one in the same batch may already be in kafka when it is sent again, so after a failure
+ * they can be duplicated and out of order.
+ * <p>
+ * The events kafka can never accept, such as the ones too large or that cannot be serialized, would block all the
+ * following ones: they are moved to a dead letter log in the {@code dead-letters} directory of the outbox, with the
+ * failure reason, instead of being sent again.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "email-sender.outbox.enabled", havingValue = "true")
+public class EmailOutbox implements Closeable {
+
+    private static final long IDLE_WAIT_MS = 1000;
+
+    static final String DEAD_LETTER_DIRECTORY = "dead-letters";
+
+    private static final List<Class<? extends Exception>> PERMANENT_FAILURES = List.of(RecordTooLargeException.class,
+        RecordBatchTooLargeException.class, SerializationException.class, InvalidTopicException.class);
+
+    private final SegmentLog segmentLog;
+
+    private final SegmentLog deadLetterLog;
+
+    private final int relayBatchSize;
+
+    private final long relayBackoffMs;
+
+    private final ObjectMapper objectMapper;
+
+    private final KafkaTemplate<String, Object> kafkaTemplate;
+
+    private final Timer appendTimer;
+
+    private final Counter relayedEvents;
+
+    private final Counter deadLetteredEvents;
+
+    private final Thread relayThread;
+
+    private volatile boolean running = true;
+
+    public EmailOutbox(@Value("${email-sender.outbox.directory}") String directory,
+        @Value("${email-sender.outbox.segment-size.bytes}") int segmentSize,
+        @Value("${email-sender.outbox.max-size.bytes}") long maxSize,
+        @Value("${email-sender.outbox.fsync.interval.ms}") long fsyncIntervalMs,
+        @Value("${email-sender.outbox.relay.batch-size}") int relayBatchSize,
+        @Value("${email-sender.outbox.relay.backoff.ms}") long relayBackoffMs,
+        @Value("${email-sender.outbox.dead-letters.max-size.bytes}") long deadLettersMaxSize,
+        ObjectMapper objectMapper, KafkaTemplate<String, Object> kafkaTemplate, MeterRegistry meterRegistry)
+        throws IOException {
+
+        Timer fsyncTimer = Timer.builder("email.sender.outbox.fsync")
+            .description("Time spent forcing the events of the outbox to the disk")
+            .register(meterRegistry);
+        Path outboxDirectory = Paths.get(directory);
+        this.segmentLog = new SegmentLog(outboxDirectory, segmentSize, maxSegments(maxSize, segmentSize),
+            Duration.ofMillis(fsyncIntervalMs), fsyncTimer);
+        this.deadLetterLog = new SegmentLog(outboxDirectory.resolve(DEAD_LETTER_DIRECTORY), segmentSize,
+            maxSegments(deadLettersMaxSize, segmentSize), Duration.ofMillis(fsyncIntervalMs), fsyncTimer);
+        this.relayBatchSize = relayBatchSize;
+        this.relayBackoffMs = relayBackoffMs;
+        this.objectMapper = objectMapper;
+        this.kafkaTemplate = kafkaTemplate;
+        this.appendTimer = Timer.builder("email.sender.outbox.append")
+            .description("Time spent appending an event to the outbox")
+            .register(meterRegistry);
+        this.relayedEvents = Counter.builder("email.sender.outbox.relayed")
+            .description("Events of the outbox acknowledged by kafka")
+            .register(meterRegistry);
+        this.deadLetteredEvents = Counter.builder("email.sender.outbox.dead-lettered")
+            .description("Events of the outbox that kafka cannot accept, moved to the dead letter log")
+            .register(meterRegistry);
+        Gauge.builder("email.sender.outbox.pending", segmentLog,
+            pendingLog -> pendingLog.getEndOffset() - pendingLog.getCommittedOffset())
+            .description("Bytes of events in the outbox not yet acknowledged by kafka")
+            .baseUnit("bytes")
+            .register(meterRegistry);
+        this.relayThread = new Thread(this::relay, "email-outbox-relay");
+        relayThread.setDaemon(true);
+    }
+
+    @PostConstruct
+    public void start() {
+        relayThread.start();
+    }
+
+    /**
+     * Appends the event to the outbox.
+     *
+     * @return a future completed once the event is on the disk, without the kafka record metadata
+     */
+    public ListenableFuture<SendResult<String, Object>> append(String topic, @Nullable String key, Object event) {
+        long appendStart = System.nanoTime();
+        long offset;
+        try {
+            offset = segmentLog.append(new QueuedEvent(topic, key, System.currentTimeMillis(), event)
+                .toBytes(objectMapper));
+        } catch (IOException e) {
+            log.error("Cannot append the event to the outbox: {}", event, e);
+            SettableListenableFuture<SendResult<String, Object>> failed = new SettableListenableFuture<>();
+            failed.setException(e);
+            return failed;
+        } finally {
+            appendTimer.record(System.nanoTime() - appendStart, TimeUnit.NANOSECONDS);
+        }
+        SendResult<String, Object> result = new SendResult<>(new ProducerRecord<>(topic, key, event), null);
+        return new CompletableToListenableFutureAdapter<>(segmentLog.awaitDurable(offset).thenApply(v -> result));
+    }
+
+    @PreDestroy
+    @Override
+    public void close() throws IOException {
+        running = false;
+        relayThread.interrupt();
+        try {
+            relayThread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        segmentLog.close();
+        deadLetterLog.close();
+    }
+
+    private static int maxSegments(long maxSize, int segmentSize) {
+        return (int) Math.max(1, (maxSize + segmentSize - 1) / segmentSize);
+    }
+
+    private void relay() {
+        while (running) {
+            try {
+                long committedOffset = segmentLog.getCommittedOffset();
+                List<Record> records = segmentLog.read(committedOffset, relayBatchSize);
+                if (records.isEmpty()) {
+                    segmentLog.awaitRecords(committedOffset, IDLE_WAIT_MS);
+                    continue;
+                }
+                long relayedOffset = relayBatch(records, committedOffset);
+                segmentLog.commit(relayedOffset);
+                if (relayedOffset < records.get(records.size() - 1).getNextOffset()) {
+                    Thread.sleep(relayBackoffMs);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sends the records to kafka, waiting for all the acknowledgements at once so that the producer batches them.
+     *
+     * @return the offset of the first record that has not been acknowledged
+     */
+    private long relayBatch(List<Record> records, long committedOffset) throws InterruptedException {
+        List<QueuedEvent> events = new ArrayList<>(records.size());
+        List<Future<?>> sends = new ArrayList<>(records.size());
+        for (Record record : records) {
+            QueuedEvent event = null;
+            try {
+                event = QueuedEvent.fromBytes(record.getData(), objectMapper);
+                events.add(event);
+                sends.add(kafkaTemplate.send(event.getTopic(), event.getKey(), event.getEvent()));
+            } catch (IOException e) {
+                log.error("Skipping the event of the outbox that cannot be decoded", e);
+                events.add(null);
+                sends.add(null);
+            } catch (RuntimeException e) {
+                if (event == null || !isPermanentFailure(e) || !deadLetter(record, event, e)) {
+                    log.warn("Cannot relay the events of the outbox to kafka", e);
+                    break;
+                }
+                sends.add(null);
+            }
+        }
+
+        long relayedOffset = committedOffset;
+        for (int i = 0; i < sends.size(); i++) {
+            if (sends.get(i) != null) {
+                try {
+                    sends.get(i).get();
+                    relayedEvents.increment();
+                } catch (ExecutionException e) {
+                    if (!isPermanentFailure(e.getCause()) || !deadLetter(records.get(i), events.get(i), e.getCause())) {
+                        log.warn("Cannot relay the events of the outbox to kafka", e.getCause());
+                        break;
+                    }
+                }
+            }
+            relayedOffset = records.get(i).getNextOffset();
+        }
+        return relayedOffset;
+    }
+
+    private static boolean isPermanentFailure(Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            for (Class<? extends Exception> permanentFailure : PERMANENT_FAILURES) {
+                if (permanentFailure.isInstance(cause)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return whether the event is in the dead letter log, otherwise it is sent again like after a transient failure
+     */
+    private boolean deadLetter(Record record, QueuedEvent event, Throwable failure) throws InterruptedException {
+        try {
+            long offset = deadLetterLog.append(new DeadLetter(event.getTopic(), failure.toString(),
+                System.currentTimeMillis(), record.getData()).toBytes());
+            //the event is removed from the outbox once the dead letter is on the disk
+            deadLetterLog.awaitDurable(offset).get();
+        } catch (IOException e) {
+            log.error("Cannot move the event of the outbox to the dead letter log", e);
+            return false;
+        } catch (ExecutionException e) {
+            log.error("Cannot move the event of the outbox to the dead letter log", e.getCause());
+            return false;
+        }
+        log.error("Moved the event of the outbox that kafka cannot accept to the dead letter log: {}",
+            event.getEvent(), failure);
+        deadLetteredEvents.increment();
+        return true;
+    }
+}
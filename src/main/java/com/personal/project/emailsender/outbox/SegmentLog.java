@@ -0,0 +1,434 @@
+package com.personal.project.emailsender.outbox;
+
+import io.micrometer.core.instrument.Timer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.lang.Nullable;
+
+/**
+ * Append-only log of records in memory-mapped segment files of {@code segmentSize} bytes, read from the committed
+ * offset by a single consumer.
+ * <p>
+ * The offsets are byte positions in the log, the segments being named after the offset of their first byte. Each
+ * record is its length, the CRC32 of its data and its data; the length is written last so that a record is never seen
+ * half written. An append is a copy into the page cache, which survives a crash of the process: the appended records
+ * are forced to the disk every {@code fsyncInterval} at once for all of them, and {@link #awaitDurable(long)} completes
+ * after the fsync covering the record. A record torn by a crash of the machine fails its CRC check when the log is
+ * opened again: it is dropped along with the records after it.
+ * <p>
+ * The committed offset is kept in a checkpoint file, without fsync: after a crash of the machine the last records may
+ * be read again. The segments before the committed offset are deleted, and an append fails with
+ * {@link LogFullException} when it would need more than {@code maxSegments} segments.
+ */
+@Slf4j
+public class SegmentLog implements Closeable {
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final String CHECKPOINT_FILE = "checkpoint";
+
+    private static final int CHECKPOINT_MAGIC = 0x534c4331;
+
+    private static final int RECORD_HEADER_SIZE = 2 * Integer.BYTES;
+
+    private final Path directory;
+
+    private final int segmentSize;
+
+    private final int maxSegments;
+
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+
+    private final FileChannel checkpointChannel;
+
+    private final MappedByteBuffer checkpoint;
+
+    private final Deque<PendingSync> pendingSyncs = new ArrayDeque<>();
+
+    @Nullable
+    private final ScheduledExecutorService syncExecutor;
+
+    private final Timer fsyncTimer;
+
+    private Segment activeSegment;
+
+    private int writePosition;
+
+    private volatile long endOffset;
+
+    private volatile long committedOffset;
+
+    private volatile long syncedOffset;
+
+    public SegmentLog(Path directory, int segmentSize, int maxSegments, Duration fsyncInterval, Timer fsyncTimer)
+        throws IOException {
+
+        if (segmentSize <= RECORD_HEADER_SIZE || maxSegments < 1) {
+            throw new IllegalArgumentException("Invalid segment log size: " + maxSegments + " x " + segmentSize);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        this.fsyncTimer = fsyncTimer;
+        Files.createDirectories(directory);
+
+        this.checkpointChannel = FileChannel.open(directory.resolve(CHECKPOINT_FILE), StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.checkpoint = checkpointChannel.map(MapMode.READ_WRITE, 0, Integer.BYTES + Long.BYTES);
+        long checkpointOffset = checkpoint.getInt(0) == CHECKPOINT_MAGIC ? checkpoint.getLong(Integer.BYTES) : 0;
+        checkpoint.putInt(0, CHECKPOINT_MAGIC);
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                long baseOffset = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                segments.put(baseOffset, new Segment(baseOffset, file, (int) Files.size(file)));
+            }
+        }
+        if (segments.isEmpty()) {
+            activeSegment = createSegment(checkpointOffset);
+            writePosition = 0;
+        } else {
+            activeSegment = segments.lastEntry().getValue();
+            writePosition = recover(activeSegment);
+        }
+        this.endOffset = activeSegment.getBaseOffset() + writePosition;
+        this.syncedOffset = endOffset;
+        this.committedOffset = Math.min(Math.max(checkpointOffset, segments.firstKey()), endOffset);
+        log.info("Opened the segment log {} with {} bytes to read", directory, endOffset - committedOffset);
+
+        if (fsyncInterval.isZero()) {
+            this.syncExecutor = null;
+        } else {
+            this.syncExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "segment-log-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            syncExecutor.scheduleWithFixedDelay(this::sync, fsyncInterval.toNanos(), fsyncInterval.toNanos(),
+                TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * @return the offset following the record
+     * @throws LogFullException if the log has no room left for the record
+     */
+    public synchronized long append(byte[] data) throws LogFullException {
+        int recordSize = RECORD_HEADER_SIZE + data.length;
+        if (data.length == 0 || recordSize > segmentSize) {
+            throw new IllegalArgumentException("Invalid record size: " + data.length);
+        }
+        if (writePosition + recordSize > activeSegment.getSize()) {
+            if (segments.size() >= maxSegments) {
+                throw new LogFullException("The segment log " + directory + " is full");
+            }
+            try {
+                activeSegment = createSegment(activeSegment.getBaseOffset() + activeSegment.getSize());
+            } catch (IOException e) {
+                throw new LogFullException("Cannot create a segment in " + directory + ": " + e.getMessage());
+            }
+            writePosition = 0;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        ByteBuffer buffer = activeSegment.getBuffer().duplicate();
+        buffer.position(writePosition + Integer.BYTES);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(data);
+        buffer.putInt(writePosition, data.length);
+        writePosition += recordSize;
+        endOffset = activeSegment.getBaseOffset() + writePosition;
+        notifyAll();
+        return endOffset;
+    }
+
+    /**
+     * @return a future completed once the records up to the offset are on the disk, at once without fsync, or
+     *     completed exceptionally if the fsync covering them failed
+     */
+    public CompletableFuture<Void> awaitDurable(long offset) {
+        synchronized (pendingSyncs) {
+            if (syncExecutor == null || offset <= syncedOffset) {
+                return CompletableFuture.completedFuture(null);
+            }
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            pendingSyncs.add(new PendingSync(offset, future));
+            return future;
+        }
+    }
+
+    /**
+     * @return up to {@code maxRecords} records from the offset
+     */
+    public List<Record> read(long offset, int maxRecords) {
+        List<Record> records = new ArrayList<>();
+        long end = endOffset;
+        while (offset < end && records.size() < maxRecords) {
+            Segment segment;
+            synchronized (this) {
+                Map.Entry<Long, Segment> entry = segments.floorEntry(offset);
+                if (entry == null) {
+                    throw new IllegalArgumentException("Offset " + offset + " is before the log");
+                }
+                segment = entry.getValue();
+            }
+            int position = (int) (offset - segment.getBaseOffset());
+            ByteBuffer buffer = segment.getBuffer();
+            int length = position + RECORD_HEADER_SIZE <= segment.getSize() ? buffer.getInt(position) : 0;
+            if (length != 0 && !isValid(segment, position, length)) {
+                log.error("Skipping the corrupted records of the segment {} from position {}", segment.getPath(),
+                    position);
+                length = 0;
+            }
+            if (length == 0) {
+                //the rest of the segment is empty, the records go on in the next one
+                offset = segment.getBaseOffset() + segment.getSize();
+                continue;
+            }
+            byte[] data = new byte[length];
+            ByteBuffer view = buffer.duplicate();
+            view.position(position + RECORD_HEADER_SIZE);
+            view.get(data);
+            offset += RECORD_HEADER_SIZE + length;
+            records.add(new Record(offset, data));
+        }
+        return records;
+    }
+
+    /**
+     * Blocks until records are appended after the offset or the timeout elapses.
+     */
+    public synchronized void awaitRecords(long offset, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        long remainingMs = timeoutMs;
+        while (endOffset <= offset && remainingMs > 0) {
+            wait(remainingMs);
+            remainingMs = deadline - System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Records that the records before the offset have been consumed, deleting the segments consumed entirely.
+     */
+    public synchronized void commit(long offset) {
+        committedOffset = offset;
+        checkpoint.putLong(Integer.BYTES, offset);
+        while (segments.size() > 1) {
+            Segment segment = segments.firstEntry().getValue();
+            if (segment.getBaseOffset() + segment.getSize() > offset) {
+                break;
+            }
+            segments.remove(segment.getBaseOffset());
+            try {
+                segment.getChannel().close();
+                Files.delete(segment.getPath());
+            } catch (IOException e) {
+                log.warn("Cannot delete the consumed segment {}", segment.getPath(), e);
+            }
+        }
+    }
+
+    public long getCommittedOffset() {
+        return committedOffset;
+    }
+
+    public long getEndOffset() {
+        return endOffset;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (syncExecutor != null) {
+            syncExecutor.shutdown();
+            try {
+                syncExecutor.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        sync();
+        synchronized (this) {
+            checkpoint.force();
+            checkpointChannel.close();
+            for (Segment segment : segments.values()) {
+                segment.getChannel().close();
+            }
+        }
+    }
+
+    /**
+     * Forces the records appended since the last sync to the disk, once for all of them.
+     */
+    void sync() {
+        long offset;
+        List<Segment> unsyncedSegments;
+        synchronized (this) {
+            offset = endOffset;
+            Long firstUnsynced = segments.floorKey(syncedOffset);
+            unsyncedSegments = new ArrayList<>(segments.tailMap(firstUnsynced != null ? firstUnsynced
+                : segments.firstKey()).values());
+        }
+        RuntimeException failure = null;
+        if (offset > syncedOffset) {
+            long syncStart = System.nanoTime();
+            for (Segment segment : unsyncedSegments) {
+                try {
+                    segment.getBuffer().force();
+                } catch (RuntimeException e) {
+                    if (isDeleted(segment)) {
+                        //the segment has just been consumed and deleted, its records no longer matter
+                        log.debug("Cannot force the deleted segment {}", segment.getPath(), e);
+                    } else {
+                        failure = e;
+                        break;
+                    }
+                }
+            }
+            fsyncTimer.record(System.nanoTime() - syncStart, TimeUnit.NANOSECONDS);
+        }
+
+        List<CompletableFuture<Void>> syncedFutures = new ArrayList<>();
+        synchronized (pendingSyncs) {
+            if (failure == null) {
+                syncedOffset = offset;
+            }
+            while (!pendingSyncs.isEmpty() && pendingSyncs.peek().getOffset() <= offset) {
+                syncedFutures.add(pendingSyncs.poll().getFuture());
+            }
+        }
+        if (failure == null) {
+            syncedFutures.forEach(future -> future.complete(null));
+        } else {
+            log.error("Cannot force the records of {} to the disk", directory, failure);
+            for (CompletableFuture<Void> future : syncedFutures) {
+                future.completeExceptionally(failure);
+            }
+        }
+    }
+
+    private synchronized boolean isDeleted(Segment segment) {
+        return segments.get(segment.getBaseOffset()) != segment;
+    }
+
+    /**
+     * @return the position after the last valid record of the segment, wiping out the records after it
+     */
+    private int recover(Segment segment) {
+        ByteBuffer buffer = segment.getBuffer();
+        int position = 0;
+        while (position + RECORD_HEADER_SIZE <= segment.getSize()) {
+            int length = buffer.getInt(position);
+            if (length == 0) {
+                return position;
+            }
+            if (!isValid(segment, position, length)) {
+                break;
+            }
+            position += RECORD_HEADER_SIZE + length;
+        }
+        if (position + RECORD_HEADER_SIZE > segment.getSize()) {
+            return position;
+        }
+        log.warn("Dropping the torn records of the segment {} from position {}", segment.getPath(), position);
+        for (int i = position; i < segment.getSize(); i++) {
+            buffer.put(i, (byte) 0);
+        }
+        return position;
+    }
+
+    private static boolean isValid(Segment segment, int position, int length) {
+        if (length < 0 || position + RECORD_HEADER_SIZE + length > segment.getSize()) {
+            return false;
+        }
+        ByteBuffer buffer = segment.getBuffer();
+        ByteBuffer data = buffer.duplicate();
+        data.position(position + RECORD_HEADER_SIZE);
+        data.limit(position + RECORD_HEADER_SIZE + length);
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return (int) crc.getValue() == buffer.getInt(position + Integer.BYTES);
+    }
+
+    private Segment createSegment(long baseOffset) throws IOException {
+        Path file = directory.resolve(String.format("%020d%s", baseOffset, SEGMENT_SUFFIX));
+        Segment segment = new Segment(baseOffset, file, segmentSize);
+        segments.put(baseOffset, segment);
+        return segment;
+    }
+
+    /**
+     * The data of a record along with the offset of the next record.
+     */
+    @Value
+    public static class Record {
+
+        long nextOffset;
+
+        byte[] data;
+    }
+
+    @Value
+    private static class PendingSync {
+
+        long offset;
+
+        CompletableFuture<Void> future;
+    }
+
+    @Value
+    private static class Segment {
+
+        long baseOffset;
+
+        Path path;
+
+        int size;
+
+        FileChannel channel;
+
+        MappedByteBuffer buffer;
+
+        Segment(long baseOffset, Path path, int size) throws IOException {
+            this.baseOffset = baseOffset;
+            this.path = path;
+            this.size = size;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+            this.buffer = channel.map(MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /**
+     * The log has no room left for the record until the records before it are consumed.
+     */
+    public static class LogFullException extends IOException {
+
+        public LogFullException(String message) {
+            super(message);
+        }
+    }
+}
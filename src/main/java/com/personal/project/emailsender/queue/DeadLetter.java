@@ -0,0 +1,48 @@
+package com.personal.project.emailsender.queue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import lombok.Value;
+
+/**
+ * Record of the dead letter logs of the {@link EmbeddedEmailQueue} and of the outbox: the event that could not be
+ * processed, as it was queued, with the topic it failed on and the failure reason, like the {@code kafka_dlt-*} headers
+ * of the dead letter topic.
+ */
+@Value
+public class DeadLetter {
+
+    private static final int MAX_REASON_LENGTH = 1024;
+
+    String topic;
+
+    String reason;
+
+    long timestamp;
+
+    /**
+     * The {@link QueuedEvent} bytes, kept as they are since they may not be decodable.
+     */
+    byte[] event;
+
+    public byte[] toBytes() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(event.length + 256);
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeUTF(topic);
+        output.writeUTF(reason.length() > MAX_REASON_LENGTH ? reason.substring(0, MAX_REASON_LENGTH) : reason);
+        output.writeLong(timestamp);
+        output.write(event);
+        return bytes.toByteArray();
+    }
+
+    public static DeadLetter fromBytes(byte[] data) throws IOException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(data));
+        String topic = input.readUTF();
+        String reason = input.readUTF();
+        long timestamp = input.readLong();
+        return new DeadLetter(topic, reason, timestamp, input.readAllBytes());
+    }
+}
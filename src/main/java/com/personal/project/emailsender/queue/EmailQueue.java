@@ -0,0 +1,32 @@
+package com.personal.project.emailsender.queue;
+
+import org.springframework.lang.Nullable;
+import org.springframework.util.concurrent.ListenableFuture;
+
+/**
+ * Queue between the {@link com.personal.project.emailsender.kafka.producer.EmailProducer} and the consumers sending
+ * the emails, chosen with {@code email-sender.queue.type}.
+ */
+public interface EmailQueue {
+
+    /**
+     * Queues the event without waiting for it to be stored.
+     *
+     * @param topic the topic of the event, which decides how it is consumed
+     * @param key the key of the event, the events with the same key are consumed in order
+     * @return a future completed once the event has been stored by the queue
+     */
+    ListenableFuture<Void> enqueue(String topic, @Nullable String key, Object event);
+
+    enum Type {
+        /**
+         * The events go through the kafka topics, see
+         * {@link com.personal.project.emailsender.kafka.producer.KafkaEmailQueue}.
+         */
+        KAFKA,
+        /**
+         * The events are kept on the local disk and consumed in the same process, see {@link EmbeddedEmailQueue}.
+         */
+        EMBEDDED
+    }
+}
@@ -0,0 +1,410 @@
+package com.personal.project.emailsender.queue;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.personal.project.emailsender.dto.EmailDTO;
+import com.personal.project.emailsender.dto.TemplateEmailDTO;
+import com.personal.project.emailsender.kafka.retry.RetryTopics;
+import com.personal.project.emailsender.outbox.SegmentLog;
+import com.personal.project.emailsender.outbox.SegmentLog.LogFullException;
+import com.personal.project.emailsender.outbox.SegmentLog.Record;
+import com.personal.project.emailsender.service.EmailSenderService;
+import com.personal.project.emailsender.service.TemplateEmailRenderer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.validation.ConstraintViolation;
+import javax.validation.Validator;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+import org.springframework.util.concurrent.CompletableToListenableFutureAdapter;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+/**
+ * Queue of the email events kept on the local disk, for the single node deployments without kafka. Every topic is a
+ * {@link SegmentLog} in its own directory, consumed by its own thread with the same send pipeline as the kafka
+ * listeners: in batches of {@code email-sender.queue.embedded.batch-size} events, sent together in batch mode
+ * ({@code email-sender.kafka.listener.batch.enabled}), and acknowledged by committing the offset of the batch once
+ * it has been processed.
+ * <p>
+ * The failed emails go through the retry tiers of {@link RetryTopics}, each consumed once the delay of its events has
+ * elapsed, and then to the dead letter log with the failure reason (see {@link DeadLetter}), which is only read by
+ * {@link #replayDeadLetters(int)}. After a crash the
+ * events following the committed offsets are consumed again, the idempotency keys keep them from being sent twice.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "email-sender.queue.type", havingValue = "EMBEDDED")
+public class EmbeddedEmailQueue implements EmailQueue, Closeable {
+
+    private static final long IDLE_WAIT_MS = 1000;
+
+    private final Map<String, SegmentLog> logs = new LinkedHashMap<>();
+
+    private final List<Thread> consumerThreads = new ArrayList<>();
+
+    private final String templateEmailTopic;
+
+    private final int batchSize;
+
+    private final long backoffMs;
+
+    private final boolean batchEnabled;
+
+    private final RetryTopics retryTopics;
+
+    private final EmailSenderService emailSenderService;
+
+    private final TemplateEmailRenderer templateEmailRenderer;
+
+    private final Validator validator;
+
+    private final ObjectMapper objectMapper;
+
+    private final Timer enqueueTimer;
+
+    private volatile boolean running = true;
+
+    public EmbeddedEmailQueue(@Value("${email-sender.queue.embedded.directory}") String directory,
+        @Value("${email-sender.queue.embedded.segment-size.bytes}") int segmentSize,
+        @Value("${email-sender.queue.embedded.max-size.bytes}") long maxSize,
+        @Value("${email-sender.queue.embedded.fsync.interval.ms}") long fsyncIntervalMs,
+        @Value("${email-sender.queue.embedded.batch-size}") int batchSize,
+        @Value("${email-sender.queue.embedded.backoff.ms}") long backoffMs,
+        @Value("${email-sender.kafka.topic.high-priority-emails}") String highPriorityEmailTopic,
+        @Value("${email-sender.kafka.topic.emails}") String emailTopic,
+        @Value("${email-sender.kafka.topic.bulk-emails}") String bulkEmailTopic,
+        @Value("${email-sender.kafka.topic.template-emails}") String templateEmailTopic,
+        @Value("${email-sender.kafka.listener.batch.enabled}") boolean batchEnabled,
+        RetryTopics retryTopics, EmailSenderService emailSenderService, TemplateEmailRenderer templateEmailRenderer,
+        Validator validator, ObjectMapper objectMapper, MeterRegistry meterRegistry) throws IOException {
+
+        this.templateEmailTopic = templateEmailTopic;
+        this.batchSize = batchSize;
+        this.backoffMs = backoffMs;
+        this.batchEnabled = batchEnabled;
+        this.retryTopics = retryTopics;
+        this.emailSenderService = emailSenderService;
+        this.templateEmailRenderer = templateEmailRenderer;
+        this.validator = validator;
+        this.objectMapper = objectMapper;
+        this.enqueueTimer = Timer.builder("email.sender.queue.enqueue")
+            .description("Time spent appending an event to the embedded queue")
+            .register(meterRegistry);
+        Timer fsyncTimer = Timer.builder("email.sender.queue.fsync")
+            .description("Time spent forcing the events of the embedded queue to the disk")
+            .register(meterRegistry);
+
+        List<String> topics = new ArrayList<>(List.of(highPriorityEmailTopic, emailTopic, bulkEmailTopic,
+            templateEmailTopic));
+        topics.addAll(retryTopics.getRetryTopics());
+        topics.add(retryTopics.getDeadLetterTopic());
+        int maxSegments = (int) Math.max(1, (maxSize + segmentSize - 1) / segmentSize);
+        Path baseDirectory = Paths.get(directory);
+        try {
+            for (String topic : topics) {
+                SegmentLog segmentLog = new SegmentLog(baseDirectory.resolve(topic), segmentSize, maxSegments,
+                    Duration.ofMillis(fsyncIntervalMs), fsyncTimer);
+                logs.put(topic, segmentLog);
+                Gauge.builder("email.sender.queue.pending", segmentLog,
+                    pendingLog -> pendingLog.getEndOffset() - pendingLog.getCommittedOffset())
+                    .description("Bytes of events in the embedded queue not yet consumed")
+                    .tag("topic", topic)
+                    .baseUnit("bytes")
+                    .register(meterRegistry);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+
+        for (String topic : topics) {
+            if (!topic.equals(retryTopics.getDeadLetterTopic())) {
+                Thread consumerThread = new Thread(() -> consume(topic), "email-queue-" + topic);
+                consumerThread.setDaemon(true);
+                consumerThreads.add(consumerThread);
+            }
+        }
+    }
+
+    @PostConstruct
+    public void start() {
+        consumerThreads.forEach(Thread::start);
+    }
+
+    /**
+     * @return a future completed once the event is on the disk
+     */
+    @Override
+    public ListenableFuture<Void> enqueue(String topic, @Nullable String key, Object event) {
+        SegmentLog segmentLog = logs.get(topic);
+        long enqueueStart = System.nanoTime();
+        long offset;
+        try {
+            if (segmentLog == null) {
+                throw new IllegalArgumentException("Unknown topic: " + topic);
+            }
+            offset = segmentLog.append(new QueuedEvent(topic, key, System.currentTimeMillis(), event)
+                .toBytes(objectMapper));
+        } catch (IOException | IllegalArgumentException e) {
+            log.error("Cannot append the event to the embedded queue: {}", event, e);
+            SettableListenableFuture<Void> failed = new SettableListenableFuture<>();
+            failed.setException(e);
+            return failed;
+        } finally {
+            enqueueTimer.record(System.nanoTime() - enqueueStart, TimeUnit.NANOSECONDS);
+        }
+        return new CompletableToListenableFutureAdapter<>(segmentLog.awaitDurable(offset));
+    }
+
+    /**
+     * Moves the dead letters back to the topics they were queued to, up to {@code maxEvents} of them: the topic of the
+     * priority of the emails, or the template email topic. Only the dead letters already there when the replay starts
+     * are replayed.
+     *
+     * @return the number of events replayed
+     */
+    public synchronized int replayDeadLetters(int maxEvents) throws IOException {
+        SegmentLog deadLetterLog = logs.get(retryTopics.getDeadLetterTopic());
+        long endOffset = deadLetterLog.getEndOffset();
+        long replayedOffset = deadLetterLog.getCommittedOffset();
+        int replayed = 0;
+        try {
+            while (replayed < maxEvents && replayedOffset < endOffset) {
+                List<Record> records = deadLetterLog.read(replayedOffset, Math.min(batchSize, maxEvents - replayed));
+                if (records.isEmpty()) {
+                    break;
+                }
+                for (Record record : records) {
+                    if (record.getNextOffset() > endOffset) {
+                        break;
+                    }
+                    QueuedEvent event = decodeDeadLetter(record);
+                    if (event != null) {
+                        append(queuedTopic(event), event);
+                        replayed++;
+                    }
+                    replayedOffset = record.getNextOffset();
+                }
+            }
+        } finally {
+            deadLetterLog.commit(replayedOffset);
+        }
+        log.info("Replayed {} email events from {}", replayed, retryTopics.getDeadLetterTopic());
+        return replayed;
+    }
+
+    @PreDestroy
+    @Override
+    public void close() throws IOException {
+        running = false;
+        consumerThreads.forEach(Thread::interrupt);
+        for (Thread consumerThread : consumerThreads) {
+            try {
+                consumerThread.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (SegmentLog segmentLog : logs.values()) {
+            segmentLog.close();
+        }
+    }
+
+    private void consume(String topic) {
+        SegmentLog segmentLog = logs.get(topic);
+        boolean retryTopic = retryTopics.getRetryTopics().contains(topic);
+        while (running) {
+            try {
+                long committedOffset = segmentLog.getCommittedOffset();
+                List<Record> records = segmentLog.read(committedOffset, batchSize);
+                if (records.isEmpty()) {
+                    segmentLog.awaitRecords(committedOffset, IDLE_WAIT_MS);
+                    continue;
+                }
+
+                //the events of a retry tier all have the same delay, the ones after an event not due are not due either
+                List<QueuedEvent> events = new ArrayList<>(records.size());
+                long remainingDelayMs = 0;
+                for (Record record : records) {
+                    QueuedEvent event = decode(record);
+                    if (retryTopic && event != null) {
+                        remainingDelayMs = event.getTimestamp() + retryTopics.getDelayMs(topic)
+                            - System.currentTimeMillis();
+                        if (remainingDelayMs > 0) {
+                            break;
+                        }
+                    }
+                    events.add(event);
+                }
+                if (!events.isEmpty()) {
+                    process(topic, records.subList(0, events.size()), events);
+                    segmentLog.commit(records.get(events.size() - 1).getNextOffset());
+                }
+                if (remainingDelayMs > 0) {
+                    Thread.sleep(remainingDelayMs);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException | RuntimeException e) {
+                log.error("Cannot process the events of {}, they will be processed again", topic, e);
+                try {
+                    Thread.sleep(backoffMs);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param events the decoded records, null for the records that cannot be decoded
+     */
+    private void process(String topic, List<Record> records, List<QueuedEvent> events) throws IOException {
+        if (topic.equals(templateEmailTopic)) {
+            for (int i = 0; i < events.size(); i++) {
+                if (isValid(topic, records.get(i), events.get(i))) {
+                    processTemplateEmail(topic, records.get(i), events.get(i));
+                }
+            }
+            return;
+        }
+
+        List<QueuedEvent> validEvents = new ArrayList<>(events.size());
+        for (int i = 0; i < events.size(); i++) {
+            if (isValid(topic, records.get(i), events.get(i))) {
+                validEvents.add(events.get(i));
+            }
+        }
+        if (batchEnabled && !retryTopics.getRetryTopics().contains(topic)) {
+            List<EmailDTO> emailDTOs = new ArrayList<>(validEvents.size());
+            for (QueuedEvent event : validEvents) {
+                emailDTOs.add((EmailDTO) event.getEvent());
+            }
+            Map<Integer, Exception> failures = emailSenderService.sendEmails(emailDTOs);
+            for (Map.Entry<Integer, Exception> failure : failures.entrySet()) {
+                retry(topic, validEvents.get(failure.getKey()), failure.getValue());
+            }
+        } else {
+            for (QueuedEvent event : validEvents) {
+                try {
+                    emailSenderService.sendEmail((EmailDTO) event.getEvent());
+                } catch (Exception e) {
+                    retry(topic, event, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * The emails of the template email event that cannot be sent go to the retry tiers on their own, the events that
+     * cannot be expanded to the dead letter log.
+     */
+    private void processTemplateEmail(String topic, Record record, QueuedEvent event) throws IOException {
+        List<EmailDTO> emailDTOs;
+        try {
+            emailDTOs = templateEmailRenderer.expand((TemplateEmailDTO) event.getEvent());
+        } catch (RuntimeException e) {
+            deadLetter(topic, record.getData(), e.toString());
+            return;
+        }
+        Map<Integer, Exception> failures = emailSenderService.sendEmails(emailDTOs);
+        for (Map.Entry<Integer, Exception> failure : failures.entrySet()) {
+            retry(topic, new QueuedEvent(topic, event.getKey(), event.getTimestamp(), emailDTOs.get(failure.getKey())),
+                failure.getValue());
+        }
+    }
+
+    /**
+     * The events that cannot be processed are moved to the dead letter log.
+     */
+    private boolean isValid(String topic, Record record, @Nullable QueuedEvent event) throws IOException {
+        if (event == null) {
+            deadLetter(topic, record.getData(), "the email event cannot be decoded");
+            return false;
+        }
+        Set<ConstraintViolation<Object>> violations = validator.validate(event.getEvent());
+        if (!violations.isEmpty()) {
+            deadLetter(topic, record.getData(), "the email event is invalid: " + violations);
+            return false;
+        }
+        return true;
+    }
+
+    private void retry(String topic, QueuedEvent event, Exception failure) throws IOException {
+        String nextTopic = retryTopics.nextTopic(topic);
+        if (nextTopic.equals(retryTopics.getDeadLetterTopic())) {
+            deadLetter(topic, event.toBytes(objectMapper), failure.toString());
+        } else {
+            log.debug("Moving the email event to {} after a failure: {}", nextTopic, failure.toString());
+            append(nextTopic, event);
+        }
+    }
+
+    private void deadLetter(String topic, byte[] event, String reason) throws IOException {
+        log.warn("Moving the email event of {} to {}: {}", topic, retryTopics.getDeadLetterTopic(), reason);
+        try {
+            logs.get(retryTopics.getDeadLetterTopic())
+                .append(new DeadLetter(topic, reason, System.currentTimeMillis(), event).toBytes());
+        } catch (LogFullException e) {
+            log.error("Dropping the email event, the dead letter log is full", e);
+        }
+    }
+
+    /**
+     * Appends the event to the given topic, as if it had just been queued.
+     */
+    private void append(String topic, QueuedEvent event) throws IOException {
+        logs.get(topic).append(new QueuedEvent(topic, event.getKey(), System.currentTimeMillis(), event.getEvent())
+            .toBytes(objectMapper));
+    }
+
+    /**
+     * @return the topic the event was queued to
+     */
+    private String queuedTopic(QueuedEvent event) {
+        if (event.getEvent() instanceof TemplateEmailDTO) {
+            return templateEmailTopic;
+        }
+        return retryTopics.priorityTopic(((EmailDTO) event.getEvent()).getPriority());
+    }
+
+    @Nullable
+    private QueuedEvent decodeDeadLetter(Record record) {
+        try {
+            DeadLetter deadLetter = DeadLetter.fromBytes(record.getData());
+            return QueuedEvent.fromBytes(deadLetter.getEvent(), objectMapper);
+        } catch (IOException e) {
+            log.error("Skipping the dead letter that cannot be decoded", e);
+            return null;
+        }
+    }
+
+    @Nullable
+    private QueuedEvent decode(Record record) {
+        try {
+            return QueuedEvent.fromBytes(record.getData(), objectMapper);
+        } catch (IOException e) {
+            log.error("Cannot decode the event of the embedded queue", e);
+            return null;
+        }
+    }
+}
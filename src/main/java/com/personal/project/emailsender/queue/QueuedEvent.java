@@ -0,0 +1,59 @@
+package com.personal.project.emailsender.queue;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.personal.project.emailsender.dto.EmailDTO;
+import com.personal.project.emailsender.dto.TemplateEmailDTO;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import lombok.Value;
+import org.springframework.lang.Nullable;
+
+/**
+ * Email event stored on the local disk by the outbox and the embedded queue, with its topic, key and the time it was
+ * queued. The event is written as JSON after a small binary header.
+ */
+@Value
+public class QueuedEvent {
+
+    private static final byte EMAIL_EVENT = 1;
+
+    private static final byte TEMPLATE_EMAIL_EVENT = 2;
+
+    String topic;
+
+    @Nullable
+    String key;
+
+    long timestamp;
+
+    Object event;
+
+    public byte[] toBytes(ObjectMapper objectMapper) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeByte(event instanceof EmailDTO ? EMAIL_EVENT : TEMPLATE_EMAIL_EVENT);
+        output.writeUTF(topic);
+        output.writeBoolean(key != null);
+        if (key != null) {
+            output.writeUTF(key);
+        }
+        output.writeLong(timestamp);
+        output.write(objectMapper.writeValueAsBytes(event));
+        return bytes.toByteArray();
+    }
+
+    public static QueuedEvent fromBytes(byte[] data, ObjectMapper objectMapper) throws IOException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(data));
+        byte type = input.readByte();
+        String topic = input.readUTF();
+        String key = input.readBoolean() ? input.readUTF() : null;
+        long timestamp = input.readLong();
+        Class<?> eventType = type == EMAIL_EVENT ? EmailDTO.class : TemplateEmailDTO.class;
+        int eventLength = input.available();
+        Object event = objectMapper.readValue(data, data.length - eventLength, eventLength, eventType);
+        return new QueuedEvent(topic, key, timestamp, event);
+    }
+}
@@ -0,0 +1,413 @@
+package com.personal.project.emailsender.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Service;
+
+/**
+ * {@link UrlDownloader} decorator caching the downloaded attachments by url.
+ * <p>
+ * Small attachments are kept in a size-bounded memory tier, bigger ones in a size-bounded disk tier, both evicted in
+ * LRU order. Entries expire after the {@code max-age} sent by the server (or the default TTL) and are then revalidated
+ * with their {@code ETag}, when available. Concurrent downloads of the same url are collapsed into a single one.
+ */
+@Slf4j
+@Primary
+@Service
+@ConditionalOnProperty(name = "email-sender.attachment.cache.enabled", havingValue = "true")
+public class CachingUrlDownloader implements UrlDownloader {
+
+    private final UrlDownloader delegate;
+
+    private final Settings settings;
+
+    private final Tier memoryTier;
+
+    private final Tier diskTier;
+
+    private final Map<String, CompletableFuture<CacheEntry>> inFlightDownloads = new ConcurrentHashMap<>();
+
+    private final Counter hits;
+
+    private final Counter revalidations;
+
+    private final Counter misses;
+
+    private final Counter bytesSaved;
+
+    @Autowired
+    public CachingUrlDownloader(UrlDownloaderImpl delegate,
+        @Value("${email-sender.attachment.cache.memory.max-size.bytes}") long memoryMaxSizeBytes,
+        @Value("${email-sender.attachment.cache.memory.max-entry-size.bytes}") long memoryMaxEntrySizeBytes,
+        @Value("${email-sender.attachment.cache.disk.max-size.bytes}") long diskMaxSizeBytes,
+        @Value("${email-sender.attachment.cache.disk.directory}") String diskDirectory,
+        @Value("${email-sender.attachment.cache.default-ttl.ms}") long defaultTtlMs,
+        MeterRegistry meterRegistry) throws IOException {
+
+        this(delegate, new Settings(memoryMaxSizeBytes, memoryMaxEntrySizeBytes, diskMaxSizeBytes,
+            Paths.get(diskDirectory), Duration.ofMillis(defaultTtlMs)), meterRegistry);
+    }
+
+    public CachingUrlDownloader(UrlDownloader delegate, Settings settings, MeterRegistry meterRegistry)
+        throws IOException {
+
+        this.delegate = delegate;
+        this.settings = settings;
+        this.memoryTier = new Tier(settings.getMemoryMaxSizeBytes());
+        this.diskTier = new Tier(settings.getDiskMaxSizeBytes());
+        prepareDiskDirectory(settings.getDiskDirectory());
+
+        this.hits = cacheRequestsCounter("hit", meterRegistry);
+        this.revalidations = cacheRequestsCounter("revalidated", meterRegistry);
+        this.misses = cacheRequestsCounter("miss", meterRegistry);
+        this.bytesSaved = Counter.builder("email.sender.attachment.cache.bytes.saved")
+            .description("Attachment bytes served from the cache instead of being downloaded")
+            .baseUnit("bytes")
+            .register(meterRegistry);
+        Gauge.builder("email.sender.attachment.cache.size", memoryTier, Tier::getSizeBytes)
+            .tag("tier", "memory")
+            .baseUnit("bytes")
+            .register(meterRegistry);
+        Gauge.builder("email.sender.attachment.cache.size", diskTier, Tier::getSizeBytes)
+            .tag("tier", "disk")
+            .baseUnit("bytes")
+            .register(meterRegistry);
+    }
+
+    @Override
+    public DownloadedContent downloadContent(String url) throws IOException {
+        while (true) {
+            CacheEntry cachedEntry = lookup(url);
+            if (cachedEntry != null && !cachedEntry.isExpired() && cachedEntry.tryLease()) {
+                hits.increment();
+                bytesSaved.increment(cachedEntry.getSize());
+                return cachedEntry.toDownloadedContent();
+            }
+
+            CompletableFuture<CacheEntry> download = new CompletableFuture<>();
+            CompletableFuture<CacheEntry> inFlightDownload = inFlightDownloads.putIfAbsent(url, download);
+            if (inFlightDownload == null) {
+                return download(url, cachedEntry, download);
+            }
+
+            log.debug("Waiting for in flight download of {}", url);
+            CacheEntry downloadedEntry = await(inFlightDownload);
+            if (downloadedEntry == null) {
+                //the content cannot be cached, download it again
+                return delegate.downloadContent(url);
+            }
+            if (downloadedEntry.tryLease()) {
+                hits.increment();
+                bytesSaved.increment(downloadedEntry.getSize());
+                return downloadedEntry.toDownloadedContent();
+            }
+            //the entry has been evicted in the meanwhile, try again
+        }
+    }
+
+    private DownloadedContent download(String url, @Nullable CacheEntry staleEntry,
+        CompletableFuture<CacheEntry> download) throws IOException {
+
+        try {
+            if (staleEntry != null && staleEntry.getEtag() != null) {
+                Optional<DownloadedContent> modifiedContent =
+                    delegate.downloadContentIfNoneMatch(url, staleEntry.getEtag());
+                if (modifiedContent.isEmpty() && staleEntry.tryLease()) {
+                    log.debug("Revalidated cached attachment {}", url);
+                    staleEntry.renew(staleEntry.getTtl());
+                    revalidations.increment();
+                    bytesSaved.increment(staleEntry.getSize());
+                    download.complete(staleEntry);
+                    return staleEntry.toDownloadedContent();
+                }
+                if (modifiedContent.isPresent()) {
+                    return cache(url, modifiedContent.get(), download);
+                }
+            }
+            return cache(url, delegate.downloadContent(url), download);
+        } catch (IOException | RuntimeException e) {
+            download.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlightDownloads.remove(url, download);
+        }
+    }
+
+    private DownloadedContent cache(String url, DownloadedContent downloadedContent,
+        CompletableFuture<CacheEntry> download) throws IOException {
+
+        misses.increment();
+        CacheHints cacheHints = downloadedContent.getCacheHints();
+        long size = downloadedContent.getSize();
+        if (cacheHints.isNoStore() || size > settings.getDiskMaxSizeBytes()) {
+            //the stale entry, if any, is outdated by the new content
+            memoryTier.remove(url);
+            diskTier.remove(url);
+            download.complete(null);
+            return downloadedContent;
+        }
+
+        Duration ttl = cacheHints.getMaxAge() != null ? cacheHints.getMaxAge() : settings.getDefaultTtl();
+        CacheEntry cacheEntry;
+        try (downloadedContent) {
+            //the stale entry, if any, may be in the other tier when the size of the content changed
+            if (size <= settings.getMemoryMaxEntrySizeBytes()) {
+                diskTier.remove(url);
+                cacheEntry = memoryTier.put(url,
+                    CacheEntry.inMemory(downloadedContent, readBytes(downloadedContent), ttl));
+            } else {
+                memoryTier.remove(url);
+                cacheEntry = diskTier.put(url,
+                    CacheEntry.onDisk(downloadedContent, moveToDisk(downloadedContent), ttl));
+            }
+        }
+        //leased before being published, so that it cannot be deleted before being returned
+        cacheEntry.tryLease();
+        download.complete(cacheEntry);
+        return cacheEntry.toDownloadedContent();
+    }
+
+    @Nullable
+    private CacheEntry lookup(String url) {
+        CacheEntry cacheEntry = memoryTier.get(url);
+        return cacheEntry != null ? cacheEntry : diskTier.get(url);
+    }
+
+    private Path moveToDisk(DownloadedContent downloadedContent) throws IOException {
+        Path file = Files.createTempFile(settings.getDiskDirectory(), "attachment-", ".bin");
+        Resource content = downloadedContent.getContent();
+        if (content.isFile()) {
+            //the spilled file is moved, closing the downloaded content will not find it anymore
+            return Files.move(content.getFile().toPath(), file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        try (InputStream inputStream = content.getInputStream()) {
+            Files.copy(inputStream, file, StandardCopyOption.REPLACE_EXISTING);
+            return file;
+        }
+    }
+
+    private static byte[] readBytes(DownloadedContent downloadedContent) throws IOException {
+        Resource content = downloadedContent.getContent();
+        if (content instanceof ByteArrayResource) {
+            return ((ByteArrayResource) content).getByteArray();
+        }
+        try (InputStream inputStream = content.getInputStream()) {
+            return inputStream.readAllBytes();
+        }
+    }
+
+    @Nullable
+    private static CacheEntry await(CompletableFuture<CacheEntry> download) throws IOException {
+        try {
+            return download.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for download", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static void prepareDiskDirectory(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        //the disk tier index is not persisted, the files of a previous run cannot be reused
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "attachment-*.bin")) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private static Counter cacheRequestsCounter(String result, MeterRegistry meterRegistry) {
+        return Counter.builder("email.sender.attachment.cache.requests")
+            .description("Attachment cache lookups")
+            .tag("result", result)
+            .register(meterRegistry);
+    }
+
+    @lombok.Value
+    public static class Settings {
+        long memoryMaxSizeBytes;
+        long memoryMaxEntrySizeBytes;
+        long diskMaxSizeBytes;
+        Path diskDirectory;
+        Duration defaultTtl;
+    }
+
+    /**
+     * Size-bounded LRU map of cache entries.
+     */
+    private static class Tier {
+
+        private final long maxSizeBytes;
+
+        private final LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+        private long sizeBytes;
+
+        Tier(long maxSizeBytes) {
+            this.maxSizeBytes = maxSizeBytes;
+        }
+
+        @Nullable
+        synchronized CacheEntry get(String url) {
+            return entries.get(url);
+        }
+
+        synchronized CacheEntry put(String url, CacheEntry cacheEntry) {
+            CacheEntry replacedEntry = entries.put(url, cacheEntry);
+            if (replacedEntry != null) {
+                evict(replacedEntry);
+            }
+            sizeBytes += cacheEntry.getSize();
+            Iterator<CacheEntry> leastRecentlyUsed = entries.values().iterator();
+            while (sizeBytes > maxSizeBytes && leastRecentlyUsed.hasNext()) {
+                CacheEntry evictedEntry = leastRecentlyUsed.next();
+                if (evictedEntry != cacheEntry) {
+                    leastRecentlyUsed.remove();
+                    evict(evictedEntry);
+                }
+            }
+            return cacheEntry;
+        }
+
+        synchronized void remove(String url) {
+            CacheEntry removedEntry = entries.remove(url);
+            if (removedEntry != null) {
+                evict(removedEntry);
+            }
+        }
+
+        synchronized long getSizeBytes() {
+            return sizeBytes;
+        }
+
+        private void evict(CacheEntry cacheEntry) {
+            sizeBytes -= cacheEntry.getSize();
+            cacheEntry.release();
+        }
+    }
+
+    /**
+     * Cached content, reference counted so that the disk files are deleted only when evicted and no longer read.
+     */
+    private static class CacheEntry {
+
+        private final String contentType;
+
+        private final Resource content;
+
+        private final long size;
+
+        @Nullable
+        private final String etag;
+
+        @Nullable
+        private final String contentHash;
+
+        private final Duration ttl;
+
+        @Nullable
+        private final Path file;
+
+        //the cache itself holds a reference until the entry is evicted
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        private volatile long expiresAtNanos;
+
+        private CacheEntry(DownloadedContent downloadedContent, Resource content, @Nullable Path file, Duration ttl) {
+            this.contentType = downloadedContent.getContentType();
+            this.content = content;
+            this.size = downloadedContent.getSize();
+            this.etag = downloadedContent.getCacheHints().getEtag();
+            this.contentHash = downloadedContent.getContentHash();
+            this.file = file;
+            this.ttl = ttl;
+            renew(ttl);
+        }
+
+        static CacheEntry inMemory(DownloadedContent downloadedContent, byte[] bytes, Duration ttl) {
+            return new CacheEntry(downloadedContent, new ByteArrayResource(bytes), null, ttl);
+        }
+
+        static CacheEntry onDisk(DownloadedContent downloadedContent, Path file, Duration ttl) {
+            return new CacheEntry(downloadedContent, new FileSystemResource(file), file, ttl);
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        @Nullable
+        String getEtag() {
+            return etag;
+        }
+
+        Duration getTtl() {
+            return ttl;
+        }
+
+        boolean isExpired() {
+            return System.nanoTime() - expiresAtNanos >= 0;
+        }
+
+        void renew(Duration ttl) {
+            expiresAtNanos = System.nanoTime() + ttl.toNanos();
+        }
+
+        boolean tryLease() {
+            int current;
+            do {
+                current = references.get();
+                if (current == 0) {
+                    return false;
+                }
+            } while (!references.compareAndSet(current, current + 1));
+            return true;
+        }
+
+        void release() {
+            if (references.decrementAndGet() == 0 && file != null) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+
+        DownloadedContent toDownloadedContent() {
+            return DownloadedContent.shared(contentType, content, size, this::release).withContentHash(contentHash);
+        }
+    }
+}
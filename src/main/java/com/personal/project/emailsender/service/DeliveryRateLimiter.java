@@ -0,0 +1,233 @@
+package com.personal.project.emailsender.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+/**
+ * Shapes the SMTP sends by recipient domain and by sender account, so that the receiving providers are not hit by
+ * bursts they would throttle or greylist.
+ * <p>
+ * Each recipient domain has a token bucket (rate and burst) and a maximum number of concurrent sends, each sender a
+ * token bucket. A rate or concurrency of 0 means unlimited. The permits are never waited for here: when one is not
+ * available the caller gets the time after which to try again, and is free to send the emails of other domains in the
+ * meantime.
+ */
+@Slf4j
+@Component
+public class DeliveryRateLimiter {
+
+    private static final long CONCURRENCY_RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final Settings settings;
+
+    private final Map<String, TokenBucket> domainBuckets = new ConcurrentHashMap<>();
+
+    private final Map<String, TokenBucket> senderBuckets = new ConcurrentHashMap<>();
+
+    private final Map<String, Semaphore> domainSendPermits = new ConcurrentHashMap<>();
+
+    private final Counter delayed;
+
+    @Autowired
+    public DeliveryRateLimiter(
+        @Value("${email-sender.rate-limit.domain.rate-per-second}") double domainRatePerSecond,
+        @Value("${email-sender.rate-limit.domain.burst}") int domainBurst,
+        @Value("${email-sender.rate-limit.domain.max-concurrency}") int domainMaxConcurrency,
+        @Value("${email-sender.rate-limit.domain.overrides.rate-per-second:}") String domainRateOverrides,
+        @Value("${email-sender.rate-limit.domain.overrides.max-concurrency:}") String domainConcurrencyOverrides,
+        @Value("${email-sender.rate-limit.sender.rate-per-second}") double senderRatePerSecond,
+        @Value("${email-sender.rate-limit.sender.burst}") int senderBurst,
+        @Value("${email-sender.rate-limit.max-delay.ms}") long maxDelayMs,
+        MeterRegistry meterRegistry) {
+
+        this(new Settings(domainRatePerSecond, domainBurst, domainMaxConcurrency,
+            parseOverrides(domainRateOverrides, Double::valueOf),
+            parseOverrides(domainConcurrencyOverrides, Integer::valueOf), senderRatePerSecond, senderBurst, Duration.ofMillis(maxDelayMs)), meterRegistry);
+    }
+
+    public DeliveryRateLimiter(Settings settings, MeterRegistry meterRegistry) {
+        this.settings = settings;
+        this.delayed = Counter.builder("email.sender.rate-limit.delayed")
+            .description("Sends delayed by the rate limits of the recipient domain or of the sender")
+            .register(meterRegistry);
+    }
+
+    /**
+     * The maximum time an email can be delayed by the rate limits before its send fails.
+     */
+    public Duration getMaxDelay() {
+        return settings.getMaxDelay();
+    }
+
+    /**
+     * Takes the permits to send an email from the sender to the recipient, if all available.
+     */
+    public Permit tryAcquire(String from, String to) {
+        String domain = domainOf(to);
+        TokenBucket domainBucket = domainBuckets.computeIfAbsent(domain, this::newDomainBucket);
+        long waitNanos = domainBucket.tryTake();
+        if (waitNanos > 0) {
+            return denied(waitNanos);
+        }
+        TokenBucket senderBucket = senderBuckets.computeIfAbsent(from.toLowerCase(Locale.ROOT),
+            sender -> new TokenBucket(settings.getSenderRatePerSecond(), settings.getSenderBurst()));
+        waitNanos = senderBucket.tryTake();
+        if (waitNanos > 0) {
+            domainBucket.refund();
+            return denied(waitNanos);
+        }
+        Semaphore sendPermits = domainSendPermits.computeIfAbsent(domain, this::newDomainSendPermits);
+        if (sendPermits == null) {
+            return Permit.GRANTED;
+        }
+        if (!sendPermits.tryAcquire()) {
+            domainBucket.refund();
+            senderBucket.refund();
+            return denied(CONCURRENCY_RETRY_NANOS);
+        }
+        return new Permit(true, 0, sendPermits);
+    }
+
+    /**
+     * The key of the limits shared by the emails to the recipient: the emails with the same key must be sent in order.
+     */
+    public static String domainOf(String to) {
+        return to.substring(to.lastIndexOf('@') + 1).toLowerCase(Locale.ROOT);
+    }
+
+    private Permit denied(long waitNanos) {
+        delayed.increment();
+        return new Permit(false, waitNanos, null);
+    }
+
+    private TokenBucket newDomainBucket(String domain) {
+        double ratePerSecond = settings.getDomainRateOverrides().getOrDefault(domain, settings.getDomainRatePerSecond());
+        return new TokenBucket(ratePerSecond, settings.getDomainBurst());
+    }
+
+    private Semaphore newDomainSendPermits(String domain) {
+        int maxConcurrency = settings.getDomainConcurrencyOverrides()
+            .getOrDefault(domain, settings.getDomainMaxConcurrency());
+        //null values are not stored, the domains without limit are looked up every time
+        return maxConcurrency > 0 ? new Semaphore(maxConcurrency) : null;
+    }
+
+    /**
+     * Parses the {@code domain:value} pairs of a comma separated list.
+     */
+    private static <T> Map<String, T> parseOverrides(String overrides, Function<String, T> valueParser) {
+        Map<String, T> parsed = new HashMap<>();
+        for (String override : StringUtils.commaDelimitedListToStringArray(overrides)) {
+            String[] domainAndValue = override.trim().split(":");
+            if (domainAndValue.length != 2) {
+                throw new IllegalArgumentException("Invalid rate limit override: " + override);
+            }
+            parsed.put(domainAndValue[0].trim().toLowerCase(Locale.ROOT), valueParser.apply(domainAndValue[1].trim()));
+        }
+        return parsed;
+    }
+
+    /**
+     * The permit to send an email: when granted it must be closed once the email has been sent, otherwise it holds the
+     * time after which to try again.
+     */
+    public static class Permit implements AutoCloseable {
+
+        static final Permit GRANTED = new Permit(true, 0, null);
+
+        private final boolean granted;
+
+        private final long retryAfterNanos;
+
+        @Nullable
+        private Semaphore sendPermits;
+
+        Permit(boolean granted, long retryAfterNanos, @Nullable Semaphore sendPermits) {
+            this.granted = granted;
+            this.retryAfterNanos = retryAfterNanos;
+            this.sendPermits = sendPermits;
+        }
+
+        public boolean isGranted() {
+            return granted;
+        }
+
+        public long getRetryAfterNanos() {
+            return retryAfterNanos;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (sendPermits != null) {
+                sendPermits.release();
+                sendPermits = null;
+            }
+        }
+    }
+
+    private static class TokenBucket {
+
+        private final double tokensPerNano;
+
+        private final double capacity;
+
+        private double tokens;
+
+        private long refilledAt = System.nanoTime();
+
+        TokenBucket(double ratePerSecond, int burst) {
+            this.tokensPerNano = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+            this.capacity = Math.max(burst, 1);
+            this.tokens = capacity;
+        }
+
+        /**
+         * @return 0 if a token has been taken, otherwise the nanoseconds until the next token
+         */
+        synchronized long tryTake() {
+            if (tokensPerNano <= 0) {
+                return 0;
+            }
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - refilledAt) * tokensPerNano);
+            refilledAt = now;
+            if (tokens >= 1) {
+                tokens--;
+                return 0;
+            }
+            return Math.max(1, (long) Math.ceil((1 - tokens) / tokensPerNano));
+        }
+
+        synchronized void refund() {
+            if (tokensPerNano > 0) {
+                tokens = Math.min(capacity, tokens + 1);
+            }
+        }
+    }
+
+    @lombok.Value
+    public static class Settings {
+        double domainRatePerSecond;
+        int domainBurst;
+        int domainMaxConcurrency;
+        Map<String, Double> domainRateOverrides;
+        Map<String, Integer> domainConcurrencyOverrides;
+        double senderRatePerSecond;
+        int senderBurst;
+        Duration maxDelay;
+    }
+}
@@ -0,0 +1,127 @@
+package com.personal.project.emailsender.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.personal.project.emailsender.dto.EmailBatchResult;
+import com.personal.project.emailsender.dto.EmailBatchResult.ItemError;
+import com.personal.project.emailsender.dto.EmailDTO;
+import com.personal.project.emailsender.kafka.producer.EmailProducer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+import javax.validation.ConstraintViolation;
+import javax.validation.Validator;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Queues the emails of a bulk request, reading them one at a time from a JSON array or from newline delimited JSON,
+ * so that the whole request is never held in memory.
+ * <p>
+ * The valid emails are sent to kafka without waiting for each acknowledgement, so that the producer can batch them:
+ * only when more than {@code email-sender.api.batch.max-in-flight} emails are unacknowledged the oldest one is waited
+ * for.
+ */
+@Slf4j
+@Service
+public class EmailBatchIngestService {
+
+    private final EmailProducer emailProducer;
+
+    private final ObjectMapper objectMapper;
+
+    private final Validator validator;
+
+    private final int maxInFlight;
+
+    private final long ackTimeoutMs;
+
+    public EmailBatchIngestService(EmailProducer emailProducer, ObjectMapper objectMapper, Validator validator,
+        @Value("${email-sender.api.batch.max-in-flight}") int maxInFlight,
+        @Value("${email-sender.api.ack-timeout.ms}") long ackTimeoutMs) {
+
+        this.emailProducer = emailProducer;
+        this.objectMapper = objectMapper;
+        this.validator = validator;
+        this.maxInFlight = maxInFlight;
+        this.ackTimeoutMs = ackTimeoutMs;
+    }
+
+    public EmailBatchResult ingest(InputStream body) throws IOException {
+        EmailBatchResult result = new EmailBatchResult();
+        Deque<PendingEmail> inFlight = new ArrayDeque<>();
+        try (MappingIterator<EmailDTO> emails = objectMapper.readerFor(EmailDTO.class).readValues(body)) {
+            while (emails.hasNextValue()) {
+                int index = result.getReceived();
+                result.setReceived(index + 1);
+                EmailDTO emailDTO;
+                try {
+                    emailDTO = emails.nextValue();
+                } catch (JsonMappingException e) {
+                    result.getErrors().add(new ItemError(index, List.of(e.getOriginalMessage())));
+                    continue;
+                }
+                //a null element, which the validator would reject with an exception failing the whole request
+                if (emailDTO == null) {
+                    result.getErrors().add(new ItemError(index, List.of("must not be null")));
+                    continue;
+                }
+                Set<ConstraintViolation<EmailDTO>> violations = validator.validate(emailDTO);
+                if (!violations.isEmpty()) {
+                    result.getErrors().add(new ItemError(index, formatViolations(violations)));
+                    continue;
+                }
+                inFlight.add(new PendingEmail(index, emailProducer.queueEmail(emailDTO)));
+                if (inFlight.size() > maxInFlight) {
+                    awaitAcknowledgement(inFlight.poll(), result);
+                }
+            }
+        } catch (JsonProcessingException e) {
+            log.debug("Cannot parse the bulk email request", e);
+            result.setParseError(e.getOriginalMessage());
+        } finally {
+            while (!inFlight.isEmpty()) {
+                awaitAcknowledgement(inFlight.poll(), result);
+            }
+        }
+        result.getErrors().sort((first, second) -> Integer.compare(first.getIndex(), second.getIndex()));
+        return result;
+    }
+
+    private void awaitAcknowledgement(PendingEmail pendingEmail, EmailBatchResult result) {
+        try {
+            pendingEmail.getQueued().get(ackTimeoutMs, TimeUnit.MILLISECONDS);
+            result.setQueued(result.getQueued() + 1);
+            return;
+        } catch (ExecutionException | TimeoutException e) {
+            log.warn("Email event {} of the bulk request not acknowledged", pendingEmail.getIndex(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        result.getErrors().add(new ItemError(pendingEmail.getIndex(), List.of("not queued")));
+    }
+
+    private static List<String> formatViolations(Set<ConstraintViolation<EmailDTO>> violations) {
+        return violations.stream()
+            .map(violation -> violation.getPropertyPath() + ": " + violation.getMessage())
+            .sorted()
+            .collect(Collectors.toList());
+    }
+
+    @lombok.Value
+    private static class PendingEmail {
+        int index;
+        Future<?> queued;
+    }
+}
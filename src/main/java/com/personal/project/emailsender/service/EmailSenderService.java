@@ -1,32 +1,433 @@
 package com.personal.project.emailsender.service;
 
 import com.personal.project.emailsender.dto.EmailDTO;
+import com.personal.project.emailsender.dto.Priority;
+import com.personal.project.emailsender.execution.DeliveryExecutorFactory;
 import com.personal.project.emailsender.service.UrlDownloader.DownloadedContent;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PreDestroy;
 import javax.mail.MessagingException;
+import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
-import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.core.io.ByteArrayResource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.lang.Nullable;
+import org.springframework.mail.MailException;
+import org.springframework.mail.MailSendException;
 import org.springframework.mail.javamail.JavaMailSender;
 import org.springframework.mail.javamail.MimeMessageHelper;
 import org.springframework.stereotype.Service;
 
 @Slf4j
 @Service
-@RequiredArgsConstructor
 public class EmailSenderService {
 
     private final JavaMailSender javaMailSender;
 
     private final UrlDownloader urlDownloader;
 
+    private final EncodedAttachmentCache encodedAttachmentCache;
+
+    private final DeliveryRateLimiter deliveryRateLimiter;
+
+    private final SentEmailIndex sentEmailIndex;
+
+    private final PrioritySendScheduler prioritySendScheduler;
+
+    private final int prefetchDepth;
+
+    private final boolean groupByDomain;
+
+    @Nullable
+    private final ExecutorService prefetchExecutor;
+
+    private final Timer mimeBuildTimer;
+
+    private final Timer smtpSendTimer;
+
+    private final Counter duplicates;
+
+    public EmailSenderService(JavaMailSender javaMailSender, UrlDownloader urlDownloader,
+        EncodedAttachmentCache encodedAttachmentCache, DeliveryRateLimiter deliveryRateLimiter,
+        DeliveryExecutorFactory deliveryExecutorFactory, @Value("${email-sender.prefetch.depth}") int prefetchDepth,
+        @Value("${email-sender.batch.group-by-domain}") boolean groupByDomain, SentEmailIndex sentEmailIndex,
+        PrioritySendScheduler prioritySendScheduler, MeterRegistry meterRegistry) {
+
+        this.javaMailSender = javaMailSender;
+        this.urlDownloader = urlDownloader;
+        this.encodedAttachmentCache = encodedAttachmentCache;
+        this.deliveryRateLimiter = deliveryRateLimiter;
+        this.sentEmailIndex = sentEmailIndex;
+        this.prioritySendScheduler = prioritySendScheduler;
+        this.prefetchDepth = prefetchDepth;
+        this.groupByDomain = groupByDomain;
+        this.prefetchExecutor = prefetchDepth > 0
+            ? deliveryExecutorFactory.newExecutor("email-prefetch-", prefetchDepth)
+            : null;
+        this.mimeBuildTimer = Timer.builder("email.sender.mime.build")
+            .description("Time spent building the MIME messages, excluding the attachment downloads")
+            .register(meterRegistry);
+        this.smtpSendTimer = Timer.builder("email.sender.smtp.send")
+            .description("Time spent handing the messages over to the mail sender, per call")
+            .register(meterRegistry);
+        this.duplicates = Counter.builder("email.sender.duplicates")
+            .description("Emails not sent because an email with the same idempotency key has already been sent")
+            .register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (prefetchExecutor != null) {
+            prefetchExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Sends the email, waiting up to {@code email-sender.rate-limit.max-delay.ms} for the rate limits of its recipient
+     * domain and sender. The email is skipped if an email with the same idempotency key has already been sent.
+     *
+     * @throws RateLimitExceededException if the email cannot be sent within the maximum delay
+     */
     public void sendEmail(EmailDTO emailDTO) throws IOException, MessagingException {
-        MimeMessage mimeMessage = toMailMessage(emailDTO);
-        javaMailSender.send(mimeMessage);
+        if (isDuplicate(emailDTO)) {
+            return;
+        }
+        try (PreparedEmail preparedEmail = toMailMessage(emailDTO);
+            DeliveryRateLimiter.Permit permit = acquirePermit(emailDTO);
+            PrioritySendScheduler.Permit sendPermit = prioritySendScheduler.acquire(emailDTO.getPriority())) {
+            smtpSendTimer.record(() -> javaMailSender.send(preparedEmail.getMimeMessage()));
+        }
+        sentEmailIndex.markSent(emailDTO.getIdempotencyKey());
+    }
+
+    /**
+     * Sends all the emails reusing the SMTP connection.
+     * <p>
+     * When the prefetch is enabled the emails are prepared (i.e. their attachments downloaded) up to
+     * {@code email-sender.prefetch.depth} emails ahead of the ones being sent, so that the downloads overlap with the
+     * SMTP sends while no more than that many emails wait in memory. The prepared emails are sent in order, in chunks
+     * of the ones ready at that time. Otherwise all the emails are prepared first and sent in a single chunk.
+     * <p>
+     * The emails over the rate limits of their recipient domain or sender are set aside, keeping their order within
+     * the domain, and sent once their permits are available, while the emails to the other domains go on. The ones
+     * still waiting after {@code email-sender.rate-limit.max-delay.ms} fail with a {@link RateLimitExceededException}.
+     * <p>
+     * The emails whose idempotency key has already been sent, or appears earlier in the list, are skipped. With
+     * {@code email-sender.batch.group-by-domain} the emails are sent grouped by recipient domain, in the order of the
+     * first email to each domain, so that the messages to the same destination follow each other on the connection.
+     *
+     * @return the failures by index of the email in the given list, empty if all the emails have been sent
+     */
+    public Map<Integer, Exception> sendEmails(List<EmailDTO> emailDTOs) {
+        List<Integer> newIndexes = new ArrayList<>(emailDTOs.size());
+        Set<String> idempotencyKeys = new HashSet<>();
+        for (int i = 0; i < emailDTOs.size(); i++) {
+            EmailDTO emailDTO = emailDTOs.get(i);
+            String idempotencyKey = emailDTO.getIdempotencyKey();
+            if (idempotencyKey != null && !idempotencyKeys.add(idempotencyKey) || isDuplicate(emailDTO)) {
+                continue;
+            }
+            newIndexes.add(i);
+        }
+        List<Integer> pendingIndexes = groupByDomain ? groupByDomain(emailDTOs, newIndexes) : newIndexes;
+        if (pendingIndexes.size() == emailDTOs.size() && isSorted(pendingIndexes)) {
+            return sendPending(emailDTOs);
+        }
+
+        List<EmailDTO> pendingEmails = new ArrayList<>(pendingIndexes.size());
+        pendingIndexes.forEach(index -> pendingEmails.add(emailDTOs.get(index)));
+        Map<Integer, Exception> failures = new TreeMap<>();
+        sendPending(pendingEmails).forEach((index, failure) -> failures.put(pendingIndexes.get(index), failure));
+        return failures;
+    }
+
+    /**
+     * @return the indexes grouped by the recipient domain of their email, keeping their order within the domain
+     */
+    private static List<Integer> groupByDomain(List<EmailDTO> emailDTOs, List<Integer> indexes) {
+        Map<String, List<Integer>> indexesByDomain = new LinkedHashMap<>();
+        for (int index : indexes) {
+            indexesByDomain.computeIfAbsent(DeliveryRateLimiter.domainOf(emailDTOs.get(index).getTo()),
+                domain -> new ArrayList<>()).add(index);
+        }
+        List<Integer> groupedIndexes = new ArrayList<>(indexes.size());
+        indexesByDomain.values().forEach(groupedIndexes::addAll);
+        return groupedIndexes;
+    }
+
+    private static boolean isSorted(List<Integer> indexes) {
+        for (int i = 1; i < indexes.size(); i++) {
+            if (indexes.get(i) < indexes.get(i - 1)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isDuplicate(EmailDTO emailDTO) {
+        if (!sentEmailIndex.isSent(emailDTO.getIdempotencyKey())) {
+            return false;
+        }
+        log.info("Skipping email {} to {}, already sent", emailDTO.getIdempotencyKey(), emailDTO.getTo());
+        duplicates.increment();
+        return true;
+    }
+
+    private Map<Integer, Exception> sendPending(List<EmailDTO> emailDTOs) {
+        Map<Integer, Exception> failures = new TreeMap<>();
+        Map<Integer, DeferredEmail> deferredEmails = new TreeMap<>();
+        try {
+            if (prefetchExecutor == null) {
+                sendAllPrepared(emailDTOs, failures, deferredEmails);
+            } else {
+                sendPrefetched(emailDTOs, failures, deferredEmails);
+            }
+            sendDeferred(failures, deferredEmails);
+        } finally {
+            deferredEmails.forEach((index, deferredEmail) -> {
+                failures.putIfAbsent(index, new RateLimitExceededException("Rate limit exceeded for "
+                    + deferredEmail.getPreparedEmail().getEmailDTO().getTo()));
+                deferredEmail.getPreparedEmail().close();
+            });
+        }
+        return failures;
+    }
+
+    private void sendAllPrepared(List<EmailDTO> emailDTOs, Map<Integer, Exception> failures,
+        Map<Integer, DeferredEmail> deferredEmails) {
+
+        Map<Integer, PreparedEmail> preparedEmails = new LinkedHashMap<>();
+        try {
+            for (int i = 0; i < emailDTOs.size(); i++) {
+                //as when prefetched, an email that cannot be prepared fails alone and the other ones are still sent
+                try {
+                    preparedEmails.put(i, toMailMessage(emailDTOs.get(i)));
+                } catch (MessagingException | IOException | RuntimeException e) {
+                    failures.put(i, e);
+                }
+            }
+        } catch (Error e) {
+            preparedEmails.values().forEach(PreparedEmail::close);
+            throw e;
+        }
+        send(preparedEmails, failures, deferredEmails);
+    }
+
+    private void sendPrefetched(List<EmailDTO> emailDTOs, Map<Integer, Exception> failures,
+        Map<Integer, DeferredEmail> deferredEmails) {
+
+        List<CompletableFuture<PreparedEmail>> prefetchedEmails = new ArrayList<>(emailDTOs.size());
+        int nextToSend = 0;
+        try {
+            while (nextToSend < emailDTOs.size()) {
+                prefetch(emailDTOs, prefetchedEmails, nextToSend + prefetchDepth);
+                //waits for the next email, then sends it together with the following ones that are already prepared
+                Map<Integer, PreparedEmail> chunk = new LinkedHashMap<>();
+                do {
+                    try {
+                        chunk.put(nextToSend, prefetchedEmails.get(nextToSend).get());
+                    } catch (ExecutionException e) {
+                        failures.put(nextToSend, e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+                    }
+                    nextToSend++;
+                } while (nextToSend < prefetchedEmails.size() && prefetchedEmails.get(nextToSend).isDone());
+                //the next emails are downloaded while this chunk is being sent
+                prefetch(emailDTOs, prefetchedEmails, nextToSend + prefetchDepth);
+                send(chunk, failures, deferredEmails);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (int i = nextToSend; i < emailDTOs.size(); i++) {
+                failures.put(i, e);
+            }
+        } finally {
+            //releases the emails prepared but not sent
+            for (int i = nextToSend; i < prefetchedEmails.size(); i++) {
+                prefetchedEmails.get(i).thenAccept(PreparedEmail::close);
+            }
+        }
+    }
+
+    /**
+     * Sends the deferred emails as soon as their permits are available, within the maximum delay.
+     */
+    private void sendDeferred(Map<Integer, Exception> failures, Map<Integer, DeferredEmail> deferredEmails) {
+        long deadline = System.nanoTime() + deliveryRateLimiter.getMaxDelay().toNanos();
+        try {
+            while (!deferredEmails.isEmpty()) {
+                long retryAt = deferredEmails.values().stream().mapToLong(DeferredEmail::getRetryAt).min().getAsLong();
+                if (retryAt - deadline > 0) {
+                    return;
+                }
+                long waitNanos = retryAt - System.nanoTime();
+                if (waitNanos > 0) {
+                    TimeUnit.NANOSECONDS.sleep(waitNanos);
+                }
+                Map<Integer, PreparedEmail> dueEmails = new LinkedHashMap<>();
+                long now = System.nanoTime();
+                deferredEmails.entrySet().removeIf(deferredEmail -> {
+                    if (deferredEmail.getValue().getRetryAt() - now > 0) {
+                        return false;
+                    }
+                    dueEmails.put(deferredEmail.getKey(), deferredEmail.getValue().getPreparedEmail());
+                    return true;
+                });
+                send(dueEmails, failures, deferredEmails);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            deferredEmails.keySet().forEach(index -> failures.put(index, e));
+        }
+    }
+
+    private DeliveryRateLimiter.Permit acquirePermit(EmailDTO emailDTO) {
+        long deadline = System.nanoTime() + deliveryRateLimiter.getMaxDelay().toNanos();
+        while (true) {
+            DeliveryRateLimiter.Permit permit = deliveryRateLimiter.tryAcquire(emailDTO.getFrom(), emailDTO.getTo());
+            if (permit.isGranted()) {
+                return permit;
+            }
+            if (System.nanoTime() + permit.getRetryAfterNanos() - deadline > 0) {
+                throw new RateLimitExceededException("Rate limit exceeded for " + emailDTO.getTo());
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(permit.getRetryAfterNanos());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RateLimitExceededException("Interrupted waiting for the rate limit of " + emailDTO.getTo());
+            }
+        }
+    }
+
+    private void prefetch(List<EmailDTO> emailDTOs, List<CompletableFuture<PreparedEmail>> prefetchedEmails,
+        int upTo) {
+
+        while (prefetchedEmails.size() < Math.min(upTo, emailDTOs.size())) {
+            EmailDTO emailDTO = emailDTOs.get(prefetchedEmails.size());
+            CompletableFuture<PreparedEmail> preparedEmail = new CompletableFuture<>();
+            prefetchExecutor.execute(() -> {
+                try {
+                    preparedEmail.complete(toMailMessage(emailDTO));
+                } catch (Throwable e) {
+                    preparedEmail.completeExceptionally(e);
+                }
+            });
+            prefetchedEmails.add(preparedEmail);
+        }
+    }
+
+    /**
+     * Sends the prepared emails whose permits are available, deferring the other ones together with the following
+     * emails to the same domains.
+     */
+    private void send(Map<Integer, PreparedEmail> preparedEmails, Map<Integer, Exception> failures,
+        Map<Integer, DeferredEmail> deferredEmails) {
+
+        //the retry time of the domains with deferred emails, the following emails to them wait as well
+        Map<String, Long> deferredDomains = new HashMap<>();
+        deferredEmails.values().forEach(deferredEmail -> deferredDomains.merge(
+            DeliveryRateLimiter.domainOf(deferredEmail.getPreparedEmail().getEmailDTO().getTo()),
+            deferredEmail.getRetryAt(), Math::max));
+        Map<Integer, PreparedEmail> permittedEmails = new LinkedHashMap<>();
+        List<DeliveryRateLimiter.Permit> permits = new ArrayList<>();
+        for (Map.Entry<Integer, PreparedEmail> preparedEmail : preparedEmails.entrySet()) {
+            EmailDTO emailDTO = preparedEmail.getValue().getEmailDTO();
+            String domain = DeliveryRateLimiter.domainOf(emailDTO.getTo());
+            Long retryAt = deferredDomains.get(domain);
+            if (retryAt == null) {
+                DeliveryRateLimiter.Permit permit =
+                    deliveryRateLimiter.tryAcquire(emailDTO.getFrom(), emailDTO.getTo());
+                if (permit.isGranted()) {
+                    permittedEmails.put(preparedEmail.getKey(), preparedEmail.getValue());
+                    permits.add(permit);
+                    continue;
+                }
+                retryAt = System.nanoTime() + permit.getRetryAfterNanos();
+                deferredDomains.put(domain, retryAt);
+            }
+            deferredEmails.put(preparedEmail.getKey(), new DeferredEmail(preparedEmail.getValue(), retryAt));
+        }
+        try {
+            sendNow(permittedEmails, failures);
+        } finally {
+            permits.forEach(DeliveryRateLimiter.Permit::close);
+        }
+    }
+
+    /**
+     * Sends the prepared emails over a single SMTP connection, adding the failures by index. The emails accepted by the
+     * server are marked as sent right away, so that they are not sent again if the rest of the list fails.
+     */
+    private void sendNow(Map<Integer, PreparedEmail> preparedEmails, Map<Integer, Exception> failures) {
+        if (preparedEmails.isEmpty()) {
+            return;
+        }
+        Map<MimeMessage, Integer> mimeMessageIndexes = new IdentityHashMap<>();
+        preparedEmails.forEach((index, preparedEmail) -> mimeMessageIndexes.put(preparedEmail.getMimeMessage(), index));
+        try {
+            log.debug("Sending {} emails", preparedEmails.size());
+            MimeMessage[] mimeMessages = preparedEmails.values().stream().map(PreparedEmail::getMimeMessage)
+                .toArray(MimeMessage[]::new);
+            try (PrioritySendScheduler.Permit sendPermit = prioritySendScheduler.acquire(priorityOf(preparedEmails))) {
+                smtpSendTimer.record(() -> javaMailSender.send(mimeMessages));
+            }
+        } catch (MailSendException e) {
+            if (e.getFailedMessages().isEmpty()) {
+                mimeMessageIndexes.values().forEach(index -> failures.put(index, e));
+            } else {
+                e.getFailedMessages().forEach((failedMessage, cause) ->
+                    failures.put(mimeMessageIndexes.get(failedMessage), cause));
+            }
+        } catch (MailException e) {
+            mimeMessageIndexes.values().forEach(index -> failures.put(index, e));
+        } finally {
+            preparedEmails.values().forEach(PreparedEmail::close);
+        }
+        preparedEmails.forEach((index, preparedEmail) -> {
+            if (!failures.containsKey(index)) {
+                sentEmailIndex.markSent(preparedEmail.getEmailDTO().getIdempotencyKey());
+            }
+        });
+    }
+
+    /**
+     * @return the highest priority of the emails, which are sent together
+     */
+    private static Priority priorityOf(Map<Integer, PreparedEmail> preparedEmails) {
+        Priority highestPriority = Priority.BULK;
+        for (PreparedEmail preparedEmail : preparedEmails.values()) {
+            Priority priority = preparedEmail.getEmailDTO().getPriority();
+            priority = priority == null ? Priority.NORMAL : priority;
+            if (priority.compareTo(highestPriority) < 0) {
+                highestPriority = priority;
+            }
+        }
+        return highestPriority;
     }
 
-    private MimeMessage toMailMessage(EmailDTO emailDTO) throws MessagingException, IOException {
+    /**
+     * Package-private for the benchmarks of {@code src/jmh/java}.
+     */
+    PreparedEmail toMailMessage(EmailDTO emailDTO) throws MessagingException, IOException {
+        long buildStart = System.nanoTime();
         MimeMessage mailMessage = javaMailSender.createMimeMessage();
 
         boolean hasAttachment = emailDTO.getAttachment() != null;
@@ -36,15 +437,62 @@ public class EmailSenderService {
         helper.setSubject(emailDTO.getSubject());
         helper.setText(emailDTO.getBody());
 
-        if (hasAttachment) {
-            DownloadedContent downloadedContent = urlDownloader.downloadContent(emailDTO.getAttachment().getUrl());
-            ByteArrayResource attachmentResource = new ByteArrayResource(downloadedContent.getContent());
+        if (!hasAttachment) {
+            mimeBuildTimer.record(System.nanoTime() - buildStart, TimeUnit.NANOSECONDS);
+            return new PreparedEmail(emailDTO, mailMessage, null);
+        }
+        long downloadStart = System.nanoTime();
+        DownloadedContent downloadedContent = urlDownloader.downloadContent(emailDTO.getAttachment().getUrl());
+        long downloadNanos = System.nanoTime() - downloadStart;
+        try {
             String attachmentName = emailDTO.getAttachment().getName();
             String attachmentContentType = downloadedContent.getContentType();
             log.debug("Adding attachment with name {}, content type {}, size {}", attachmentName, attachmentContentType,
-                attachmentResource.contentLength());
-            helper.addAttachment(attachmentName, attachmentResource, attachmentContentType);
+                downloadedContent.getSize());
+            Optional<MimeBodyPart> encodedAttachment =
+                encodedAttachmentCache.getAttachmentPart(attachmentName, downloadedContent);
+            if (encodedAttachment.isPresent()) {
+                helper.getRootMimeMultipart().addBodyPart(encodedAttachment.get());
+            } else {
+                //the attachment is streamed from its source when the message is written
+                helper.addAttachment(attachmentName, downloadedContent.getContent(), attachmentContentType);
+            }
+            mimeBuildTimer.record(System.nanoTime() - buildStart - downloadNanos, TimeUnit.NANOSECONDS);
+            return new PreparedEmail(emailDTO, mailMessage, downloadedContent);
+        } catch (MessagingException | RuntimeException e) {
+            downloadedContent.close();
+            throw e;
         }
-        return mailMessage;
+    }
+
+    /**
+     * A MIME message ready to be sent, holding the attachment content until the message has been written.
+     */
+    @lombok.Value
+    static class PreparedEmail implements Closeable {
+        EmailDTO emailDTO;
+        MimeMessage mimeMessage;
+        @Nullable DownloadedContent attachment;
+
+        @Override
+        public void close() {
+            if (attachment == null) {
+                return;
+            }
+            try {
+                attachment.close();
+            } catch (IOException e) {
+                log.warn("Cannot release attachment content", e);
+            }
+        }
+    }
+
+    /**
+     * A prepared email waiting for the permits of its recipient domain or sender.
+     */
+    @lombok.Value
+    private static class DeferredEmail {
+        PreparedEmail preparedEmail;
+        long retryAt;
     }
 }
@@ -0,0 +1,166 @@
+package com.personal.project.emailsender.service;
+
+import com.personal.project.emailsender.service.UrlDownloader.DownloadedContent;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Optional;
+import javax.mail.MessagingException;
+import javax.mail.Part;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeUtility;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+import org.springframework.util.FastByteArrayOutputStream;
+
+/**
+ * Cache of base64-encoded attachment body parts, keyed by content hash, name and content type.
+ * <p>
+ * The same attachment is usually sent to many recipients: the cached headers and encoded content are spliced into
+ * each outgoing message instead of encoding the attachment again for every one of them.
+ */
+@Component
+public class EncodedAttachmentCache {
+
+    private static final String CONTENT_TYPE = "Content-Type";
+    private static final String CONTENT_TRANSFER_ENCODING = "Content-Transfer-Encoding";
+    private static final String BASE64 = "base64";
+
+    private final long maxSizeBytes;
+
+    private final long maxEntrySizeBytes;
+
+    private final LinkedHashMap<Key, EncodedPart> encodedParts = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long sizeBytes;
+
+    private final Counter hits;
+
+    private final Counter misses;
+
+    public EncodedAttachmentCache(
+        @Value("${email-sender.attachment.encoded-cache.max-size.bytes}") long maxSizeBytes,
+        @Value("${email-sender.attachment.encoded-cache.max-entry-size.bytes}") long maxEntrySizeBytes,
+        MeterRegistry meterRegistry) {
+
+        this.maxSizeBytes = maxSizeBytes;
+        this.maxEntrySizeBytes = maxEntrySizeBytes;
+        this.hits = cacheRequestsCounter("hit", meterRegistry);
+        this.misses = cacheRequestsCounter("miss", meterRegistry);
+    }
+
+    /**
+     * Returns a new attachment body part with the encoded content, or empty if the content cannot be cached because it
+     * is too big or its hash is unknown.
+     */
+    public Optional<MimeBodyPart> getAttachmentPart(String name, DownloadedContent content)
+        throws MessagingException, IOException {
+
+        if (content.getContentHash() == null || content.getSize() > maxEntrySizeBytes) {
+            return Optional.empty();
+        }
+
+        Key key = new Key(content.getContentHash(), name, content.getContentType());
+        EncodedPart encodedPart = get(key);
+        if (encodedPart == null) {
+            misses.increment();
+            encodedPart = encode(name, content);
+            put(key, encodedPart);
+        } else {
+            hits.increment();
+        }
+        return Optional.of(encodedPart.toMimeBodyPart());
+    }
+
+    @Nullable
+    private synchronized EncodedPart get(Key key) {
+        return encodedParts.get(key);
+    }
+
+    private synchronized void put(Key key, EncodedPart encodedPart) {
+        EncodedPart replacedPart = encodedParts.put(key, encodedPart);
+        if (replacedPart != null) {
+            sizeBytes -= replacedPart.getSize();
+        }
+        sizeBytes += encodedPart.getSize();
+        Iterator<EncodedPart> leastRecentlyUsed = encodedParts.values().iterator();
+        while (sizeBytes > maxSizeBytes && leastRecentlyUsed.hasNext()) {
+            sizeBytes -= leastRecentlyUsed.next().getSize();
+            leastRecentlyUsed.remove();
+        }
+    }
+
+    private static EncodedPart encode(String name, DownloadedContent content) throws MessagingException, IOException {
+        //same headers as MimeMessageHelper.addAttachment
+        MimeBodyPart headersTemplate = new MimeBodyPart();
+        headersTemplate.setHeader(CONTENT_TYPE, content.getContentType());
+        headersTemplate.setDisposition(Part.ATTACHMENT);
+        headersTemplate.setFileName(encodeFileName(name));
+        headersTemplate.setHeader(CONTENT_TRANSFER_ENCODING, BASE64);
+        List<String> headerLines = new ArrayList<>();
+        Enumeration<String> allHeaderLines = headersTemplate.getAllHeaderLines();
+        while (allHeaderLines.hasMoreElements()) {
+            headerLines.add(allHeaderLines.nextElement());
+        }
+
+        FastByteArrayOutputStream encodedContent = new FastByteArrayOutputStream((int) (content.getSize() * 4 / 3 + 64));
+        try (InputStream inputStream = content.getContent().getInputStream();
+            OutputStream encoder = Base64.getMimeEncoder().wrap(encodedContent)) {
+            inputStream.transferTo(encoder);
+        }
+        return new EncodedPart(Collections.unmodifiableList(headerLines), encodedContent.toByteArrayUnsafe());
+    }
+
+    private static String encodeFileName(String name) {
+        try {
+            return MimeUtility.encodeText(name);
+        } catch (UnsupportedEncodingException e) {
+            return name;
+        }
+    }
+
+    private static Counter cacheRequestsCounter(String result, MeterRegistry meterRegistry) {
+        return Counter.builder("email.sender.attachment.encoded-cache.requests")
+            .description("Encoded attachment cache lookups")
+            .tag("result", result)
+            .register(meterRegistry);
+    }
+
+    @lombok.Value
+    private static class Key {
+        String contentHash;
+        String name;
+        String contentType;
+    }
+
+    @lombok.Value
+    private static class EncodedPart {
+        List<String> headerLines;
+        byte[] encodedContent;
+
+        long getSize() {
+            return encodedContent.length;
+        }
+
+        /**
+         * The encoded content is written as is, it is shared by all the returned parts and never modified.
+         */
+        MimeBodyPart toMimeBodyPart() throws MessagingException {
+            InternetHeaders headers = new InternetHeaders();
+            headerLines.forEach(headers::addHeaderLine);
+            return new MimeBodyPart(headers, encodedContent);
+        }
+    }
+}
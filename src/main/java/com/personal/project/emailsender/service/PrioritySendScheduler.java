@@ -0,0 +1,173 @@
+package com.personal.project.emailsender.service;
+
+import com.personal.project.emailsender.dto.Priority;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.lang.Nullable;
+import org.springframework.mail.MailSendException;
+import org.springframework.stereotype.Component;
+
+/**
+ * Shares the concurrent SMTP sends among the priorities, so that the transactional emails are not queued behind a
+ * campaign.
+ * <p>
+ * A free send slot goes to whoever asks for it. When the sends of several priorities are waiting, the slots are
+ * handed out by stride scheduling: each priority gets a share of the released slots proportional to its weight, and
+ * the share of a priority with nothing to send goes to the others. A priority that has been idle does not accumulate
+ * credit, it restarts from the current position of the schedule. A {@code max-concurrent-sends} of 0 disables the
+ * scheduling.
+ */
+@Component
+public class PrioritySendScheduler {
+
+    private static final long STRIDE_SCALE = 1 << 20;
+
+    private final int maxConcurrentSends;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Map<Priority, Lane> lanes = new EnumMap<>(Priority.class);
+
+    private int availableSends;
+
+    /**
+     * Pass of the last lane served, where the lanes that start waiting again resume from.
+     */
+    private long currentPass;
+
+    public PrioritySendScheduler(@Value("${email-sender.priority.max-concurrent-sends}") int maxConcurrentSends,
+        @Value("${email-sender.priority.weight.high}") int highWeight,
+        @Value("${email-sender.priority.weight.normal}") int normalWeight,
+        @Value("${email-sender.priority.weight.bulk}") int bulkWeight,
+        MeterRegistry meterRegistry) {
+
+        this.maxConcurrentSends = maxConcurrentSends;
+        this.availableSends = maxConcurrentSends;
+        lanes.put(Priority.HIGH, new Lane(Priority.HIGH, highWeight, meterRegistry));
+        lanes.put(Priority.NORMAL, new Lane(Priority.NORMAL, normalWeight, meterRegistry));
+        lanes.put(Priority.BULK, new Lane(Priority.BULK, bulkWeight, meterRegistry));
+    }
+
+    /**
+     * Waits for a send slot of the given priority, to be closed once the messages have been sent.
+     *
+     * @throws MailSendException if interrupted while waiting
+     */
+    public Permit acquire(@Nullable Priority priority) {
+        if (maxConcurrentSends <= 0) {
+            return Permit.UNLIMITED;
+        }
+        Lane lane = lanes.get(priority == null ? Priority.NORMAL : priority);
+        long waitStart = System.nanoTime();
+        lock.lock();
+        try {
+            if (lane.waiting++ == 0) {
+                lane.pass = Math.max(lane.pass, currentPass);
+            }
+            try {
+                while (availableSends == 0 || nextLane() != lane) {
+                    lane.turn.await();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                lane.waiting--;
+                //the turn may have been given to this lane
+                signalNextLane();
+                throw new MailSendException("Interrupted while waiting to send a " + lane.priority + " email", e);
+            }
+            lane.waiting--;
+            availableSends--;
+            currentPass = lane.pass;
+            lane.pass += lane.stride;
+            signalNextLane();
+        } finally {
+            lock.unlock();
+            lane.waitTimer.record(System.nanoTime() - waitStart, TimeUnit.NANOSECONDS);
+        }
+        return new Permit(this);
+    }
+
+    private void release() {
+        lock.lock();
+        try {
+            availableSends++;
+            signalNextLane();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void signalNextLane() {
+        Lane nextLane = availableSends > 0 ? nextLane() : null;
+        if (nextLane != null) {
+            nextLane.turn.signal();
+        }
+    }
+
+    /**
+     * @return the waiting lane with the lowest pass, the highest priority first on a tie
+     */
+    @Nullable
+    private Lane nextLane() {
+        Lane nextLane = null;
+        for (Lane lane : lanes.values()) {
+            if (lane.waiting > 0 && (nextLane == null || lane.pass < nextLane.pass)) {
+                nextLane = lane;
+            }
+        }
+        return nextLane;
+    }
+
+    public static class Permit implements AutoCloseable {
+
+        static final Permit UNLIMITED = new Permit(null);
+
+        @Nullable
+        private PrioritySendScheduler scheduler;
+
+        Permit(@Nullable PrioritySendScheduler scheduler) {
+            this.scheduler = scheduler;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (scheduler != null) {
+                scheduler.release();
+                scheduler = null;
+            }
+        }
+    }
+
+    private class Lane {
+
+        private final Priority priority;
+
+        private final long stride;
+
+        private final Condition turn = lock.newCondition();
+
+        private final Timer waitTimer;
+
+        private int waiting;
+
+        private long pass;
+
+        Lane(Priority priority, int weight, MeterRegistry meterRegistry) {
+            if (weight <= 0) {
+                throw new IllegalArgumentException("The weight of the " + priority + " priority must be positive");
+            }
+            this.priority = priority;
+            this.stride = STRIDE_SCALE / weight;
+            this.waitTimer = Timer.builder("email.sender.priority.wait")
+                .description("Time spent waiting for a send slot")
+                .tag("priority", priority.name().toLowerCase())
+                .register(meterRegistry);
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.personal.project.emailsender.service;
+
+import org.springframework.mail.MailSendException;
+
+/**
+ * The email has not been sent because the rate limits of its recipient domain or sender did not allow it within the
+ * maximum delay: it can be retried later.
+ */
+public class RateLimitExceededException extends MailSendException {
+
+    public RateLimitExceededException(String msg) {
+        super(msg);
+    }
+}
@@ -0,0 +1,269 @@
+package com.personal.project.emailsender.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import javax.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+/**
+ * Index of the idempotency keys of the emails already sent, checked before each send so that the emails delivered
+ * again by kafka (after a rebalance, a crash before the offset commit or the retry of a batch) are not sent twice.
+ * <p>
+ * The keys are stored as 128-bit hashes with their expiry in a fixed-size hash table, in a memory-mapped file that
+ * survives the restarts. A key is stored in a window of {@value #PROBE_WINDOW} slots from its hash, replacing an
+ * expired entry or, when the window is full, the one expiring first: with twice as many slots as {@code max-entries}
+ * the index holds about that many keys, each for the TTL, in a file of constant size. An in-heap bloom filter in
+ * front of the table answers most of the lookups of new keys without reading the file.
+ * <p>
+ * The file is not synced on every write, the keys marked just before a crash of the machine (not of the process) can
+ * be lost. A {@code max-entries} of 0 disables the index.
+ */
+@Slf4j
+@Component
+public class SentEmailIndex implements Closeable {
+
+    static final int PROBE_WINDOW = 16;
+
+    private static final int MAGIC = 0x53454931;
+
+    private static final int HEADER_SIZE = 16;
+
+    private static final int SLOT_SIZE = 3 * Long.BYTES;
+
+    private static final double BLOOM_FILTER_FALSE_POSITIVE_RATE = 0.01;
+
+    private final Duration ttl;
+
+    private final int slots;
+
+    @Nullable
+    private final FileChannel channel;
+
+    @Nullable
+    private final MappedByteBuffer table;
+
+    private final Counter evictions;
+
+    private BloomFilter bloomFilter;
+
+    @Autowired
+    public SentEmailIndex(@Value("${email-sender.idempotency.max-entries}") int maxEntries,
+        @Value("${email-sender.idempotency.ttl.ms}") long ttlMs,
+        @Value("${email-sender.idempotency.file}") String file, MeterRegistry meterRegistry) throws IOException {
+
+        this(maxEntries, Duration.ofMillis(ttlMs), Paths.get(file), meterRegistry);
+    }
+
+    public SentEmailIndex(int maxEntries, Duration ttl, Path file, MeterRegistry meterRegistry) throws IOException {
+        this.ttl = ttl;
+        this.evictions = Counter.builder("email.sender.idempotency.evictions")
+            .description("Idempotency keys replaced before their expiry because the index is full")
+            .register(meterRegistry);
+        if (maxEntries <= 0) {
+            this.slots = 0;
+            this.channel = null;
+            this.table = null;
+            return;
+        }
+
+        long tableSlots = Long.highestOneBit(Math.max(PROBE_WINDOW, 2L * maxEntries - 1)) << 1;
+        long fileSize = HEADER_SIZE + tableSlots * SLOT_SIZE;
+        if (fileSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many idempotency keys: " + maxEntries);
+        }
+        this.slots = (int) tableSlots;
+        if (Files.exists(file) && !isValid(file, fileSize)) {
+            log.info("Discarding the sent email index {} created with different settings", file);
+            Files.delete(file);
+        }
+        Path directory = file.toAbsolutePath().getParent();
+        if (directory != null) {
+            Files.createDirectories(directory);
+        }
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+        this.table = channel.map(MapMode.READ_WRITE, 0, fileSize);
+        table.putInt(0, MAGIC);
+        table.putLong(Long.BYTES, slots);
+        rebuildBloomFilter();
+    }
+
+    /**
+     * @return whether an email with this key has been marked as sent within the TTL
+     */
+    public boolean isSent(@Nullable String idempotencyKey) {
+        if (table == null || idempotencyKey == null) {
+            return false;
+        }
+        long hash1 = hash(idempotencyKey, 0xcbf29ce484222325L);
+        long hash2 = hash(idempotencyKey, 0x9e3779b97f4a7c15L);
+        synchronized (this) {
+            if (!bloomFilter.mightContain(hash1, hash2)) {
+                return false;
+            }
+            int start = (int) hash1 & (slots - 1);
+            for (int i = 0; i < PROBE_WINDOW; i++) {
+                int offset = offset((start + i) & (slots - 1));
+                long expiresAt = table.getLong(offset + 2 * Long.BYTES);
+                if (expiresAt == 0) {
+                    //never used, the key would have been stored here or before
+                    return false;
+                }
+                if (table.getLong(offset) == hash1 && table.getLong(offset + Long.BYTES) == hash2) {
+                    return expiresAt > System.currentTimeMillis();
+                }
+            }
+            return false;
+        }
+    }
+
+    public void markSent(@Nullable String idempotencyKey) {
+        if (table == null || idempotencyKey == null) {
+            return;
+        }
+        long hash1 = hash(idempotencyKey, 0xcbf29ce484222325L);
+        long hash2 = hash(idempotencyKey, 0x9e3779b97f4a7c15L);
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            int start = (int) hash1 & (slots - 1);
+            int target = -1;
+            int firstExpired = -1;
+            int oldest = -1;
+            long oldestExpiresAt = Long.MAX_VALUE;
+            for (int i = 0; i < PROBE_WINDOW && target < 0; i++) {
+                int slot = (start + i) & (slots - 1);
+                int offset = offset(slot);
+                long expiresAt = table.getLong(offset + 2 * Long.BYTES);
+                if (expiresAt == 0
+                    || table.getLong(offset) == hash1 && table.getLong(offset + Long.BYTES) == hash2) {
+                    target = slot;
+                } else if (expiresAt <= now && firstExpired < 0) {
+                    firstExpired = slot;
+                } else if (expiresAt < oldestExpiresAt) {
+                    oldest = slot;
+                    oldestExpiresAt = expiresAt;
+                }
+            }
+            if (target < 0 && firstExpired >= 0) {
+                target = firstExpired;
+            } else if (target < 0) {
+                target = oldest;
+                evictions.increment();
+            }
+
+            int offset = offset(target);
+            table.putLong(offset, hash1);
+            table.putLong(offset + Long.BYTES, hash2);
+            table.putLong(offset + 2 * Long.BYTES, now + ttl.toMillis());
+            bloomFilter.add(hash1, hash2);
+            //the bloom filter cannot forget the replaced keys, rebuild it before it fills up
+            if (bloomFilter.getCount() > 2L * slots) {
+                rebuildBloomFilter();
+            }
+        }
+    }
+
+    @PreDestroy
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null && channel.isOpen()) {
+            table.force();
+            channel.close();
+        }
+    }
+
+    private synchronized void rebuildBloomFilter() {
+        bloomFilter = new BloomFilter(2L * slots, BLOOM_FILTER_FALSE_POSITIVE_RATE);
+        long now = System.currentTimeMillis();
+        for (int slot = 0; slot < slots; slot++) {
+            int offset = offset(slot);
+            if (table.getLong(offset + 2 * Long.BYTES) > now) {
+                bloomFilter.add(table.getLong(offset), table.getLong(offset + Long.BYTES));
+            }
+        }
+    }
+
+    private static int offset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private static boolean isValid(Path file, long fileSize) throws IOException {
+        try (FileChannel existing = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            existing.read(header, 0);
+            return existing.size() == fileSize && header.getInt(0) == MAGIC
+                && header.getLong(Long.BYTES) == (fileSize - HEADER_SIZE) / SLOT_SIZE;
+        }
+    }
+
+    /**
+     * FNV-1a over the characters of the key, finalized with the mix of MurmurHash3.
+     */
+    private static long hash(String key, long seed) {
+        long hash = seed;
+        for (int i = 0; i < key.length(); i++) {
+            hash = (hash ^ key.charAt(i)) * 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    private static class BloomFilter {
+
+        private final long[] bits;
+
+        private final long bitCount;
+
+        private final int hashCount;
+
+        private long count;
+
+        BloomFilter(long expectedEntries, double falsePositiveRate) {
+            long optimalBitCount = (long) Math.ceil(-expectedEntries * Math.log(falsePositiveRate)
+                / (Math.log(2) * Math.log(2)));
+            this.bits = new long[(int) Math.max(1, (optimalBitCount + Long.SIZE - 1) / Long.SIZE)];
+            this.bitCount = (long) bits.length * Long.SIZE;
+            this.hashCount = Math.max(1, (int) Math.round((double) bitCount / expectedEntries * Math.log(2)));
+        }
+
+        void add(long hash1, long hash2) {
+            for (int i = 0; i < hashCount; i++) {
+                long bit = Math.floorMod(hash1 + i * hash2, bitCount);
+                bits[(int) (bit >>> 6)] |= 1L << bit;
+            }
+            count++;
+        }
+
+        boolean mightContain(long hash1, long hash2) {
+            for (int i = 0; i < hashCount; i++) {
+                long bit = Math.floorMod(hash1 + i * hash2, bitCount);
+                if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+}
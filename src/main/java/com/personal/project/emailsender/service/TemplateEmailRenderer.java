@@ -0,0 +1,133 @@
+package com.personal.project.emailsender.service;
+
+import com.personal.project.emailsender.dto.EmailDTO;
+import com.personal.project.emailsender.dto.Priority;
+import com.personal.project.emailsender.dto.RecipientDTO;
+import com.personal.project.emailsender.dto.TemplateEmailDTO;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Expands a template email into the emails of its recipients.
+ * <p>
+ * The templates are parsed once into their literal and variable parts, and kept in a LRU cache, so that rendering
+ * the email of each recipient only concatenates the parts. The variables missing for a recipient are rendered empty.
+ * <p>
+ * The idempotency key of each email is a hash of the key of the template email and the recipient, of a fixed length
+ * that fits the size limit of the email keys whatever the lengths of the two.
+ */
+@Component
+public class TemplateEmailRenderer {
+
+    private static final String VARIABLE_START = "{{";
+    private static final String VARIABLE_END = "}}";
+
+    private final Map<String, CompiledTemplate> compiledTemplates;
+
+    public TemplateEmailRenderer(@Value("${email-sender.template.cache.max-entries}") int maxCachedTemplates) {
+        this.compiledTemplates = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CompiledTemplate> eldest) {
+                return size() > maxCachedTemplates;
+            }
+        });
+    }
+
+    public List<EmailDTO> expand(TemplateEmailDTO templateEmailDTO) {
+        CompiledTemplate subject = compile(templateEmailDTO.getSubject());
+        CompiledTemplate body = compile(templateEmailDTO.getBody());
+        Priority priority = templateEmailDTO.getPriority() == null ? Priority.BULK : templateEmailDTO.getPriority();
+        MessageDigest keyDigest = templateEmailDTO.getIdempotencyKey() == null ? null : newKeyDigest();
+        List<EmailDTO> emailDTOs = new ArrayList<>(templateEmailDTO.getRecipients().size());
+        for (RecipientDTO recipient : templateEmailDTO.getRecipients()) {
+            Map<String, String> variables = recipient.getVariables() == null ? Map.of() : recipient.getVariables();
+            String idempotencyKey = keyDigest == null
+                ? null
+                : idempotencyKey(keyDigest, templateEmailDTO.getIdempotencyKey(), recipient.getTo());
+            emailDTOs.add(new EmailDTO(templateEmailDTO.getFrom(), recipient.getTo(), subject.render(variables),
+                body.render(variables), templateEmailDTO.getAttachment(), idempotencyKey, priority));
+        }
+        return emailDTOs;
+    }
+
+    /**
+     * @return the url safe base64 of the SHA-256 of the template key and the recipient, 43 characters long
+     */
+    private static String idempotencyKey(MessageDigest keyDigest, String templateKey, String recipient) {
+        keyDigest.update(templateKey.getBytes(StandardCharsets.UTF_8));
+        keyDigest.update((byte) ':');
+        keyDigest.update(recipient.getBytes(StandardCharsets.UTF_8));
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(keyDigest.digest());
+    }
+
+    private static MessageDigest newKeyDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private CompiledTemplate compile(String template) {
+        return compiledTemplates.computeIfAbsent(template, CompiledTemplate::parse);
+    }
+
+    /**
+     * A template split in literal parts, at the even indexes, and variable names, at the odd indexes.
+     */
+    private static class CompiledTemplate {
+
+        private final String[] parts;
+
+        private final int literalsLength;
+
+        private CompiledTemplate(List<String> parts) {
+            this.parts = parts.toArray(new String[0]);
+            int length = 0;
+            for (int i = 0; i < this.parts.length; i += 2) {
+                length += this.parts[i].length();
+            }
+            this.literalsLength = length;
+        }
+
+        static CompiledTemplate parse(String template) {
+            List<String> parts = new ArrayList<>();
+            int position = 0;
+            while (true) {
+                int start = template.indexOf(VARIABLE_START, position);
+                int end = start < 0 ? -1 : template.indexOf(VARIABLE_END, start + VARIABLE_START.length());
+                if (end < 0) {
+                    parts.add(template.substring(position));
+                    return new CompiledTemplate(parts);
+                }
+                parts.add(template.substring(position, start));
+                parts.add(template.substring(start + VARIABLE_START.length(), end).trim());
+                position = end + VARIABLE_END.length();
+            }
+        }
+
+        String render(Map<String, String> variables) {
+            if (parts.length == 1) {
+                return parts[0];
+            }
+            StringBuilder rendered = new StringBuilder(literalsLength + 16 * (parts.length / 2));
+            for (int i = 0; i < parts.length; i++) {
+                if (i % 2 == 0) {
+                    rendered.append(parts[i]);
+                } else {
+                    rendered.append(variables.getOrDefault(parts[i], ""));
+                }
+            }
+            return rendered.toString();
+        }
+    }
+}
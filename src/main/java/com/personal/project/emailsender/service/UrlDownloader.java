@@ -1,15 +1,117 @@
 package com.personal.project.emailsender.service;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Optional;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
 import lombok.Value;
+import lombok.With;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.lang.Nullable;
 
 public interface UrlDownloader {
 
+    /**
+     * Downloads the content of the given url. The returned content must be closed once it has been consumed.
+     */
     DownloadedContent downloadContent(String url) throws IOException;
 
+    /**
+     * Downloads the content of the given url unless its entity tag still matches the given one.
+     *
+     * @return the downloaded content, or empty if the content has not been modified
+     */
+    default Optional<DownloadedContent> downloadContentIfNoneMatch(String url, String etag) throws IOException {
+        return Optional.of(downloadContent(url));
+    }
+
+    /**
+     * Downloaded content, either kept in memory or spilled to a temporary file. The content is opened lazily, every
+     * time its input stream is requested, and it is released on {@link #close()}.
+     */
     @Value
-    class DownloadedContent {
+    @AllArgsConstructor(access = AccessLevel.PRIVATE)
+    class DownloadedContent implements Closeable {
         String contentType;
-        byte[] content;
+        Resource content;
+        long size;
+        @With
+        CacheHints cacheHints;
+        /**
+         * Hash identifying the content, null if unknown.
+         */
+        @With @Nullable
+        String contentHash;
+        @Getter(AccessLevel.NONE) @EqualsAndHashCode.Exclude @ToString.Exclude
+        Closeable onClose;
+
+        public static DownloadedContent inMemory(String contentType, byte[] content) {
+            return new DownloadedContent(contentType, new ByteArrayResource(content), content.length, CacheHints.NONE,
+                null, () -> {
+                });
+        }
+
+        public static DownloadedContent spilled(String contentType, Path file, long size) {
+            return new DownloadedContent(contentType, new FileSystemResource(file), size, CacheHints.NONE, null,
+                () -> Files.deleteIfExists(file));
+        }
+
+        /**
+         * Content shared with other readers, {@code onRelease} is called when this reader is done with it.
+         */
+        public static DownloadedContent shared(String contentType, Resource content, long size, Closeable onRelease) {
+            return new DownloadedContent(contentType, content, size, CacheHints.NONE, null, onRelease);
+        }
+
+        @Override
+        public void close() throws IOException {
+            onClose.close();
+        }
+    }
+
+    /**
+     * Caching directives sent by the server along with the content.
+     */
+    @Value
+    class CacheHints {
+        public static final CacheHints NONE = new CacheHints(null, null, false);
+
+        @Nullable String etag;
+        @Nullable Duration maxAge;
+        boolean noStore;
+
+        /**
+         * Parses the {@code ETag} and {@code Cache-Control} response headers.
+         */
+        public static CacheHints of(@Nullable String etag, @Nullable String cacheControl) {
+            Duration maxAge = null;
+            boolean noStore = false;
+            if (cacheControl != null) {
+                for (String directive : cacheControl.toLowerCase().split(",")) {
+                    directive = directive.trim();
+                    if (directive.equals("no-store")) {
+                        noStore = true;
+                    } else if (directive.equals("no-cache")) {
+                        maxAge = Duration.ZERO;
+                    } else if (directive.startsWith("max-age=") && maxAge == null) {
+                        try {
+                            maxAge = Duration.ofSeconds(Long.parseLong(directive.substring("max-age=".length())));
+                        } catch (NumberFormatException e) {
+                            maxAge = Duration.ZERO;
+                        }
+                    }
+                }
+            }
+            return new CacheHints(etag, maxAge, noStore);
+        }
     }
 }
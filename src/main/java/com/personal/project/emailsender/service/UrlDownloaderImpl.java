@@ -1,22 +1,386 @@
 package com.personal.project.emailsender.service;
 
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.URL;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URI;
 import java.net.URLConnection;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Service;
 
+/**
+ * Downloads the attachments keeping the small ones in memory and spilling the ones bigger than the threshold to a
+ * temporary file, so that large attachments are streamed instead of being held in the heap.
+ * <p>
+ * The http(s) urls are downloaded with a shared {@link HttpClient}, which reuses the connections (multiplexing them
+ * over HTTP/2 when the server supports it) and is limited to a maximum number of concurrent downloads per host, the
+ * downloads waiting longer than the permit timeout for one of them fail. The response headers have to be received
+ * within the read timeout, and the body is read as long as no more than the read timeout passes without receiving
+ * any of it, so that large attachments from slow hosts still complete. The other schemes are opened with a plain
+ * {@link URLConnection}.
+ */
 @Slf4j
 @Service
 public class UrlDownloaderImpl implements UrlDownloader{
 
+    private static final String GZIP_ENCODING = "gzip";
+
+    private final int spillThresholdBytes;
+
+    private final Path spillDirectory;
+
+    private final Duration readTimeout;
+
+    private final long permitTimeoutMs;
+
+    private final int maxConcurrentDownloadsPerHost;
+
+    private final long maxBodySizeBytes;
+
+    private final HttpClient httpClient;
+
+    /**
+     * Only holds the hosts with downloads in progress or waiting for a permit, so that it does not grow with every host
+     * ever downloaded from.
+     */
+    private final Map<String, HostPermits> hostPermits = new ConcurrentHashMap<>();
+
+    private final MeterRegistry meterRegistry;
+
+    private final DistributionSummary downloadSize;
+
+    public UrlDownloaderImpl(@Value("${email-sender.attachment.spill-threshold.bytes}") int spillThresholdBytes,
+        @Value("${email-sender.attachment.spill-directory:#{systemProperties['java.io.tmpdir']}}") String spillDirectory,
+        @Value("${email-sender.attachment.http.connect-timeout.ms}") long connectTimeoutMs,
+        @Value("${email-sender.attachment.http.read-timeout.ms}") long readTimeoutMs,
+        @Value("${email-sender.attachment.http.permit-timeout.ms}") long permitTimeoutMs,
+        @Value("${email-sender.attachment.http.max-connections-per-host}") int maxConcurrentDownloadsPerHost,
+        @Value("${email-sender.attachment.max-size.bytes}") long maxBodySizeBytes, MeterRegistry meterRegistry) {
+
+        this.spillThresholdBytes = spillThresholdBytes;
+        this.spillDirectory = Paths.get(spillDirectory);
+        this.readTimeout = Duration.ofMillis(readTimeoutMs);
+        this.permitTimeoutMs = permitTimeoutMs;
+        this.maxConcurrentDownloadsPerHost = maxConcurrentDownloadsPerHost;
+        this.maxBodySizeBytes = maxBodySizeBytes;
+        this.httpClient = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .connectTimeout(Duration.ofMillis(connectTimeoutMs))
+            .build();
+        this.meterRegistry = meterRegistry;
+        this.downloadSize = DistributionSummary.builder("email.sender.attachment.download.size")
+            .description("Size of the downloaded attachments")
+            .baseUnit("bytes")
+            .register(meterRegistry);
+    }
+
     @Override
     public DownloadedContent downloadContent(String url) throws IOException {
+        return timedDownload(url, null)
+            .orElseThrow(() -> new IOException("Unexpected not modified response for " + url));
+    }
+
+    @Override
+    public Optional<DownloadedContent> downloadContentIfNoneMatch(String url, String etag) throws IOException {
+        return timedDownload(url, etag);
+    }
+
+    private Optional<DownloadedContent> timedDownload(String url, @Nullable String etag) throws IOException {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        String result = "failure";
+        try {
+            Optional<DownloadedContent> downloadedContent = download(url, etag);
+            downloadedContent.ifPresent(content -> downloadSize.record(content.getSize()));
+            result = downloadedContent.isPresent() ? "success" : "not-modified";
+            return downloadedContent;
+        } finally {
+            sample.stop(meterRegistry.timer("email.sender.attachment.download", "result", result));
+        }
+    }
+
+    private Optional<DownloadedContent> download(String url, @Nullable String etag) throws IOException {
         log.debug("Downloading attachment from URL: {}", url);
-        URLConnection urlConnection = new URL(url).openConnection();
-        try (InputStream inputStream = urlConnection.getInputStream()) {
-            return new DownloadedContent(urlConnection.getContentType(), inputStream.readAllBytes());
+        URI uri = URI.create(url);
+        if (!"http".equalsIgnoreCase(uri.getScheme()) && !"https".equalsIgnoreCase(uri.getScheme())) {
+            URLConnection urlConnection = uri.toURL().openConnection();
+            try (InputStream inputStream = urlConnection.getInputStream()) {
+                return Optional.of(readContent(urlConnection.getContentType(), urlConnection.getContentLengthLong(),
+                    CacheHints.NONE, inputStream));
+            }
+        }
+        String host = uri.getHost() + ":" + uri.getPort();
+        Semaphore permits = acquireHostPermits(host);
+        try {
+            if (!permits.tryAcquire(permitTimeoutMs, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Timed out waiting for a connection to " + uri.getHost());
+            }
+            try {
+                return download(uri, etag);
+            } finally {
+                permits.release();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while downloading " + url);
+        } finally {
+            releaseHostPermits(host);
+        }
+    }
+
+    private Semaphore acquireHostPermits(String host) {
+        return hostPermits.compute(host, (key, permits) -> {
+            HostPermits current = permits != null ? permits : new HostPermits(maxConcurrentDownloadsPerHost);
+            current.users++;
+            return current;
+        }).semaphore;
+    }
+
+    private void releaseHostPermits(String host) {
+        hostPermits.computeIfPresent(host, (key, permits) -> --permits.users == 0 ? null : permits);
+    }
+
+    int getHostPermitsCount() {
+        return hostPermits.size();
+    }
+
+    private Optional<DownloadedContent> download(URI uri, @Nullable String etag)
+        throws IOException, InterruptedException {
+
+        HttpRequest.Builder request = HttpRequest.newBuilder(uri)
+            .timeout(readTimeout)
+            .header(HttpHeaders.ACCEPT_ENCODING, GZIP_ENCODING);
+        if (etag != null) {
+            request.header(HttpHeaders.IF_NONE_MATCH, etag);
+        }
+        HttpResponse<InputStream> response = httpClient.send(request.build(), BodyHandlers.ofInputStream());
+        //the request timeout only covers the response headers, the body is closed when it stops coming
+        try (IdleTimeoutInputStream body = new IdleTimeoutInputStream(response.body(), readTimeout.toNanos())) {
+            try {
+                return readResponse(uri, response, body);
+            } catch (IOException e) {
+                if (body.isTimedOut()) {
+                    throw new IOException("Timed out reading the attachment from " + uri, e);
+                }
+                throw e;
+            }
+        }
+    }
+
+    private Optional<DownloadedContent> readResponse(URI uri, HttpResponse<?> response, InputStream body)
+        throws IOException {
+
+        if (response.statusCode() == HttpStatus.NOT_MODIFIED.value()) {
+            log.debug("Attachment not modified: {}", uri);
+            return Optional.empty();
+        }
+        //not through HttpStatus, which does not know every status code a server may return
+        if (response.statusCode() / 100 != 2) {
+            throw new IOException("Server returned HTTP response code: " + response.statusCode() + " for URL: " + uri);
+        }
+        java.net.http.HttpHeaders headers = response.headers();
+        CacheHints cacheHints = CacheHints.of(headers.firstValue(HttpHeaders.ETAG).orElse(null),
+            headers.firstValue(HttpHeaders.CACHE_CONTROL).orElse(null));
+        String contentType = headers.firstValue(HttpHeaders.CONTENT_TYPE).orElse(null);
+        if (GZIP_ENCODING.equalsIgnoreCase(headers.firstValue(HttpHeaders.CONTENT_ENCODING).orElse(null))) {
+            return Optional.of(readContent(contentType, -1, cacheHints, new GZIPInputStream(body)));
+        }
+        long contentLength = headers.firstValueAsLong(HttpHeaders.CONTENT_LENGTH).orElse(-1);
+        return Optional.of(readContent(contentType, contentLength, cacheHints, body));
+    }
+
+    private DownloadedContent readContent(@Nullable String contentType, long contentLength, CacheHints cacheHints,
+        InputStream body) throws IOException {
+
+        if (contentLength > maxBodySizeBytes) {
+            throw new IOException("Attachment of " + contentLength + " bytes exceeds the maximum size of "
+                + maxBodySizeBytes + " bytes");
+        }
+        MessageDigest messageDigest = newContentDigest();
+        InputStream inputStream = new DigestInputStream(new SizeLimitedInputStream(body, maxBodySizeBytes),
+            messageDigest);
+        DownloadedContent downloadedContent;
+        if (contentLength > spillThresholdBytes) {
+            downloadedContent = spill(contentType, new byte[0], inputStream);
+        } else {
+            byte[] head = inputStream.readNBytes(spillThresholdBytes + 1);
+            downloadedContent = head.length <= spillThresholdBytes
+                ? DownloadedContent.inMemory(contentType, head)
+                : spill(contentType, head, inputStream);
+        }
+        String contentHash = Base64.getUrlEncoder().withoutPadding().encodeToString(messageDigest.digest());
+        return downloadedContent.withCacheHints(cacheHints).withContentHash(contentHash);
+    }
+
+    private static MessageDigest newContentDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private DownloadedContent spill(String contentType, byte[] head, InputStream remaining) throws IOException {
+        Path file = Files.createTempFile(spillDirectory, "attachment-", ".tmp");
+        try (OutputStream outputStream = Files.newOutputStream(file)) {
+            outputStream.write(head);
+            long size = head.length + remaining.transferTo(outputStream);
+            log.debug("Spilled attachment of {} bytes to {}", size, file);
+            return DownloadedContent.spilled(contentType, file, size);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+    }
+
+    /**
+     * Per host download permits, with the number of downloads holding or waiting for them.
+     */
+    private static class HostPermits {
+
+        private final Semaphore semaphore;
+
+        private int users;
+
+        HostPermits(int permits) {
+            this.semaphore = new Semaphore(permits);
+        }
+    }
+
+    /**
+     * Closes the body when nothing has been read from it for the read timeout, which makes the blocked read fail. The
+     * check is rescheduled for the time left until the timeout, so it runs about once per read timeout.
+     */
+    private static class IdleTimeoutInputStream extends FilterInputStream implements Runnable {
+
+        private final long timeoutNanos;
+
+        private volatile long lastReadNanos;
+
+        private volatile boolean closed;
+
+        private volatile boolean timedOut;
+
+        IdleTimeoutInputStream(InputStream in, long timeoutNanos) {
+            super(in);
+            this.timeoutNanos = timeoutNanos;
+            this.lastReadNanos = System.nanoTime();
+            schedule(timeoutNanos);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            lastReadNanos = System.nanoTime();
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            lastReadNanos = System.nanoTime();
+            return read;
+        }
+
+        @Override
+        public void run() {
+            if (closed) {
+                return;
+            }
+            long idleNanos = System.nanoTime() - lastReadNanos;
+            if (idleNanos < timeoutNanos) {
+                schedule(timeoutNanos - idleNanos);
+                return;
+            }
+            timedOut = true;
+            try {
+                in.close();
+            } catch (IOException e) {
+                log.warn("Cannot close the timed out attachment download", e);
+            }
+        }
+
+        private void schedule(long delayNanos) {
+            CompletableFuture.delayedExecutor(delayNanos, TimeUnit.NANOSECONDS).execute(this);
+        }
+
+        boolean isTimedOut() {
+            return timedOut;
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            super.close();
+        }
+    }
+
+    /**
+     * Fails the download as soon as the (decoded) content exceeds the maximum size, even when the server did not
+     * declare its length.
+     */
+    private static class SizeLimitedInputStream extends FilterInputStream {
+
+        private final long maxSize;
+
+        private long size;
+
+        SizeLimitedInputStream(InputStream in, long maxSize) {
+            super(in);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count(read);
+            }
+            return read;
+        }
+
+        private void count(int read) throws IOException {
+            size += read;
+            if (size > maxSize) {
+                throw new IOException("Attachment exceeds the maximum size of " + maxSize + " bytes");
+            }
         }
     }
 }
@@ -3,6 +3,7 @@ package com.personal.project.emailsender;
 import static com.personal.project.emailsender.test.utils.AttachmentTestServer.TEST_ATTACHMENT_ENDPOINT;
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
@@ -14,9 +15,15 @@ import com.icegreen.greenmail.junit5.GreenMailExtension;
 import com.icegreen.greenmail.util.ServerSetupTest;
 import com.personal.project.emailsender.dto.AttachmentDTO;
 import com.personal.project.emailsender.dto.EmailDTO;
+import com.personal.project.emailsender.dto.RecipientDTO;
+import com.personal.project.emailsender.dto.TemplateEmailDTO;
 import com.personal.project.emailsender.kafka.consumer.EmailConsumer;
+import com.personal.project.emailsender.service.EmailSenderService;
 import com.personal.project.emailsender.test.utils.AttachmentTestServer;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 import javax.activation.DataSource;
 import javax.mail.Address;
 import javax.mail.Message.RecipientType;
@@ -44,7 +51,9 @@ import org.springframework.test.web.servlet.MockMvc;
 @AutoConfigureMockMvc
 @SpringBootTest(webEnvironment = WebEnvironment.RANDOM_PORT, classes = {EmailSenderApplication.class,
     AttachmentTestServer.class})
-@EmbeddedKafka(partitions = 1, topics = "${email-sender.kafka.topic.emails}")
+@EmbeddedKafka(partitions = 1,
+    topics = {"${email-sender.kafka.topic.emails}", "${email-sender.kafka.topic.high-priority-emails}",
+        "${email-sender.kafka.topic.bulk-emails}", "${email-sender.kafka.topic.template-emails}"})
 public class EmailSenderIntegrationTest {
 
     private static final long CONSUME_EVENTS_TIMEOUT_MS = 5000L;
@@ -71,6 +80,9 @@ public class EmailSenderIntegrationTest {
     @SpyBean
     private EmailConsumer emailConsumer;
 
+    @SpyBean
+    private EmailSenderService emailSenderService;
+
     @Captor
     ArgumentCaptor<EmailDTO> emailDTOArgumentCaptor;
 
@@ -184,14 +196,64 @@ public class EmailSenderIntegrationTest {
         //the request is accepted
         assertEquals(ACCEPTED.value(), response.getStatus());
 
-        //retries to send the email
-        int expectedNumberOfConsumedEvents = listenerRetryAttempts + 1;
-        verify(emailConsumer, timeout(CONSUME_EVENTS_TIMEOUT_MS).times(expectedNumberOfConsumedEvents))
-            .onMessage(emailDTOArgumentCaptor.capture());
+        //the event has been consumed
+        verify(emailConsumer, timeout(CONSUME_EVENTS_TIMEOUT_MS)).onMessage(testEmailDTO);
+
+        //retries to send the email through the retry topics
+        int expectedNumberOfSendAttempts = listenerRetryAttempts + 1;
+        verify(emailSenderService, timeout(CONSUME_EVENTS_TIMEOUT_MS).times(expectedNumberOfSendAttempts))
+            .sendEmail(emailDTOArgumentCaptor.capture());
         EmailDTO actualEmailDTO = emailDTOArgumentCaptor.getValue();
         assertEquals(testEmailDTO, actualEmailDTO);
     }
 
+    @Test
+    public void shouldSendTheTemplateEmailToAllTheRecipients() throws Exception {
+        //given
+        TemplateEmailDTO testTemplateEmailDTO = new TemplateEmailDTO("from@email.com", "Hello {{name}}",
+            "Dear {{name}}", null, List.of(
+                new RecipientDTO("first@email.com", Map.of("name", "First")),
+                new RecipientDTO("second@email.com", Map.of("name", "Second"))));
+
+        //when
+        MockHttpServletResponse response = mockMvc.perform(
+            post("/email/template")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(testTemplateEmailDTO))
+        ).andReturn().getResponse();
+
+        //then
+        //the request has been accepted
+        assertEquals(ACCEPTED.value(), response.getStatus());
+
+        //an email has been received by each recipient
+        assertTrue(greenMail.waitForIncomingEmail(RECEIVE_EMAIL_TIMEOUT_MS, 2));
+        Map<String, String> receivedSubjects = new HashMap<>();
+        for (MimeMessage receivedEmail : greenMail.getReceivedMessages()) {
+            receivedSubjects.put(receivedEmail.getRecipients(RecipientType.TO)[0].toString(),
+                receivedEmail.getSubject());
+        }
+        assertEquals(Map.of("first@email.com", "Hello First", "second@email.com", "Hello Second"), receivedSubjects);
+    }
+
+    @Test
+    public void shouldSendOnceTheEmailPostedTwiceWithTheSameIdempotencyKey() throws Exception {
+        //given
+        EmailDTO testEmailDTO = createTestEmailDTO(null);
+
+        //when
+        postEmailSendRequest(testEmailDTO);
+        postEmailSendRequest(testEmailDTO);
+
+        //then
+        //both events have been consumed
+        verify(emailConsumer, timeout(CONSUME_EVENTS_TIMEOUT_MS).times(2)).onMessage(testEmailDTO);
+
+        //a single email has been received
+        assertTrue(greenMail.waitForIncomingEmail(RECEIVE_EMAIL_TIMEOUT_MS, 1));
+        assertFalse(greenMail.waitForIncomingEmail(1000L, 2));
+    }
+
     private MockHttpServletResponse postEmailSendRequest(EmailDTO emailDTO) throws Exception {
         String testEmailRequest = objectMapper.writeValueAsString(emailDTO);
         return mockMvc.perform(
@@ -202,6 +264,6 @@ public class EmailSenderIntegrationTest {
     }
 
     private static EmailDTO createTestEmailDTO(AttachmentDTO attachment) {
-        return new EmailDTO("from@email.com", "to@email.com", "subj", "text", attachment);
+        return new EmailDTO("from@email.com", "to@email.com", "subj", "text", attachment, UUID.randomUUID().toString());
     }
 }
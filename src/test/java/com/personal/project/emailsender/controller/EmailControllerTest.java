@@ -3,20 +3,29 @@ package com.personal.project.emailsender.controller;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 import static org.springframework.http.HttpStatus.ACCEPTED;
 import static org.springframework.http.HttpStatus.BAD_REQUEST;
+import static org.springframework.http.HttpStatus.OK;
+import static org.springframework.http.HttpStatus.SERVICE_UNAVAILABLE;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.personal.project.emailsender.controller.error.ValidationError;
 import com.personal.project.emailsender.dto.AttachmentDTO;
+import com.personal.project.emailsender.dto.EmailBatchResult;
+import com.personal.project.emailsender.dto.EmailBatchResult.ItemError;
 import com.personal.project.emailsender.dto.EmailDTO;
 import com.personal.project.emailsender.kafka.producer.EmailProducer;
+import com.personal.project.emailsender.service.EmailBatchIngestService;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.List;
 import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
@@ -25,9 +34,12 @@ import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.http.MediaType;
 import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.util.concurrent.SettableListenableFuture;
 
 @WebMvcTest(controllers = EmailController.class)
+@TestPropertySource(properties = "email-sender.api.ack-timeout.ms=100")
 public class EmailControllerTest {
 
     @Autowired
@@ -39,6 +51,9 @@ public class EmailControllerTest {
     @MockBean
     private EmailProducer emailProducer;
 
+    @MockBean
+    private EmailBatchIngestService emailBatchIngestService;
+
     @ParameterizedTest
     @MethodSource("provideValidTestData")
     public void shouldProduceAnEmailEventWhenTheRequestIsValid(EmailDTO testEmailDTO) throws Exception {
@@ -70,6 +85,64 @@ public class EmailControllerTest {
         verify(emailProducer, never()).queueEmail(testEmailDTO);
     }
 
+    @Test
+    public void shouldWaitForTheAcknowledgementWhenRequested() throws Exception {
+        //given
+        EmailDTO testEmailDTO = new EmailDTO("sender@test.com", "receiver@test.com", "subject", "body", null);
+        when(emailProducer.queueEmail(testEmailDTO)).thenReturn(new SettableListenableFuture<>());
+
+        //when
+        MockHttpServletResponse response = mockMvc.perform(
+            post("/email")
+                .param("waitForAck", "true")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(testEmailDTO))
+        ).andReturn().getResponse();
+
+        //then
+        //the request fails as the event is never acknowledged
+        assertEquals(SERVICE_UNAVAILABLE.value(), response.getStatus());
+    }
+
+    @Test
+    public void shouldAcceptTheRequestOnceAcknowledged() throws Exception {
+        //given
+        EmailDTO testEmailDTO = new EmailDTO("sender@test.com", "receiver@test.com", "subject", "body", null);
+        SettableListenableFuture<Void> acknowledgement = new SettableListenableFuture<>();
+        acknowledgement.set(null);
+        when(emailProducer.queueEmail(testEmailDTO)).thenReturn(acknowledgement);
+
+        //when
+        MockHttpServletResponse response = mockMvc.perform(
+            post("/email")
+                .param("waitForAck", "true")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(testEmailDTO))
+        ).andReturn().getResponse();
+
+        //then
+        assertEquals(ACCEPTED.value(), response.getStatus());
+    }
+
+    @Test
+    public void shouldReturnTheSummaryOfTheBulkRequest() throws Exception {
+        //given
+        EmailBatchResult testResult = new EmailBatchResult(2, 1,
+            List.of(new ItemError(1, List.of("to: must not be blank"))), null);
+        when(emailBatchIngestService.ingest(any(InputStream.class))).thenReturn(testResult);
+
+        //when
+        MockHttpServletResponse response = mockMvc.perform(
+            post("/email/batch")
+                .contentType("application/x-ndjson")
+                .content("{}\n{}")
+        ).andReturn().getResponse();
+
+        //then
+        assertEquals(OK.value(), response.getStatus());
+        assertEquals(testResult, objectMapper.readValue(response.getContentAsString(), EmailBatchResult.class));
+    }
+
     private List<String> getValidationErrors(MockHttpServletResponse response) throws IOException {
         return objectMapper.readValue(response.getContentAsString(), ValidationError.class).getValidationErrors();
     }
@@ -0,0 +1,76 @@
+package com.personal.project.emailsender.execution;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.personal.project.emailsender.execution.DeliveryExecutorFactory.Mode;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+public class DeliveryExecutorFactoryTest {
+
+    private static final int MAX_CONCURRENCY = 3;
+    private static final int TASKS = 50;
+
+    @ParameterizedTest
+    @EnumSource(Mode.class)
+    public void shouldNotRunMoreTasksThanTheMaximumConcurrency(Mode mode) throws Exception {
+        //given
+        ExecutorService executor = new DeliveryExecutorFactory(mode).newExecutor("test-", MAX_CONCURRENCY);
+        AtomicInteger runningTasks = new AtomicInteger();
+        AtomicInteger maxRunningTasks = new AtomicInteger();
+        CountDownLatch completedTasks = new CountDownLatch(TASKS);
+
+        //when
+        for (int i = 0; i < TASKS; i++) {
+            executor.execute(() -> {
+                maxRunningTasks.accumulateAndGet(runningTasks.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                runningTasks.decrementAndGet();
+                completedTasks.countDown();
+            });
+        }
+
+        //then
+        assertTrue(completedTasks.await(5, TimeUnit.SECONDS));
+        assertEquals(MAX_CONCURRENCY, maxRunningTasks.get());
+        executor.shutdown();
+    }
+
+    @Test
+    public void shouldStillRunTheTasksInterruptedWhileWaitingForAPermit() throws Exception {
+        //given
+        ExecutorService executor = new DeliveryExecutorFactory.ConcurrencyLimitedExecutorService(
+            Executors.newCachedThreadPool(), 1);
+        CountDownLatch blockingTaskStarted = new CountDownLatch(1);
+        executor.execute(() -> {
+            blockingTaskStarted.countDown();
+            try {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(blockingTaskStarted.await(5, TimeUnit.SECONDS));
+        CompletableFuture<Boolean> waitingTask = new CompletableFuture<>();
+        executor.execute(() -> waitingTask.complete(Thread.currentThread().isInterrupted()));
+
+        //when
+        executor.shutdownNow();
+
+        //then
+        //the task waiting for the permit completes its future, interrupted
+        assertTrue(waitingTask.get(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,166 @@
+package com.personal.project.emailsender.kafka.consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+import com.personal.project.emailsender.dto.EmailDTO;
+import com.personal.project.emailsender.execution.DeliveryExecutorFactory;
+import com.personal.project.emailsender.kafka.config.KafkaConfig;
+import com.personal.project.emailsender.kafka.retry.EmailRetryConsumer;
+import com.personal.project.emailsender.kafka.retry.RetryTopicRecoverer;
+import com.personal.project.emailsender.kafka.retry.RetryTopics;
+import com.personal.project.emailsender.service.EmailSenderService;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.kafka.test.context.EmbeddedKafka;
+import org.springframework.test.annotation.DirtiesContext;
+
+@EnableAutoConfiguration
+@DirtiesContext
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.NONE,
+    classes = {KafkaConfig.class, EmailBatchConsumer.class, DeliveryExecutorFactory.class, RetryTopics.class,
+        RetryTopicRecoverer.class, EmailRetryConsumer.class},
+    properties = {
+        "email-sender.kafka.listener.batch.enabled=true",
+        "email-sender.kafka.listener.parallel.concurrency=4",
+        "email-sender.kafka.listener.parallel.ordering-key=RECIPIENT",
+        //waits for all the test records to be available, so that they are consumed in a single batch
+        "spring.kafka.consumer.fetch-min-size=400",
+        "spring.kafka.consumer.fetch-max-wait=2000"
+    })
+@EmbeddedKafka(partitions = 1, topics = "${email-sender.kafka.topic.emails}")
+public class EmailBatchConsumerParallelTest {
+
+    private static final long CONSUME_EVENTS_TIMEOUT_MS = 5000L;
+
+    @Value("${email-sender.kafka.topic.emails}")
+    private String emailTopic;
+
+    @MockBean
+    private EmailSenderService emailSenderService;
+
+    @Autowired
+    private KafkaTemplate<String, EmailDTO> testProducer;
+
+    @Autowired
+    private EmailBatchConsumer emailBatchConsumer;
+
+    @Test
+    public void shouldSendTheEmailsOfDifferentRecipientsInParallelKeepingTheOrderPerRecipient() throws Exception {
+        //given
+        EmailDTO slowEmailDTO = createTestEmailDTO("slow@email.com", "first");
+        EmailDTO followingEmailDTO = createTestEmailDTO("slow@email.com", "second");
+        EmailDTO fastEmailDTO = createTestEmailDTO("fast@email.com", "first");
+        List<EmailDTO> sentEmails = new CopyOnWriteArrayList<>();
+        //the first email is sent only after the email to the other recipient
+        CountDownLatch fastEmailSent = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            EmailDTO emailDTO = invocation.getArgument(0);
+            if (emailDTO.equals(slowEmailDTO)) {
+                assertTrue(fastEmailSent.await(CONSUME_EVENTS_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            }
+            sentEmails.add(emailDTO);
+            if (emailDTO.equals(fastEmailDTO)) {
+                fastEmailSent.countDown();
+            }
+            return null;
+        }).when(emailSenderService).sendEmail(any());
+
+        //when
+        testProducer.send(emailTopic, slowEmailDTO);
+        testProducer.send(emailTopic, followingEmailDTO);
+        testProducer.send(emailTopic, fastEmailDTO);
+
+        //then
+        verify(emailSenderService, timeout(CONSUME_EVENTS_TIMEOUT_MS)).sendEmail(followingEmailDTO);
+        assertEquals(List.of(fastEmailDTO, slowEmailDTO, followingEmailDTO), sentEmails);
+        verify(emailSenderService, never()).sendEmails(anyList());
+    }
+
+    @Test
+    public void shouldStopTheRunningSendsWhenTheBatchIsInterrupted() throws Exception {
+        //given
+        EmailDTO blockedEmailDTO = createTestEmailDTO("blocked@email.com", "first");
+        EmailDTO followingEmailDTO = createTestEmailDTO("blocked@email.com", "second");
+        List<ConsumerRecord<String, EmailDTO>> records = List.of(
+            new ConsumerRecord<>(emailTopic, 0, 0, null, blockedEmailDTO),
+            new ConsumerRecord<>(emailTopic, 0, 1, null, followingEmailDTO));
+        Acknowledgment acknowledgment = mock(Acknowledgment.class);
+        CountDownLatch sendStarted = new CountDownLatch(1);
+        CountDownLatch sendInterrupted = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            sendStarted.countDown();
+            try {
+                new CountDownLatch(1).await(CONSUME_EVENTS_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                sendInterrupted.countDown();
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        }).when(emailSenderService).sendEmail(blockedEmailDTO);
+        Thread listenerThread = new Thread(() -> {
+            try {
+                emailBatchConsumer.onMessages(records, acknowledgment);
+            } catch (InterruptedException e) {
+                //the container is stopping
+            }
+        });
+        listenerThread.start();
+        assertTrue(sendStarted.await(CONSUME_EVENTS_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        //when
+        listenerThread.interrupt();
+
+        //then
+        //the worker is interrupted and does not send the following email of the batch
+        assertTrue(sendInterrupted.await(CONSUME_EVENTS_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        listenerThread.join(CONSUME_EVENTS_TIMEOUT_MS);
+        verify(emailSenderService, after(200).never()).sendEmail(followingEmailDTO);
+        verify(acknowledgment).nack(anyInt(), anyLong());
+    }
+
+    @Test
+    public void shouldMoveTheRecordsWithoutOrderingKeyAsideWithoutFailingTheBatch() throws Exception {
+        //given
+        EmailDTO validEmailDTO = createTestEmailDTO("valid@email.com", "valid");
+        EmailDTO emailDTOWithoutRecipient = createTestEmailDTO(null, "without recipient");
+        List<ConsumerRecord<String, EmailDTO>> records = List.of(
+            new ConsumerRecord<>(emailTopic, 0, 0, null, emailDTOWithoutRecipient),
+            new ConsumerRecord<>(emailTopic, 0, 1, null, validEmailDTO));
+        Acknowledgment acknowledgment = mock(Acknowledgment.class);
+
+        //when
+        emailBatchConsumer.onMessages(records, acknowledgment);
+
+        //then
+        //the invalid record goes to the dead letter topic, the rest of the batch is sent and committed
+        verify(emailSenderService).sendEmail(validEmailDTO);
+        verify(emailSenderService, never()).sendEmail(emailDTOWithoutRecipient);
+        verify(acknowledgment).acknowledge();
+    }
+
+    private static EmailDTO createTestEmailDTO(String to, String subject) {
+        return new EmailDTO("from@email.com", to, subject, "text", null);
+    }
+}
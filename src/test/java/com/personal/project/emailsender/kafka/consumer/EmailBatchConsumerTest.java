@@ -0,0 +1,165 @@
+package com.personal.project.emailsender.kafka.consumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.personal.project.emailsender.dto.EmailDTO;
+import com.personal.project.emailsender.execution.DeliveryExecutorFactory;
+import com.personal.project.emailsender.kafka.config.KafkaConfig;
+import com.personal.project.emailsender.kafka.retry.EmailRetryConsumer;
+import com.personal.project.emailsender.kafka.retry.RetryTopicRecoverer;
+import com.personal.project.emailsender.kafka.retry.RetryTopics;
+import com.personal.project.emailsender.service.EmailSenderService;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.kafka.core.DefaultKafkaProducerFactory;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.core.ProducerFactory;
+import org.springframework.kafka.test.EmbeddedKafkaBroker;
+import org.springframework.kafka.test.context.EmbeddedKafka;
+import org.springframework.kafka.test.utils.KafkaTestUtils;
+import org.springframework.mail.MailSendException;
+import org.springframework.test.annotation.DirtiesContext;
+
+@EnableAutoConfiguration
+@DirtiesContext
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.NONE,
+    classes = {KafkaConfig.class, EmailBatchConsumer.class, DeliveryExecutorFactory.class, RetryTopics.class,
+        RetryTopicRecoverer.class, EmailRetryConsumer.class},
+    properties = "email-sender.kafka.listener.batch.enabled=true")
+@EmbeddedKafka(partitions = 1, topics = "${email-sender.kafka.topic.emails}")
+public class EmailBatchConsumerTest {
+
+    private static final long CONSUME_EVENTS_TIMEOUT_MS = 5000L;
+
+    @Value("${email-sender.kafka.listener.retry.attempts}")
+    private int listenerRetryAttempts;
+
+    @Value("${email-sender.kafka.topic.emails}")
+    private String emailTopic;
+
+    @MockBean
+    private EmailSenderService emailSenderService;
+
+    @Autowired
+    private KafkaTemplate<String, EmailDTO> testProducer;
+
+    @Autowired
+    private KafkaTemplate<String, String> invalidEventProducer;
+
+    private final List<EmailDTO> sentEmails = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    public void init() {
+        //records the emails sent in batch, failing the ones with subject "failing"
+        when(emailSenderService.sendEmails(anyList())).thenAnswer(invocation -> {
+            List<EmailDTO> emailDTOs = invocation.getArgument(0);
+            Map<Integer, Exception> failures = new TreeMap<>();
+            for (int i = 0; i < emailDTOs.size(); i++) {
+                if ("failing".equals(emailDTOs.get(i).getSubject())) {
+                    failures.put(i, new MailSendException("test error"));
+                } else {
+                    sentEmails.add(emailDTOs.get(i));
+                }
+            }
+            return failures;
+        });
+    }
+
+    @Test
+    public void shouldSendAllTheEmailsOfTheBatch() throws Exception {
+        //given
+        List<EmailDTO> emailDTOs = List.of(createTestEmailDTO("first"), createTestEmailDTO("second"),
+            createTestEmailDTO("third"));
+
+        //when
+        emailDTOs.forEach(emailDTO -> testProducer.send(emailTopic, emailDTO));
+
+        //then
+        waitForSentEmails(emailDTOs);
+        verify(emailSenderService, never()).sendEmail(any());
+    }
+
+    @Test
+    public void shouldRetryOnlyTheFailedEmailsOfTheBatch() throws Exception {
+        //given
+        EmailDTO failingEmailDTO = createTestEmailDTO("failing");
+        EmailDTO successfulEmailDTO = createTestEmailDTO("successful");
+        doThrow(new MailSendException("test error")).when(emailSenderService).sendEmail(failingEmailDTO);
+
+        //when
+        testProducer.send(emailTopic, failingEmailDTO);
+        testProducer.send(emailTopic, successfulEmailDTO);
+
+        //then
+        verify(emailSenderService, timeout(CONSUME_EVENTS_TIMEOUT_MS).times(listenerRetryAttempts))
+            .sendEmail(failingEmailDTO);
+        waitForSentEmails(List.of(successfulEmailDTO));
+        verify(emailSenderService, after(CONSUME_EVENTS_TIMEOUT_MS / 10).never()).sendEmail(successfulEmailDTO);
+    }
+
+    @Test
+    public void shouldNotSendTheEventsThatCannotBeProcessed() throws Exception {
+        //given
+        EmailDTO invalidEmailDTO = new EmailDTO("invalid", "to@email.com", "invalid", "text", null);
+        EmailDTO validEmailDTO = createTestEmailDTO("valid");
+
+        //when
+        invalidEventProducer.send(emailTopic, "invalidMessage");
+        testProducer.send(emailTopic, invalidEmailDTO);
+        testProducer.send(emailTopic, validEmailDTO);
+
+        //then
+        waitForSentEmails(List.of(validEmailDTO));
+        assertThat(sentEmails).doesNotContain(invalidEmailDTO);
+        verify(emailSenderService, never()).sendEmail(any());
+    }
+
+    private void waitForSentEmails(List<EmailDTO> expectedEmails) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CONSUME_EVENTS_TIMEOUT_MS);
+        while (!sentEmails.containsAll(expectedEmails) && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+        assertTrue(sentEmails.containsAll(expectedEmails), "Emails not sent: " + expectedEmails);
+    }
+
+    private static EmailDTO createTestEmailDTO(String subject) {
+        return new EmailDTO("from@email.com", "to@email.com", subject, "text", null);
+    }
+
+    @TestConfiguration
+    static class InvalidEventProducerConfig {
+
+        @Bean
+        public ProducerFactory<String, String> invalidEventProducerFactory(EmbeddedKafkaBroker embeddedKafka) {
+            return new DefaultKafkaProducerFactory<>(KafkaTestUtils.producerProps(embeddedKafka));
+        }
+
+        @Bean
+        public KafkaTemplate<String, String> invalidEventProducer(
+            ProducerFactory<String, String> invalidEventProducerFactory) {
+            return new KafkaTemplate<>(invalidEventProducerFactory);
+        }
+    }
+
+}
@@ -1,14 +1,26 @@
 package com.personal.project.emailsender.kafka.consumer;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.after;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 import com.personal.project.emailsender.dto.EmailDTO;
 import com.personal.project.emailsender.kafka.config.KafkaConfig;
+import com.personal.project.emailsender.kafka.retry.EmailRetryConsumer;
+import com.personal.project.emailsender.kafka.retry.RetryTopicRecoverer;
+import com.personal.project.emailsender.kafka.retry.RetryTopics;
 import com.personal.project.emailsender.service.EmailSenderService;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.serialization.StringDeserializer;
 import org.junit.jupiter.api.Test;
 import org.mockito.InOrder;
 import org.mockito.Mockito;
@@ -20,9 +32,11 @@ import org.springframework.boot.test.context.TestConfiguration;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.boot.test.mock.mockito.SpyBean;
 import org.springframework.context.annotation.Bean;
+import org.springframework.kafka.core.DefaultKafkaConsumerFactory;
 import org.springframework.kafka.core.DefaultKafkaProducerFactory;
 import org.springframework.kafka.core.KafkaTemplate;
 import org.springframework.kafka.core.ProducerFactory;
+import org.springframework.kafka.support.KafkaHeaders;
 import org.springframework.kafka.test.EmbeddedKafkaBroker;
 import org.springframework.kafka.test.context.EmbeddedKafka;
 import org.springframework.kafka.test.utils.KafkaTestUtils;
@@ -31,11 +45,13 @@ import org.springframework.test.annotation.DirtiesContext;
 
 @EnableAutoConfiguration
 @DirtiesContext
-@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.NONE, classes = {KafkaConfig.class})
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.NONE,
+    classes = {KafkaConfig.class, RetryTopics.class, RetryTopicRecoverer.class, EmailRetryConsumer.class},
+    properties = "email-sender.kafka.listener.backoff.interval.ms=200")
 @EmbeddedKafka(partitions = 1, topics = "${email-sender.kafka.topic.emails}")
 public class EmailConsumerTest {
 
-    private static final long CONSUME_EVENTS_TIMEOUT_MS = 2000L;
+    private static final long CONSUME_EVENTS_TIMEOUT_MS = 5000L;
 
     @Value("${email-sender.kafka.listener.retry.attempts}")
     private int listenerRetryAttempts;
@@ -55,6 +71,12 @@ public class EmailConsumerTest {
     @SpyBean
     private EmailConsumer emailConsumer;
 
+    @Autowired
+    private RetryTopics retryTopics;
+
+    @Autowired
+    private EmbeddedKafkaBroker embeddedKafka;
+
     @Test
     public void shouldRetryWhenTheEmailCannotBeSent() throws Exception {
         //given
@@ -91,7 +113,7 @@ public class EmailConsumerTest {
     }
 
     @Test
-    public void shouldConsumeTheSecondMessageOnlyAfterTheFirstHasBeenRetried() throws Exception {
+    public void shouldConsumeTheSecondMessageWhileTheFirstIsWaitingToBeRetried() throws Exception {
         //given
         EmailDTO emailDTO1 = createTestEmailDTO("failing");
         EmailDTO emailDTO2 = createTestEmailDTO("successful");
@@ -103,11 +125,50 @@ public class EmailConsumerTest {
         testProducer.send(emailTopic, emailDTO2);
 
         //then
-        InOrder order = Mockito.inOrder(emailConsumer);
-        int expectedNumberOfConsumedEvents = getExpectedNumberOfConsumedEventsOnRetry();
-        order.verify(emailConsumer, timeout(CONSUME_EVENTS_TIMEOUT_MS).times(expectedNumberOfConsumedEvents))
-            .onMessage(emailDTO1);
-        order.verify(emailConsumer, timeout(CONSUME_EVENTS_TIMEOUT_MS)).onMessage(emailDTO2);
+        //the second email is sent before the retries of the first one
+        InOrder order = Mockito.inOrder(emailSenderService);
+        order.verify(emailSenderService, timeout(CONSUME_EVENTS_TIMEOUT_MS)).sendEmail(emailDTO1);
+        order.verify(emailSenderService, timeout(CONSUME_EVENTS_TIMEOUT_MS)).sendEmail(emailDTO2);
+        order.verify(emailSenderService, timeout(CONSUME_EVENTS_TIMEOUT_MS).times(listenerRetryAttempts))
+            .sendEmail(emailDTO1);
+    }
+
+    @Test
+    public void shouldMoveTheEventToTheDeadLetterTopicWhenTheRetriesAreExhausted() throws Exception {
+        //given
+        EmailDTO emailDTO = createTestEmailDTO("dead letter");
+        doThrow(new MailSendException("dead letter error")).when(emailSenderService).sendEmail(emailDTO);
+
+        //when
+        testProducer.send(emailTopic, "dead-letter-key", emailDTO);
+
+        //then
+        //the event reaches the dead letter topic with the reason of the last failure
+        ConsumerRecord<String, byte[]> deadLetter = pollDeadLetter("dead-letter-key");
+        assertEquals("dead letter error",
+            new String(deadLetter.headers().lastHeader(KafkaHeaders.DLT_EXCEPTION_MESSAGE).value(),
+                StandardCharsets.UTF_8));
+        assertEquals(retryTopics.getRetryTopics().get(listenerRetryAttempts - 1),
+            new String(deadLetter.headers().lastHeader(KafkaHeaders.DLT_ORIGINAL_TOPIC).value(),
+                StandardCharsets.UTF_8));
+        verify(emailSenderService, times(getExpectedNumberOfConsumedEventsOnRetry())).sendEmail(emailDTO);
+    }
+
+    private ConsumerRecord<String, byte[]> pollDeadLetter(String key) {
+        Map<String, Object> consumerProps = KafkaTestUtils.consumerProps("dead-letter-test", "false", embeddedKafka);
+        try (Consumer<String, byte[]> consumer = new DefaultKafkaConsumerFactory<>(consumerProps,
+            new StringDeserializer(), new ByteArrayDeserializer()).createConsumer()) {
+            consumer.subscribe(List.of(retryTopics.getDeadLetterTopic()));
+            long deadline = System.currentTimeMillis() + CONSUME_EVENTS_TIMEOUT_MS;
+            while (System.currentTimeMillis() < deadline) {
+                for (ConsumerRecord<String, byte[]> record : KafkaTestUtils.getRecords(consumer, 500)) {
+                    if (key.equals(record.key())) {
+                        return record;
+                    }
+                }
+            }
+        }
+        throw new AssertionError("No dead letter with key " + key);
     }
 
     private int getExpectedNumberOfConsumedEventsOnRetry() {
@@ -0,0 +1,130 @@
+package com.personal.project.emailsender.kafka.retry;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.personal.project.emailsender.dto.EmailDTO;
+import com.personal.project.emailsender.dto.Priority;
+import com.personal.project.emailsender.dto.RecipientDTO;
+import com.personal.project.emailsender.dto.TemplateEmailDTO;
+import com.personal.project.emailsender.kafka.serialization.EmailAvroCodec;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.kafka.core.DefaultKafkaConsumerFactory;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.kafka.test.EmbeddedKafkaBroker;
+import org.springframework.kafka.test.context.EmbeddedKafka;
+import org.springframework.kafka.test.utils.KafkaTestUtils;
+import org.springframework.test.annotation.DirtiesContext;
+
+@EnableAutoConfiguration
+@DirtiesContext
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.NONE,
+    classes = {RetryTopics.class, DeadLetterReplayEndpoint.class})
+@EmbeddedKafka(partitions = 1, topics = {"${email-sender.kafka.topic.emails}",
+    "${email-sender.kafka.topic.high-priority-emails}", "${email-sender.kafka.topic.bulk-emails}",
+    "${email-sender.kafka.topic.template-emails}"})
+public class DeadLetterReplayEndpointTest {
+
+    private static final long POLL_TIMEOUT_MS = 5000L;
+
+    @Autowired
+    private DeadLetterReplayEndpoint deadLetterReplayEndpoint;
+
+    @Autowired
+    private RetryTopics retryTopics;
+
+    @Autowired
+    private KafkaTemplate<String, Object> testProducer;
+
+    @Autowired
+    private EmbeddedKafkaBroker embeddedKafka;
+
+    @Test
+    public void shouldReplayTheDeadLettersToTheTopicsTheyWereSentTo() throws Exception {
+        //given
+        EmailDTO highPriorityEmail = createTestEmailDTO(Priority.HIGH);
+        TemplateEmailDTO templateEmail = new TemplateEmailDTO("from@email.com", "subject", "body", null,
+            List.of(new RecipientDTO("to@email.com", null)));
+        //dead lettered by the last retry tier, which does not tell the lane of the email
+        sendDeadLetter("high", highPriorityEmail, retryTopics.getRetryTopics().get(1));
+        sendDeadLetter("template", templateEmail, retryTopics.getTemplateTopic());
+        sendDeadLetter("normal", createTestEmailDTO(null), retryTopics.getRetryTopics().get(0));
+
+        //when
+        DeadLetterReplayEndpoint.ReplayResult result = deadLetterReplayEndpoint.replay(null);
+
+        //then
+        assertEquals(3, result.getReplayed());
+        Map<String, String> replayedTopics = pollReplayedTopics(3);
+        assertEquals(retryTopics.priorityTopic(Priority.HIGH), replayedTopics.get("high"));
+        assertEquals(retryTopics.getTemplateTopic(), replayedTopics.get("template"));
+        assertEquals(retryTopics.getMainTopic(), replayedTopics.get("normal"));
+
+        //the progress of the replay is committed
+        assertEquals(0, deadLetterReplayEndpoint.replay(null).getReplayed());
+    }
+
+    @Test
+    public void shouldRouteTheDeadLettersByTheirPayload() {
+        //given
+        EmailDTO bulkEmail = createTestEmailDTO(Priority.BULK);
+        byte[] avroEvent = EmailAvroCodec.fromClasspath().encode(bulkEmail);
+        ConsumerRecord<byte[], byte[]> undecodableEvent = new ConsumerRecord<>(retryTopics.getDeadLetterTopic(), 0, 0,
+            null, "invalid".getBytes(StandardCharsets.UTF_8));
+        undecodableEvent.headers().add(KafkaHeaders.DLT_ORIGINAL_TOPIC,
+            retryTopics.priorityTopic(Priority.HIGH).getBytes(StandardCharsets.UTF_8));
+        ConsumerRecord<byte[], byte[]> undecodableRetriedEvent = new ConsumerRecord<>(
+            retryTopics.getDeadLetterTopic(), 0, 1, null, "invalid".getBytes(StandardCharsets.UTF_8));
+        undecodableRetriedEvent.headers().add(KafkaHeaders.DLT_ORIGINAL_TOPIC,
+            retryTopics.getRetryTopics().get(0).getBytes(StandardCharsets.UTF_8));
+
+        //when
+        //then
+        assertEquals(retryTopics.priorityTopic(Priority.BULK), deadLetterReplayEndpoint.replayTopic(
+            new ConsumerRecord<>(retryTopics.getDeadLetterTopic(), 0, 0, null, avroEvent)));
+        //the events that cannot be decoded go back to the email topic they failed on
+        assertEquals(retryTopics.priorityTopic(Priority.HIGH), deadLetterReplayEndpoint.replayTopic(undecodableEvent));
+        assertEquals(retryTopics.getMainTopic(), deadLetterReplayEndpoint.replayTopic(undecodableRetriedEvent));
+    }
+
+    private void sendDeadLetter(String key, Object event, String originalTopic) throws Exception {
+        ProducerRecord<String, Object> record = new ProducerRecord<>(retryTopics.getDeadLetterTopic(), key, event);
+        record.headers().add(KafkaHeaders.DLT_ORIGINAL_TOPIC, originalTopic.getBytes(StandardCharsets.UTF_8));
+        testProducer.send(record).get();
+    }
+
+    private Map<String, String> pollReplayedTopics(int expectedRecords) {
+        Map<String, Object> consumerProps = KafkaTestUtils.consumerProps("replay-test", "false", embeddedKafka);
+        Map<String, String> replayedTopics = new HashMap<>();
+        try (Consumer<String, byte[]> consumer = new DefaultKafkaConsumerFactory<>(consumerProps,
+            new StringDeserializer(), new ByteArrayDeserializer()).createConsumer()) {
+            consumer.subscribe(List.of(retryTopics.getMainTopic(), retryTopics.priorityTopic(Priority.HIGH),
+                retryTopics.priorityTopic(Priority.BULK), retryTopics.getTemplateTopic()));
+            long deadline = System.currentTimeMillis() + POLL_TIMEOUT_MS;
+            while (replayedTopics.size() < expectedRecords && System.currentTimeMillis() < deadline) {
+                for (ConsumerRecord<String, byte[]> record : KafkaTestUtils.getRecords(consumer, 500)) {
+                    replayedTopics.put(record.key(), record.topic());
+                }
+            }
+        }
+        return replayedTopics;
+    }
+
+    private static EmailDTO createTestEmailDTO(Priority priority) {
+        EmailDTO emailDTO = new EmailDTO("from@email.com", "to@email.com", "subject", "text", null);
+        emailDTO.setPriority(priority);
+        return emailDTO;
+    }
+}
@@ -0,0 +1,109 @@
+package com.personal.project.emailsender.kafka.retry;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.longThat;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import com.personal.project.emailsender.dto.EmailDTO;
+import com.personal.project.emailsender.queue.EmailQueue;
+import com.personal.project.emailsender.service.EmailSenderService;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.record.TimestampType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.kafka.config.KafkaListenerContainerFactory;
+import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.mail.MailSendException;
+
+@ExtendWith(MockitoExtension.class)
+public class EmailRetryConsumerTest {
+
+    private static final long FIRST_TIER_DELAY_MS = 1000;
+
+    @Mock
+    private EmailSenderService emailSenderService;
+
+    @Mock
+    private Acknowledgment acknowledgment;
+
+    private EmailRetryConsumer emailRetryConsumer;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    public void init() {
+        //the second tier waits longer than the longest pause
+        RetryTopics retryTopics = new RetryTopics("emails", "emails-high", "emails-bulk", "template-emails", 2,
+            FIRST_TIER_DELAY_MS, 100, mock(ObjectProvider.class), EmailQueue.Type.KAFKA);
+        emailRetryConsumer = new EmailRetryConsumer(retryTopics, emailSenderService,
+            mock(KafkaListenerContainerFactory.class));
+    }
+
+    @Test
+    public void shouldWaitForTheDelayOfTheTierBeforeSendingAgain() throws Exception {
+        //given
+        ConsumerRecord<String, EmailDTO> record = createRecord("emails-retry-0", System.currentTimeMillis());
+
+        //when
+        emailRetryConsumer.onMessage(record, acknowledgment);
+
+        //then
+        verify(acknowledgment).nack(longThat(sleep -> sleep > 0 && sleep <= FIRST_TIER_DELAY_MS));
+        verify(emailSenderService, never()).sendEmail(any());
+        verify(acknowledgment, never()).acknowledge();
+    }
+
+    @Test
+    public void shouldPauseAtMostTheMaximumPause() throws Exception {
+        //given
+        ConsumerRecord<String, EmailDTO> record = createRecord("emails-retry-1", System.currentTimeMillis());
+
+        //when
+        emailRetryConsumer.onMessage(record, acknowledgment);
+
+        //then
+        verify(acknowledgment).nack(EmailRetryConsumer.MAX_PAUSE_MS);
+    }
+
+    @Test
+    public void shouldSendTheDueEventsAndAcknowledgeThem() throws Exception {
+        //given
+        ConsumerRecord<String, EmailDTO> record = createRecord("emails-retry-0",
+            System.currentTimeMillis() - FIRST_TIER_DELAY_MS);
+
+        //when
+        emailRetryConsumer.onMessage(record, acknowledgment);
+
+        //then
+        verify(emailSenderService).sendEmail(record.value());
+        verify(acknowledgment).acknowledge();
+    }
+
+    @Test
+    public void shouldNotAcknowledgeTheEventsThatCannotBeSent() throws Exception {
+        //given
+        ConsumerRecord<String, EmailDTO> record = createRecord("emails-retry-0",
+            System.currentTimeMillis() - FIRST_TIER_DELAY_MS);
+        doThrow(new MailSendException("test error")).when(emailSenderService).sendEmail(record.value());
+
+        //when
+        //then
+        //the container moves the event to the next tier
+        assertThrows(MailSendException.class, () -> emailRetryConsumer.onMessage(record, acknowledgment));
+        verify(acknowledgment, never()).acknowledge();
+        verify(acknowledgment, never()).nack(anyLong());
+    }
+
+    private static ConsumerRecord<String, EmailDTO> createRecord(String topic, long timestamp) {
+        return new ConsumerRecord<>(topic, 0, 0, timestamp, TimestampType.CREATE_TIME, 0L, 0, 0, null,
+            new EmailDTO("from@email.com", "to@email.com", "subject", "text", null));
+    }
+}
@@ -0,0 +1,58 @@
+package com.personal.project.emailsender.kafka.retry;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.personal.project.emailsender.queue.EmailQueue;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.kafka.KafkaProperties;
+import org.springframework.kafka.KafkaException;
+import org.springframework.kafka.core.KafkaOperations;
+import org.springframework.kafka.support.SendResult;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+public class RetryTopicRecovererTest {
+
+    @SuppressWarnings("unchecked")
+    private final RetryTopicRecoverer retryTopicRecoverer = new RetryTopicRecoverer(new RetryTopics("emails",
+        "emails-high", "emails-bulk", "template-emails", 3, 1000, 10, mock(ObjectProvider.class),
+        EmailQueue.Type.KAFKA), new KafkaProperties(), 100);
+
+    @AfterEach
+    public void close() {
+        retryTopicRecoverer.destroy();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldFailWhenTheEventCannotBeMoved() {
+        //given
+        KafkaOperations<Object, Object> kafkaTemplate = mock(KafkaOperations.class);
+        ProducerRecord<Object, Object> record = new ProducerRecord<>("emails-retry-0", "event");
+        SettableListenableFuture<SendResult<Object, Object>> failedSend = new SettableListenableFuture<>();
+        failedSend.setException(new IllegalStateException("test error"));
+        when(kafkaTemplate.send(record)).thenReturn(failedSend);
+
+        //when
+        //then
+        //the failure reaches the container, which does not commit the offset of the event
+        assertThrows(KafkaException.class, () -> retryTopicRecoverer.publish(record, kafkaTemplate));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldFailWhenTheEventIsNotAcknowledgedInTime() {
+        //given
+        KafkaOperations<Object, Object> kafkaTemplate = mock(KafkaOperations.class);
+        ProducerRecord<Object, Object> record = new ProducerRecord<>("emails-dlt", "event");
+        when(kafkaTemplate.send(record)).thenReturn(new SettableListenableFuture<>());
+
+        //when
+        //then
+        assertThrows(KafkaException.class, () -> retryTopicRecoverer.publish(record, kafkaTemplate));
+    }
+}
@@ -0,0 +1,63 @@
+package com.personal.project.emailsender.kafka.retry;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import com.personal.project.emailsender.dto.Priority;
+import com.personal.project.emailsender.dto.TemplateEmailDTO;
+import com.personal.project.emailsender.queue.EmailQueue;
+import java.util.List;
+import java.util.Set;
+import javax.validation.ConstraintViolationException;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.mail.MailSendException;
+
+public class RetryTopicsTest {
+
+    @SuppressWarnings("unchecked")
+    private final RetryTopics retryTopics = new RetryTopics("emails", "emails-high", "emails-bulk",
+        "template-emails", 3, 1000, 10, mock(ObjectProvider.class), EmailQueue.Type.KAFKA);
+
+    @Test
+    public void shouldMoveTheEventsThroughTheTiersWithExponentialDelays() {
+        //then
+        assertEquals(List.of("emails-retry-0", "emails-retry-1", "emails-retry-2"), retryTopics.getRetryTopics());
+        assertEquals("emails-retry-0", retryTopics.nextTopic("emails"));
+        assertEquals("emails-retry-0", retryTopics.nextTopic("emails-high"));
+        assertEquals("emails-retry-0", retryTopics.nextTopic("emails-bulk"));
+        assertEquals("emails-retry-0", retryTopics.nextTopic("template-emails"));
+        assertEquals("emails-retry-1", retryTopics.nextTopic("emails-retry-0"));
+        assertEquals("emails-retry-2", retryTopics.nextTopic("emails-retry-1"));
+        assertEquals("emails-dlt", retryTopics.nextTopic("emails-retry-2"));
+        assertEquals("emails-dlt", retryTopics.nextTopic("unknown"));
+        assertEquals(1000, retryTopics.getDelayMs("emails-retry-0"));
+        assertEquals(10_000, retryTopics.getDelayMs("emails-retry-1"));
+        assertEquals(100_000, retryTopics.getDelayMs("emails-retry-2"));
+        assertEquals("emails-high", retryTopics.priorityTopic(Priority.HIGH));
+        assertEquals("emails", retryTopics.priorityTopic(null));
+        assertEquals("emails-bulk", retryTopics.priorityTopic(Priority.BULK));
+    }
+
+    @Test
+    public void shouldSendTheEventsThatCannotBeProcessedToTheDeadLetterTopic() {
+        //given
+        ConsumerRecord<String, Object> record = new ConsumerRecord<>("emails", 0, 0, "key", "value");
+        ConsumerRecord<String, Object> undeserializableRecord = new ConsumerRecord<>("emails", 0, 1, "key", null);
+        ConsumerRecord<String, Object> templateRecord = new ConsumerRecord<>("template-emails", 0, 0, "key",
+            new TemplateEmailDTO());
+
+        //then
+        assertTrue(RetryTopicRecoverer.isRetryable(record, new MailSendException("test error")));
+        assertFalse(RetryTopicRecoverer.isRetryable(record,
+            new IllegalStateException(new ConstraintViolationException(Set.of()))));
+        assertFalse(RetryTopicRecoverer.isRetryable(undeserializableRecord, new MailSendException("test error")));
+        assertEquals("emails-dlt", RetryTopicRecoverer.destination(retryTopics, undeserializableRecord,
+            new MailSendException("test error")));
+        assertEquals("emails-dlt", RetryTopicRecoverer.destination(retryTopics, templateRecord,
+            new IllegalStateException("test error")));
+    }
+}
@@ -0,0 +1,126 @@
+package com.personal.project.emailsender.kafka.serialization;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.personal.project.emailsender.dto.AttachmentDTO;
+import com.personal.project.emailsender.dto.EmailDTO;
+import com.personal.project.emailsender.dto.Priority;
+import com.personal.project.emailsender.kafka.serialization.EmailEventSerializer.Format;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.apache.avro.Schema;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+public class EmailEventSerializationTest {
+
+    private static final String TOPIC = "test-topic";
+
+    private static final EmailDTO TEST_EMAIL_DTO = new EmailDTO("from@test.com", "to@test.com", "subj", "text",
+        new AttachmentDTO("file name", "http://test.com/attachment"), "test-key", Priority.HIGH);
+
+    @ParameterizedTest
+    @EnumSource(Format.class)
+    public void shouldDeserializeTheEmailEventsOfEachFormat(Format format) {
+        //given
+        EmailEventSerializer serializer = new EmailEventSerializer();
+        serializer.configure(Map.of(EmailEventSerializer.FORMAT_CONFIG, format.name()), false);
+        EmailEventDeserializer deserializer = new EmailEventDeserializer();
+
+        //when
+        byte[] serialized = serializer.serialize(TOPIC, TEST_EMAIL_DTO);
+
+        //then
+        assertEquals(format == Format.AVRO, EmailAvroCodec.isAvro(serialized));
+        assertEquals(TEST_EMAIL_DTO, deserializer.deserialize(TOPIC, serialized));
+    }
+
+    @Test
+    public void shouldEncodeTheEmailsWithoutAttachment() {
+        //given
+        EmailAvroCodec codec = EmailAvroCodec.fromClasspath();
+        EmailDTO testEmailDTO = new EmailDTO("from@test.com", "to@test.com", "subj", "text", null);
+
+        //when
+        byte[] encoded = codec.encode(testEmailDTO);
+
+        //then
+        assertEquals(testEmailDTO, codec.decode(encoded));
+    }
+
+    @Test
+    public void shouldWriteTheEmailsAvroCannotEncodeAsJson() {
+        //given
+        EmailEventSerializer serializer = new EmailEventSerializer();
+        serializer.configure(Map.of(EmailEventSerializer.FORMAT_CONFIG, Format.AVRO.name()), false);
+        EmailEventDeserializer deserializer = new EmailEventDeserializer();
+        //an invalid email on its way to the dead letter topic
+        EmailDTO testEmailDTO = new EmailDTO("from@test.com", null, "subj", "text", null);
+
+        //when
+        byte[] serialized = serializer.serialize(TOPIC, testEmailDTO);
+
+        //then
+        assertFalse(EmailAvroCodec.isAvro(serialized));
+        assertEquals(testEmailDTO, deserializer.deserialize(TOPIC, serialized));
+    }
+
+    @Test
+    public void shouldReadTheEventsWrittenWithAPreviousSchemaVersion() throws Exception {
+        //given
+        Schema firstSchema = readSchema("avro/email-1.avsc");
+        Schema secondSchema = readSchema("avro/email-2.avsc");
+        Schema currentSchema = readSchema("avro/email-3.avsc");
+        EmailAvroCodec firstCodec = new EmailAvroCodec(Map.of(1, firstSchema));
+        EmailAvroCodec secondCodec = new EmailAvroCodec(Map.of(1, firstSchema, 2, secondSchema));
+        EmailAvroCodec currentCodec = EmailAvroCodec.fromClasspath();
+        //a new version adding a field with a default
+        List<Schema.Field> nextFields = new ArrayList<>();
+        currentSchema.getFields().forEach(field -> nextFields.add(new Schema.Field(field, field.schema())));
+        nextFields.add(new Schema.Field("sendAfter", Schema.create(Schema.Type.LONG), null, 0L));
+        Schema nextSchema = Schema.createRecord(currentSchema.getName(), null, currentSchema.getNamespace(), false,
+            nextFields);
+        EmailAvroCodec nextCodec = new EmailAvroCodec(Map.of(1, firstSchema, 2, secondSchema, 3, currentSchema,
+            4, nextSchema));
+
+        //when
+        byte[] writtenWithFirstSchema = firstCodec.encode(TEST_EMAIL_DTO);
+        byte[] writtenWithSecondSchema = secondCodec.encode(TEST_EMAIL_DTO);
+        byte[] writtenWithCurrentSchema = currentCodec.encode(TEST_EMAIL_DTO);
+
+        //then
+        //the events written before the idempotency key and the priority have none
+        EmailDTO firstEmailDTO = new EmailDTO(TEST_EMAIL_DTO.getFrom(), TEST_EMAIL_DTO.getTo(),
+            TEST_EMAIL_DTO.getSubject(), TEST_EMAIL_DTO.getBody(), TEST_EMAIL_DTO.getAttachment());
+        EmailDTO secondEmailDTO = new EmailDTO(TEST_EMAIL_DTO.getFrom(), TEST_EMAIL_DTO.getTo(),
+            TEST_EMAIL_DTO.getSubject(), TEST_EMAIL_DTO.getBody(), TEST_EMAIL_DTO.getAttachment(),
+            TEST_EMAIL_DTO.getIdempotencyKey());
+        assertEquals(firstEmailDTO, currentCodec.decode(writtenWithFirstSchema));
+        assertEquals(secondEmailDTO, currentCodec.decode(writtenWithSecondSchema));
+        //the consumers with the new version read the events of the producers with the previous ones
+        assertEquals(firstEmailDTO, nextCodec.decode(writtenWithFirstSchema));
+        assertEquals(secondEmailDTO, nextCodec.decode(writtenWithSecondSchema));
+        assertEquals(TEST_EMAIL_DTO, nextCodec.decode(writtenWithCurrentSchema));
+    }
+
+    @Test
+    public void shouldNotDetectJsonAsAvro() {
+        //when
+        //then
+        assertFalse(EmailAvroCodec.isAvro("{\"from\":\"from@test.com\"}".getBytes(StandardCharsets.UTF_8)));
+        assertTrue(EmailAvroCodec.isAvro(EmailAvroCodec.fromClasspath().encode(TEST_EMAIL_DTO)));
+    }
+
+    private static Schema readSchema(String location) throws IOException {
+        try (InputStream schema = EmailEventSerializationTest.class.getClassLoader().getResourceAsStream(location)) {
+            return new Schema.Parser().parse(schema);
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package com.personal.project.emailsender.load;
+
+import static com.personal.project.emailsender.test.utils.AttachmentTestServer.TEST_ATTACHMENT_ENDPOINT;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.icegreen.greenmail.junit5.GreenMailExtension;
+import com.icegreen.greenmail.util.ServerSetupTest;
+import com.personal.project.emailsender.EmailSenderApplication;
+import com.personal.project.emailsender.dto.AttachmentDTO;
+import com.personal.project.emailsender.dto.EmailDTO;
+import com.personal.project.emailsender.test.utils.AttachmentTestServer;
+import com.personal.project.emailsender.test.utils.FaultInjectingSmtpProxy;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.admin.AdminClient;
+import org.apache.kafka.clients.admin.ListOffsetsResult.ListOffsetsResultInfo;
+import org.apache.kafka.clients.admin.OffsetSpec;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.kafka.core.KafkaAdmin;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.test.context.EmbeddedKafka;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+/**
+ * Drives the whole pipeline at a fixed rate, through {@code POST /email} or straight to the kafka topic, and sends
+ * the emails to GreenMail through a {@link FaultInjectingSmtpProxy}. It reports the throughput, the percentiles of
+ * the latency from the submission to the SMTP delivery, the consumer lag and the heap usage.
+ * <p>
+ * Excluded from the default build, run it with {@code mvn -Pload-test test} and the {@code load.*} settings below,
+ * e.g. {@code -Dload.rate=500 -Dload.smtp.latency.ms=20}. The application properties can be overridden the same way
+ * to compare tunings, e.g. {@code -Demail-sender.mail.pool.max-size=16}.
+ */
+@Slf4j
+@Tag("load")
+@DirtiesContext
+@SpringBootTest(webEnvironment = WebEnvironment.RANDOM_PORT, classes = {EmailSenderApplication.class,
+    AttachmentTestServer.class})
+@EmbeddedKafka(partitions = 4,
+    topics = {"${email-sender.kafka.topic.emails}", "${email-sender.kafka.topic.high-priority-emails}",
+        "${email-sender.kafka.topic.bulk-emails}", "${email-sender.kafka.topic.template-emails}"})
+public class EmailSenderLoadTest {
+
+    private static final long SAMPLING_INTERVAL_MS = 1000L;
+
+    private static final String SUBJECT_PREFIX = "load-";
+
+    @RegisterExtension
+    static GreenMailExtension greenMail = new GreenMailExtension(ServerSetupTest.SMTP);
+
+    private static FaultInjectingSmtpProxy smtpProxy;
+
+    /**
+     * Submit the emails through the REST API ({@code HTTP}) or produce them to the topic ({@code KAFKA}).
+     */
+    @Value("${load.mode:HTTP}")
+    private LoadMode loadMode;
+
+    @Value("${load.rate:200}")
+    private double ratePerSecond;
+
+    @Value("${load.duration.seconds:30}")
+    private int durationSeconds;
+
+    @Value("${load.submit.concurrency:16}")
+    private int submitConcurrency;
+
+    /**
+     * Share of the emails with an attachment, downloaded from the {@link AttachmentTestServer}.
+     */
+    @Value("${load.attachment.ratio:0.1}")
+    private double attachmentRatio;
+
+    @Value("${load.body.size:1024}")
+    private int bodySize;
+
+    @Value("${load.recipient.domains:10}")
+    private int recipientDomains;
+
+    @Value("${load.smtp.latency.ms:0}")
+    private long smtpLatencyMs;
+
+    @Value("${load.smtp.error-rate:0}")
+    private double smtpErrorRate;
+
+    @Value("${load.drain-timeout.seconds:120}")
+    private int drainTimeoutSeconds;
+
+    @Value("${email-sender.kafka.topic.emails}")
+    private String emailTopic;
+
+    @Value("${spring.kafka.consumer.group-id}")
+    private String consumerGroupId;
+
+    @LocalServerPort
+    private int serverPort;
+
+    @Autowired
+    private TestRestTemplate restTemplate;
+
+    @Autowired
+    private KafkaTemplate<String, Object> kafkaTemplate;
+
+    @Autowired
+    private KafkaAdmin kafkaAdmin;
+
+    private AtomicLongArray scheduledNanos;
+
+    private AtomicLongArray deliveredNanos;
+
+    private final AtomicInteger delivered = new AtomicInteger();
+
+    private final AtomicInteger failedSubmissions = new AtomicInteger();
+
+    private final AtomicLong maxConsumerLag = new AtomicLong();
+
+    private final AtomicLong maxHeapUsed = new AtomicLong();
+
+    @DynamicPropertySource
+    static void smtpProxyProperties(DynamicPropertyRegistry registry) throws IOException {
+        smtpProxy = new FaultInjectingSmtpProxy("localhost", ServerSetupTest.SMTP.getPort());
+        registry.add("spring.mail.port", smtpProxy::getPort);
+    }
+
+    @AfterAll
+    static void closeSmtpProxy() throws IOException {
+        smtpProxy.close();
+    }
+
+    @Test
+    public void shouldDeliverTheEmailsAtTheConfiguredRate() throws Exception {
+        //given
+        int emails = (int) Math.round(ratePerSecond * durationSeconds);
+        scheduledNanos = new AtomicLongArray(emails);
+        deliveredNanos = new AtomicLongArray(emails);
+        smtpProxy.setLatencyMs(smtpLatencyMs);
+        smtpProxy.setErrorRate(smtpErrorRate);
+        smtpProxy.setDeliveryListener(this::onDelivery);
+
+        ExecutorService submitExecutor = Executors.newFixedThreadPool(submitConcurrency);
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+        long gcTimeBeforeMs = gcTimeMs();
+
+        try (AdminClient adminClient = AdminClient.create(kafkaAdmin.getConfigurationProperties())) {
+            sampler.scheduleAtFixedRate(() -> sample(adminClient), 0, SAMPLING_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+            //when
+            //the latency is measured from the scheduled submission, so that a slow submission is not hidden
+            long startNanos = System.nanoTime();
+            for (int i = 0; i < emails; i++) {
+                long scheduled = startNanos + (long) (i * TimeUnit.SECONDS.toNanos(1) / ratePerSecond);
+                LockSupport.parkNanos(scheduled - System.nanoTime());
+                scheduledNanos.set(i, scheduled);
+                EmailDTO emailDTO = createEmailDTO(i);
+                submitExecutor.execute(() -> submit(emailDTO));
+            }
+            submitExecutor.shutdown();
+            submitExecutor.awaitTermination(drainTimeoutSeconds, TimeUnit.SECONDS);
+            long submittedNanos = System.nanoTime();
+
+            long drainDeadline = submittedNanos + TimeUnit.SECONDS.toNanos(drainTimeoutSeconds);
+            while (delivered.get() < emails && System.nanoTime() < drainDeadline) {
+                Thread.sleep(100);
+            }
+            sampler.shutdownNow();
+            sampler.awaitTermination(5, TimeUnit.SECONDS);
+
+            //then
+            log.info("Load test report:\n{}", report(emails, startNanos, submittedNanos, gcTimeMs() - gcTimeBeforeMs));
+        } finally {
+            submitExecutor.shutdownNow();
+            sampler.shutdownNow();
+        }
+
+        assertEquals(0, failedSubmissions.get());
+        if (smtpErrorRate == 0) {
+            assertEquals(emails, delivered.get());
+        }
+    }
+
+    private EmailDTO createEmailDTO(int index) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        AttachmentDTO attachmentDTO = random.nextDouble() < attachmentRatio
+            ? new AttachmentDTO("attachment.jpg", "http://localhost:" + serverPort + TEST_ATTACHMENT_ENDPOINT)
+            : null;
+        String to = "user" + random.nextInt(1000) + "@domain" + random.nextInt(recipientDomains) + ".test";
+        return new EmailDTO("load@company.test", to, subject(index), "x".repeat(bodySize), attachmentDTO);
+    }
+
+    private void submit(EmailDTO emailDTO) {
+        try {
+            if (loadMode == LoadMode.HTTP) {
+                ResponseEntity<Void> response = restTemplate.postForEntity("/email", emailDTO, Void.class);
+                if (response.getStatusCode() != HttpStatus.ACCEPTED) {
+                    failedSubmissions.incrementAndGet();
+                }
+            } else {
+                kafkaTemplate.send(emailTopic, emailDTO).addCallback(result -> { },
+                    e -> failedSubmissions.incrementAndGet());
+            }
+        } catch (RuntimeException e) {
+            log.warn("Cannot submit {}", emailDTO.getSubject(), e);
+            failedSubmissions.incrementAndGet();
+        }
+    }
+
+    private void onDelivery(String subject) {
+        int index = index(subject);
+        if (index >= 0 && index < deliveredNanos.length()
+            && deliveredNanos.compareAndSet(index, 0, System.nanoTime())) {
+            delivered.incrementAndGet();
+        }
+    }
+
+    /**
+     * Samples the consumer lag and the heap usage, and empties the GreenMail mailboxes so that the delivered emails do
+     * not add up in the heap.
+     */
+    private void sample(AdminClient adminClient) {
+        try {
+            long heapUsed = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+            maxHeapUsed.accumulateAndGet(heapUsed, Math::max);
+            greenMail.purgeEmailFromAllMailboxes();
+
+            Map<TopicPartition, OffsetAndMetadata> committed = adminClient
+                .listConsumerGroupOffsets(consumerGroupId).partitionsToOffsetAndMetadata().get();
+            Map<TopicPartition, ListOffsetsResultInfo> endOffsets = adminClient
+                .listOffsets(committed.keySet().stream()
+                    .collect(Collectors.toMap(Function.identity(), partition -> OffsetSpec.latest())))
+                .all().get();
+            long lag = committed.entrySet().stream()
+                .mapToLong(entry -> endOffsets.get(entry.getKey()).offset() - entry.getValue().offset())
+                .sum();
+            maxConsumerLag.accumulateAndGet(lag, Math::max);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.warn("Cannot sample the load test metrics", e);
+        }
+    }
+
+    private String report(int emails, long startNanos, long submittedNanos, long gcTimeMs) {
+        long[] latencies = new long[emails];
+        long lastDeliveryNanos = startNanos;
+        int deliveredCount = 0;
+        for (int i = 0; i < emails; i++) {
+            long deliveryNanos = deliveredNanos.get(i);
+            if (deliveryNanos != 0) {
+                latencies[deliveredCount++] = deliveryNanos - scheduledNanos.get(i);
+                lastDeliveryNanos = Math.max(lastDeliveryNanos, deliveryNanos);
+            }
+        }
+        latencies = Arrays.copyOf(latencies, deliveredCount);
+        Arrays.sort(latencies);
+
+        double submitSeconds = (submittedNanos - startNanos) / 1e9;
+        double deliverySeconds = (lastDeliveryNanos - startNanos) / 1e9;
+        return String.format("  load                 %s, %.0f emails/s for %d s%n"
+                + "  smtp proxy           latency %d ms, error rate %.3f%n"
+                + "  submitted            %d emails in %.1f s (%.1f emails/s), %d failed%n"
+                + "  delivered            %d emails in %.1f s (%.1f emails/s)%n"
+                + "  latency (ms)         p50 %.1f, p90 %.1f, p99 %.1f, p99.9 %.1f, max %.1f%n"
+                + "  max consumer lag     %d records%n"
+                + "  max heap used        %d MB, %d ms of GC%n",
+            loadMode, ratePerSecond, durationSeconds, smtpLatencyMs, smtpErrorRate,
+            emails, submitSeconds, emails / submitSeconds, failedSubmissions.get(),
+            deliveredCount, deliverySeconds, deliveredCount / deliverySeconds,
+            percentileMs(latencies, 0.5), percentileMs(latencies, 0.9), percentileMs(latencies, 0.99),
+            percentileMs(latencies, 0.999), percentileMs(latencies, 1),
+            maxConsumerLag.get(),
+            maxHeapUsed.get() / (1024 * 1024), gcTimeMs);
+    }
+
+    private static double percentileMs(long[] sortedNanos, double percentile) {
+        if (sortedNanos.length == 0) {
+            return Double.NaN;
+        }
+        return sortedNanos[Math.max(0, (int) Math.ceil(percentile * sortedNanos.length) - 1)] / 1e6;
+    }
+
+    private static long gcTimeMs() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream()
+            .mapToLong(GarbageCollectorMXBean::getCollectionTime)
+            .sum();
+    }
+
+    private static String subject(int index) {
+        return SUBJECT_PREFIX + index;
+    }
+
+    private static int index(String subject) {
+        try {
+            return subject != null && subject.startsWith(SUBJECT_PREFIX)
+                ? Integer.parseInt(subject.substring(SUBJECT_PREFIX.length()))
+                : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    enum LoadMode {
+        HTTP,
+        KAFKA
+    }
+}
@@ -0,0 +1,127 @@
+package com.personal.project.emailsender.mail;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import com.icegreen.greenmail.junit5.GreenMailExtension;
+import com.icegreen.greenmail.util.ServerSetup;
+import com.personal.project.emailsender.mail.dns.DnsClient;
+import com.personal.project.emailsender.mail.dns.MxResolver;
+import com.personal.project.emailsender.test.utils.TestDnsServer;
+import com.personal.project.emailsender.test.utils.TestDnsServer.Mx;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import javax.mail.internet.MimeMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.mail.MailSendException;
+import org.springframework.mail.javamail.JavaMailSender;
+import org.springframework.mail.javamail.MimeMessageHelper;
+
+@ExtendWith(MockitoExtension.class)
+public class DirectMxJavaMailSenderTest {
+
+    private static final ServerSetup MAIL_SERVER = new ServerSetup(3027, "127.0.0.1", ServerSetup.PROTOCOL_SMTP);
+
+    @RegisterExtension
+    static GreenMailExtension greenMail = new GreenMailExtension(MAIL_SERVER);
+
+    @Mock
+    private JavaMailSender relay;
+
+    private TestDnsServer dnsServer;
+
+    private MeterRegistry meterRegistry;
+
+    private DirectMxJavaMailSender mailSender;
+
+    @BeforeEach
+    public void init() throws IOException {
+        dnsServer = new TestDnsServer();
+        meterRegistry = new SimpleMeterRegistry();
+        DnsClient dnsClient = new DnsClient(List.of(dnsServer.getAddress()), Duration.ofSeconds(1), 1);
+        MxResolver mxResolver = new MxResolver(dnsClient, Duration.ofMinutes(5), Duration.ofHours(1), 100,
+            meterRegistry);
+        SmtpTransportPool.Settings poolSettings = new SmtpTransportPool.Settings(2, Duration.ofMinutes(1), 100,
+            Duration.ofSeconds(1), Duration.ZERO);
+        DirectMxJavaMailSender.Settings settings = new DirectMxJavaMailSender.Settings(MAIL_SERVER.getPort(),
+            "sender.test", Duration.ofSeconds(5), 10, poolSettings);
+        mailSender = new DirectMxJavaMailSender(mxResolver, relay, settings, meterRegistry);
+    }
+
+    @AfterEach
+    public void close() {
+        mailSender.destroy();
+        dnsServer.close();
+    }
+
+    @Test
+    public void shouldDeliverToTheFirstMailServerAvailable() throws Exception {
+        //given
+        //nothing listens on the preferred mail server
+        dnsServer.setMxRecords("customer.test", new Mx(10, "127.0.0.2", 300), new Mx(20, "127.0.0.1", 300));
+
+        //when
+        mailSender.send(createTestMessage("first@customer.test", "first"));
+        mailSender.send(createTestMessage("second@customer.test", "second"));
+
+        //then
+        greenMail.waitForIncomingEmail(2);
+        assertEquals(2, greenMail.getReceivedMessages().length);
+        verify(relay, never()).send(ArgumentMatchers.<MimeMessage[]>any());
+        //the connection to the mail server has been reused
+        assertEquals(1, meterRegistry.get("email.sender.smtp.pool.connections").tag("name", "127.0.0.1")
+            .tag("state", "idle").gauge().value());
+        assertEquals(2, meterRegistry.get("email.sender.mx.deliveries").tag("route", "direct").counter().count());
+    }
+
+    @Test
+    public void shouldRelayTheMessagesWhenTheMailServersCannotBeResolved() throws Exception {
+        //given
+        dnsServer.setResponseCode("customer.test", DnsClient.RCODE_SERVER_FAILURE);
+        MimeMessage testMessage = createTestMessage("first@customer.test", "first");
+
+        //when
+        mailSender.send(testMessage);
+
+        //then
+        verify(relay).send(new MimeMessage[] {testMessage});
+        assertEquals(0, greenMail.getReceivedMessages().length);
+        assertEquals(1, meterRegistry.get("email.sender.mx.deliveries").tag("route", "relay").counter().count());
+    }
+
+    @Test
+    public void shouldFailTheMessagesToADomainThatDoesNotExist() throws Exception {
+        //given
+        MimeMessage testMessage = createTestMessage("first@unknown.test", "first");
+
+        //when
+        MailSendException failure = assertThrows(MailSendException.class, () -> mailSender.send(testMessage));
+
+        //then
+        //the relay would not deliver it either
+        assertEquals(1, failure.getFailedMessages().size());
+        verify(relay, never()).send(ArgumentMatchers.<MimeMessage[]>any());
+    }
+
+    private MimeMessage createTestMessage(String to, String subject) throws Exception {
+        MimeMessage mimeMessage = mailSender.createMimeMessage();
+        MimeMessageHelper helper = new MimeMessageHelper(mimeMessage);
+        helper.setFrom("from@sender.test");
+        helper.setTo(to);
+        helper.setSubject(subject);
+        helper.setText("text");
+        return mimeMessage;
+    }
+}
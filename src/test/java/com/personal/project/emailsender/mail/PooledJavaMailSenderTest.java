@@ -0,0 +1,106 @@
+package com.personal.project.emailsender.mail;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.icegreen.greenmail.junit5.GreenMailExtension;
+import com.icegreen.greenmail.util.ServerSetupTest;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import javax.mail.internet.MimeMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.springframework.mail.javamail.MimeMessageHelper;
+
+public class PooledJavaMailSenderTest {
+
+    private static final int MAX_MESSAGES_PER_CONNECTION = 3;
+
+    @RegisterExtension
+    static GreenMailExtension greenMail = new GreenMailExtension(ServerSetupTest.SMTP);
+
+    private MeterRegistry meterRegistry;
+
+    private PooledJavaMailSender mailSender;
+
+    @BeforeEach
+    public void init() {
+        meterRegistry = new SimpleMeterRegistry();
+        SmtpTransportPool.Settings poolSettings = new SmtpTransportPool.Settings(2, Duration.ofMinutes(1),
+            MAX_MESSAGES_PER_CONNECTION, Duration.ofSeconds(1), Duration.ZERO);
+        mailSender = new PooledJavaMailSender(poolSettings, meterRegistry);
+        mailSender.setHost("localhost");
+        mailSender.setPort(ServerSetupTest.SMTP.getPort());
+    }
+
+    @AfterEach
+    public void close() {
+        mailSender.destroy();
+    }
+
+    @Test
+    public void shouldKeepTheConnectionOpenAfterSending() throws Exception {
+        //when
+        mailSender.send(createTestMessage("first"));
+        mailSender.send(createTestMessage("second"));
+
+        //then
+        //the messages have been received
+        greenMail.waitForIncomingEmail(2);
+        assertEquals(2, greenMail.getReceivedMessages().length);
+
+        //a single connection has been kept open for reuse
+        assertEquals(1, getConnections("idle"));
+        assertEquals(0, getConnections("leased"));
+
+        //the connection setup is measured apart from the transfers
+        assertEquals(1, meterRegistry.get("email.sender.smtp.connect").timer().count());
+        assertEquals(2, meterRegistry.get("email.sender.smtp.transfer").timer().count());
+        assertEquals(2, meterRegistry.get("email.sender.smtp.replies").tag("code", "250").counter().count());
+    }
+
+    @Test
+    public void shouldCloseTheConnectionAfterTheMaximumNumberOfMessages() throws Exception {
+        //when
+        for (int i = 0; i < MAX_MESSAGES_PER_CONNECTION; i++) {
+            mailSender.send(createTestMessage("message " + i));
+        }
+
+        //then
+        greenMail.waitForIncomingEmail(MAX_MESSAGES_PER_CONNECTION);
+        assertEquals(MAX_MESSAGES_PER_CONNECTION, greenMail.getReceivedMessages().length);
+        assertEquals(0, getConnections("idle"));
+    }
+
+    @Test
+    public void shouldReconnectWhenTheServerClosedTheConnection() throws Exception {
+        //given
+        mailSender.send(createTestMessage("first"));
+        greenMail.waitForIncomingEmail(1);
+        greenMail.reset();
+
+        //when
+        mailSender.send(createTestMessage("second"));
+
+        //then
+        greenMail.waitForIncomingEmail(1);
+        assertEquals("second", greenMail.getReceivedMessages()[0].getSubject());
+        assertEquals(1, getConnections("idle"));
+    }
+
+    private double getConnections(String state) {
+        return meterRegistry.get("email.sender.smtp.pool.connections").tag("state", state).gauge().value();
+    }
+
+    private MimeMessage createTestMessage(String subject) throws Exception {
+        MimeMessage mimeMessage = mailSender.createMimeMessage();
+        MimeMessageHelper helper = new MimeMessageHelper(mimeMessage);
+        helper.setFrom("from@test.com");
+        helper.setTo("to@test.com");
+        helper.setSubject(subject);
+        helper.setText("text");
+        return mimeMessage;
+    }
+}
@@ -0,0 +1,148 @@
+package com.personal.project.emailsender.mail;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.icegreen.greenmail.junit5.GreenMailExtension;
+import com.icegreen.greenmail.util.ServerSetup;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.List;
+import javax.mail.internet.MimeMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.springframework.mail.MailSendException;
+import org.springframework.mail.javamail.MimeMessageHelper;
+
+public class RoutingJavaMailSenderTest {
+
+    private static final ServerSetup FIRST_RELAY = new ServerSetup(3028, "127.0.0.1", ServerSetup.PROTOCOL_SMTP);
+
+    private static final ServerSetup SECOND_RELAY = new ServerSetup(3029, "127.0.0.1", ServerSetup.PROTOCOL_SMTP);
+
+    //nothing listens on this port
+    private static final int UNREACHABLE_PORT = 3030;
+
+    private static final long RECEIVE_TIMEOUT_MS = 5000;
+
+    @RegisterExtension
+    static GreenMailExtension firstRelay = new GreenMailExtension(FIRST_RELAY);
+
+    @RegisterExtension
+    static GreenMailExtension secondRelay = new GreenMailExtension(SECOND_RELAY);
+
+    private MeterRegistry meterRegistry;
+
+    private RoutingJavaMailSender mailSender;
+
+    @BeforeEach
+    public void init() {
+        meterRegistry = new SimpleMeterRegistry();
+    }
+
+    @AfterEach
+    public void close() throws Exception {
+        mailSender.destroy();
+    }
+
+    @Test
+    public void shouldSpreadTheSendsAcrossTheRelays() throws Exception {
+        //given
+        mailSender = createMailSender(createRelay("first", FIRST_RELAY.getPort()),
+            createRelay("second", SECOND_RELAY.getPort()));
+
+        //when
+        for (int i = 0; i < 20; i++) {
+            mailSender.send(createTestMessage("message " + i));
+        }
+
+        //then
+        //GreenMail delivers the messages asynchronously
+        long deadline = System.currentTimeMillis() + RECEIVE_TIMEOUT_MS;
+        while (countReceived() < 20 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        int firstReceived = firstRelay.getReceivedMessages().length;
+        int secondReceived = secondRelay.getReceivedMessages().length;
+        assertEquals(20, firstReceived + secondReceived);
+        assertTrue(firstReceived > 0);
+        assertTrue(secondReceived > 0);
+        assertEquals(firstReceived, getSends("first", "success"));
+    }
+
+    @Test
+    public void shouldFailOverAndOpenTheCircuitOfAnUnreachableRelay() throws Exception {
+        //given
+        mailSender = createMailSender(createRelay("down", UNREACHABLE_PORT), createRelay("up", FIRST_RELAY.getPort()));
+
+        //when
+        for (int i = 0; i < 20; i++) {
+            mailSender.send(createTestMessage("message " + i));
+        }
+
+        //then
+        //every message has been sent through the relay that is up
+        assertTrue(firstRelay.waitForIncomingEmail(RECEIVE_TIMEOUT_MS, 20));
+        //the relay that is down has been tried once before its circuit opened
+        assertEquals(1, getSends("down", "failure"));
+        assertEquals(RoutingJavaMailSender.CircuitState.OPEN.ordinal(),
+            meterRegistry.get("email.sender.relay.circuit").tag("relay", "down").gauge().value());
+    }
+
+    @Test
+    public void shouldFailFastOnceAllTheCircuitsAreOpen() throws Exception {
+        //given
+        mailSender = createMailSender(createRelay("first", UNREACHABLE_PORT),
+            createRelay("second", UNREACHABLE_PORT));
+        MimeMessage firstMessage = createTestMessage("first");
+        assertThrows(MailSendException.class, () -> mailSender.send(firstMessage));
+        MimeMessage secondMessage = createTestMessage("second");
+
+        //when
+        MailSendException failure = assertThrows(MailSendException.class, () -> mailSender.send(secondMessage));
+
+        //then
+        assertEquals(1, failure.getFailedMessages().size());
+        //no relay has been tried for the second message
+        assertEquals(1, getSends("first", "failure"));
+        assertEquals(1, getSends("second", "failure"));
+    }
+
+    private RoutingJavaMailSender createMailSender(RoutingJavaMailSender.Relay... relays) {
+        RoutingJavaMailSender.Settings settings = new RoutingJavaMailSender.Settings(1, Duration.ofMinutes(1),
+            Duration.ofSeconds(10));
+        return new RoutingJavaMailSender(List.of(relays), settings, meterRegistry);
+    }
+
+    private RoutingJavaMailSender.Relay createRelay(String name, int port) {
+        SmtpTransportPool.Settings poolSettings = new SmtpTransportPool.Settings(2, Duration.ofMinutes(1), 100,
+            Duration.ofSeconds(1), Duration.ZERO);
+        PooledJavaMailSender sender = new PooledJavaMailSender(poolSettings, name, meterRegistry);
+        sender.setHost("127.0.0.1");
+        sender.setPort(port);
+        return new RoutingJavaMailSender.Relay(name, 1, sender);
+    }
+
+    private int countReceived() {
+        return firstRelay.getReceivedMessages().length + secondRelay.getReceivedMessages().length;
+    }
+
+    private double getSends(String relay, String result) {
+        return meterRegistry.get("email.sender.relay.sends").tag("relay", relay).tag("result", result).counter()
+            .count();
+    }
+
+    private MimeMessage createTestMessage(String subject) throws Exception {
+        MimeMessage mimeMessage = mailSender.createMimeMessage();
+        MimeMessageHelper helper = new MimeMessageHelper(mimeMessage);
+        helper.setFrom("from@test.com");
+        helper.setTo("to@test.com");
+        helper.setSubject(subject);
+        helper.setText("text");
+        return mimeMessage;
+    }
+}
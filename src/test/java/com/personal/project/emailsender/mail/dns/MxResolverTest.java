@@ -0,0 +1,117 @@
+package com.personal.project.emailsender.mail.dns;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.personal.project.emailsender.test.utils.TestDnsServer;
+import com.personal.project.emailsender.test.utils.TestDnsServer.Mx;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class MxResolverTest {
+
+    private TestDnsServer dnsServer;
+
+    private MeterRegistry meterRegistry;
+
+    private MxResolver mxResolver;
+
+    @BeforeEach
+    public void init() throws IOException {
+        dnsServer = new TestDnsServer();
+        meterRegistry = new SimpleMeterRegistry();
+        DnsClient dnsClient = new DnsClient(List.of(dnsServer.getAddress()), Duration.ofSeconds(1), 1);
+        mxResolver = new MxResolver(dnsClient, Duration.ofMinutes(5), Duration.ofHours(1), 100, meterRegistry);
+    }
+
+    @AfterEach
+    public void close() {
+        dnsServer.close();
+    }
+
+    @Test
+    public void shouldReturnTheMailServersByPreferenceAndCacheThem() throws Exception {
+        //given
+        dnsServer.setMxRecords("test.com", new Mx(20, "backup.test.com", 300), new Mx(10, "mx.test.com", 300));
+
+        //when
+        List<String> firstHosts = mxResolver.resolve("test.com");
+        List<String> secondHosts = mxResolver.resolve("TEST.com");
+
+        //then
+        assertEquals(List.of("mx.test.com", "backup.test.com"), firstHosts);
+        assertEquals(firstHosts, secondHosts);
+        //the second lookup has been answered by the cache
+        assertEquals(1, dnsServer.getQueries("test.com"));
+        assertEquals(1, meterRegistry.get("email.sender.mx.lookups").tag("result", "hit").counter().count());
+    }
+
+    @Test
+    public void shouldLookUpAgainOnceTheTtlExpired() throws Exception {
+        //given
+        dnsServer.setMxRecords("test.com", new Mx(10, "mx.test.com", 0));
+        mxResolver.resolve("test.com");
+
+        //when
+        dnsServer.setMxRecords("test.com", new Mx(10, "new-mx.test.com", 0));
+        List<String> hosts = mxResolver.resolve("test.com");
+
+        //then
+        assertEquals(List.of("new-mx.test.com"), hosts);
+        assertEquals(2, dnsServer.getQueries("test.com"));
+    }
+
+    @Test
+    public void shouldCacheTheDomainsThatDoNotExist() throws Exception {
+        //when
+        List<String> firstHosts = mxResolver.resolve("unknown.com");
+        List<String> secondHosts = mxResolver.resolve("unknown.com");
+
+        //then
+        assertTrue(firstHosts.isEmpty());
+        assertTrue(secondHosts.isEmpty());
+        assertEquals(1, dnsServer.getQueries("unknown.com"));
+    }
+
+    @Test
+    public void shouldUseTheDomainItselfWithoutMxRecords() throws Exception {
+        //given
+        dnsServer.setMxRecords("test.com");
+
+        //when
+        //then
+        assertEquals(List.of("test.com"), mxResolver.resolve("test.com"));
+    }
+
+    @Test
+    public void shouldNotReturnAnyMailServerForANullMx() throws Exception {
+        //given
+        dnsServer.setMxRecords("test.com", new Mx(0, "", 300));
+
+        //when
+        //then
+        assertTrue(mxResolver.resolve("test.com").isEmpty());
+    }
+
+    @Test
+    public void shouldNotCacheTheFailedLookups() throws Exception {
+        //given
+        dnsServer.setResponseCode("test.com", DnsClient.RCODE_SERVER_FAILURE);
+        assertThrows(IOException.class, () -> mxResolver.resolve("test.com"));
+
+        //when
+        dnsServer.setMxRecords("test.com", new Mx(10, "mx.test.com", 300));
+        List<String> hosts = mxResolver.resolve("test.com");
+
+        //then
+        assertEquals(List.of("mx.test.com"), hosts);
+        assertEquals(1, meterRegistry.get("email.sender.mx.lookups").tag("result", "failure").counter().count());
+    }
+}
@@ -0,0 +1,144 @@
+package com.personal.project.emailsender.outbox;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.personal.project.emailsender.dto.EmailDTO;
+import com.personal.project.emailsender.outbox.SegmentLog.Record;
+import com.personal.project.emailsender.queue.DeadLetter;
+import com.personal.project.emailsender.queue.QueuedEvent;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.kafka.common.errors.RecordTooLargeException;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.support.SendResult;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+@ExtendWith(MockitoExtension.class)
+public class EmailOutboxTest {
+
+    private static final String TOPIC = "emails";
+
+    @Mock
+    private KafkaTemplate<String, Object> kafkaTemplate;
+
+    @TempDir
+    Path tempDir;
+
+    private MeterRegistry meterRegistry;
+
+    private EmailOutbox emailOutbox;
+
+    @BeforeEach
+    public void init() throws Exception {
+        meterRegistry = new SimpleMeterRegistry();
+        emailOutbox = new EmailOutbox(tempDir.toString(), 1024 * 1024, 4 * 1024 * 1024, 1, 100, 10, 1024 * 1024,
+            new ObjectMapper(), kafkaTemplate, meterRegistry);
+    }
+
+    @AfterEach
+    public void close() throws Exception {
+        emailOutbox.close();
+    }
+
+    @Test
+    public void shouldRelayTheEventsToKafkaInOrder() throws Exception {
+        //given
+        when(kafkaTemplate.send(eq(TOPIC), any(), any())).thenReturn(acknowledged());
+        emailOutbox.start();
+
+        //when
+        emailOutbox.append(TOPIC, "first.com", createEmail("first@first.com")).get(5, TimeUnit.SECONDS);
+        emailOutbox.append(TOPIC, null, createEmail("second@second.com")).get(5, TimeUnit.SECONDS);
+
+        //then
+        ArgumentCaptor<Object> events = ArgumentCaptor.forClass(Object.class);
+        verify(kafkaTemplate, timeout(5000).times(2)).send(eq(TOPIC), any(), events.capture());
+        assertEquals("first@first.com", ((EmailDTO) events.getAllValues().get(0)).getTo());
+        assertEquals("second@second.com", ((EmailDTO) events.getAllValues().get(1)).getTo());
+        verify(kafkaTemplate).send(TOPIC, "first.com", events.getAllValues().get(0));
+    }
+
+    @Test
+    public void shouldRelayTheEventAgainWhenKafkaFailed() throws Exception {
+        //given
+        SettableListenableFuture<SendResult<String, Object>> failed = new SettableListenableFuture<>();
+        failed.setException(new TimeoutException("broker not available"));
+        when(kafkaTemplate.send(eq(TOPIC), any(), any())).thenReturn(failed).thenReturn(acknowledged());
+        emailOutbox.append(TOPIC, null, createEmail("first@first.com"));
+
+        //when
+        emailOutbox.start();
+
+        //then
+        verify(kafkaTemplate, timeout(5000).times(2)).send(eq(TOPIC), any(), any());
+        Thread.sleep(100);
+        verify(kafkaTemplate, times(2)).send(eq(TOPIC), any(), any());
+        assertEquals(1, meterRegistry.get("email.sender.outbox.relayed").counter().count());
+    }
+
+    @Test
+    public void shouldMoveTheEventsKafkaCannotAcceptToTheDeadLetterLog() throws Exception {
+        //given
+        EmailDTO tooLargeEmail = createEmail("first@first.com");
+        EmailDTO followingEmail = createEmail("second@second.com");
+        SettableListenableFuture<SendResult<String, Object>> failed = new SettableListenableFuture<>();
+        failed.setException(new RecordTooLargeException("record too large"));
+        when(kafkaTemplate.send(TOPIC, null, tooLargeEmail)).thenReturn(failed);
+        when(kafkaTemplate.send(TOPIC, null, followingEmail)).thenReturn(acknowledged());
+        emailOutbox.append(TOPIC, null, tooLargeEmail);
+        emailOutbox.append(TOPIC, null, followingEmail).get(5, TimeUnit.SECONDS);
+
+        //when
+        emailOutbox.start();
+
+        //then
+        //the event is not sent again and does not block the following one
+        verify(kafkaTemplate, timeout(5000)).send(TOPIC, null, followingEmail);
+        Thread.sleep(100);
+        verify(kafkaTemplate, times(1)).send(TOPIC, null, tooLargeEmail);
+        assertEquals(1, meterRegistry.get("email.sender.outbox.dead-lettered").counter().count());
+        emailOutbox.close();
+
+        //the dead letter keeps the failure reason
+        try (SegmentLog deadLetterLog = new SegmentLog(tempDir.resolve(EmailOutbox.DEAD_LETTER_DIRECTORY),
+            1024 * 1024, 1, Duration.ZERO, meterRegistry.timer("test.fsync"))) {
+            List<Record> records = deadLetterLog.read(deadLetterLog.getCommittedOffset(), 10);
+            assertEquals(1, records.size());
+            DeadLetter deadLetter = DeadLetter.fromBytes(records.get(0).getData());
+            assertEquals(TOPIC, deadLetter.getTopic());
+            assertTrue(deadLetter.getReason().contains("record too large"));
+            assertEquals(tooLargeEmail, QueuedEvent.fromBytes(deadLetter.getEvent(), new ObjectMapper()).getEvent());
+        }
+    }
+
+    private static SettableListenableFuture<SendResult<String, Object>> acknowledged() {
+        SettableListenableFuture<SendResult<String, Object>> future = new SettableListenableFuture<>();
+        future.set(null);
+        return future;
+    }
+
+    private static EmailDTO createEmail(String to) {
+        return new EmailDTO("from@test.com", to, "subject", "body", null);
+    }
+}
@@ -0,0 +1,154 @@
+package com.personal.project.emailsender.outbox;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.personal.project.emailsender.outbox.SegmentLog.LogFullException;
+import com.personal.project.emailsender.outbox.SegmentLog.Record;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class SegmentLogTest {
+
+    private static final int SEGMENT_SIZE = 64;
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void shouldReadTheRecordsInOrderAcrossSegments() throws Exception {
+        //given
+        try (SegmentLog segmentLog = createLog(4, Duration.ZERO)) {
+            for (int i = 0; i < 10; i++) {
+                segmentLog.append(("record " + i).getBytes(StandardCharsets.UTF_8));
+            }
+
+            //when
+            List<Record> firstRecords = segmentLog.read(segmentLog.getCommittedOffset(), 6);
+            List<Record> nextRecords = segmentLog.read(firstRecords.get(5).getNextOffset(), 100);
+
+            //then
+            assertEquals(List.of("record 0", "record 1", "record 2", "record 3", "record 4", "record 5"),
+                asStrings(firstRecords));
+            assertEquals(List.of("record 6", "record 7", "record 8", "record 9"), asStrings(nextRecords));
+            //each 64 bytes segment holds 4 records
+            assertEquals(3, countSegments());
+        }
+    }
+
+    @Test
+    public void shouldResumeFromTheCommittedOffsetAfterARestart() throws Exception {
+        //given
+        try (SegmentLog segmentLog = createLog(4, Duration.ZERO)) {
+            for (int i = 0; i < 5; i++) {
+                segmentLog.append(("record " + i).getBytes(StandardCharsets.UTF_8));
+            }
+            segmentLog.commit(segmentLog.read(segmentLog.getCommittedOffset(), 4).get(3).getNextOffset());
+        }
+
+        //when
+        try (SegmentLog reopenedLog = createLog(4, Duration.ZERO)) {
+            reopenedLog.append("record 5".getBytes(StandardCharsets.UTF_8));
+
+            //then
+            assertEquals(List.of("record 4", "record 5"),
+                asStrings(reopenedLog.read(reopenedLog.getCommittedOffset(), 100)));
+            //the first segment has been consumed and deleted
+            assertEquals(1, countSegments());
+        }
+    }
+
+    @Test
+    public void shouldDropATornRecordWhenOpened() throws Exception {
+        //given
+        try (SegmentLog segmentLog = createLog(4, Duration.ZERO)) {
+            segmentLog.append("first".getBytes(StandardCharsets.UTF_8));
+            segmentLog.append("second".getBytes(StandardCharsets.UTF_8));
+        }
+        Path segment;
+        try (Stream<Path> files = Files.list(tempDir)) {
+            segment = files.filter(file -> file.toString().endsWith(".log")).findFirst().orElseThrow();
+        }
+        //the data of the second record did not reach the disk
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] {0, 0}), 8 + 5 + 8);
+        }
+
+        //when
+        try (SegmentLog reopenedLog = createLog(4, Duration.ZERO)) {
+            reopenedLog.append("third".getBytes(StandardCharsets.UTF_8));
+
+            //then
+            assertEquals(List.of("first", "third"), asStrings(reopenedLog.read(reopenedLog.getCommittedOffset(), 100)));
+        }
+    }
+
+    @Test
+    public void shouldRejectTheRecordsOnceFull() throws Exception {
+        //given
+        try (SegmentLog segmentLog = createLog(2, Duration.ZERO)) {
+            for (int i = 0; i < 8; i++) {
+                segmentLog.append(("record " + i).getBytes(StandardCharsets.UTF_8));
+            }
+            byte[] record = "record 8".getBytes(StandardCharsets.UTF_8);
+
+            //when
+            //then
+            assertThrows(LogFullException.class, () -> segmentLog.append(record));
+            //there is room again once the records have been consumed
+            segmentLog.commit(segmentLog.getEndOffset());
+            segmentLog.append(record);
+        }
+    }
+
+    @Test
+    public void shouldCompleteTheAppendsOnceSynced() throws Exception {
+        //given
+        try (SegmentLog segmentLog = createLog(4, Duration.ofMillis(10))) {
+
+            //when
+            CompletableFuture<Void> first = segmentLog.awaitDurable(segmentLog.append(new byte[] {1}));
+            CompletableFuture<Void> second = segmentLog.awaitDurable(segmentLog.append(new byte[] {2}));
+
+            //then
+            second.get(5, TimeUnit.SECONDS);
+            assertTrue(first.isDone());
+            //the appends have been forced to the disk
+            assertTrue(meterRegistry.get("email.sender.outbox.fsync").timer().count() >= 1);
+        }
+    }
+
+    private SegmentLog createLog(int maxSegments, Duration fsyncInterval) throws Exception {
+        return new SegmentLog(tempDir, SEGMENT_SIZE, maxSegments, fsyncInterval,
+            meterRegistry.timer("email.sender.outbox.fsync"));
+    }
+
+    private long countSegments() throws Exception {
+        try (Stream<Path> files = Files.list(tempDir)) {
+            return files.filter(file -> file.toString().endsWith(".log")).count();
+        }
+    }
+
+    private static List<String> asStrings(List<Record> records) {
+        return records.stream()
+            .map(record -> new String(record.getData(), StandardCharsets.UTF_8))
+            .collect(Collectors.toList());
+    }
+}
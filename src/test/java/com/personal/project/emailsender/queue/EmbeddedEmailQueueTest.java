@@ -0,0 +1,173 @@
+package com.personal.project.emailsender.queue;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.personal.project.emailsender.dto.EmailDTO;
+import com.personal.project.emailsender.dto.Priority;
+import com.personal.project.emailsender.kafka.retry.RetryTopics;
+import com.personal.project.emailsender.outbox.SegmentLog;
+import com.personal.project.emailsender.outbox.SegmentLog.Record;
+import com.personal.project.emailsender.service.EmailSenderService;
+import com.personal.project.emailsender.service.TemplateEmailRenderer;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.validation.Validation;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.mail.MailSendException;
+
+@ExtendWith(MockitoExtension.class)
+public class EmbeddedEmailQueueTest {
+
+    private static final String TOPIC = "emails";
+
+    @Mock
+    private EmailSenderService emailSenderService;
+
+    @Mock
+    private TemplateEmailRenderer templateEmailRenderer;
+
+    @TempDir
+    Path tempDir;
+
+    private MeterRegistry meterRegistry;
+
+    private EmbeddedEmailQueue emailQueue;
+
+    @BeforeEach
+    public void init() throws Exception {
+        meterRegistry = new SimpleMeterRegistry();
+        emailQueue = createEmailQueue();
+    }
+
+    @AfterEach
+    public void close() throws Exception {
+        emailQueue.close();
+    }
+
+    @Test
+    public void shouldSendTheQueuedEmailsInOrder() throws Exception {
+        //given
+        EmailDTO firstEmail = createEmail("first@first.com");
+        EmailDTO secondEmail = createEmail("second@second.com");
+        emailQueue.start();
+
+        //when
+        emailQueue.enqueue(TOPIC, "first.com", firstEmail).get(5, TimeUnit.SECONDS);
+        emailQueue.enqueue(TOPIC, null, secondEmail).get(5, TimeUnit.SECONDS);
+
+        //then
+        InOrder inOrder = inOrder(emailSenderService);
+        inOrder.verify(emailSenderService, timeout(5000)).sendEmail(firstEmail);
+        inOrder.verify(emailSenderService, timeout(5000)).sendEmail(secondEmail);
+    }
+
+    @Test
+    public void shouldResumeFromTheAcknowledgedEventsAfterARestart() throws Exception {
+        //given
+        EmailDTO email = createEmail("first@first.com");
+        emailQueue.enqueue(TOPIC, null, email).get(5, TimeUnit.SECONDS);
+        emailQueue.close();
+
+        //when
+        emailQueue = createEmailQueue();
+        emailQueue.start();
+
+        //then
+        verify(emailSenderService, timeout(5000)).sendEmail(email);
+    }
+
+    @Test
+    public void shouldMoveTheFailedEmailsThroughTheRetryTiersToTheDeadLetters() throws Exception {
+        //given
+        EmailDTO email = createEmail("first@first.com");
+        email.setPriority(Priority.HIGH);
+        doThrow(new MailSendException("test error")).when(emailSenderService).sendEmail(any(EmailDTO.class));
+        emailQueue.start();
+
+        //when
+        emailQueue.enqueue("emails-high", null, email).get(5, TimeUnit.SECONDS);
+
+        //then
+        //the email has been sent once from its topic and once from each of the two retry tiers
+        verify(emailSenderService, timeout(5000).times(3)).sendEmail(any(EmailDTO.class));
+        Thread.sleep(100);
+        verify(emailSenderService, times(3)).sendEmail(any(EmailDTO.class));
+        emailQueue.close();
+
+        //the dead letter keeps the failure reason
+        try (SegmentLog deadLetterLog = new SegmentLog(tempDir.resolve("emails-dlt"), 1024 * 1024, 4,
+            Duration.ZERO, meterRegistry.timer("test.fsync"))) {
+            List<Record> records = deadLetterLog.read(deadLetterLog.getCommittedOffset(), 10);
+            assertEquals(1, records.size());
+            DeadLetter deadLetter = DeadLetter.fromBytes(records.get(0).getData());
+            assertEquals("emails-retry-1", deadLetter.getTopic());
+            assertTrue(deadLetter.getReason().contains("test error"));
+            assertEquals(email, QueuedEvent.fromBytes(deadLetter.getEvent(), new ObjectMapper()).getEvent());
+        }
+    }
+
+    @Test
+    public void shouldReplayTheDeadLettersToTheirTopic() throws Exception {
+        //given
+        EmailDTO email = createEmail("first@first.com");
+        email.setPriority(Priority.HIGH);
+        AtomicReference<String> replayThread = new AtomicReference<>();
+        doThrow(new MailSendException("test error")).doThrow(new MailSendException("test error"))
+            .doThrow(new MailSendException("test error"))
+            .doAnswer(invocation -> {
+                replayThread.set(Thread.currentThread().getName());
+                return null;
+            })
+            .when(emailSenderService).sendEmail(any(EmailDTO.class));
+        emailQueue.start();
+        emailQueue.enqueue("emails-high", null, email).get(5, TimeUnit.SECONDS);
+        verify(emailSenderService, timeout(5000).times(3)).sendEmail(any(EmailDTO.class));
+        Thread.sleep(100);
+
+        //when
+        int replayed = emailQueue.replayDeadLetters(10);
+
+        //then
+        assertEquals(1, replayed);
+        assertEquals(0, meterRegistry.get("email.sender.queue.pending").tag("topic", "emails-dlt").gauge().value());
+        verify(emailSenderService, timeout(5000).times(4)).sendEmail(email);
+        //the email has been replayed to the topic of its priority
+        assertEquals("email-queue-emails-high", replayThread.get());
+        assertEquals(0, emailQueue.replayDeadLetters(10));
+    }
+
+    @SuppressWarnings("unchecked")
+    private EmbeddedEmailQueue createEmailQueue() throws Exception {
+        RetryTopics retryTopics = new RetryTopics(TOPIC, "emails-high", "emails-bulk", "template-emails", 2, 10, 2,
+            mock(ObjectProvider.class), EmailQueue.Type.EMBEDDED);
+        return new EmbeddedEmailQueue(tempDir.toString(), 1024 * 1024, 4 * 1024 * 1024, 1, 100, 10, "emails-high",
+            TOPIC, "emails-bulk", "template-emails", false, retryTopics, emailSenderService, templateEmailRenderer,
+            Validation.buildDefaultValidatorFactory().getValidator(), new ObjectMapper(), meterRegistry);
+    }
+
+    private static EmailDTO createEmail(String to) {
+        return new EmailDTO("from@test.com", to, "subject", "body", null);
+    }
+}
@@ -0,0 +1,225 @@
+package com.personal.project.emailsender.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.personal.project.emailsender.service.UrlDownloader.CacheHints;
+import com.personal.project.emailsender.service.UrlDownloader.DownloadedContent;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.http.MediaType;
+
+@ExtendWith(MockitoExtension.class)
+public class CachingUrlDownloaderTest {
+
+    private static final String TEST_URL = "http://test.com/attachment";
+    private static final int MEMORY_MAX_ENTRY_SIZE_BYTES = 16;
+
+    @TempDir
+    Path diskDirectory;
+
+    @Mock
+    private UrlDownloader delegate;
+
+    private MeterRegistry meterRegistry;
+
+    private CachingUrlDownloader cachingUrlDownloader;
+
+    @BeforeEach
+    public void init() throws Exception {
+        meterRegistry = new SimpleMeterRegistry();
+        CachingUrlDownloader.Settings settings = new CachingUrlDownloader.Settings(32, MEMORY_MAX_ENTRY_SIZE_BYTES,
+            1024, diskDirectory, Duration.ofMinutes(1));
+        cachingUrlDownloader = new CachingUrlDownloader(delegate, settings, meterRegistry);
+    }
+
+    @Test
+    public void shouldDownloadTheContentOnlyOnce() throws Exception {
+        //given
+        byte[] testContent = "test content".getBytes(StandardCharsets.UTF_8);
+        when(delegate.downloadContent(TEST_URL)).thenReturn(createTestContent(testContent, CacheHints.NONE));
+
+        //when
+        byte[] firstContent = download(TEST_URL);
+        byte[] secondContent = download(TEST_URL);
+
+        //then
+        assertArrayEquals(testContent, firstContent);
+        assertArrayEquals(testContent, secondContent);
+        verify(delegate, times(1)).downloadContent(TEST_URL);
+        assertEquals(1, getCacheRequests("hit"));
+        assertEquals(testContent.length, meterRegistry.get("email.sender.attachment.cache.bytes.saved").counter().count());
+    }
+
+    @Test
+    public void shouldCollapseConcurrentDownloadsOfTheSameUrl() throws Exception {
+        //given
+        byte[] testContent = "test content".getBytes(StandardCharsets.UTF_8);
+        CountDownLatch downloadStarted = new CountDownLatch(1);
+        CountDownLatch downloadCanComplete = new CountDownLatch(1);
+        when(delegate.downloadContent(TEST_URL)).thenAnswer(invocation -> {
+            downloadStarted.countDown();
+            downloadCanComplete.await();
+            return createTestContent(testContent, CacheHints.NONE);
+        });
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        //when
+        List<Future<byte[]>> downloads = new ArrayList<>();
+        downloads.add(executor.submit(() -> download(TEST_URL)));
+        downloadStarted.await();
+        for (int i = 0; i < 3; i++) {
+            downloads.add(executor.submit(() -> download(TEST_URL)));
+        }
+        Thread.sleep(100);
+        downloadCanComplete.countDown();
+
+        //then
+        for (Future<byte[]> download : downloads) {
+            assertArrayEquals(testContent, download.get(5, TimeUnit.SECONDS));
+        }
+        verify(delegate, times(1)).downloadContent(TEST_URL);
+        executor.shutdown();
+    }
+
+    @Test
+    public void shouldRevalidateExpiredContentWithItsEtag() throws Exception {
+        //given
+        byte[] testContent = "test content".getBytes(StandardCharsets.UTF_8);
+        CacheHints cacheHints = CacheHints.of("\"v1\"", "max-age=0");
+        when(delegate.downloadContent(TEST_URL)).thenReturn(createTestContent(testContent, cacheHints));
+        when(delegate.downloadContentIfNoneMatch(TEST_URL, "\"v1\"")).thenReturn(Optional.empty());
+
+        //when
+        download(TEST_URL);
+        byte[] revalidatedContent = download(TEST_URL);
+
+        //then
+        assertArrayEquals(testContent, revalidatedContent);
+        verify(delegate, times(1)).downloadContent(TEST_URL);
+        verify(delegate, times(1)).downloadContentIfNoneMatch(TEST_URL, "\"v1\"");
+        assertEquals(1, getCacheRequests("revalidated"));
+    }
+
+    @Test
+    public void shouldNotCacheTheContentWhenTheServerForbidsIt() throws Exception {
+        //given
+        when(delegate.downloadContent(TEST_URL))
+            .thenAnswer(invocation -> createTestContent(new byte[]{1}, CacheHints.of(null, "no-store")));
+
+        //when
+        download(TEST_URL);
+        download(TEST_URL);
+
+        //then
+        verify(delegate, times(2)).downloadContent(TEST_URL);
+    }
+
+    @Test
+    public void shouldEvictTheLeastRecentlyUsedContent() throws Exception {
+        //given
+        for (String url : List.of("http://test.com/1", "http://test.com/2", "http://test.com/3")) {
+            when(delegate.downloadContent(url)).thenAnswer(
+                invocation -> createTestContent(new byte[MEMORY_MAX_ENTRY_SIZE_BYTES], CacheHints.NONE));
+        }
+
+        //when
+        //the memory tier can hold only two entries
+        download("http://test.com/1");
+        download("http://test.com/2");
+        download("http://test.com/1");
+        download("http://test.com/3");
+        download("http://test.com/1");
+        download("http://test.com/2");
+
+        //then
+        verify(delegate, times(1)).downloadContent("http://test.com/1");
+        verify(delegate, times(2)).downloadContent("http://test.com/2");
+        verify(delegate, times(1)).downloadContent("http://test.com/3");
+    }
+
+    @Test
+    public void shouldKeepLargeContentOnDiskUntilEvictedAndReleased() throws Exception {
+        //given
+        byte[] largeContent = new byte[MEMORY_MAX_ENTRY_SIZE_BYTES * 2];
+        largeContent[0] = 42;
+        when(delegate.downloadContent(TEST_URL)).thenReturn(createTestContent(largeContent, CacheHints.NONE));
+        when(delegate.downloadContent("http://test.com/other"))
+            .thenReturn(createTestContent(new byte[1000], CacheHints.NONE));
+
+        //when
+        DownloadedContent diskContent = cachingUrlDownloader.downloadContent(TEST_URL);
+        //evicts the first entry from the disk tier while it is still being read
+        download("http://test.com/other");
+
+        //then
+        Path diskFile = diskContent.getContent().getFile().toPath();
+        assertEquals(diskDirectory, diskFile.getParent());
+        assertArrayEquals(largeContent, diskContent.getContent().getInputStream().readAllBytes());
+        diskContent.close();
+        assertFalse(Files.exists(diskFile));
+        assertTrue(Files.list(diskDirectory).findAny().isPresent());
+    }
+
+    @Test
+    public void shouldRemoveTheExpiredContentFromTheOtherTierWhenItChangesSize() throws Exception {
+        //given
+        byte[] smallContent = new byte[MEMORY_MAX_ENTRY_SIZE_BYTES];
+        byte[] largeContent = new byte[MEMORY_MAX_ENTRY_SIZE_BYTES * 2];
+        CacheHints expiredCacheHints = CacheHints.of(null, "max-age=0");
+        when(delegate.downloadContent(TEST_URL))
+            .thenReturn(createTestContent(smallContent, expiredCacheHints))
+            .thenReturn(createTestContent(largeContent, CacheHints.NONE));
+
+        //when
+        download(TEST_URL);
+        byte[] downloadedContent = download(TEST_URL);
+
+        //then
+        //the expired memory entry does not outlive its replacement on disk
+        assertArrayEquals(largeContent, downloadedContent);
+        assertEquals(0, getCacheSize("memory"));
+        assertEquals(largeContent.length, getCacheSize("disk"));
+    }
+
+    private byte[] download(String url) throws Exception {
+        try (DownloadedContent downloadedContent = cachingUrlDownloader.downloadContent(url)) {
+            return downloadedContent.getContent().getInputStream().readAllBytes();
+        }
+    }
+
+    private double getCacheRequests(String result) {
+        return meterRegistry.get("email.sender.attachment.cache.requests").tag("result", result).counter().count();
+    }
+
+    private double getCacheSize(String tier) {
+        return meterRegistry.get("email.sender.attachment.cache.size").tag("tier", tier).gauge().value();
+    }
+
+    private static DownloadedContent createTestContent(byte[] content, CacheHints cacheHints) {
+        return DownloadedContent.inMemory(MediaType.APPLICATION_OCTET_STREAM_VALUE, content).withCacheHints(cacheHints);
+    }
+}
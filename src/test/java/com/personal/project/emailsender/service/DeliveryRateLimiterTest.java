@@ -0,0 +1,82 @@
+package com.personal.project.emailsender.service;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.personal.project.emailsender.service.DeliveryRateLimiter.Permit;
+import com.personal.project.emailsender.service.DeliveryRateLimiter.Settings;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+public class DeliveryRateLimiterTest {
+
+    @Test
+    public void shouldLimitTheRateOfEachDomain() {
+        //given
+        //burst of 2 emails to each domain, then one every 10 seconds
+        DeliveryRateLimiter rateLimiter = createRateLimiter(new Settings(0.1, 2, 0, Map.of(), Map.of(), 0, 1,
+            Duration.ZERO));
+
+        //when
+        //then
+        assertTrue(rateLimiter.tryAcquire("from@test.com", "first@limited.com").isGranted());
+        assertTrue(rateLimiter.tryAcquire("from@test.com", "second@LIMITED.com").isGranted());
+        Permit denied = rateLimiter.tryAcquire("from@test.com", "third@limited.com");
+        assertFalse(denied.isGranted());
+        assertTrue(denied.getRetryAfterNanos() > TimeUnit.SECONDS.toNanos(9));
+
+        //the other domains are not limited
+        assertTrue(rateLimiter.tryAcquire("from@test.com", "first@other.com").isGranted());
+    }
+
+    @Test
+    public void shouldApplyTheOverridesOfTheDomains() {
+        //given
+        DeliveryRateLimiter rateLimiter = createRateLimiter(new Settings(0, 1, 0, Map.of("limited.com", 0.1),
+            Map.of(), 0, 1, Duration.ZERO));
+
+        //when
+        //then
+        assertTrue(rateLimiter.tryAcquire("from@test.com", "first@limited.com").isGranted());
+        assertFalse(rateLimiter.tryAcquire("from@test.com", "second@limited.com").isGranted());
+        assertTrue(rateLimiter.tryAcquire("from@test.com", "first@other.com").isGranted());
+        assertTrue(rateLimiter.tryAcquire("from@test.com", "second@other.com").isGranted());
+    }
+
+    @Test
+    public void shouldLimitTheRateOfEachSender() {
+        //given
+        DeliveryRateLimiter rateLimiter = createRateLimiter(new Settings(0, 1, 0, Map.of(), Map.of(), 0.1, 1,
+            Duration.ZERO));
+
+        //when
+        //then
+        assertTrue(rateLimiter.tryAcquire("limited@test.com", "first@test.com").isGranted());
+        assertFalse(rateLimiter.tryAcquire("limited@test.com", "second@other.com").isGranted());
+        assertTrue(rateLimiter.tryAcquire("other@test.com", "second@other.com").isGranted());
+    }
+
+    @Test
+    public void shouldLimitTheConcurrentSendsToADomain() {
+        //given
+        DeliveryRateLimiter rateLimiter = createRateLimiter(new Settings(0, 1, 0, Map.of(),
+            Map.of("limited.com", 1), 0, 1, Duration.ZERO));
+
+        //when
+        Permit permit = rateLimiter.tryAcquire("from@test.com", "first@limited.com");
+
+        //then
+        //a second send is possible only once the first has completed
+        assertTrue(permit.isGranted());
+        assertFalse(rateLimiter.tryAcquire("from@test.com", "second@limited.com").isGranted());
+        permit.close();
+        assertTrue(rateLimiter.tryAcquire("from@test.com", "second@limited.com").isGranted());
+    }
+
+    private static DeliveryRateLimiter createRateLimiter(Settings settings) {
+        return new DeliveryRateLimiter(settings, new SimpleMeterRegistry());
+    }
+}
@@ -0,0 +1,150 @@
+package com.personal.project.emailsender.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.personal.project.emailsender.dto.EmailBatchResult;
+import com.personal.project.emailsender.dto.EmailBatchResult.ItemError;
+import com.personal.project.emailsender.dto.EmailDTO;
+import com.personal.project.emailsender.kafka.producer.EmailProducer;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import javax.validation.Validation;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+@ExtendWith(MockitoExtension.class)
+public class EmailBatchIngestServiceTest {
+
+    private static final String VALID_EMAIL =
+        "{\"from\":\"sender@test.com\",\"to\":\"receiver@test.com\",\"subject\":\"subject\",\"body\":\"body\"}";
+    private static final String INVALID_EMAIL =
+        "{\"from\":\"sender@test.com\",\"to\":\"invalidEmail\",\"subject\":\"subject\",\"body\":\"body\"}";
+
+    @Mock
+    private EmailProducer emailProducer;
+
+    private EmailBatchIngestService emailBatchIngestService;
+
+    @BeforeEach
+    public void init() {
+        emailBatchIngestService = new EmailBatchIngestService(emailProducer, new ObjectMapper(),
+            Validation.buildDefaultValidatorFactory().getValidator(), 1, 1000);
+    }
+
+    @Test
+    public void shouldQueueTheValidEmailsOfAJsonArray() throws Exception {
+        //given
+        acknowledgeAllEmails();
+        String body = "[" + VALID_EMAIL + "," + INVALID_EMAIL + "," + VALID_EMAIL + "]";
+
+        //when
+        EmailBatchResult result = ingest(body);
+
+        //then
+        //the valid emails have been queued
+        verify(emailProducer, times(2)).queueEmail(any(EmailDTO.class));
+        assertEquals(3, result.getReceived());
+        assertEquals(2, result.getQueued());
+        assertNull(result.getParseError());
+
+        //the invalid email is reported
+        assertEquals(List.of(new ItemError(1, List.of("to: must be a well-formed email address"))),
+            result.getErrors());
+    }
+
+    @Test
+    public void shouldQueueTheValidEmailsOfNewlineDelimitedJson() throws Exception {
+        //given
+        acknowledgeAllEmails();
+        String body = VALID_EMAIL + "\n" + INVALID_EMAIL + "\n{\"from\":{\"not\":\"a string\"}}\n" + VALID_EMAIL + "\n";
+
+        //when
+        EmailBatchResult result = ingest(body);
+
+        //then
+        verify(emailProducer, times(2)).queueEmail(any(EmailDTO.class));
+        assertEquals(4, result.getReceived());
+        assertEquals(2, result.getQueued());
+        assertNull(result.getParseError());
+
+        //the invalid and the unreadable emails are reported
+        assertEquals(2, result.getErrors().size());
+        assertEquals(1, result.getErrors().get(0).getIndex());
+        assertEquals(2, result.getErrors().get(1).getIndex());
+    }
+
+    @Test
+    public void shouldReportTheNullEmailsOfAJsonArray() throws Exception {
+        //given
+        acknowledgeAllEmails();
+        String body = "[" + VALID_EMAIL + ",null," + VALID_EMAIL + "]";
+
+        //when
+        EmailBatchResult result = ingest(body);
+
+        //then
+        //the null email is reported and the emails around it are still queued
+        verify(emailProducer, times(2)).queueEmail(any(EmailDTO.class));
+        assertEquals(3, result.getReceived());
+        assertEquals(2, result.getQueued());
+        assertNull(result.getParseError());
+        assertEquals(1, result.getErrors().size());
+        assertEquals(1, result.getErrors().get(0).getIndex());
+    }
+
+    @Test
+    public void shouldReportTheEmailsNotAcknowledged() throws Exception {
+        //given
+        SettableListenableFuture<Void> failedSend = new SettableListenableFuture<>();
+        failedSend.setException(new IllegalStateException("test send error"));
+        when(emailProducer.queueEmail(any(EmailDTO.class))).thenReturn(failedSend);
+
+        //when
+        EmailBatchResult result = ingest(VALID_EMAIL);
+
+        //then
+        assertEquals(1, result.getReceived());
+        assertEquals(0, result.getQueued());
+        assertEquals(List.of(new ItemError(0, List.of("not queued"))), result.getErrors());
+    }
+
+    @Test
+    public void shouldStopAtTheFirstMalformedEmail() throws Exception {
+        //given
+        acknowledgeAllEmails();
+        String body = VALID_EMAIL + "\n{\"from\":\n" + VALID_EMAIL;
+
+        //when
+        EmailBatchResult result = ingest(body);
+
+        //then
+        //the emails before the malformed one have been queued
+        verify(emailProducer).queueEmail(any(EmailDTO.class));
+        assertEquals(1, result.getQueued());
+        assertNotNull(result.getParseError());
+    }
+
+    private void acknowledgeAllEmails() {
+        when(emailProducer.queueEmail(any(EmailDTO.class))).thenAnswer(invocation -> {
+            SettableListenableFuture<Void> acknowledgement = new SettableListenableFuture<>();
+            acknowledgement.set(null);
+            return acknowledgement;
+        });
+    }
+
+    private EmailBatchResult ingest(String body) throws Exception {
+        return emailBatchIngestService.ingest(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)));
+    }
+}
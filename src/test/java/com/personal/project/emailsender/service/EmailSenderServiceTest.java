@@ -3,27 +3,47 @@ package com.personal.project.emailsender.service;
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.personal.project.emailsender.dto.AttachmentDTO;
 import com.personal.project.emailsender.dto.EmailDTO;
+import com.personal.project.emailsender.execution.DeliveryExecutorFactory;
+import com.personal.project.emailsender.execution.DeliveryExecutorFactory.Mode;
 import com.personal.project.emailsender.service.UrlDownloader.DownloadedContent;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import javax.activation.DataSource;
 import javax.mail.Session;
 import javax.mail.internet.MimeMessage;
 import org.apache.commons.mail.util.MimeMessageParser;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatchers;
 import org.mockito.Captor;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.stubbing.Answer;
 import org.springframework.http.MediaType;
+import org.springframework.mail.MailSendException;
 import org.springframework.mail.javamail.JavaMailSender;
 
 @ExtendWith(MockitoExtension.class)
@@ -38,11 +58,36 @@ public class EmailSenderServiceTest {
     @Captor
     private ArgumentCaptor<MimeMessage> mimeMessageArgumentCaptor;
 
+    private MeterRegistry meterRegistry;
+
+    private DeliveryExecutorFactory deliveryExecutorFactory;
+
+    @TempDir
+    Path tempDir;
+
+    private SentEmailIndex sentEmailIndex;
+
+    private PrioritySendScheduler prioritySendScheduler;
+
     private EmailSenderService emailSenderService;
 
+    @AfterEach
+    public void tearDown() throws IOException {
+        emailSenderService.shutdown();
+        sentEmailIndex.close();
+    }
+
     @BeforeEach
-    public void init() {
-        emailSenderService = new EmailSenderService(mailSender, urlDownloader);
+    public void init() throws IOException {
+        meterRegistry = new SimpleMeterRegistry();
+        sentEmailIndex = new SentEmailIndex(1024, Duration.ofHours(1), tempDir.resolve("sent-emails.idx"),
+            meterRegistry);
+        prioritySendScheduler = new PrioritySendScheduler(2, 6, 3, 1, meterRegistry);
+        EncodedAttachmentCache encodedAttachmentCache = new EncodedAttachmentCache(1024, 1024, meterRegistry);
+        deliveryExecutorFactory = new DeliveryExecutorFactory(Mode.PLATFORM);
+        emailSenderService = new EmailSenderService(mailSender, urlDownloader, encodedAttachmentCache,
+            createRateLimiter(0), deliveryExecutorFactory, 0, false, sentEmailIndex, prioritySendScheduler,
+            meterRegistry);
         when(mailSender.createMimeMessage()).thenReturn(new MimeMessage((Session) null));
     }
 
@@ -83,8 +128,9 @@ public class EmailSenderServiceTest {
         //given
         EmailDTO testEmailDTO = new EmailDTO("from@test.com", "to@test.com", "subj", "text",
             new AttachmentDTO("file name", "http://test.com/attachment"));
-        DownloadedContent testDownloadedContent = new DownloadedContent(MediaType.TEXT_PLAIN_VALUE,
-            "test attachment".getBytes(StandardCharsets.UTF_8));
+        byte[] testAttachmentBytes = "test attachment".getBytes(StandardCharsets.UTF_8);
+        DownloadedContent testDownloadedContent = DownloadedContent.inMemory(MediaType.TEXT_PLAIN_VALUE,
+            testAttachmentBytes);
         when(urlDownloader.downloadContent(testEmailDTO.getAttachment().getUrl())).thenReturn(testDownloadedContent);
 
         //when
@@ -117,6 +163,297 @@ public class EmailSenderServiceTest {
         DataSource actualAttachment = attachmentList.get(0);
         assertEquals(testDownloadedContent.getContentType(), actualAttachment.getContentType());
         byte[] actualAttachmentBytes = actualAttachment.getInputStream().readAllBytes();
-        assertArrayEquals(testDownloadedContent.getContent(), actualAttachmentBytes);
+        assertArrayEquals(testAttachmentBytes, actualAttachmentBytes);
+    }
+
+    @Test
+    public void shouldReuseTheEncodedAttachmentForTheSameContent() throws Exception {
+        //given
+        when(mailSender.createMimeMessage()).thenAnswer(invocation -> new MimeMessage((Session) null));
+        EmailDTO testEmailDTO = new EmailDTO("from@test.com", "to@test.com", "subj", "text",
+            new AttachmentDTO("file name", "http://test.com/attachment"));
+        byte[] testAttachmentBytes = "test attachment".getBytes(StandardCharsets.UTF_8);
+        when(urlDownloader.downloadContent(testEmailDTO.getAttachment().getUrl())).thenAnswer(invocation ->
+            DownloadedContent.inMemory(MediaType.TEXT_PLAIN_VALUE, testAttachmentBytes).withContentHash("hash"));
+
+        //when
+        emailSenderService.sendEmail(testEmailDTO);
+        emailSenderService.sendEmail(testEmailDTO);
+
+        //then
+        //the attachment has been encoded only once
+        assertEquals(1, meterRegistry.get("email.sender.attachment.encoded-cache.requests").tag("result", "miss")
+            .counter().count());
+        assertEquals(1, meterRegistry.get("email.sender.attachment.encoded-cache.requests").tag("result", "hit")
+            .counter().count());
+
+        //both messages contain the attachment
+        verify(mailSender, times(2)).send(mimeMessageArgumentCaptor.capture());
+        for (MimeMessage capturedMimeMessage : mimeMessageArgumentCaptor.getAllValues()) {
+            capturedMimeMessage.saveChanges();
+            MimeMessageParser parser = new MimeMessageParser(capturedMimeMessage).parse();
+            assertEquals(testEmailDTO.getBody(), parser.getPlainContent());
+            List<DataSource> attachmentList = parser.getAttachmentList();
+            assertEquals(1, attachmentList.size());
+            DataSource actualAttachment = attachmentList.get(0);
+            assertEquals(testEmailDTO.getAttachment().getName(), actualAttachment.getName());
+            assertEquals(MediaType.TEXT_PLAIN_VALUE, actualAttachment.getContentType());
+            assertArrayEquals(testAttachmentBytes, actualAttachment.getInputStream().readAllBytes());
+        }
+    }
+
+    @Test
+    public void shouldSendAllTheEmailsInASingleCall() throws Exception {
+        //given
+        when(mailSender.createMimeMessage()).thenAnswer(invocation -> new MimeMessage((Session) null));
+        List<EmailDTO> testEmailDTOs = List.of(
+            new EmailDTO("from@test.com", "first@test.com", "subj", "text", null),
+            new EmailDTO("from@test.com", "second@test.com", "subj", "text", null));
+
+        //when
+        Map<Integer, Exception> failures = emailSenderService.sendEmails(testEmailDTOs);
+
+        //then
+        //all the messages have been sent together
+        assertTrue(failures.isEmpty());
+        verify(mailSender).send(mimeMessageArgumentCaptor.capture(), mimeMessageArgumentCaptor.capture());
+        List<MimeMessage> capturedMimeMessages = mimeMessageArgumentCaptor.getAllValues();
+        assertEquals(testEmailDTOs.get(0).getTo(), capturedMimeMessages.get(0).getAllRecipients()[0].toString());
+        assertEquals(testEmailDTOs.get(1).getTo(), capturedMimeMessages.get(1).getAllRecipients()[0].toString());
+    }
+
+    @Test
+    public void shouldReportTheFailuresOfEachEmail() throws Exception {
+        //given
+        when(mailSender.createMimeMessage()).thenAnswer(invocation -> new MimeMessage((Session) null));
+        List<EmailDTO> testEmailDTOs = List.of(
+            new EmailDTO("from@test.com", "first@test.com", "subj", "text",
+                new AttachmentDTO("file name", "http://test.com/attachment")),
+            new EmailDTO("from@test.com", "second@test.com", "subj", "text", null),
+            new EmailDTO("from@test.com", "third@test.com", "subj", "text", null));
+        IOException downloadError = new IOException("test download error");
+        when(urlDownloader.downloadContent(testEmailDTOs.get(0).getAttachment().getUrl())).thenThrow(downloadError);
+        MailSendException sendError = new MailSendException("test send error");
+        //the email to the third recipient is rejected
+        doAnswer(invocation -> {
+            MimeMessage rejectedMessage = invocation.getArgument(1);
+            throw new MailSendException(Map.of(rejectedMessage, sendError));
+        }).when(mailSender).send(any(MimeMessage.class), any(MimeMessage.class));
+
+        //when
+        Map<Integer, Exception> failures = emailSenderService.sendEmails(testEmailDTOs);
+
+        //then
+        //only the first and the third emails failed
+        assertEquals(Map.of(0, downloadError, 2, sendError), failures);
+    }
+
+    @Test
+    public void shouldReportTheUnexpectedPreparationErrorsAsFailuresOfTheirEmail() throws Exception {
+        //given
+        when(mailSender.createMimeMessage()).thenAnswer(invocation -> new MimeMessage((Session) null));
+        List<EmailDTO> testEmailDTOs = List.of(
+            new EmailDTO("from@test.com", "first@test.com", "subj", "text",
+                new AttachmentDTO("file name", "http://invalid url")),
+            new EmailDTO("from@test.com", "second@test.com", "subj", "text", null));
+        IllegalArgumentException urlError = new IllegalArgumentException("test url error");
+        when(urlDownloader.downloadContent(testEmailDTOs.get(0).getAttachment().getUrl())).thenThrow(urlError);
+
+        //when
+        Map<Integer, Exception> failures = emailSenderService.sendEmails(testEmailDTOs);
+
+        //then
+        //the other email is still sent
+        assertEquals(Map.of(0, urlError), failures);
+        verify(mailSender).send(new MimeMessage[] {any(MimeMessage.class)});
+    }
+
+    @Test
+    public void shouldDownloadTheNextAttachmentsWhileSendingWithPrefetch() throws Exception {
+        //given
+        emailSenderService = new EmailSenderService(mailSender, urlDownloader,
+            new EncodedAttachmentCache(1024, 1024, meterRegistry), createRateLimiter(0), deliveryExecutorFactory, 2,
+            false, sentEmailIndex, prioritySendScheduler, meterRegistry);
+        when(mailSender.createMimeMessage()).thenAnswer(invocation -> new MimeMessage((Session) null));
+        List<EmailDTO> testEmailDTOs = List.of(
+            new EmailDTO("from@test.com", "first@test.com", "subj", "text",
+                new AttachmentDTO("file name", "http://test.com/first")),
+            new EmailDTO("from@test.com", "second@test.com", "subj", "text",
+                new AttachmentDTO("file name", "http://test.com/second")),
+            new EmailDTO("from@test.com", "third@test.com", "subj", "text", null));
+        byte[] testAttachmentBytes = "test attachment".getBytes(StandardCharsets.UTF_8);
+        CountDownLatch firstEmailSent = new CountDownLatch(1);
+        when(urlDownloader.downloadContent("http://test.com/first")).thenAnswer(invocation ->
+            DownloadedContent.inMemory(MediaType.TEXT_PLAIN_VALUE, testAttachmentBytes));
+        //the second download completes only once the first email has been sent
+        when(urlDownloader.downloadContent("http://test.com/second")).thenAnswer(invocation -> {
+            assertTrue(firstEmailSent.await(5, TimeUnit.SECONDS));
+            return DownloadedContent.inMemory(MediaType.TEXT_PLAIN_VALUE, testAttachmentBytes);
+        });
+        List<String> sentRecipients = new CopyOnWriteArrayList<>();
+        Answer<Void> recordSentRecipients = invocation -> {
+            for (Object mimeMessage : invocation.getArguments()) {
+                sentRecipients.add(((MimeMessage) mimeMessage).getAllRecipients()[0].toString());
+            }
+            firstEmailSent.countDown();
+            return null;
+        };
+        doAnswer(recordSentRecipients).when(mailSender).send(ArgumentMatchers.<MimeMessage[]>any());
+
+        //when
+        Map<Integer, Exception> failures = emailSenderService.sendEmails(testEmailDTOs);
+
+        //then
+        //all the emails have been sent in order
+        assertTrue(failures.isEmpty());
+        assertEquals(List.of("first@test.com", "second@test.com", "third@test.com"), sentRecipients);
+    }
+
+    @Test
+    public void shouldSendTheEmailsToOtherDomainsWhileARateLimitedDomainWaits() throws Exception {
+        //given
+        //one email every 200 ms to each domain
+        emailSenderService = new EmailSenderService(mailSender, urlDownloader,
+            new EncodedAttachmentCache(1024, 1024, meterRegistry), createRateLimiter(5), deliveryExecutorFactory, 0,
+            false, sentEmailIndex, prioritySendScheduler, meterRegistry);
+        when(mailSender.createMimeMessage()).thenAnswer(invocation -> new MimeMessage((Session) null));
+        List<EmailDTO> testEmailDTOs = List.of(
+            new EmailDTO("from@test.com", "first@limited.com", "subj", "text", null),
+            new EmailDTO("from@test.com", "second@limited.com", "subj", "text", null),
+            new EmailDTO("from@test.com", "first@other.com", "subj", "text", null),
+            new EmailDTO("from@test.com", "third@limited.com", "subj", "text", null));
+        List<String> sentRecipients = new CopyOnWriteArrayList<>();
+        doAnswer(invocation -> {
+            for (Object mimeMessage : invocation.getArguments()) {
+                sentRecipients.add(((MimeMessage) mimeMessage).getAllRecipients()[0].toString());
+            }
+            return null;
+        }).when(mailSender).send(ArgumentMatchers.<MimeMessage[]>any());
+
+        //when
+        Map<Integer, Exception> failures = emailSenderService.sendEmails(testEmailDTOs);
+
+        //then
+        //the email to the other domain has not waited, the emails to the limited domain have been sent in order
+        assertTrue(failures.isEmpty());
+        assertEquals(List.of("first@limited.com", "first@other.com", "second@limited.com", "third@limited.com"),
+            sentRecipients);
+    }
+
+    @Test
+    public void shouldSendTheEmailsGroupedByRecipientDomain() throws Exception {
+        //given
+        emailSenderService = new EmailSenderService(mailSender, urlDownloader,
+            new EncodedAttachmentCache(1024, 1024, meterRegistry), createRateLimiter(0), deliveryExecutorFactory, 0,
+            true, sentEmailIndex, prioritySendScheduler, meterRegistry);
+        when(mailSender.createMimeMessage()).thenAnswer(invocation -> new MimeMessage((Session) null));
+        List<EmailDTO> testEmailDTOs = List.of(
+            new EmailDTO("from@test.com", "first@first.com", "subj", "text", null),
+            new EmailDTO("from@test.com", "first@second.com", "subj", "text", null),
+            new EmailDTO("from@test.com", "second@first.com", "subj", "text", null),
+            new EmailDTO("from@test.com", "second@second.com", "subj", "text", null));
+        List<String> sentRecipients = new CopyOnWriteArrayList<>();
+        MailSendException sendError = new MailSendException("test error");
+        doAnswer(invocation -> {
+            for (Object mimeMessage : invocation.getArguments()) {
+                sentRecipients.add(((MimeMessage) mimeMessage).getAllRecipients()[0].toString());
+            }
+            throw new MailSendException(Map.of(invocation.getArgument(1), sendError));
+        }).when(mailSender).send(ArgumentMatchers.<MimeMessage[]>any());
+
+        //when
+        Map<Integer, Exception> failures = emailSenderService.sendEmails(testEmailDTOs);
+
+        //then
+        //the emails to each domain follow each other, the failure is reported at the index of the given list
+        assertEquals(List.of("first@first.com", "second@first.com", "first@second.com", "second@second.com"),
+            sentRecipients);
+        assertEquals(Map.of(2, sendError), failures);
+    }
+
+    @Test
+    public void shouldNotSendTwiceTheEmailsWithTheSameIdempotencyKey() throws Exception {
+        //given
+        EmailDTO testEmailDTO = new EmailDTO("from@test.com", "to@test.com", "subj", "text", null, "test-key");
+
+        //when
+        emailSenderService.sendEmail(testEmailDTO);
+        emailSenderService.sendEmail(testEmailDTO);
+
+        //then
+        //the email has been sent once
+        verify(mailSender).send(any(MimeMessage.class));
+        assertEquals(1, meterRegistry.get("email.sender.duplicates").counter().count());
+    }
+
+    @Test
+    public void shouldSkipTheEmailsOfABatchAlreadySent() throws Exception {
+        //given
+        when(mailSender.createMimeMessage()).thenAnswer(invocation -> new MimeMessage((Session) null));
+        EmailDTO sentEmailDTO = new EmailDTO("from@test.com", "sent@test.com", "subj", "text", null, "sent");
+        emailSenderService.sendEmail(sentEmailDTO);
+        EmailDTO failingEmailDTO = new EmailDTO("from@test.com", "failing@test.com", "subj", "text",
+            new AttachmentDTO("file name", "http://test.com/attachment"), "failing");
+        EmailDTO newEmailDTO = new EmailDTO("from@test.com", "new@test.com", "subj", "text", null, "new");
+        IOException downloadError = new IOException("test download error");
+        when(urlDownloader.downloadContent(failingEmailDTO.getAttachment().getUrl())).thenThrow(downloadError);
+        List<String> sentRecipients = new CopyOnWriteArrayList<>();
+        doAnswer(invocation -> {
+            for (Object mimeMessage : invocation.getArguments()) {
+                sentRecipients.add(((MimeMessage) mimeMessage).getAllRecipients()[0].toString());
+            }
+            return null;
+        }).when(mailSender).send(ArgumentMatchers.<MimeMessage[]>any());
+
+        //when
+        Map<Integer, Exception> failures = emailSenderService.sendEmails(List.of(sentEmailDTO, failingEmailDTO,
+            newEmailDTO, newEmailDTO));
+
+        //then
+        //the email already sent and the repeated one have been skipped, the failure keeps the index of its email
+        assertEquals(Map.of(1, downloadError), failures);
+        assertEquals(List.of("new@test.com"), sentRecipients);
+        assertTrue(sentEmailIndex.isSent("new"));
+        assertFalse(sentEmailIndex.isSent("failing"));
+    }
+
+    @Test
+    public void shouldMarkTheEmailsSentAsSoonAsTheirChunkHasBeenSent() throws Exception {
+        //given
+        emailSenderService = new EmailSenderService(mailSender, urlDownloader,
+            new EncodedAttachmentCache(1024, 1024, meterRegistry), createRateLimiter(0), deliveryExecutorFactory, 2,
+            false, sentEmailIndex, prioritySendScheduler, meterRegistry);
+        when(mailSender.createMimeMessage()).thenAnswer(invocation -> new MimeMessage((Session) null));
+        EmailDTO firstEmailDTO = new EmailDTO("from@test.com", "first@test.com", "subj", "text", null, "first");
+        EmailDTO secondEmailDTO = new EmailDTO("from@test.com", "second@test.com", "subj", "text",
+            new AttachmentDTO("file name", "http://test.com/second"), "second");
+        CountDownLatch firstEmailSent = new CountDownLatch(1);
+        //the second email is sent in its own chunk, after the first one
+        when(urlDownloader.downloadContent("http://test.com/second")).thenAnswer(invocation -> {
+            assertTrue(firstEmailSent.await(5, TimeUnit.SECONDS));
+            return DownloadedContent.inMemory(MediaType.TEXT_PLAIN_VALUE,
+                "test attachment".getBytes(StandardCharsets.UTF_8));
+        });
+        doAnswer(invocation -> {
+            if (firstEmailSent.getCount() == 0) {
+                throw new IllegalStateException("test error");
+            }
+            firstEmailSent.countDown();
+            return null;
+        }).when(mailSender).send(ArgumentMatchers.<MimeMessage[]>any());
+
+        //when
+        assertThrows(IllegalStateException.class,
+            () -> emailSenderService.sendEmails(List.of(firstEmailDTO, secondEmailDTO)));
+
+        //then
+        //the first email is not sent again when the batch is retried
+        assertTrue(sentEmailIndex.isSent("first"));
+        assertFalse(sentEmailIndex.isSent("second"));
+    }
+
+    private DeliveryRateLimiter createRateLimiter(double domainRatePerSecond) {
+        return new DeliveryRateLimiter(new DeliveryRateLimiter.Settings(domainRatePerSecond, 1, 0, Map.of(), Map.of(),
+            0, 1, Duration.ofSeconds(5)), meterRegistry);
     }
 }
@@ -0,0 +1,102 @@
+package com.personal.project.emailsender.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import com.personal.project.emailsender.dto.Priority;
+import com.personal.project.emailsender.service.PrioritySendScheduler.Permit;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+public class PrioritySendSchedulerTest {
+
+    private static final long WAIT_TIMEOUT_MS = 5000L;
+
+    @Test
+    public void shouldGiveTheFreedSlotToTheHighPriorityFirst() throws Exception {
+        //given
+        PrioritySendScheduler scheduler = new PrioritySendScheduler(1, 6, 3, 1, new SimpleMeterRegistry());
+        Permit heldPermit = scheduler.acquire(Priority.NORMAL);
+        List<Priority> grants = new CopyOnWriteArrayList<>();
+        List<Thread> waiters = new ArrayList<>();
+        //the bulk email starts waiting first
+        waiters.add(startWaiter(scheduler, Priority.BULK, grants));
+        waiters.add(startWaiter(scheduler, Priority.HIGH, grants));
+
+        //when
+        heldPermit.close();
+
+        //then
+        joinAll(waiters);
+        assertEquals(List.of(Priority.HIGH, Priority.BULK), grants);
+    }
+
+    @Test
+    public void shouldShareTheSlotsAccordingToTheWeights() throws Exception {
+        //given
+        //three high priority sends for each bulk one
+        PrioritySendScheduler scheduler = new PrioritySendScheduler(1, 3, 1, 1, new SimpleMeterRegistry());
+        Permit heldPermit = scheduler.acquire(Priority.NORMAL);
+        List<Priority> grants = new CopyOnWriteArrayList<>();
+        List<Thread> waiters = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            waiters.add(startWaiter(scheduler, Priority.HIGH, grants));
+            waiters.add(startWaiter(scheduler, Priority.BULK, grants));
+        }
+
+        //when
+        heldPermit.close();
+
+        //then
+        joinAll(waiters);
+        //the bulk emails are not starved while the high priority ones are waiting
+        List<Priority> firstGrants = grants.subList(0, 8);
+        assertEquals(6, Collections.frequency(firstGrants, Priority.HIGH));
+        assertEquals(2, Collections.frequency(firstGrants, Priority.BULK));
+    }
+
+    @Test
+    public void shouldNotLimitTheSendsWhenDisabled() {
+        //given
+        PrioritySendScheduler scheduler = new PrioritySendScheduler(0, 6, 3, 1, new SimpleMeterRegistry());
+
+        //when
+        //then
+        for (int i = 0; i < 10; i++) {
+            assertEquals(Permit.UNLIMITED, scheduler.acquire(Priority.BULK));
+        }
+    }
+
+    /**
+     * Starts a thread asking for a slot and returns once it is waiting for it. The slot is released as soon as it is
+     * granted.
+     */
+    private static Thread startWaiter(PrioritySendScheduler scheduler, Priority priority, List<Priority> grants)
+        throws InterruptedException {
+
+        Thread waiter = new Thread(() -> {
+            try (Permit permit = scheduler.acquire(priority)) {
+                grants.add(priority);
+            }
+        });
+        waiter.start();
+        long deadline = System.currentTimeMillis() + WAIT_TIMEOUT_MS;
+        while (waiter.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(1);
+        }
+        assertEquals(Thread.State.WAITING, waiter.getState());
+        return waiter;
+    }
+
+    private static void joinAll(List<Thread> threads) throws InterruptedException {
+        for (Thread thread : threads) {
+            thread.join(WAIT_TIMEOUT_MS);
+            assertFalse(thread.isAlive());
+        }
+    }
+}
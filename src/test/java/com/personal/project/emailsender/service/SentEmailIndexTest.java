@@ -0,0 +1,104 @@
+package com.personal.project.emailsender.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class SentEmailIndexTest {
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void shouldFindOnlyTheKeysMarkedAsSent() throws Exception {
+        //given
+        try (SentEmailIndex sentEmailIndex = createIndex(1024, Duration.ofHours(1))) {
+
+            //when
+            sentEmailIndex.markSent("first");
+
+            //then
+            assertTrue(sentEmailIndex.isSent("first"));
+            assertFalse(sentEmailIndex.isSent("second"));
+            assertFalse(sentEmailIndex.isSent(null));
+        }
+    }
+
+    @Test
+    public void shouldForgetTheKeysAfterTheirTtl() throws Exception {
+        //given
+        try (SentEmailIndex sentEmailIndex = createIndex(1024, Duration.ofMillis(50))) {
+            sentEmailIndex.markSent("first");
+
+            //when
+            Thread.sleep(100);
+
+            //then
+            assertFalse(sentEmailIndex.isSent("first"));
+        }
+    }
+
+    @Test
+    public void shouldKeepTheKeysAcrossRestarts() throws Exception {
+        //given
+        try (SentEmailIndex sentEmailIndex = createIndex(1024, Duration.ofHours(1))) {
+            sentEmailIndex.markSent("first");
+        }
+
+        //when
+        try (SentEmailIndex reopenedIndex = createIndex(1024, Duration.ofHours(1))) {
+
+            //then
+            assertTrue(reopenedIndex.isSent("first"));
+            assertFalse(reopenedIndex.isSent("second"));
+        }
+    }
+
+    @Test
+    public void shouldReplaceTheOldestKeysWhenFull() throws Exception {
+        //given
+        int maxEntries = 64;
+        try (SentEmailIndex sentEmailIndex = createIndex(maxEntries, Duration.ofHours(1))) {
+            long fileSize = Files.size(tempDir.resolve("sent-emails.idx"));
+
+            //when
+            for (int i = 0; i < 100 * maxEntries; i++) {
+                sentEmailIndex.markSent("key-" + i);
+            }
+
+            //then
+            //the file has not grown, the latest key is there and the older ones have been replaced
+            assertEquals(fileSize, Files.size(tempDir.resolve("sent-emails.idx")));
+            assertTrue(sentEmailIndex.isSent("key-" + (100 * maxEntries - 1)));
+            assertTrue(meterRegistry.get("email.sender.idempotency.evictions").counter().count() > 0);
+        }
+    }
+
+    @Test
+    public void shouldNotFindAnyKeyWhenDisabled() throws Exception {
+        //given
+        try (SentEmailIndex sentEmailIndex = createIndex(0, Duration.ofHours(1))) {
+
+            //when
+            sentEmailIndex.markSent("first");
+
+            //then
+            assertFalse(sentEmailIndex.isSent("first"));
+            assertFalse(Files.exists(tempDir.resolve("sent-emails.idx")));
+        }
+    }
+
+    private SentEmailIndex createIndex(int maxEntries, Duration ttl) throws Exception {
+        return new SentEmailIndex(maxEntries, ttl, tempDir.resolve("sent-emails.idx"), meterRegistry);
+    }
+}
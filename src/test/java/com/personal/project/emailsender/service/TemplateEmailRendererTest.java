@@ -0,0 +1,73 @@
+package com.personal.project.emailsender.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import com.personal.project.emailsender.dto.AttachmentDTO;
+import com.personal.project.emailsender.dto.EmailDTO;
+import com.personal.project.emailsender.dto.Priority;
+import com.personal.project.emailsender.dto.RecipientDTO;
+import com.personal.project.emailsender.dto.TemplateEmailDTO;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+public class TemplateEmailRendererTest {
+
+    private final TemplateEmailRenderer templateEmailRenderer = new TemplateEmailRenderer(16);
+
+    @Test
+    public void shouldRenderTheEmailOfEachRecipient() {
+        //given
+        AttachmentDTO testAttachment = new AttachmentDTO("file name", "http://test.com/attachment");
+        TemplateEmailDTO testTemplateEmailDTO = new TemplateEmailDTO("from@test.com", "Hello {{name}}",
+            "Dear {{ name }}, your code is {{code}}.", testAttachment, List.of(
+                new RecipientDTO("first@test.com", Map.of("name", "First", "code", "1")),
+                new RecipientDTO("second@test.com", Map.of("name", "Second"))));
+
+        //when
+        List<EmailDTO> emailDTOs = templateEmailRenderer.expand(testTemplateEmailDTO);
+
+        //then
+        //the variables are replaced, the missing ones are rendered empty
+        assertEquals(List.of(
+            new EmailDTO("from@test.com", "first@test.com", "Hello First", "Dear First, your code is 1.",
+                testAttachment, null, Priority.BULK),
+            new EmailDTO("from@test.com", "second@test.com", "Hello Second", "Dear Second, your code is .",
+                testAttachment, null, Priority.BULK)), emailDTOs);
+    }
+
+    @Test
+    public void shouldKeepTheTextWithoutVariables() {
+        //given
+        TemplateEmailDTO testTemplateEmailDTO = new TemplateEmailDTO("from@test.com", "no variables",
+            "unclosed {{variable", null, List.of(new RecipientDTO("to@test.com", null)));
+
+        //when
+        List<EmailDTO> emailDTOs = templateEmailRenderer.expand(testTemplateEmailDTO);
+
+        //then
+        //the template emails are bulk emails by default
+        assertEquals(List.of(new EmailDTO("from@test.com", "to@test.com", "no variables", "unclosed {{variable", null,
+            null, Priority.BULK)), emailDTOs);
+    }
+
+    @Test
+    public void shouldDeriveAnIdempotencyKeyOfFixedLengthForEachRecipient() {
+        //given
+        String longRecipient = "a".repeat(100) + "@test.com";
+        TemplateEmailDTO testTemplateEmailDTO = new TemplateEmailDTO("from@test.com", "subject", "body", null,
+            List.of(new RecipientDTO("to@test.com", null), new RecipientDTO(longRecipient, null)));
+        testTemplateEmailDTO.setIdempotencyKey("k".repeat(128));
+
+        //when
+        List<EmailDTO> emailDTOs = templateEmailRenderer.expand(testTemplateEmailDTO);
+
+        //then
+        //the keys fit the size limit of the email keys, and are the same when the template email is expanded again
+        assertEquals(43, emailDTOs.get(0).getIdempotencyKey().length());
+        assertEquals(43, emailDTOs.get(1).getIdempotencyKey().length());
+        assertNotEquals(emailDTOs.get(0).getIdempotencyKey(), emailDTOs.get(1).getIdempotencyKey());
+        assertEquals(emailDTOs, templateEmailRenderer.expand(testTemplateEmailDTO));
+    }
+}
@@ -0,0 +1,274 @@
+package com.personal.project.emailsender.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.personal.project.emailsender.service.UrlDownloader.DownloadedContent;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.http.HttpHeaders;
+
+public class UrlDownloaderImplTest {
+
+    private static final int SPILL_THRESHOLD_BYTES = 1024;
+    private static final int MAX_SIZE_BYTES = SPILL_THRESHOLD_BYTES * 20;
+
+    @TempDir
+    Path tempDir;
+
+    private Path spillDirectory;
+
+    private UrlDownloaderImpl urlDownloader;
+
+    private SimpleMeterRegistry meterRegistry;
+
+    private HttpServer httpServer;
+
+    @BeforeEach
+    public void init() throws Exception {
+        spillDirectory = Files.createDirectory(tempDir.resolve("spill"));
+        meterRegistry = new SimpleMeterRegistry();
+        urlDownloader = new UrlDownloaderImpl(SPILL_THRESHOLD_BYTES, spillDirectory.toString(), 1000, 1000, 1000, 2,
+            MAX_SIZE_BYTES, meterRegistry);
+        httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        httpServer.start();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        httpServer.stop(0);
+    }
+
+    @Test
+    public void shouldKeepSmallContentInMemory() throws Exception {
+        //given
+        byte[] testContent = createTestContent(SPILL_THRESHOLD_BYTES);
+        Path testFile = Files.write(tempDir.resolve("small.bin"), testContent);
+
+        //when
+        try (DownloadedContent downloadedContent = urlDownloader.downloadContent(testFile.toUri().toString())) {
+
+            //then
+            assertTrue(downloadedContent.getContent() instanceof ByteArrayResource);
+            assertEquals(testContent.length, downloadedContent.getSize());
+            assertArrayEquals(testContent, downloadedContent.getContent().getInputStream().readAllBytes());
+            assertFalse(Files.list(spillDirectory).findAny().isPresent());
+        }
+
+        //the download has been measured
+        assertEquals(1, meterRegistry.get("email.sender.attachment.download").tag("result", "success").timer().count());
+        assertEquals(testContent.length,
+            meterRegistry.get("email.sender.attachment.download.size").summary().totalAmount());
+    }
+
+    @Test
+    public void shouldSpillLargeContentToATemporaryFile() throws Exception {
+        //given
+        byte[] testContent = createTestContent(SPILL_THRESHOLD_BYTES * 10);
+        Path testFile = Files.write(tempDir.resolve("large.bin"), testContent);
+
+        //when
+        DownloadedContent downloadedContent = urlDownloader.downloadContent(testFile.toUri().toString());
+
+        //then
+        //the content is read from the spilled file
+        assertEquals(testContent.length, downloadedContent.getSize());
+        assertArrayEquals(testContent, downloadedContent.getContent().getInputStream().readAllBytes());
+        assertEquals(spillDirectory, downloadedContent.getContent().getFile().toPath().getParent());
+
+        //the file is deleted on close
+        downloadedContent.close();
+        assertFalse(Files.list(spillDirectory).findAny().isPresent());
+    }
+
+    @Test
+    public void shouldDecodeGzippedHttpContent() throws Exception {
+        //given
+        byte[] testContent = createTestContent(SPILL_THRESHOLD_BYTES / 2);
+        httpServer.createContext("/attachment", exchange -> {
+            exchange.getResponseHeaders().add(HttpHeaders.CONTENT_TYPE, "application/octet-stream");
+            exchange.getResponseHeaders().add(HttpHeaders.CONTENT_ENCODING, "gzip");
+            exchange.getResponseHeaders().add(HttpHeaders.ETAG, "\"v1\"");
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream outputStream = new GZIPOutputStream(exchange.getResponseBody())) {
+                outputStream.write(testContent);
+            }
+        });
+
+        //when
+        try (DownloadedContent downloadedContent = urlDownloader.downloadContent(attachmentUrl())) {
+
+            //then
+            assertEquals("application/octet-stream", downloadedContent.getContentType());
+            assertEquals("\"v1\"", downloadedContent.getCacheHints().getEtag());
+            assertArrayEquals(testContent, downloadedContent.getContent().getInputStream().readAllBytes());
+        }
+    }
+
+    @Test
+    public void shouldReturnEmptyWhenTheHttpContentIsNotModified() throws Exception {
+        //given
+        httpServer.createContext("/attachment", exchange -> {
+            assertEquals("\"v1\"", exchange.getRequestHeaders().getFirst(HttpHeaders.IF_NONE_MATCH));
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+        });
+
+        //when
+        Optional<DownloadedContent> downloadedContent = urlDownloader.downloadContentIfNoneMatch(attachmentUrl(),
+            "\"v1\"");
+
+        //then
+        assertTrue(downloadedContent.isEmpty());
+    }
+
+    @Test
+    public void shouldRejectHttpContentBiggerThanTheMaximumSize() throws Exception {
+        //given
+        byte[] testContent = createTestContent(MAX_SIZE_BYTES + 1);
+        httpServer.createContext("/attachment", exchange -> {
+            //chunked, so that the size is only known while reading
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(testContent);
+            } catch (IOException e) {
+                //the client closed the connection
+            }
+        });
+
+        //when
+        assertThrows(IOException.class, () -> urlDownloader.downloadContent(attachmentUrl()));
+
+        //then
+        assertFalse(Files.list(spillDirectory).findAny().isPresent());
+    }
+
+    @Test
+    public void shouldFailOnHttpErrorResponses() {
+        //given
+        httpServer.createContext("/attachment", exchange -> {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+        });
+
+        //when
+        //then
+        assertThrows(IOException.class, () -> urlDownloader.downloadContent(attachmentUrl()));
+    }
+
+    @Test
+    public void shouldFailOnHttpResponsesWithUnknownStatusCodes() {
+        //given
+        httpServer.createContext("/attachment", exchange -> {
+            exchange.sendResponseHeaders(520, -1);
+            exchange.close();
+        });
+
+        //when
+        //then
+        IOException exception = assertThrows(IOException.class, () -> urlDownloader.downloadContent(attachmentUrl()));
+        assertTrue(exception.getMessage().contains("520"));
+    }
+
+    @Test
+    public void shouldKeepReadingTheHttpContentThatTakesLongerThanTheReadTimeout() throws Exception {
+        //given
+        byte[] testContent = createTestContent(SPILL_THRESHOLD_BYTES / 2);
+        int chunkSize = testContent.length / 4;
+        httpServer.createContext("/attachment", exchange -> {
+            exchange.sendResponseHeaders(200, testContent.length);
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                //each chunk comes within the read timeout, the whole body does not
+                for (int offset = 0; offset < testContent.length; offset += chunkSize) {
+                    outputStream.write(testContent, offset, chunkSize);
+                    outputStream.flush();
+                    Thread.sleep(400);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        //when
+        try (DownloadedContent downloadedContent = urlDownloader.downloadContent(attachmentUrl())) {
+
+            //then
+            assertArrayEquals(testContent, downloadedContent.getContent().getInputStream().readAllBytes());
+        }
+    }
+
+    @Test
+    public void shouldFailWhenTheHttpContentIsNotReadBeforeTheReadTimeout() throws Exception {
+        //given
+        CountDownLatch done = new CountDownLatch(1);
+        httpServer.createContext("/attachment", exchange -> {
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(createTestContent(SPILL_THRESHOLD_BYTES / 2));
+                outputStream.flush();
+                //the rest of the body never comes
+                done.await(10, TimeUnit.SECONDS);
+            } catch (IOException | InterruptedException e) {
+                //the client closed the connection
+            }
+        });
+
+        //when
+        long start = System.nanoTime();
+        IOException exception = assertThrows(IOException.class, () -> urlDownloader.downloadContent(attachmentUrl()));
+        done.countDown();
+
+        //then
+        assertTrue(exception.getMessage().startsWith("Timed out reading the attachment"));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5000);
+        assertEquals(1, meterRegistry.get("email.sender.attachment.download").tag("result", "failure").timer().count());
+    }
+
+    @Test
+    public void shouldReleaseThePermitsOfTheIdleHosts() throws Exception {
+        //given
+        httpServer.createContext("/attachment", exchange -> {
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(createTestContent(SPILL_THRESHOLD_BYTES / 2));
+            }
+        });
+
+        //when
+        urlDownloader.downloadContent(attachmentUrl()).close();
+        assertThrows(IOException.class, () -> urlDownloader.downloadContent(
+            "http://localhost:" + httpServer.getAddress().getPort() + "/missing"));
+
+        //then
+        assertEquals(0, urlDownloader.getHostPermitsCount());
+    }
+
+    private String attachmentUrl() {
+        return "http://localhost:" + httpServer.getAddress().getPort() + "/attachment";
+    }
+
+    private static byte[] createTestContent(int size) {
+        byte[] content = new byte[size];
+        new Random(42).nextBytes(content);
+        return content;
+    }
+}
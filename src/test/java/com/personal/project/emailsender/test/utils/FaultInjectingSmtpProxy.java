@@ -0,0 +1,202 @@
+package com.personal.project.emailsender.test.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Utility class to put a slow and unreliable relay in front of a test SMTP server: every message transfer is delayed
+ * by {@code latencyMs} and a share ({@code errorRate}) of the transactions is rejected with a transient error when the
+ * sender is given. The subject of every message forwarded to the server is passed to the {@code deliveryListener}.
+ */
+@Slf4j
+public class FaultInjectingSmtpProxy implements Closeable {
+
+    public static final String INJECTED_FAILURE_REPLY = "451 4.3.0 Injected failure\r\n";
+
+    private static final String SUBJECT_HEADER = "subject:";
+
+    private final String serverHost;
+
+    private final int serverPort;
+
+    private final ServerSocket serverSocket;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+
+    @Setter
+    private volatile long latencyMs;
+
+    @Setter
+    private volatile double errorRate;
+
+    @Setter
+    private volatile Consumer<String> deliveryListener = subject -> { };
+
+    public FaultInjectingSmtpProxy(String serverHost, int serverPort) throws IOException {
+        this.serverHost = serverHost;
+        this.serverPort = serverPort;
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        executor.execute(this::acceptConnections);
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    private void acceptConnections() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket client = serverSocket.accept();
+                Socket server = new Socket(serverHost, serverPort);
+                client.setTcpNoDelay(true);
+                server.setTcpNoDelay(true);
+                sockets.add(client);
+                sockets.add(server);
+                executor.execute(() -> relayReplies(server, client));
+                executor.execute(() -> relayCommands(client, server));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    log.warn("Cannot proxy the SMTP connection", e);
+                }
+            }
+        }
+    }
+
+    private void relayReplies(Socket server, Socket client) {
+        try {
+            InputStream in = server.getInputStream();
+            OutputStream out = client.getOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                synchronized (client) {
+                    out.write(buffer, 0, read);
+                    out.flush();
+                }
+            }
+        } catch (IOException e) {
+            //the connection has been closed
+        } finally {
+            close(server, client);
+        }
+    }
+
+    /**
+     * Forwards the commands line by line: the transaction is rejected in place of the server at {@code MAIL FROM}, the
+     * message is held back by the latency before its terminating dot is forwarded.
+     */
+    private void relayCommands(Socket client, Socket server) {
+        try {
+            InputStream in = new BufferedInputStream(client.getInputStream());
+            OutputStream out = new BufferedOutputStream(server.getOutputStream());
+            boolean inData = false;
+            boolean inHeaders = false;
+            String subject = null;
+            byte[] line;
+            while ((line = readLine(in)) != null) {
+                String text = new String(line, StandardCharsets.ISO_8859_1).trim();
+                if (inData) {
+                    if (text.equals(".")) {
+                        inData = false;
+                        sleep(latencyMs);
+                        out.write(line);
+                        out.flush();
+                        deliveryListener.accept(subject);
+                        continue;
+                    }
+                    if (inHeaders && text.isEmpty()) {
+                        inHeaders = false;
+                    } else if (inHeaders && text.toLowerCase(Locale.ROOT).startsWith(SUBJECT_HEADER)) {
+                        subject = text.substring(SUBJECT_HEADER.length()).trim();
+                    }
+                    out.write(line);
+                    continue;
+                }
+
+                String command = text.toUpperCase(Locale.ROOT);
+                if (command.startsWith("MAIL FROM") && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                    synchronized (client) {
+                        client.getOutputStream().write(INJECTED_FAILURE_REPLY.getBytes(StandardCharsets.US_ASCII));
+                        client.getOutputStream().flush();
+                    }
+                    continue;
+                }
+                if (command.equals("DATA")) {
+                    inData = true;
+                    inHeaders = true;
+                    subject = null;
+                }
+                out.write(line);
+                out.flush();
+            }
+        } catch (IOException e) {
+            //the connection has been closed
+        } finally {
+            close(client, server);
+        }
+    }
+
+    /**
+     * @return the next line including its line terminator, {@code null} at the end of the stream
+     */
+    private static byte[] readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = in.read()) >= 0) {
+            line.write(b);
+            if (b == '\n') {
+                break;
+            }
+        }
+        return line.size() == 0 ? null : line.toByteArray();
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void close(Socket... connections) {
+        for (Socket connection : connections) {
+            sockets.remove(connection);
+            try {
+                connection.close();
+            } catch (IOException e) {
+                //already closed
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        close(sockets.toArray(new Socket[0]));
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,154 @@
+package com.personal.project.emailsender.test.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Utility class to stand in for a DNS resolver: it answers the MX queries of the configured domains over UDP, with a
+ * name error for the other domains, and counts the queries of each domain.
+ */
+@Slf4j
+public class TestDnsServer implements Closeable {
+
+    private static final int RCODE_NAME_ERROR = 3;
+
+    private final DatagramSocket socket;
+
+    private final Map<String, List<Mx>> mxRecords = new ConcurrentHashMap<>();
+
+    private final Map<String, Integer> responseCodes = new ConcurrentHashMap<>();
+
+    private final Map<String, AtomicInteger> queries = new ConcurrentHashMap<>();
+
+    public TestDnsServer() throws IOException {
+        this.socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        Thread thread = new Thread(this::answerQueries, "test-dns-server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public InetSocketAddress getAddress() {
+        return (InetSocketAddress) socket.getLocalSocketAddress();
+    }
+
+    /**
+     * Answers the MX queries of the domain with the given records, none meaning that the domain has no MX record.
+     */
+    public void setMxRecords(String domain, Mx... records) {
+        responseCodes.remove(domain);
+        mxRecords.put(domain, List.of(records));
+    }
+
+    /**
+     * Answers the MX queries of the domain with an error, e.g. 2 for a server failure.
+     */
+    public void setResponseCode(String domain, int responseCode) {
+        mxRecords.remove(domain);
+        responseCodes.put(domain, responseCode);
+    }
+
+    public int getQueries(String domain) {
+        AtomicInteger count = queries.get(domain);
+        return count == null ? 0 : count.get();
+    }
+
+    private void answerQueries() {
+        byte[] buffer = new byte[512];
+        while (!socket.isClosed()) {
+            try {
+                DatagramPacket query = new DatagramPacket(buffer, buffer.length);
+                socket.receive(query);
+                byte[] response = answer(ByteBuffer.wrap(buffer, 0, query.getLength()));
+                socket.send(new DatagramPacket(response, response.length, query.getSocketAddress()));
+            } catch (IOException e) {
+                if (!socket.isClosed()) {
+                    log.warn("Cannot answer the DNS query", e);
+                }
+            }
+        }
+    }
+
+    private byte[] answer(ByteBuffer query) {
+        int id = query.getShort(0) & 0xffff;
+        query.position(12);
+        StringBuilder name = new StringBuilder();
+        for (int length = query.get(); length > 0; length = query.get()) {
+            byte[] label = new byte[length];
+            query.get(label);
+            name.append(name.length() > 0 ? "." : "").append(new String(label, StandardCharsets.US_ASCII));
+        }
+        String domain = name.toString().toLowerCase(Locale.ROOT);
+        byte[] question = new byte[query.position() + 4 - 12];
+        query.position(12);
+        query.get(question);
+        queries.computeIfAbsent(domain, key -> new AtomicInteger()).incrementAndGet();
+
+        List<Mx> records = mxRecords.getOrDefault(domain, List.of());
+        int responseCode = mxRecords.containsKey(domain) ? 0 : responseCodes.getOrDefault(domain, RCODE_NAME_ERROR);
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        writeShort(response, id);
+        //response, recursion desired and available
+        writeShort(response, 0x8180 | responseCode);
+        writeShort(response, 1);
+        writeShort(response, records.size());
+        writeShort(response, 0);
+        writeShort(response, 0);
+        response.write(question, 0, question.length);
+        for (Mx record : records) {
+            //pointer to the name of the question
+            writeShort(response, 0xc00c);
+            writeShort(response, 15);
+            writeShort(response, 1);
+            writeShort(response, (int) (record.getTtlSeconds() >>> 16));
+            writeShort(response, (int) record.getTtlSeconds());
+            byte[] exchange = encodeName(record.getExchange());
+            writeShort(response, 2 + exchange.length);
+            writeShort(response, record.getPreference());
+            response.write(exchange, 0, exchange.length);
+        }
+        return response.toByteArray();
+    }
+
+    private static byte[] encodeName(String name) {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        for (String label : name.split("\\.")) {
+            if (!label.isEmpty()) {
+                encoded.write(label.length());
+                encoded.write(label.getBytes(StandardCharsets.US_ASCII), 0, label.length());
+            }
+        }
+        encoded.write(0);
+        return encoded.toByteArray();
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+
+    @Value
+    public static class Mx {
+        int preference;
+        String exchange;
+        long ttlSeconds;
+    }
+}